@@ -1,266 +1,598 @@
 package edu.cmu.cs.lti.avenue;
 
+import info.jonclark.log.LogUtils;
 import info.jonclark.stat.SecondTimer;
-import info.jonclark.treegraft.Treegraft;
-import info.jonclark.treegraft.Treegraft.TreegraftConfig;
-import info.jonclark.treegraft.datastructures.IntegerToken;
-import info.jonclark.treegraft.datastructures.IntegerTokenFactory;
-import info.jonclark.treegraft.datastructures.IntegerTokenSequence;
-import info.jonclark.treegraft.support.synccfg.SyncCFGGrammarLoader;
-import info.jonclark.treegraft.support.synccfg.SyncCFGRule;
-import info.jonclark.treegraft.support.synccfg.SyncCFGGrammarLoader.GrammarLoaderOptions;
-import info.jonclark.treegraft.util.RuleException;
+import info.jonclark.treegraft.core.tokens.integer.IntegerToken;
+import info.jonclark.treegraft.core.tokens.integer.IntegerTokenFactory;
+import info.jonclark.treegraft.parsing.rules.RuleException;
+import info.jonclark.treegraft.parsing.synccfg.ParallelSyncCFGGrammarLoader;
+import info.jonclark.treegraft.parsing.synccfg.SyncCFGGrammarLoader;
+import info.jonclark.treegraft.parsing.synccfg.SyncCFGRule;
 import info.jonclark.util.StringUtils;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Filters a lexicon (or grammar) in the format read by
+ * {@link SyncCFGGrammarLoader} to the rules that could be used to translate a
+ * test set, keeping only the n best rules for each source RHS. A rule is kept
+ * if each maximal run of terminals in its source RHS is an n-gram of some
+ * test sentence.
+ * <p>
+ * The lexicon is streamed as raw bytes and split into chunks at rule
+ * boundaries (see {@link ParallelSyncCFGGrammarLoader#findRuleEnd}), which
+ * are filtered by a pool of worker threads. Only the header line of each rule
+ * is decoded to test its source RHS against a hash set of 64-bit n-gram
+ * fingerprints, and only the rules that pass are fully parsed to get their
+ * scores, so most of a large lexicon is never turned into rule objects and
+ * the filter is usually limited by I/O. Memory is bounded by the chunks in
+ * flight and the rules that are kept; kept rules are written in their
+ * original form, grouped by source RHS in the order in which each source RHS
+ * was first seen and best first within each group.
+ *
+ * @author Jonathan Clark
+ */
 public class FastLexiconFilterer {
 
-	private int nGramLengthLimit = 7;
-	private IntegerTokenFactory tokenFactory = new IntegerTokenFactory();
-	private final HashSet<IntegerTokenSequence> testNgrams =
-			new HashSet<IntegerTokenSequence>(10000);
-	private final String fSentsIn;
-	private final String fLexiconIn;
-	private final String fLexiconOut;
-	private final int threshold;
+	private static final Logger log = LogUtils.getLogger();
 
-	private final List<SyncCFGRule<IntegerToken>> POISON;
-	private final SyncCFGRule<IntegerToken> POISON2;
+	private static final int DEFAULT_NGRAM_LENGTH_LIMIT = 7;
+	private static final int CHUNK_BYTES = 1 << 22;
 
-	private ArrayBlockingQueue<List<SyncCFGRule<IntegerToken>>> rulesIn =
-			new ArrayBlockingQueue<List<SyncCFGRule<IntegerToken>>>(1000000);
-	private ArrayBlockingQueue<SyncCFGRule<IntegerToken>> rulesOut =
-			new ArrayBlockingQueue<SyncCFGRule<IntegerToken>>(1000000);
-	private Thread[] workers;
-	private final double sgtWeight;
-	private final double tgsWeight;
+	// how many filtered chunks may be waiting to be merged per worker before
+	// the reader blocks
+	private static final int CHUNKS_PER_THREAD = 4;
 
-	public FastLexiconFilterer(String string, String string2, String string3, double tgsWeight,
-			double sgtWeight, int threshold) throws RuleException {
-
-		this.fSentsIn = string;
-		this.fLexiconIn = string2;
-		this.fLexiconOut = string3;
+	private final int nGramLengthLimit;
+	private final NGramSet testNgrams = new NGramSet();
+	private final Charset charset;
+	private final int threshold;
+	private final double tgsWeight;
+	private final double sgtWeight;
+	private final int nThreads;
+
+	// only kept rules are ever turned into tokens
+	private final IntegerTokenFactory tokenFactory = new IntegerTokenFactory();
+
+	private final LinkedHashMap<String, RuleGroup> ruleGroups =
+			new LinkedHashMap<String, RuleGroup>();
+	private long nRules = 0;
+	private long nMatched = 0;
+	private long nOrder = 0;
+
+	/**
+	 * @param threshold
+	 *            the number of best rules to keep for each source RHS; zero or
+	 *            less keeps all matching rules
+	 * @param tgsWeight
+	 *            the weight of the (log) target-given-source score when
+	 *            ranking rules
+	 * @param sgtWeight
+	 *            the weight of the (log) source-given-target score when
+	 *            ranking rules
+	 * @param nThreads
+	 *            the number of filtering threads; zero or less uses one per
+	 *            available processor
+	 * @param encoding
+	 *            the encoding of the test sentences and the lexicon
+	 */
+	public FastLexiconFilterer(int threshold, double tgsWeight, double sgtWeight, int nThreads,
+			String encoding) {
+
+		this.nGramLengthLimit = DEFAULT_NGRAM_LENGTH_LIMIT;
 		this.threshold = threshold;
-		this.sgtWeight = sgtWeight;
 		this.tgsWeight = tgsWeight;
-
-		POISON = new ArrayList<SyncCFGRule<IntegerToken>>(0);
-		POISON2 =
-				new SyncCFGRule<IntegerToken>(null, null, null, null, null, null, null, null, null,
-						0, null, null);
+		this.sgtWeight = sgtWeight;
+		if (nThreads <= 0) {
+			nThreads = Runtime.getRuntime().availableProcessors();
+		}
+		this.nThreads = nThreads;
+		this.charset = Charset.forName(encoding);
 	}
 
-	public void loadSentences() throws IOException {
-
-		System.out.println("Loading test sentences...");
-		BufferedReader sentsIn = new BufferedReader(new FileReader(fSentsIn));
+	/**
+	 * Adds every n-gram of the test sentences (up to the n-gram length limit)
+	 * to the set of n-grams that source RHS's will be checked against.
+	 *
+	 * @param sentsIn
+	 *            one tokenized sentence per line
+	 * @throws IOException
+	 */
+	public void loadSentences(InputStream sentsIn) throws IOException {
+
+		BufferedReader in = new BufferedReader(new InputStreamReader(sentsIn, charset));
 		String line;
 		int n = 0;
-		while ((line = sentsIn.readLine()) != null) {
-
-			List<IntegerToken> words =
-					Arrays.asList(tokenFactory.makeTokens(StringUtils.tokenize(line), true));
-			for (int i = 0; i < words.size(); i++) {
-				for (int j = i; j <= Math.min(i + nGramLengthLimit, words.size()); j++) {
-					List<IntegerToken> sublist = words.subList(i, j);
-					// System.out.println(StringUtils.untokenize(tokenFactory.getTokensAsStrings(sublist)));
-					IntegerTokenSequence subseq = new IntegerTokenSequence(sublist);
-					testNgrams.add(subseq);
+		while ((line = in.readLine()) != null) {
+			String[] words = StringUtils.tokenize(line);
+			long[] wordHashes = new long[words.length];
+			for (int i = 0; i < words.length; i++) {
+				wordHashes[i] = hashWord(words[i]);
+			}
+			for (int i = 0; i < words.length; i++) {
+				long hash = 0;
+				for (int j = i; j < words.length && j - i < nGramLengthLimit; j++) {
+					hash = extendHash(hash, wordHashes[j]);
+					testNgrams.add(hash);
 				}
 			}
 			n++;
 		}
-		sentsIn.close();
-		System.out.println("Loaded " + n + " test sentences.");
+		in.close();
+		log.info("Loaded " + testNgrams.size() + " n-grams from " + n + " test sentences.");
 	}
 
-	private class ReaderThread implements Runnable {
-		public void run() {
-			try {
-				BufferedReader lexiconIn = new BufferedReader(new FileReader(fLexiconIn),
-				// 1000 *
-						1000 * 1000);
-
-				TreegraftConfig<SyncCFGRule<IntegerToken>, IntegerToken> config =
-						new Treegraft.TreegraftConfig<SyncCFGRule<IntegerToken>, IntegerToken>();
-				config.tokenFactory = tokenFactory;
-				GrammarLoaderOptions opts = new SyncCFGGrammarLoader.GrammarLoaderOptions(false);
-				SyncCFGGrammarLoader<IntegerToken> loader =
-						new SyncCFGGrammarLoader<IntegerToken>(opts, config);
-
-				IntegerToken[] prevRhs = null;
-				List<SyncCFGRule<IntegerToken>> ruleGroup =
-						new ArrayList<SyncCFGRule<IntegerToken>>();
-				SyncCFGRule<IntegerToken> rule = null;
-				int i = 0;
-				SecondTimer timer = new SecondTimer(false, true);
-				do {
-					try {
-
-						rule = loader.nextRule(lexiconIn, fLexiconIn);
-						if (rule == null)
-							break;
-
-						// add previous rule group when we get to a new group
-						// (determined by source rhs)
-						IntegerToken[] curRhs = rule.getRhs();
-						if (prevRhs != null && !Arrays.equals(prevRhs, curRhs)) {
-							rulesIn.put(ruleGroup);
-							ruleGroup = new ArrayList<SyncCFGRule<IntegerToken>>();
-						}
-
-						// prepare for next iteration
-						ruleGroup.add(rule);
-						prevRhs = curRhs;
+	/**
+	 * Filters a lexicon, writing the kept rules once the whole lexicon has
+	 * been read.
+	 *
+	 * @param lexiconIn
+	 * @param inputSourceName
+	 *            used in error messages
+	 * @param lexiconOut
+	 * @throws IOException
+	 * @throws RuleException
+	 */
+	public void filter(InputStream lexiconIn, final String inputSourceName, OutputStream lexiconOut)
+			throws IOException, RuleException {
+
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		ArrayDeque<Future<List<Candidate>>> pending = new ArrayDeque<Future<List<Candidate>>>();
+		SecondTimer timer = new SecondTimer(false, true);
+		long nBytes = 0;
+
+		try {
+			byte[] buf = new byte[CHUNK_BYTES];
+			int length = 0;
+			int nLine = 1;
+			boolean eof = false;
+			while (!eof || length > 0) {
+
+				// fill the buffer
+				while (!eof && length < buf.length) {
+					int nRead = lexiconIn.read(buf, length, buf.length - length);
+					if (nRead == -1) {
+						eof = true;
+					} else {
+						length += nRead;
+					}
+				}
 
-						if (i % 1000000 == 0) {
-							System.out.println("Read " + i + " rules so far... ("
-									+ timer.getEventsPerSecond(i) + " rules/sec)");
-						}
-						i++;
-					} catch (RuleException e) {
-						System.err.println("Invalid rule: " + e.getMessage());
+				int end = findChunkEnd(buf, length, eof);
+				if (end == 0) {
+					if (eof) {
+						break;
 					}
-				} while (rule != null);
+					// a single rule is longer than the buffer
+					buf = Arrays.copyOf(buf, buf.length * 2);
+					continue;
+				}
 
-				// put the last rule group
-				if (prevRhs != null) {
-					rulesIn.put(ruleGroup);
+				final byte[] chunk = Arrays.copyOf(buf, end);
+				final int firstLine = nLine;
+				for (int i = 0; i < end; i++) {
+					if (buf[i] == '\n') {
+						nLine++;
+					}
 				}
+				System.arraycopy(buf, end, buf, 0, length - end);
+				length -= end;
+				nBytes += end;
 
-				for (i = 0; i < 100; i++) {
-					rulesIn.put(POISON);
+				pending.add(pool.submit(new Callable<List<Candidate>>() {
+					public List<Candidate> call() throws IOException, RuleException {
+						return filterChunk(chunk, firstLine, inputSourceName);
+					}
+				}));
+
+				// merge finished chunks in order, waiting if too many are
+				// outstanding
+				while (pending.isEmpty() == false
+						&& (pending.peek().isDone() || pending.size() >= nThreads
+								* CHUNKS_PER_THREAD)) {
+					merge(pending.poll());
 				}
 
-			} catch (IOException e) {
-				e.printStackTrace();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+				log.fine("Read " + (nBytes / 1000000) + "MB so far ("
+						+ timer.getEventsPerSecond((int) (nBytes / 1000000)) + " MB/sec)");
+			}
+
+			while (pending.isEmpty() == false) {
+				merge(pending.poll());
 			}
+		} finally {
+			pool.shutdownNow();
+			lexiconIn.close();
 		}
+
+		long nKept = write(lexiconOut);
+		log.info("Read " + nRules + " rules, " + nMatched + " matched the test set and " + nKept
+				+ " were kept.");
 	}
 
-	private class WriterThread implements Runnable {
-		public void run() {
-			try {
-				PrintWriter lexiconOut = new PrintWriter(fLexiconOut);
-
-				int nPoison = 0;
-				SyncCFGRule<IntegerToken> rule;
-				while (nPoison < workers.length) {
-					rule = rulesOut.take();
-					if (rule == POISON2) {
-						nPoison++;
-					} else {
-						lexiconOut.print(rule.originalString);
+	private int findChunkEnd(byte[] buf, int length, boolean eof) {
+		if (eof) {
+			return length;
+		}
+		int chunkEnd = 0;
+		int ruleEnd;
+		while ((ruleEnd = ParallelSyncCFGGrammarLoader.findRuleEnd(buf, chunkEnd, length)) != -1) {
+			chunkEnd = ruleEnd;
+		}
+		return chunkEnd;
+	}
+
+	/**
+	 * Called by the worker threads, each with its own chunk.
+	 *
+	 * @return the rules in the chunk that match the test set, in order
+	 */
+	private List<Candidate> filterChunk(byte[] chunk, int firstLine, String inputSourceName)
+			throws IOException, RuleException {
+
+		List<Candidate> matches = new ArrayList<Candidate>();
+		int nRulesInChunk = 0;
+
+		int nLine = firstLine;
+		int start = 0;
+		while (start < chunk.length) {
+			int end = ParallelSyncCFGGrammarLoader.findRuleEnd(chunk, start, chunk.length);
+			if (end == -1) {
+				// the last rule in the lexicon may not end with a newline
+				end = chunk.length;
+			}
+
+			int headerLine = nLine;
+			int lineStart = start;
+			String header = null;
+			while (lineStart < end && header == null) {
+				int lineEnd = lineStart;
+				while (lineEnd < end && chunk[lineEnd] != '\n') {
+					lineEnd++;
+				}
+				if (chunk[lineStart] != '{' && contains(chunk, lineStart, lineEnd, '-', '>')
+						&& isComment(chunk, lineStart, lineEnd) == false) {
+					header = new String(chunk, lineStart, lineEnd - lineStart, charset);
+				} else {
+					headerLine++;
+				}
+				lineStart = lineEnd + 1;
+			}
+
+			if (header != null) {
+				nRulesInChunk++;
+				try {
+					String sourceRhs = matchSourceRhs(header.replace('\t', ' '));
+					if (sourceRhs != null) {
+						SyncCFGRule<IntegerToken> rule =
+								parseRule(chunk, start, end, nLine, inputSourceName);
+						if (rule != null) {
+							double score =
+									sgtWeight * rule.getRuleScores().sgt + tgsWeight
+											* rule.getRuleScores().tgs;
+							// drop the blank lines that separate this rule from the
+							// previous one
+							int textStart = start;
+							while ((chunk[textStart] & 0xff) <= ' ') {
+								textStart++;
+							}
+							byte[] text = Arrays.copyOfRange(chunk, textStart, end);
+							matches.add(new Candidate(sourceRhs, score, text));
+						}
 					}
+				} catch (ParseException e) {
+					throw new RuleException("Could not read rule in " + inputSourceName
+							+ " on line " + headerLine, e);
 				}
+			}
 
-				lexiconOut.close();
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+			for (int i = start; i < end; i++) {
+				if (chunk[i] == '\n') {
+					nLine++;
+				}
 			}
+			start = end;
+		}
+
+		synchronized (this) {
+			nRules += nRulesInChunk;
 		}
+		return matches;
 	}
 
-	private class WorkerThread implements Runnable {
-		public void run() {
+	/**
+	 * @param header
+	 *            the line of a rule that contains its LHS's and RHS's
+	 * @return the source RHS of the rule in a canonical form if its terminals
+	 *         match the test set; null otherwise
+	 */
+	private String matchSourceRhs(String header) throws ParseException {
+
+		List<String> symbols = new ArrayList<String>();
+		List<Boolean> terminals = new ArrayList<Boolean>();
+		SyncCFGGrammarLoader.splitRhs(SyncCFGGrammarLoader.getSourceRhs(header), symbols,
+				terminals);
+
+		StringBuilder canonical = new StringBuilder();
+		long hash = 0;
+		int runLength = 0;
+		for (int i = 0; i <= symbols.size(); i++) {
+			if (i < symbols.size() && terminals.get(i)) {
+				hash = extendHash(hash, hashWord(symbols.get(i)));
+				runLength++;
+			} else {
+				// end of a run of terminals
+				if (runLength > nGramLengthLimit
+						|| (runLength > 0 && testNgrams.contains(hash) == false)) {
+					return null;
+				}
+				hash = 0;
+				runLength = 0;
+			}
 
-			Comparator<SyncCFGRule<IntegerToken>> c = new Comparator<SyncCFGRule<IntegerToken>>() {
+			if (i < symbols.size()) {
+				if (i > 0) {
+					canonical.append(' ');
+				}
+				if (terminals.get(i)) {
+					canonical.append('"').append(symbols.get(i)).append('"');
+				} else {
+					canonical.append(symbols.get(i));
+				}
+			}
+		}
+		return canonical.toString();
+	}
 
-				// NOTE: tgs and sgt are already in log domain in scores
-				// but originalString still has scores in probability domain
-				public int compare(SyncCFGRule<IntegerToken> o1, SyncCFGRule<IntegerToken> o2) {
+	private SyncCFGRule<IntegerToken> parseRule(byte[] chunk, int start, int end, int nLine,
+			String inputSourceName) throws IOException, RuleException {
 
-					if (sgtWeight * o1.getRuleScores().sgt + tgsWeight * o1.getRuleScores().tgs > sgtWeight
-							* o2.getRuleScores().sgt + tgsWeight * o2.getRuleScores().tgs) {
-						return -1;
-					} else {
-						return 1;
-					}
-				}
-			};
-
-			List<SyncCFGRule<IntegerToken>> ruleGroup;
-			try {
-				while ((ruleGroup = rulesIn.take()) != POISON) {
-
-					List<IntegerToken> rhs = Arrays.asList(ruleGroup.get(0).getRhs());
-					IntegerTokenSequence seq = new IntegerTokenSequence(rhs);
-					if (testNgrams.contains(seq)) {
-
-						// keep n-best rules
-						Collections.sort(ruleGroup, c);
-						for (int i = 0; i < ruleGroup.size() && i < threshold; i++) {
-							rulesOut.put(ruleGroup.get(i));
-							// System.out.println("YES: "
-							// +
-							// StringUtils.untokenize(tokenFactory.getTokensAsStrings(rhs)));
-						}
-					} else {
-						// System.out.println("NO: "
-						// +
-						// StringUtils.untokenize(tokenFactory.getTokensAsStrings(rhs)));
-					}
+		SyncCFGGrammarLoader<IntegerToken> loader =
+				new SyncCFGGrammarLoader<IntegerToken>(tokenFactory, true);
+		loader.setLineNumber(nLine - 1);
+		BufferedReader in =
+				new BufferedReader(new InputStreamReader(new ByteArrayInputStream(chunk, start, end
+						- start), charset));
+		return loader.nextRule(in, inputSourceName);
+	}
+
+	private void merge(Future<List<Candidate>> future) throws IOException, RuleException {
+
+		List<Candidate> matches;
+		try {
+			matches = future.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while filtering lexicon");
+		} catch (ExecutionException e) {
+			Throwable t = e.getCause();
+			if (t instanceof IOException) {
+				throw (IOException) t;
+			} else if (t instanceof RuleException) {
+				throw (RuleException) t;
+			} else if (t instanceof RuntimeException) {
+				throw (RuntimeException) t;
+			} else if (t instanceof Error) {
+				throw (Error) t;
+			} else {
+				throw new RuntimeException(t);
+			}
+		}
+
+		for (Candidate candidate : matches) {
+			candidate.order = nOrder++;
+			RuleGroup group = ruleGroups.get(candidate.sourceRhs);
+			if (group == null) {
+				group = new RuleGroup();
+				ruleGroups.put(candidate.sourceRhs, group);
+			}
+			group.offer(candidate);
+		}
+		nMatched += matches.size();
+	}
+
+	private long write(OutputStream lexiconOut) throws IOException {
+
+		OutputStream out = new BufferedOutputStream(lexiconOut, 1 << 20);
+		long nKept = 0;
+		for (RuleGroup group : ruleGroups.values()) {
+			ArrayList<Candidate> best = new ArrayList<Candidate>(group.worstFirst);
+			Collections.sort(best);
+			for (Candidate candidate : best) {
+				out.write(candidate.text);
+				if (candidate.text[candidate.text.length - 1] != '\n') {
+					out.write('\n');
 				}
+				out.write('\n');
+				nKept++;
+			}
+		}
+		out.close();
+		return nKept;
+	}
 
-				rulesOut.put(POISON2);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+	private static boolean contains(byte[] buf, int start, int end, char a, char b) {
+		for (int i = start; i < end - 1; i++) {
+			if (buf[i] == a && buf[i + 1] == b) {
+				return true;
 			}
 		}
+		return false;
 	}
 
-	public static void main(String[] args) throws Exception {
-		if (args.length != 6) {
-			System.err.println("Usage: program <test_sents> <lexicon_in> <lexicon_out> <n-best-rule-threshold> <tgs_weight> <sgt_weight>");
-			System.exit(1);
+	private static boolean isComment(byte[] buf, int start, int end) {
+		int first = start;
+		while (first < end && (buf[first] & 0xff) <= ' ') {
+			first++;
 		}
+		return first < end && buf[first] == ';';
+	}
 
-		// XXX: HACK
-		SyncCFGRule.FILTERING_MODE = true;
+	private static long hashWord(String word) {
+		// 64-bit FNV-1a
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < word.length(); i++) {
+			hash ^= word.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
 
-		double tgsWeight = Double.parseDouble(args[4]);
-		double sgtWeight = Double.parseDouble(args[5]);
+	private static long extendHash(long ngramHash, long wordHash) {
+		long hash = Long.rotateLeft(ngramHash, 31) ^ wordHash;
+		return hash * 0x9e3779b97f4a7c15L;
+	}
 
-		FastLexiconFilterer filt =
-				new FastLexiconFilterer(args[0], args[1], args[2], tgsWeight, sgtWeight,
-						Integer.parseInt(args[3]));
-		filt.loadSentences();
-		filt.start();
+	/**
+	 * A rule that matched the test set.
+	 */
+	private static class Candidate implements Comparable<Candidate> {
+		public final String sourceRhs;
+		public final double score;
+		public final byte[] text;
+		public long order;
+
+		public Candidate(String sourceRhs, double score, byte[] text) {
+			this.sourceRhs = sourceRhs;
+			this.score = score;
+			this.text = text;
+		}
+
+		/**
+		 * Sorts higher scores first, breaking ties in favor of earlier rules.
+		 */
+		public int compareTo(Candidate other) {
+			int cmp = Double.compare(other.score, this.score);
+			if (cmp == 0) {
+				cmp = (this.order < other.order) ? -1 : ((this.order == other.order) ? 0 : 1);
+			}
+			return cmp;
+		}
+	}
+
+	/**
+	 * The best rules seen so far for one source RHS, with the worst of them at
+	 * the head of the heap.
+	 */
+	private class RuleGroup {
+		public final PriorityQueue<Candidate> worstFirst =
+				new PriorityQueue<Candidate>(1, Collections.reverseOrder());
+
+		public void offer(Candidate candidate) {
+			if (threshold <= 0 || worstFirst.size() < threshold) {
+				worstFirst.add(candidate);
+			} else if (candidate.compareTo(worstFirst.peek()) < 0) {
+				worstFirst.poll();
+				worstFirst.add(candidate);
+			}
+		}
 	}
 
-	private void start() throws InterruptedException {
+	/**
+	 * An open-addressing set of 64-bit n-gram fingerprints. Zero is used to
+	 * mark empty slots, so it is stored as one.
+	 */
+	private static class NGramSet {
+		private long[] table = new long[1 << 16];
+		private int size = 0;
+
+		public void add(long hash) {
+			if (hash == 0) {
+				hash = 1;
+			}
+			int mask = table.length - 1;
+			int slot = mix(hash) & mask;
+			while (table[slot] != 0) {
+				if (table[slot] == hash) {
+					return;
+				}
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = hash;
+			size++;
+			if (size * 2 > table.length) {
+				grow();
+			}
+		}
 
-		workers = new Thread[4];
+		public boolean contains(long hash) {
+			if (hash == 0) {
+				hash = 1;
+			}
+			int mask = table.length - 1;
+			int slot = mix(hash) & mask;
+			while (table[slot] != 0) {
+				if (table[slot] == hash) {
+					return true;
+				}
+				slot = (slot + 1) & mask;
+			}
+			return false;
+		}
 
-		Thread reader = new Thread(new ReaderThread());
-		reader.start();
-		Thread writer = new Thread(new WriterThread());
-		writer.start();
+		public int size() {
+			return size;
+		}
 
-		for (int i = 0; i < workers.length; i++) {
-			workers[i] = new Thread(new WorkerThread());
-			workers[i].start();
+		private static int mix(long hash) {
+			return (int) (hash ^ (hash >>> 32));
 		}
-		reader.join();
-		for (int i = 0; i < workers.length; i++) {
-			workers[i].join();
+
+		private void grow() {
+			long[] old = table;
+			table = new long[old.length * 2];
+			int mask = table.length - 1;
+			for (long hash : old) {
+				if (hash != 0) {
+					int slot = mix(hash) & mask;
+					while (table[slot] != 0) {
+						slot = (slot + 1) & mask;
+					}
+					table[slot] = hash;
+				}
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 6 && args.length != 7) {
+			System.err.println("Usage: program <test_sents> <lexicon_in> <lexicon_out> <n-best-rule-threshold> <tgs_weight> <sgt_weight> [n_threads]");
+			System.exit(1);
 		}
-		writer.join();
+
+		int threshold = Integer.parseInt(args[3]);
+		double tgsWeight = Double.parseDouble(args[4]);
+		double sgtWeight = Double.parseDouble(args[5]);
+		int nThreads = 0;
+		if (args.length > 6) {
+			nThreads = Integer.parseInt(args[6]);
+		}
+
+		FastLexiconFilterer filt =
+				new FastLexiconFilterer(threshold, tgsWeight, sgtWeight, nThreads, "UTF-8");
+		filt.loadSentences(new FileInputStream(args[0]));
+		filt.filter(new FileInputStream(args[1]), args[1], new FileOutputStream(args[2]));
 	}
 }
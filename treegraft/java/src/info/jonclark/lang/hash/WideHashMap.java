@@ -1,221 +1,740 @@
 package info.jonclark.lang.hash;
 
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
- * A hash map that can store wide keys (2 longs) and 2 values (floats) per table
- * entry. It assumes the user knows how many entries will be put into the hash
- * at time of creation.
+ * A hash map that can store wide keys (2 longs) and a fixed-length vector of
+ * values (floats, 2 by default) per table entry. The expected number of entries
+ * given at construction is only used to size the table initially; the table
+ * grows as needed.
+ * <p>
+ * The table uses Robin Hood open addressing: entries within a run of occupied
+ * slots are kept sorted by their home slot, so no entry is ever further than
+ * {@link #MAX_PROBE} slots from its home and unsuccessful lookups (common when
+ * an LM backs off) can stop as soon as they pass the point where the key would
+ * have been. If an insertion would exceed that distance, the table grows
+ * instead. Rather than wrapping around, the table has MAX_PROBE extra slots at
+ * its end.
+ * <p>
+ * Each slot is consecutive longs (two key parts followed by the values packed
+ * two to a long) so that a lookup usually touches a single cache line. Slots
+ * are kept in segments of at most 2^SEGMENT_SHIFT slots, so the number of
+ * slots is limited only by memory. The key (0, 0) marks an empty slot and is
+ * stored separately.
+ * <p>
+ * Wider vectors let several tables that share most of their keys (e.g. the
+ * n-grams of several language models) be stored once, so that a single probe
+ * finds the values of all of them: see
+ * {@link #put(long, long, int, float, float)}, {@link #find(long, long)} and
+ * {@link #getValue(long, int)}. Vector entries that have never been set hold
+ * the out-of-hash value.
+ * <p>
+ * The segments are NIO buffers so that a map built in memory can be written to
+ * disk with {@link #write(FileChannel)} and later memory-mapped read-only with
+ * {@link #map(FileChannel, long, float)} without parsing or copying. Only
+ * tables with the default 2 values per entry can be written.
+ * <p>
+ * {@link #put(long, long, float, float)} may be called by several threads at
+ * once (e.g. by a parallel loader): the table is divided into stripes of
+ * contiguous slots, each guarded by its own lock, and a put holds the locks of
+ * the (at most two) stripes it can touch. Reads take no locks and must not run
+ * concurrently with puts.
  */
 public class WideHashMap {
 
-	// index 1 = hash value (even-odd rows form pairs)
-	// index 2 = indicies of entries falling into the same bucket (collisions)
-	private final boolean[] occupied;
-	private final boolean[] collision;
-	private final long[] keys;
-	private final float[] values;
+	/**
+	 * The maximum distance of any entry from its home slot.
+	 */
+	public static final int MAX_PROBE = 256;
+
+	/**
+	 * The slot returned by {@link #find(long, long)} for the key (0, 0), which
+	 * is not stored in the table itself.
+	 */
+	public static final long ZERO_KEY_SLOT = -2;
+
+	private static final int DEFAULT_VECTOR_LENGTH = 2;
+	private static final int SEGMENT_SHIFT = 26;
+
+	// each lock guards 2^STRIPE_SHIFT consecutive slots; this must be at
+	// least MAX_PROBE so that a put touches no more than 2 stripes
+	private static final int STRIPE_SHIFT = 10;
+
+	private static final int HEADER_BYTES = 32;
+	private static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	private final float loadFactor;
 	private final float outOfHashValue;
+	private final long emptyValues;
+
+	// the values of each slot are packed two to a long after its key
+	private final int vectorLength;
+	private final int slotLongs;
+
+	// each segment must fit in a single array or buffer
+	private final int segmentShift;
+	private final long segmentMask;
+
+	// number of possible home slots; the table has MAX_PROBE more slots
+	private long capacity;
+	private long nSlots;
+	private long maxElements;
+	private LongBuffer[] segments;
+
+	// null for read-only (mapped) tables
+	private Object[] stripeLocks;
+	private final ReentrantReadWriteLock resizeLock = new ReentrantReadWriteLock();
+
+	private final AtomicLong nElements = new AtomicLong();
+	private final AtomicLong totalDisplacement = new AtomicLong();
+	private final Object zeroKeyLock = new Object();
+	private boolean hasZeroKey = false;
+	private final long[] zeroKeyValues;
+
+	public WideHashMap(long nElementsToPut, float loadFactor, float outOfHashValue) {
+		this(nElementsToPut, loadFactor, DEFAULT_VECTOR_LENGTH, outOfHashValue);
+	}
 
-	private int nElements;
-	private long nCollisions = 0;
+	/**
+	 * @param nElementsToPut
+	 *            the number of distinct keys expected
+	 * @param loadFactor
+	 * @param vectorLength
+	 *            the number of values stored with each key, which must be even
+	 * @param outOfHashValue
+	 *            the value of keys not present in the table and of vector
+	 *            entries that have not been set
+	 */
+	public WideHashMap(long nElementsToPut, float loadFactor, int vectorLength,
+			float outOfHashValue) {
+
+		if (vectorLength <= 0 || vectorLength % 2 != 0) {
+			throw new IllegalArgumentException("Vector length must be positive and even: "
+					+ vectorLength);
+		}
+		this.loadFactor = loadFactor;
+		this.outOfHashValue = outOfHashValue;
+		this.emptyValues = packValues(outOfHashValue, outOfHashValue);
+		this.vectorLength = vectorLength;
+		this.slotLongs = 2 + vectorLength / 2;
+		this.segmentShift = segmentShiftFor(slotLongs);
+		this.segmentMask = (1L << segmentShift) - 1;
+		this.zeroKeyValues = new long[vectorLength / 2];
+		allocate(capacityFor(nElementsToPut, loadFactor));
+	}
 
-	public WideHashMap(int nElementsToPut, float loadFactor, float outOfHashValue) {
+	private WideHashMap(LongBuffer[] segments, long capacity, long nElements,
+			boolean hasZeroKey, long zeroKeyValues, float outOfHashValue) {
 
+		this.loadFactor = 1.0f;
 		this.outOfHashValue = outOfHashValue;
+		this.emptyValues = packValues(outOfHashValue, outOfHashValue);
+		this.vectorLength = DEFAULT_VECTOR_LENGTH;
+		this.slotLongs = 2 + DEFAULT_VECTOR_LENGTH / 2;
+		this.segmentShift = SEGMENT_SHIFT;
+		this.segmentMask = (1L << segmentShift) - 1;
+		this.capacity = capacity;
+		this.nSlots = capacity + MAX_PROBE + 1;
+		this.maxElements = capacity;
+		this.segments = segments;
+		this.stripeLocks = null;
+		this.nElements.set(nElements);
+		this.hasZeroKey = hasZeroKey;
+		this.zeroKeyValues = new long[] { zeroKeyValues };
+	}
+
+	private static int segmentShiftFor(int slotLongs) {
+		int shift = SEGMENT_SHIFT;
+		while ((1L << shift) * slotLongs > Integer.MAX_VALUE) {
+			shift--;
+		}
+		return shift;
+	}
+
+	private static long capacityFor(long nElements, float loadFactor) {
+		return Math.max(1, (long) Math.ceil((double) nElements / loadFactor));
+	}
+
+	private static int segmentCount(long nSlots, int segmentShift) {
+		return (int) ((nSlots + (1L << segmentShift) - 1) >>> segmentShift);
+	}
+
+	private static long slotsInSegment(long nSlots, int segment, int segmentShift) {
+		return Math.min(nSlots - ((long) segment << segmentShift), 1L << segmentShift);
+	}
+
+	private void allocate(long capacity) {
+		this.capacity = capacity;
+		this.nSlots = capacity + MAX_PROBE + 1;
+		this.maxElements = (long) (capacity * (double) loadFactor);
+		this.totalDisplacement.set(0);
+
+		this.segments = new LongBuffer[segmentCount(nSlots, segmentShift)];
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] =
+					LongBuffer.wrap(new long[(int) slotsInSegment(nSlots, i, segmentShift)
+							* slotLongs]);
+		}
 
-		int tableSize = (int) ((float) nElementsToPut / loadFactor);
-		this.keys = new long[tableSize * 2];
-		this.values = new float[tableSize * 2];
-		this.occupied = new boolean[tableSize * 2];
-		this.collision = new boolean[tableSize * 2];
-
-		// now we have to pass around a parameter that tells whether
-		// to do "alternate indexing"
-		// alternate indexing is the process of pairing even and odd
-		// entries (adjoining array entries offset by the low order bit)
-		// so that we can store longer keys
-	}
-
-	// private static byte get8bits(byte[] data, int ptr) {
-	// return data[ptr];
-	// }
-	//
-	// private static short get16bits(byte[] data, int ptr) {
-	// return (short) (data[ptr] | (data[ptr + 1] << 8));
-	// }
-	//
-	// private static byte[] toBytes(long a, long b) {
-	//
-	// byte[] c = new byte[8 * 2];
-	//
-	// for (int j = 0; j < 4; j++) {
-	// c[3 - j] = (byte) (a >>> (j * 8));
-	// }
-	// for (int j = 0; j < 4; j++) {
-	// c[3 - j] = (byte) (b >>> (j * 8));
-	// }
-	//
-	// return c;
-	// }
-	//
-	// public int hash(long a, long b) {
-	//
-	// byte[] data = toBytes(a, b);
-	// int ptr = 0;
-	// int len = data.length;
-	//
-	// int hash = len, tmp;
-	// int rem;
-	//
-	// if (len <= 0)
-	// return 0;
-	//
-	// rem = len & 3;
-	// len >>= 2;
-	//
-	// /* Main loop */
-	// for (; len > 0; len--) {
-	// hash += get16bits(data, ptr);
-	// tmp = (get16bits(data, ptr + 2) << 11) ^ hash;
-	// hash = (hash << 16) ^ tmp;
-	// ptr += 2 * 2;
-	// hash += hash >> 11;
-	// }
-	//
-	// /* Handle end cases */
-	// switch (rem) {
-	// case 3:
-	// hash += get16bits(data, ptr);
-	// hash ^= hash << 16;
-	// hash ^= get8bits(data, ptr + 2) << 18;
-	// hash += hash >> 11;
-	// break;
-	// case 2:
-	// hash += get16bits(data, ptr);
-	// hash ^= hash << 11;
-	// hash += hash >> 17;
-	// break;
-	// case 1:
-	// hash += get8bits(data, ptr);
-	// hash ^= hash << 10;
-	// hash += hash >> 1;
-	// }
-	//
-	// /* Force "avalanching" of final 127 bits */
-	// hash ^= hash << 3;
-	// hash += hash >> 5;
-	// hash ^= hash << 4;
-	// hash += hash >> 17;
-	// hash ^= hash << 25;
-	// hash += hash >> 6;
-	//
-	// return hash;
-	//
-	// }
-
-	private static int hash(long a, long b) {
-		int h = (int) (a ^ (a >>> 32) ^ b ^ (b >>> 32));
-
-		// taken from java.util.HashMap:
-		// This function ensures that hashCodes that differ only by
-		// constant multiples at each bit position have a bounded
-		// number of collisions (approximately 8 at default load factor).
-		h ^= (h >>> 20) ^ (h >>> 12);
-		h ^= (h >>> 7) ^ (h >>> 4);
-
-		// take the absolute value
-		h = (h < 0) ? -h : h;
+		this.stripeLocks = new Object[(int) (nSlots >>> STRIPE_SHIFT) + 2];
+		for (int i = 0; i < stripeLocks.length; i++) {
+			stripeLocks[i] = new Object();
+		}
+	}
 
+	/**
+	 * Builds a table from entries that are all known in advance. Rather than
+	 * inserting one entry at a time, the entries are sorted by their home slot
+	 * and then laid out from left to right, which touches each slot once and
+	 * in order.
+	 *
+	 * @param keys
+	 *            the key parts, interleaved: entry i has key (keys[2i],
+	 *            keys[2i+1]). Keys must be distinct.
+	 * @param values1
+	 * @param values2
+	 * @param n
+	 *            the number of entries
+	 * @param loadFactor
+	 * @param outOfHashValue
+	 * @return the table
+	 */
+	public static WideHashMap build(long[] keys, float[] values1, float[] values2, int n,
+			float loadFactor, float outOfHashValue) {
+
+		WideHashMap map = new WideHashMap(n, loadFactor, outOfHashValue);
+		while (map.capacity <= (1L << 32)) {
+			if (map.bulkLayout(keys, values1, values2, n)) {
+				return map;
+			}
+			// some entry landed too far from home; try a sparser table
+			map.allocate(map.capacity * 2);
+		}
+
+		// too many slots to sort by home slot as packed longs
+		for (int i = 0; i < n; i++) {
+			map.put(keys[2 * i], keys[2 * i + 1], values1[i], values2[i]);
+		}
+		return map;
+	}
+
+	private boolean bulkLayout(long[] keys, float[] values1, float[] values2, int n) {
+
+		// sort entries by home slot, carrying their index in the low bits
+		long[] order = new long[n];
+		int nNonZero = 0;
+		for (int i = 0; i < n; i++) {
+			if (keys[2 * i] == 0 && keys[2 * i + 1] == 0) {
+				hasZeroKey = true;
+				zeroKeyValues[0] = packValues(values1[i], values2[i]);
+			} else {
+				long home = home(hash(keys[2 * i], keys[2 * i + 1]));
+				order[nNonZero++] = (home << 31) | i;
+			}
+		}
+		Arrays.sort(order, 0, nNonZero);
+
+		long prev = -1;
+		for (int j = 0; j < nNonZero; j++) {
+			long home = order[j] >>> 31;
+			int i = (int) (order[j] & 0x7fffffffL);
+			long slot = Math.max(home, prev + 1);
+			if (slot - home > MAX_PROBE) {
+				return false;
+			}
+			setSlot(slot, keys[2 * i], keys[2 * i + 1], packValues(values1[i], values2[i]));
+			totalDisplacement.addAndGet(slot - home);
+			prev = slot;
+		}
+		nElements.set(n);
+		return true;
+	}
+
+	/**
+	 * Maps a table previously written by {@link #write(FileChannel)} into
+	 * memory. The returned map is read-only; calling put on it will fail.
+	 *
+	 * @param channel
+	 *            The file containing the table
+	 * @param position
+	 *            The byte offset within the file at which the table begins
+	 * @param outOfHashValue
+	 *            The value to return for keys not present in the table
+	 * @return the mapped table. Use {@link #getSerializedSize()} to find where
+	 *         the next item in the file begins.
+	 * @throws IOException
+	 */
+	public static WideHashMap map(FileChannel channel, long position, float outOfHashValue)
+			throws IOException {
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(BYTE_ORDER);
+		while (header.hasRemaining()) {
+			if (channel.read(header, position + header.position()) < 0) {
+				throw new IOException("Unexpected end of file while reading hash table header");
+			}
+		}
+		header.flip();
+		long capacity = header.getLong();
+		long nElements = header.getLong();
+		boolean hasZeroKey = (header.getLong() != 0);
+		long zeroKeyValues = header.getLong();
+
+		// each segment is mapped separately so that each stays below the 2GB
+		// limit imposed on a single MappedByteBuffer
+		long nSlots = capacity + MAX_PROBE + 1;
+		int slotLongs = 2 + DEFAULT_VECTOR_LENGTH / 2;
+		LongBuffer[] segments = new LongBuffer[segmentCount(nSlots, SEGMENT_SHIFT)];
+		long segmentPosition = position + HEADER_BYTES;
+		for (int i = 0; i < segments.length; i++) {
+			long bytes = slotsInSegment(nSlots, i, SEGMENT_SHIFT) * slotLongs * 8;
+			MappedByteBuffer buf =
+					channel.map(FileChannel.MapMode.READ_ONLY, segmentPosition, bytes);
+			buf.order(BYTE_ORDER);
+			segments[i] = buf.asLongBuffer();
+			segmentPosition += bytes;
+		}
+
+		return new WideHashMap(segments, capacity, nElements, hasZeroKey, zeroKeyValues,
+				outOfHashValue);
+	}
+
+	/**
+	 * Writes this table to the current position of the given channel in the
+	 * format expected by {@link #map(FileChannel, long, float)}.
+	 *
+	 * @param channel
+	 * @throws IOException
+	 */
+	public void write(FileChannel channel) throws IOException {
+
+		if (vectorLength != DEFAULT_VECTOR_LENGTH) {
+			throw new UnsupportedOperationException("Only tables with " + DEFAULT_VECTOR_LENGTH
+					+ " values per entry can be written: " + vectorLength);
+		}
+
+		ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20).order(BYTE_ORDER);
+		buf.putLong(capacity);
+		buf.putLong(nElements.get());
+		buf.putLong(hasZeroKey ? 1 : 0);
+		buf.putLong(zeroKeyValues[0]);
+
+		for (LongBuffer segment : segments) {
+			int length = segment.capacity();
+			for (int i = 0; i < length; i++) {
+				if (buf.remaining() < 8)
+					flush(channel, buf);
+				buf.putLong(segment.get(i));
+			}
+		}
+		flush(channel, buf);
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer buf) throws IOException {
+		buf.flip();
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+		buf.clear();
+	}
+
+	/**
+	 * @return the number of bytes {@link #write(FileChannel)} will produce for
+	 *         this table (always a multiple of 8)
+	 */
+	public long getSerializedSize() {
+		return HEADER_BYTES + nSlots * slotLongs * 8;
+	}
+
+	private static long hash(long a, long b) {
+		// the 64-bit finalizer from MurmurHash3, which mixes every input bit
+		// into every output bit
+		long h = a * 0x9E3779B97F4A7C15L + b;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
 		return h;
 	}
 
-	// public static int hash(long a, long b) {
-	// int h = (int) (a ^ (a >>> 32 + 7) ^ b >>> 5 ^ (b >>> 32));
-	// return h;
-	// }
+	private long home(long hash) {
+		if (capacity <= (1L << 32)) {
+			// scale the top 32 bits of the hash into [0, capacity), which is
+			// much cheaper than a modulus
+			return ((hash >>> 32) * capacity) >>> 32;
+		} else {
+			return (hash >>> 1) % capacity;
+		}
+	}
+
+	private static long packValues(float value1, float value2) {
+		return ((long) Float.floatToRawIntBits(value1) << 32)
+				| (Float.floatToRawIntBits(value2) & 0xffffffffL);
+	}
 
-	private static int indexFor(int h, int keyArrayLength) {
+	private LongBuffer segmentFor(long slot) {
+		return segments[(int) (slot >>> segmentShift)];
+	}
 
-		int nMaxEntries = keyArrayLength / 2;
-		int inBoundsHash = h % nMaxEntries;
+	private int offsetFor(long slot) {
+		return (int) (slot & segmentMask) * slotLongs;
+	}
+
+	// stores a 2-value entry
+	private void setSlot(long slot, long keyPart1, long keyPart2, long values) {
+		LongBuffer segment = segmentFor(slot);
+		int offset = offsetFor(slot);
+		segment.put(offset, keyPart1);
+		segment.put(offset + 1, keyPart2);
+		segment.put(offset + 2, values);
+	}
 
-		// make sure we start on an even boundary and that the index is positive
-		int firstIndex = inBoundsHash * 2;
-		firstIndex = Math.abs(firstIndex);
+	// stores a new entry: either all of its values are given or only the one
+	// at valueLong, in which case the rest are unset
+	private void setSlot(long slot, long keyPart1, long keyPart2, int valueLong, long value,
+			long[] allValues) {
+
+		LongBuffer segment = segmentFor(slot);
+		int offset = offsetFor(slot);
+		segment.put(offset, keyPart1);
+		segment.put(offset + 1, keyPart2);
+		for (int i = 0; i < slotLongs - 2; i++) {
+			if (allValues != null) {
+				segment.put(offset + 2 + i, allValues[i]);
+			} else {
+				segment.put(offset + 2 + i, (i == valueLong) ? value : emptyValues);
+			}
+		}
+	}
 
-		return firstIndex;
+	private void copySlot(long from, long to) {
+		LongBuffer fromSegment = segmentFor(from);
+		int fromOffset = offsetFor(from);
+		LongBuffer toSegment = segmentFor(to);
+		int toOffset = offsetFor(to);
+		for (int i = 0; i < slotLongs; i++) {
+			toSegment.put(toOffset + i, fromSegment.get(fromOffset + i));
+		}
 	}
 
-	// static PrintWriter out;
-	// static {
-	// try {
-	// out = new PrintWriter("/usr12/jhclark/log");
-	// } catch (FileNotFoundException e) {
-	// e.printStackTrace();
-	// }
-	// }
+	private boolean isEmpty(long slot) {
+		LongBuffer segment = segmentFor(slot);
+		int offset = offsetFor(slot);
+		return segment.get(offset) == 0 && segment.get(offset + 1) == 0;
+	}
 
 	public void put(long keyPart1, long keyPart2, float value1, float value2) {
+		put(keyPart1, keyPart2, 0, value1, value2);
+	}
 
-		nElements++;
+	/**
+	 * Sets two adjacent values of the vector stored with a key, adding the key
+	 * if it is not yet present (in which case the rest of its values are
+	 * unset).
+	 *
+	 * @param index
+	 *            the position of value1 within the vector, which must be even;
+	 *            value2 goes at index + 1
+	 */
+	public void put(long keyPart1, long keyPart2, int index, float value1, float value2) {
+
+		if (stripeLocks == null) {
+			throw new UnsupportedOperationException("Memory-mapped tables are read-only");
+		}
+		if (index < 0 || index >= vectorLength || index % 2 != 0) {
+			throw new IllegalArgumentException("Invalid index for a vector of length "
+					+ vectorLength + ": " + index);
+		}
 
-		int hash = hash(keyPart1, keyPart2);
-		int firstIndex = indexFor(hash, keys.length);
+		int valueLong = index / 2;
+		long values = packValues(value1, value2);
+		if (keyPart1 == 0 && keyPart2 == 0) {
+			synchronized (zeroKeyLock) {
+				if (!hasZeroKey) {
+					nElements.incrementAndGet();
+					Arrays.fill(zeroKeyValues, emptyValues);
+				}
+				hasZeroKey = true;
+				zeroKeyValues[valueLong] = values;
+			}
+			return;
+		}
 
-		// out.println(keyPart1 + "" + keyPart2 + " " + hash + " " +
-		// inBoundsHash + " " + firstIndex);
+		while (true) {
+			long observedCapacity;
+			boolean inserted;
+			resizeLock.readLock().lock();
+			try {
+				observedCapacity = capacity;
+				inserted =
+						nElements.get() < maxElements
+								&& tryPut(keyPart1, keyPart2, valueLong, values, null);
+			} finally {
+				resizeLock.readLock().unlock();
+			}
 
-		// do linear probing, skipping over wide entries (pairs of positions)
-		int tableIndex = firstIndex;
-		while (occupied[tableIndex]) {
+			if (inserted) {
+				return;
+			}
+			grow(observedCapacity);
+		}
+	}
 
-			collision[tableIndex] = true;
-			nCollisions++;
+	// returns false if the table must grow before this key can be inserted;
+	// see setSlot() for the meaning of the values
+	private boolean tryPut(long keyPart1, long keyPart2, int valueLong, long value,
+			long[] allValues) {
+
+		long home = home(hash(keyPart1, keyPart2));
+		int stripe = (int) (home >>> STRIPE_SHIFT);
+
+		// every slot we might touch lies in [home, home + MAX_PROBE]
+		synchronized (stripeLocks[stripe]) {
+			synchronized (stripeLocks[stripe + 1]) {
+
+				// find where the key belongs: the first empty slot or the first
+				// slot whose entry is closer to its home than we would be
+				long slot = home;
+				for (int dist = 0;; dist++, slot++) {
+					if (dist > MAX_PROBE) {
+						return false;
+					}
+					LongBuffer segment = segmentFor(slot);
+					int offset = offsetFor(slot);
+					long a = segment.get(offset);
+					long b = segment.get(offset + 1);
+					if (a == 0 && b == 0) {
+						setSlot(slot, keyPart1, keyPart2, valueLong, value, allValues);
+						nElements.incrementAndGet();
+						totalDisplacement.addAndGet(dist);
+						return true;
+					} else if (a == keyPart1 && b == keyPart2) {
+						// an existing key doesn't move, so its displacement
+						// is already counted
+						segment.put(offset + 2 + valueLong, value);
+						return true;
+					} else if (slot - home(hash(a, b)) < dist) {
+						break;
+					}
+				}
+
+				// shift the rest of the run right by one slot to make room;
+				// entries after this point have homes after ours, so none can
+				// end up further than (end - home) from its home
+				long end = slot;
+				while (!isEmpty(end)) {
+					end++;
+					if (end - home > MAX_PROBE) {
+						return false;
+					}
+				}
+				for (long j = end; j > slot; j--) {
+					copySlot(j - 1, j);
+				}
+				setSlot(slot, keyPart1, keyPart2, valueLong, value, allValues);
+				nElements.incrementAndGet();
+
+				// we are (slot - home) from home and each shifted entry moved
+				// one slot further from its own
+				totalDisplacement.addAndGet(end - home);
+				return true;
+			}
+		}
+	}
 
-			tableIndex += 2;
-			tableIndex %= keys.length;
-			if (tableIndex == firstIndex) {
-				throw new RuntimeException(
-						"Table full. User did not correctly predict number of entries.");
+	private void grow(long observedCapacity) {
+		resizeLock.writeLock().lock();
+		try {
+			// another thread may have already grown the table
+			if (capacity != observedCapacity) {
+				return;
 			}
+			resize(Math.max(capacity * 2, capacityFor(nElements.get() + 1, loadFactor)));
+		} finally {
+			resizeLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Grows the table (if necessary) so that <code>nAdditional</code> more
+	 * keys can be put without exceeding the load factor. This saves repeated
+	 * growing when a table is populated in several batches of known size.
+	 *
+	 * @param nAdditional
+	 */
+	public void ensureCapacity(long nAdditional) {
+
+		if (stripeLocks == null) {
+			throw new UnsupportedOperationException("Memory-mapped tables are read-only");
 		}
 
-		occupied[tableIndex] = true;
-		keys[tableIndex] = keyPart1;
-		keys[tableIndex + 1] = keyPart2;
-		values[tableIndex] = value1;
-		values[tableIndex + 1] = value2;
+		resizeLock.writeLock().lock();
+		try {
+			long needed = capacityFor(nElements.get() + nAdditional, loadFactor);
+			if (needed > capacity) {
+				resize(needed);
+			}
+		} finally {
+			resizeLock.writeLock().unlock();
+		}
+	}
+
+	// must hold the write lock
+	private void resize(long newCapacity) {
+		LongBuffer[] oldSegments = segments;
+		while (true) {
+			allocate(newCapacity);
+			if (rehash(oldSegments)) {
+				break;
+			}
+			newCapacity *= 2;
+		}
+	}
+
+	// re-inserts every entry of the old segments into the (empty) current
+	// segments; returns false if the current table is too small
+	private boolean rehash(LongBuffer[] oldSegments) {
+		long[] values = new long[slotLongs - 2];
+		for (LongBuffer segment : oldSegments) {
+			int length = segment.capacity();
+			for (int offset = 0; offset < length; offset += slotLongs) {
+				long a = segment.get(offset);
+				long b = segment.get(offset + 1);
+				if (a != 0 || b != 0) {
+					for (int i = 0; i < values.length; i++) {
+						values[i] = segment.get(offset + 2 + i);
+					}
+					if (!tryPutUncounted(a, b, values)) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
 	}
 
+	private boolean tryPutUncounted(long keyPart1, long keyPart2, long[] values) {
+		long before = nElements.get();
+		boolean inserted = tryPut(keyPart1, keyPart2, 0, 0, values);
+		nElements.set(before);
+		return inserted;
+	}
+
+	/**
+	 * @return the sum over all entries of their distance from their home slot.
+	 *         Only the placement of new keys changes this; overwriting the
+	 *         values of an existing key does not.
+	 */
 	public long getCollisionCount() {
-		return nCollisions;
+		if (stripeLocks == null) {
+			// mapped tables don't record this, so count it once
+			synchronized (totalDisplacement) {
+				if (totalDisplacement.get() == 0) {
+					totalDisplacement.set(countDisplacement());
+				}
+			}
+		}
+		return totalDisplacement.get();
 	}
 
-	public int size() {
-		return nElements;
+	private long countDisplacement() {
+		long total = 0;
+		for (long slot = 0; slot < nSlots; slot++) {
+			LongBuffer segment = segmentFor(slot);
+			int offset = offsetFor(slot);
+			long a = segment.get(offset);
+			long b = segment.get(offset + 1);
+			if (a != 0 || b != 0) {
+				total += slot - home(hash(a, b));
+			}
+		}
+		return total;
 	}
 
-	private float get(long keyPart1, long keyPart2, int offset) {
-		int hash = hash(keyPart1, keyPart2);
-		int tableIndex = indexFor(hash, keys.length);
+	public long size() {
+		return nElements.get();
+	}
 
-		while (occupied[tableIndex] && collision[tableIndex]) {
-			if (keys[tableIndex] == keyPart1 && keys[tableIndex + 1] == keyPart2) {
-				return values[tableIndex + offset];
-			} else {
-				tableIndex += 2;
+	/**
+	 * @return the number of values stored with each key
+	 */
+	public int getVectorLength() {
+		return vectorLength;
+	}
+
+	/**
+	 * @return the number of home slots currently allocated
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Finds the slot holding a key so that several of its values can be read
+	 * with {@link #getValue(long, int)} after a single probe.
+	 *
+	 * @return the slot, {@link #ZERO_KEY_SLOT} for the key (0, 0) or -1 if
+	 *         the key is not present
+	 */
+	public long find(long keyPart1, long keyPart2) {
+
+		if (keyPart1 == 0 && keyPart2 == 0) {
+			return hasZeroKey ? ZERO_KEY_SLOT : -1;
+		}
+
+		long home = home(hash(keyPart1, keyPart2));
+		long slot = home;
+
+		// only absolute gets are used here so that concurrent readers do not
+		// share any buffer state
+		for (int dist = 0; dist <= MAX_PROBE; dist++, slot++) {
+			LongBuffer segment = segmentFor(slot);
+			int offset = offsetFor(slot);
+			long a = segment.get(offset);
+			long b = segment.get(offset + 1);
+			if (a == keyPart1 && b == keyPart2) {
+				return slot;
+			} else if ((a == 0 && b == 0) || slot - home(hash(a, b)) < dist) {
+				// the key would have displaced this entry had it been present
+				break;
 			}
 		}
-		return outOfHashValue;
+		return -1;
+	}
+
+	/**
+	 * @param slot
+	 *            a slot returned by {@link #find(long, long)}; must not be -1
+	 * @param index
+	 *            the position of the value within the vector
+	 * @return the value, or the out-of-hash value if it was never set
+	 */
+	public float getValue(long slot, int index) {
+		long values;
+		if (slot == ZERO_KEY_SLOT) {
+			values = zeroKeyValues[index >> 1];
+		} else {
+			values = segmentFor(slot).get(offsetFor(slot) + 2 + (index >> 1));
+		}
+		return ((index & 1) == 0) ? Float.intBitsToFloat((int) (values >>> 32))
+				: Float.intBitsToFloat((int) values);
 	}
 
 	public float getValue1(long keyPart1, long keyPart2) {
-		return get(keyPart1, keyPart2, 0);
+		long slot = find(keyPart1, keyPart2);
+		return (slot == -1) ? outOfHashValue : getValue(slot, 0);
 	}
 
 	public float getValue2(long keyPart1, long keyPart2) {
-		return get(keyPart1, keyPart2, 1);
+		long slot = find(keyPart1, keyPart2);
+		return (slot == -1) ? outOfHashValue : getValue(slot, 1);
 	}
 }
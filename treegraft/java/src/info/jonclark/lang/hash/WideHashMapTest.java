@@ -53,13 +53,84 @@ public class WideHashMapTest {
 			Assert.assertEquals(d, value2);
 		}
 
-		// now cause one too many entries and check for failure
-		boolean except = false;
-		try {
-			map.put(nEntries, nEntries * 2, 0, 0);
-		} catch (RuntimeException e) {
-			except = true;
+		// now add one more entry than the table was sized for and make sure
+		// it grows without losing anything
+		map.put(nEntries, nEntries * 2, 0.25f, 0.5f);
+		Assert.assertEquals(nEntries + 1, map.size());
+		Assert.assertEquals(0.25f, map.getValue1(nEntries, nEntries * 2));
+		for (int i = 0; i < nEntries; i++) {
+			Assert.assertEquals(i / 10.0f, map.getValue1(i, i * 2));
+			Assert.assertEquals(i * 2 / 10.0f, map.getValue2(i, i * 2));
 		}
-		Assert.assertTrue("Exception was not fired when adding one too many entries.", except);
+	}
+
+	@Test
+	public void testBuild() {
+
+		int nEntries = 10000;
+		long[] keys = new long[nEntries * 2];
+		float[] values1 = new float[nEntries];
+		float[] values2 = new float[nEntries];
+		for (int i = 0; i < nEntries; i++) {
+			keys[2 * i] = i;
+			keys[2 * i + 1] = i * 31L;
+			values1[i] = i;
+			values2[i] = -i;
+		}
+
+		// key (0, 0) is stored outside the table
+		WideHashMap map = WideHashMap.build(keys, values1, values2, nEntries, 0.9f, -99.0f);
+		Assert.assertEquals(nEntries, map.size());
+		for (int i = 0; i < nEntries; i++) {
+			Assert.assertEquals((float) i, map.getValue1(i, i * 31L));
+			Assert.assertEquals((float) -i, map.getValue2(i, i * 31L));
+		}
+		Assert.assertEquals(-99.0f, map.getValue1(1, 1));
+	}
+
+	@Test
+	public void testVectors() {
+
+		int nEntries = 5000;
+
+		// sized far too small so that the table must grow
+		WideHashMap map = new WideHashMap(10, 0.9f, 6, Float.NaN);
+		for (int i = 1; i <= nEntries; i++) {
+			map.put(i, i * 3L, (i % 3) * 2, i, -i);
+		}
+		map.put(0, 0, 4, 0.5f, 0.25f);
+		Assert.assertEquals(nEntries + 1, map.size());
+
+		// overwriting values doesn't move any entries
+		long displacement = map.getCollisionCount();
+		for (int i = 2; i <= nEntries; i += 2) {
+			map.put(i, i * 3L, ((i + 1) % 3) * 2, 2 * i, -2 * i);
+		}
+		Assert.assertEquals(displacement, map.getCollisionCount());
+		Assert.assertEquals(nEntries + 1, map.size());
+
+		map.ensureCapacity(nEntries * 4);
+		for (int i = 1; i <= nEntries; i++) {
+			long slot = map.find(i, i * 3L);
+			Assert.assertTrue(slot >= 0);
+			for (int index = 0; index < 6; index += 2) {
+				float expected1 = Float.NaN;
+				float expected2 = Float.NaN;
+				if (index == (i % 3) * 2) {
+					expected1 = i;
+					expected2 = -i;
+				} else if (i % 2 == 0 && index == ((i + 1) % 3) * 2) {
+					expected1 = 2 * i;
+					expected2 = -2 * i;
+				}
+				Assert.assertEquals(expected1, map.getValue(slot, index));
+				Assert.assertEquals(expected2, map.getValue(slot, index + 1));
+			}
+		}
+
+		Assert.assertEquals(WideHashMap.ZERO_KEY_SLOT, map.find(0, 0));
+		Assert.assertEquals(0.5f, map.getValue(WideHashMap.ZERO_KEY_SLOT, 4));
+		Assert.assertEquals(Float.NaN, map.getValue(WideHashMap.ZERO_KEY_SLOT, 0));
+		Assert.assertEquals(-1, map.find(1, 1));
 	}
 }
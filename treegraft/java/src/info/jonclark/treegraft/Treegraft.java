@@ -20,9 +20,12 @@ import info.jonclark.treegraft.core.plugin.ReflectionException;
 import info.jonclark.treegraft.core.scoring.Feature;
 import info.jonclark.treegraft.core.scoring.LogLinearScorer;
 import info.jonclark.treegraft.core.scoring.Scorer;
+import info.jonclark.treegraft.core.scoring.SentenceListener;
 import info.jonclark.treegraft.core.scoring.LogLinearScorer.LogLinearScorerOptions;
+import info.jonclark.treegraft.core.snapshot.ModelSnapshot;
 import info.jonclark.treegraft.core.tokens.Token;
 import info.jonclark.treegraft.core.tokens.TokenFactory;
+import info.jonclark.treegraft.core.tokens.integer.IntegerTokenFactory;
 import info.jonclark.treegraft.decoder.Decoder;
 import info.jonclark.treegraft.decoder.Lattice;
 import info.jonclark.treegraft.decoder.LatticeFormatter;
@@ -32,6 +35,8 @@ import info.jonclark.treegraft.parsing.chartparser.Chart;
 import info.jonclark.treegraft.parsing.forestunpacking.ForestUnpacker;
 import info.jonclark.treegraft.parsing.grammar.Grammar;
 import info.jonclark.treegraft.parsing.grammar.GrammarLoader;
+import info.jonclark.treegraft.parsing.grammar.GrammarPruner;
+import info.jonclark.treegraft.parsing.grammar.RuleProfile;
 import info.jonclark.treegraft.parsing.merging.Merger;
 import info.jonclark.treegraft.parsing.morphology.MorphologyAnalyzer;
 import info.jonclark.treegraft.parsing.morphology.MorphologyGenerator;
@@ -46,11 +51,17 @@ import info.jonclark.treegraft.parsing.rules.RuleFactory;
 import info.jonclark.treegraft.parsing.synccfg.SyncCFGRule;
 import info.jonclark.util.ArrayUtils;
 import info.jonclark.util.FileUtils;
+import info.jonclark.util.FormatUtils;
 import info.jonclark.util.StringUtils;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
@@ -129,6 +140,9 @@ public class Treegraft<R extends SyncCFGRule<T>, T extends Token> {
 		@Option(name = "grammar.lexiconFile", usage = "The lexicon file(s) (space delimited) to be used by the parser/transfer stage", errorIfFileNotExists = true)
 		public Pair<File, Class<? extends GrammarLoader<R, T>>>[] lexiconFile;
 
+		@Option(name = "grammar.loadThreads", usage = "The number of threads used to parse each grammar or lexicon file by parallel grammar loaders (e.g. info.jonclark.treegraft.parsing.synccfg.ParallelOneLineLexiconGrammarLoader); 0 uses one thread per available processor", required = false, defaultValue = "0")
+		public int grammarLoadThreads;
+
 		@Option(name = "grammar.encoding", usage = "The encoding for all grammar files", required = false, defaultValue = "UTF-8")
 		public String grammarEncoding;
 
@@ -144,8 +158,26 @@ public class Treegraft<R extends SyncCFGRule<T>, T extends Token> {
 		@Option(name = "grammar.filterRulesWithTerminalRHS", usage = "Any rule containing any of these right-hand side terminal symbols will not be included in the grammar", required = false, defaultValue = "")
 		public String[] filterRHSTerms;
 
-		@Option(name = "grammar.keepKBestRules", usage = "The number of best-scoring rules to keep for each source LHS-RHS pair", required = false, defaultValue = "1000")
+		@Option(name = "grammar.keepKBestRules", usage = "The number of best-scoring rules to keep for each source LHS-RHS pair, applied as rules are loaded (0 keeps all rules). Rules are ranked by sgt*tgs (lower first) with ties broken by load order. NOTE: Older versions grouped rules by source RHS alone, ignoring the LHS, and compared ranks only after truncating their difference to an integer, so they could keep different rules", required = false, defaultValue = "1000")
 		public int keepKBestRules;
+
+		@Option(name = "grammar.pruners", usage = "Fully qualified Java class names (space delimited) of GrammarPruners to be applied after the grammar is loaded (e.g. info.jonclark.treegraft.parsing.grammar.TimeBudgetGrammarPruner)", required = false, arrayDelim = " ")
+		public Class<? extends GrammarPruner<R, T>>[] prunerClasses;
+
+		@Option(name = "grammar.profile.inFile", usage = "Rule profile written by a previous run with grammar.profile.outFile, which is used by grammar.pruners. Read in grammar.encoding, like the rule IDs it contains", required = false, errorIfFileNotExists = true)
+		public File ruleProfileInFile;
+
+		@Option(name = "grammar.profile.outFile", usage = "File to which the number of keys created, parsing time and n-best uses of each rule are written after translating, for use by grammar.pruners in later runs. Enables timing of each rule, which slows down parsing (use global.numThreads=1 for accurate timings). Written in grammar.encoding", required = false, errorIfFileExists = false)
+		public File ruleProfileOutFile;
+
+		@Option(name = "snapshot.dir", usage = "Directory holding binary snapshots of the language models and lexical probabilities filtered to the vocabulary of the input file. Existing snapshots for the same vocabulary are loaded instead of the full models.", required = false)
+		public File snapshotDir;
+
+		@Option(name = "snapshot.prepare", usage = "Load the full models, write snapshots filtered to the vocabulary of the input file to snapshot.dir, and exit without translating", required = false, defaultValue = "false")
+		public boolean prepareSnapshot;
+
+		@Option(name = "vocab.file", usage = "Binary token vocabulary shared with compiled models (requires IntegerTokenFactory). If it exists, it is loaded before anything else so that token IDs match those of binary models compiled with the same vocabulary; otherwise it is written once all models are loaded.", required = false, defaultValue = "")
+		public File vocabFile;
 	}
 
 	public static class TreegraftConfig<R extends GrammarRule<T>, T extends Token> {
@@ -159,6 +191,9 @@ public class Treegraft<R extends SyncCFGRule<T>, T extends Token> {
 		public OutOfVocabularyHandler<R, T> oovHandler;
 		public Grammar<R, T> grammar;
 
+		// null unless grammar.profile.inFile was specified
+		public RuleProfile ruleProfile;
+
 		public Parser<R, T> parser;
 		public Scorer<R, T> scorer;
 		public Merger<R, T> merger;
@@ -168,6 +203,9 @@ public class Treegraft<R extends SyncCFGRule<T>, T extends Token> {
 		public HashSet<T> sourceVocab;
 		public HashSet<T> targetVocab;
 
+		// null if snapshots are not in use
+		public ModelSnapshot<T> snapshot;
+
 		public T bos;
 		public T eos;
 	}
@@ -190,6 +228,65 @@ public class Treegraft<R extends SyncCFGRule<T>, T extends Token> {
 			this.decoderTimer = ProfilerTimer.newTimer("decoder", processingTimer, true, false);
 			this.featureTimer = ProfilerTimer.newTimer("features", processingTimer, true, false);
 		}
+
+		private final List<RatioCounter> counters = new ArrayList<RatioCounter>();
+
+		/**
+		 * Creates a counter whose totals will be included in
+		 * {@link #getCounterReport()}.
+		 */
+		public RatioCounter newCounter(String name) {
+			RatioCounter counter = new RatioCounter(name);
+			synchronized (counters) {
+				counters.add(counter);
+			}
+			return counter;
+		}
+
+		public String getCounterReport() {
+			StringBuilder builder = new StringBuilder();
+			synchronized (counters) {
+				for (RatioCounter counter : counters) {
+					builder.append(counter.toString() + "\n");
+				}
+			}
+			return builder.toString();
+		}
+
+		/**
+		 * Accumulates counts of some event (e.g. cache hits) out of a total
+		 * number of trials. Safe to update from multiple threads, though
+		 * callers in time-critical code should accumulate locally and record
+		 * their totals occasionally.
+		 */
+		public static class RatioCounter {
+			private final String name;
+			private long events = 0;
+			private long total = 0;
+
+			private RatioCounter(String name) {
+				this.name = name;
+			}
+
+			public synchronized void record(long events, long total) {
+				this.events += events;
+				this.total += total;
+			}
+
+			public synchronized long getEvents() {
+				return events;
+			}
+
+			public synchronized long getTotal() {
+				return total;
+			}
+
+			public synchronized String toString() {
+				double pct = (total == 0) ? 0.0 : (double) events / (double) total * 100.0;
+				return name + "\t" + events + "/" + total + " " + FormatUtils.formatDouble2(pct)
+						+ "%";
+			}
+		}
 	}
 
 	protected TreegraftConfig<R, T> config = new TreegraftConfig<R, T>();
@@ -213,11 +310,30 @@ public class Treegraft<R extends SyncCFGRule<T>, T extends Token> {
 		config.tokenFactory = tokenFactory;
 		config.ruleFactory = ruleFactory;
 
+		if (opts.vocabFile != null) {
+			if (tokenFactory instanceof IntegerTokenFactory == false) {
+				throw new RuntimeException("vocab.file requires "
+						+ IntegerTokenFactory.class.getSimpleName());
+			}
+			if (opts.vocabFile.exists()) {
+				DataInputStream in =
+						new DataInputStream(new BufferedInputStream(new FileInputStream(
+								opts.vocabFile)));
+				((IntegerTokenFactory) tokenFactory).readVocabulary(in);
+				in.close();
+				log.info("Loaded vocabulary of " + ((IntegerTokenFactory) tokenFactory).size()
+						+ " tokens from " + opts.vocabFile.getAbsolutePath());
+			}
+		}
+
 		// make sure we have all necessary classes before spending any time
 		// loading things from disk
 		PluginLoader.validatePlugins(opts.featureClasses, configurator);
 		PluginLoader.validatePlugins(new Class[] { opts.oovHandlerClass, opts.mergerClass,
 				opts.forestProcessorClass, opts.parserClass, opts.decoderClass }, configurator);
+		if (opts.prunerClasses != null) {
+			PluginLoader.validatePlugins(opts.prunerClasses, configurator);
+		}
 
 		// validate hypothesis and lattice formatters before doing any loading
 		// or translation
@@ -277,6 +393,7 @@ public class Treegraft<R extends SyncCFGRule<T>, T extends Token> {
 		Grammar<R, T> grammar =
 				new Grammar<R, T>(tokenFactory, opts.startSymbols, sourceVocab, filterLHSToks,
 						filterRHSToks);
+		grammar.keepKBestRulesWhileLoading(opts.keepKBestRules);
 		config.grammar = grammar;
 
 		TextProgressBar grammarBar =
@@ -305,7 +422,17 @@ public class Treegraft<R extends SyncCFGRule<T>, T extends Token> {
 					lexiconFile.getAbsolutePath(), opts.grammarEncoding, lexiconBar);
 		}
 
-		grammar = grammar.keepKBestRules(opts.keepKBestRules);
+		if (opts.ruleProfileInFile != null) {
+			config.ruleProfile = RuleProfile.read(opts.ruleProfileInFile, opts.grammarEncoding);
+			log.info("Loaded rule profile of " + config.ruleProfile.getSentenceCount()
+					+ " sentences from " + opts.ruleProfileInFile.getAbsolutePath());
+		}
+		if (opts.prunerClasses != null) {
+			for (Class<? extends GrammarPruner<R, T>> prunerClass : opts.prunerClasses) {
+				GrammarPruner<R, T> pruner = loadPlugin(prunerClass);
+				pruner.pruneGrammar(grammar);
+			}
+		}
 
 		config.oovHandler = loadPlugin(opts.oovHandlerClass);
 
@@ -322,6 +449,16 @@ public class Treegraft<R extends SyncCFGRule<T>, T extends Token> {
 
 		loadGrammarTimer.pause();
 
+		if (opts.snapshotDir != null) {
+			config.snapshot =
+					new ModelSnapshot<T>(opts.snapshotDir, config.sourceVocab, config.targetVocab,
+							opts.prepareSnapshot);
+			log.info("Using model snapshots for vocabulary "
+					+ config.snapshot.getVocabularyHash());
+		} else if (opts.prepareSnapshot) {
+			throw new RuntimeException("snapshot.prepare requires snapshot.dir");
+		}
+
 		// load features after we already know the target-side vocabulary, etc.
 		List<Feature<R, T, ?>> features =
 				new ArrayList<Feature<R, T, ?>>(opts.featureClasses.length);
@@ -330,6 +467,19 @@ public class Treegraft<R extends SyncCFGRule<T>, T extends Token> {
 			features.add(f);
 		}
 		config.features = features;
+
+		if (opts.vocabFile != null && opts.vocabFile.exists() == false) {
+			DataOutputStream out =
+					new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+							opts.vocabFile)));
+			((IntegerTokenFactory) tokenFactory).writeVocabulary(out);
+			out.close();
+			log.info("Wrote vocabulary to " + opts.vocabFile.getAbsolutePath());
+		}
+
+		if (config.snapshot != null && config.snapshot.isPrepareMode()) {
+			config.snapshot.writeVocabulary();
+		}
 		LogLinearScorerOptions scorerOpts = configurator.getOptions(LogLinearScorerOptions.class);
 		config.scorer = new LogLinearScorer<R, T>(scorerOpts, config);
 
@@ -430,12 +580,41 @@ public class Treegraft<R extends SyncCFGRule<T>, T extends Token> {
 		}
 	}
 
+	/**
+	 * Writes the statistics that each rule accumulated while translating to
+	 * grammar.profile.outFile (if specified) so that later runs can prune
+	 * the grammar with them.
+	 * 
+	 * @throws IOException
+	 */
+	public void writeRuleProfile() throws IOException {
+
+		if (config.opts.ruleProfileOutFile != null) {
+			RuleProfile profile = new RuleProfile();
+			profile.recordGrammar(config.grammar);
+			for (Result<R, T> result : results) {
+				if (result != null && result.nBestList != null) {
+					profile.recordNBestList(result.nBestList);
+				}
+			}
+			profile.write(config.opts.ruleProfileOutFile, config.opts.grammarEncoding);
+			log.info("Wrote profile of " + profile.getRuleIds().size() + " rules to "
+					+ config.opts.ruleProfileOutFile.getAbsolutePath());
+		}
+	}
+
 	public Result<R, T> translate(int nSentence, String sentence) throws RuleException {
 
 		// TODO: Allow multithreaded calls to this method?
 
 		T[] inputTokens = config.tokenFactory.makeTokens(StringUtils.tokenize(sentence), true);
 
+		for (Feature<R, T, ?> feature : config.features) {
+			if (feature instanceof SentenceListener) {
+				((SentenceListener<T>) feature).beginSentence(inputTokens);
+			}
+		}
+
 		log.fine("Parsing...");
 		Chart<R, T> chart = config.parser.parse(inputTokens);
 
@@ -450,6 +629,12 @@ public class Treegraft<R extends SyncCFGRule<T>, T extends Token> {
 		log.fine("Decoding...");
 		List<PartialParse<T>> nBestList = config.decoder.getKBest(lattice, parseFactory);
 
+		for (Feature<R, T, ?> feature : config.features) {
+			if (feature instanceof SentenceListener) {
+				((SentenceListener<T>) feature).endSentence(inputTokens);
+			}
+		}
+
 		// let the lattice get garbage collected
 		if (config.opts.latticeInfo == null)
 			lattice = null;
@@ -529,10 +714,17 @@ public class Treegraft<R extends SyncCFGRule<T>, T extends Token> {
 			treegraft = new Treegraft(opts, configurator);
 		}
 
+		if (opts.prepareSnapshot) {
+			log.info("Finished writing snapshots to " + opts.snapshotDir.getAbsolutePath());
+			System.exit(0);
+		}
+
 		treegraft.translateAll();
 		treegraft.writeResults();
+		treegraft.writeRuleProfile();
 
 		log.info(treegraft.config.profiler.treegraftTimer.getTimingReport(true));
+		log.info(treegraft.config.profiler.getCounterReport());
 		System.exit(0);
 	}
 }
@@ -7,18 +7,21 @@ import info.jonclark.log.LogUtils;
 import info.jonclark.stat.ProfilerTimer;
 import info.jonclark.stat.TextProgressBar;
 import info.jonclark.treegraft.Treegraft.TreegraftConfig;
-import info.jonclark.treegraft.core.lm.ARPALanguageModelLoader;
+import info.jonclark.treegraft.core.lm.BinaryLanguageModelLoader;
 import info.jonclark.treegraft.core.lm.EfficientNGramLanguageModel;
+import info.jonclark.treegraft.core.lm.EfficientNGramLanguageModel.EfficientNGramLanguageModelOptions;
+import info.jonclark.treegraft.core.lm.FusedNGramLanguageModel;
 import info.jonclark.treegraft.core.lm.LanguageModel;
 import info.jonclark.treegraft.core.lm.LanguageModelLoader;
 import info.jonclark.treegraft.core.lm.LanguageModelMultiScore;
 import info.jonclark.treegraft.core.lm.LanguageModelScore;
-import info.jonclark.treegraft.core.lm.EfficientNGramLanguageModel.EfficientNGramLanguageModelOptions;
+import info.jonclark.treegraft.core.plugin.PluginLoader;
 import info.jonclark.treegraft.core.scoring.Feature;
 import info.jonclark.treegraft.core.scoring.ProbUtils;
+import info.jonclark.treegraft.core.scoring.SentenceListener;
 import info.jonclark.treegraft.core.tokens.Token;
 import info.jonclark.treegraft.core.tokens.TokenSequence;
-import info.jonclark.treegraft.core.tokens.integer.IntegerToken;
+import info.jonclark.treegraft.core.tokens.integer.IntegerTokenFactory;
 import info.jonclark.treegraft.decoder.DecoderHypothesis;
 import info.jonclark.treegraft.parsing.parses.PartialParse;
 import info.jonclark.treegraft.parsing.rules.GrammarRule;
@@ -27,7 +30,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Collections;
+import java.lang.reflect.InvocationTargetException;
 import java.util.List;
 import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
@@ -35,7 +38,7 @@ import java.util.zip.GZIPInputStream;
 // This class is NOT responsible for adding <s> and </s>. This is the responsibility of the ParseFactory
 @OptionsTarget(LanguageModelFeature.LanguageModelOptions.class)
 public class LanguageModelFeature<R extends GrammarRule<T>, T extends Token> implements
-		Feature<R, T, LanguageModelMultiScore> {
+		Feature<R, T, LanguageModelMultiScore>, SentenceListener<T> {
 
 	public static class LanguageModelOptions implements Options {
 
@@ -47,9 +50,23 @@ public class LanguageModelFeature<R extends GrammarRule<T>, T extends Token> imp
 
 		@Option(name = "lm.encoding", usage = "The encoding for all language model files", required = false, defaultValue = "UTF-8")
 		public String lmEncoding;
+
+		@Option(name = "lm.loader", usage = "Fully qualified Java class name of the loader used to read all language model files (e.g. info.jonclark.treegraft.core.lm.ParallelARPALanguageModelLoader to parse ARPA files on all available cores or info.jonclark.treegraft.core.lm.BinaryLanguageModelLoader for LMs compiled to binary form)", required = false, defaultValue = "info.jonclark.treegraft.core.lm.ARPALanguageModelLoader")
+		public Class<? extends LanguageModelLoader> lmLoaderClass;
+
+		@Option(name = "lm.implementation", usage = "Fully qualified Java class name of the language model implementation used to store and query all language models (e.g. info.jonclark.treegraft.core.lm.QuantizedTrieLanguageModel for a compact, quantized LM)", required = false, defaultValue = "info.jonclark.treegraft.core.lm.EfficientNGramLanguageModel")
+		public Class<? extends LanguageModel> lmClass;
+
+		@Option(name = "lm.cacheSize", usage = "Number of n-gram scores to cache per decoding thread for each language model; the cache is cleared at the start of each sentence (0 disables caching)", required = false, defaultValue = "0")
+		public int cacheSize;
+
+		@Option(name = "lm.fuse", usage = "Store all language models in one set of hash tables so that each n-gram is looked up once for all models rather than once per model (requires integer tokens; lm.implementation and lm.cacheSize are ignored)", required = false, defaultValue = "false")
+		public boolean fuse;
 	}
 
 	private final LanguageModel<T>[] lmArr;
+	// non-null if all LMs are stored in fused tables
+	private final FusedNGramLanguageModel<T> fusedLM;
 	private double[] weights;
 	private final ProfilerTimer lmParserTimer;
 	private final ProfilerTimer lmHypTimer;
@@ -59,29 +76,56 @@ public class LanguageModelFeature<R extends GrammarRule<T>, T extends Token> imp
 
 	// TODO: How do we get the LM loader in here w/o layered reflection?
 	public LanguageModelFeature(LanguageModelOptions opts, TreegraftConfig<R, T> config)
-			throws IOException {
+			throws IOException, InstantiationException, IllegalAccessException,
+			InvocationTargetException {
 
 		log.info("Loading LMs...");
 
 		// load each LM the user specified
 		this.lmArr = new LanguageModel[opts.lmFiles.length];
+		if (opts.fuse) {
+			EfficientNGramLanguageModelOptions effOpts =
+					config.configurator.getOptions(EfficientNGramLanguageModelOptions.class);
+			this.fusedLM = new FusedNGramLanguageModel<T>(opts.lmFiles.length, effOpts, config);
+		} else {
+			this.fusedLM = null;
+		}
+
 		for (int i = 0; i < opts.lmFiles.length; i++) {
 
 			File lmFile = opts.lmFiles[i];
 
 			// TODO: Allow the user to specify which LM loader to use on a
 			// per-LM basis
-			// TODO: Allow the user to specify which kind of LM implementation
-			// to use
-			LanguageModelLoader<T> lmLoader = new ARPALanguageModelLoader<T>();
+			LanguageModelLoader<T> lmLoader;
+			try {
+				lmLoader = opts.lmLoaderClass.getDeclaredConstructor().newInstance();
+			} catch (NoSuchMethodException e) {
+				throw new RuntimeException(opts.lmLoaderClass.getName()
+						+ " must define a constructor that takes no arguments");
+			}
 
 			// lmArr[i] = new
 			// SimpleNGramLanguageModel<T>(config.profiler.featureTimer);
-			EfficientNGramLanguageModelOptions childOpts =
-					config.configurator.getOptions(EfficientNGramLanguageModelOptions.class);
-			lmArr[i] =
-					(LanguageModel<T>) new EfficientNGramLanguageModel(childOpts,
-							(TreegraftConfig<?, IntegerToken>) config);
+			if (fusedLM != null) {
+				lmArr[i] = fusedLM.getModel(i);
+			} else {
+				lmArr[i] =
+						(LanguageModel<T>) PluginLoader.loadPlugin(opts.lmClass,
+								config.configurator, config, false);
+			}
+
+			// only LMs that can be compiled to binary form can be snapshotted
+			File snapshotFile = null;
+			if (config.snapshot != null && lmArr[i] instanceof EfficientNGramLanguageModel
+					&& config.tokenFactory instanceof IntegerTokenFactory) {
+				snapshotFile = config.snapshot.getFile("lm", lmFile);
+			}
+			if (snapshotFile != null && config.snapshot.isAvailable(snapshotFile)) {
+				log.info("Loading filtered LM snapshot " + snapshotFile.getAbsolutePath());
+				lmFile = snapshotFile;
+				lmLoader = (LanguageModelLoader<T>) new BinaryLanguageModelLoader();
+			}
 			InputStream stream = new FileInputStream(lmFile);
 			if (lmFile.getName().endsWith(".gz")) {
 				stream = new GZIPInputStream(stream);
@@ -93,6 +137,21 @@ public class LanguageModelFeature<R extends GrammarRule<T>, T extends Token> imp
 			lmLoader.loadLM(lmArr[i], config.tokenFactory, stream, opts.lmEncoding,
 					config.targetVocab, progressBar);
 
+			if (snapshotFile != null && config.snapshot.isPrepareMode()) {
+				log.info("Writing filtered LM snapshot " + snapshotFile.getAbsolutePath());
+				BinaryLanguageModelLoader.compile((EfficientNGramLanguageModel) lmArr[i],
+						(IntegerTokenFactory) config.tokenFactory, snapshotFile);
+			} else if (config.snapshot != null && config.snapshot.isPrepareMode()) {
+				log.warning("Cannot write a snapshot of " + lmFile.getName()
+						+ ": Only integer-token " + EfficientNGramLanguageModel.class.getSimpleName()
+						+ "s can be written in binary form");
+			}
+
+			if (opts.cacheSize > 0 && fusedLM == null) {
+				lmArr[i].setScoreCache(opts.cacheSize, config.profiler.newCounter("lmCache" + i
+						+ " hits"));
+			}
+
 			this.weights = new double[] { opts.lmWeight };
 
 			// ScoredToken dummy = new ScoredToken(-100, 1, 0);
@@ -114,6 +173,15 @@ public class LanguageModelFeature<R extends GrammarRule<T>, T extends Token> imp
 			LanguageModelMultiScore scoreFromHyp2, TokenSequence<T> combinedTokenSequence,
 			List<T> inputSentence) {
 
+		if (fusedLM != null) {
+			lmHypTimer.go();
+			LanguageModelMultiScore result =
+					fusedLM.scoreBoundaryAndCombine(tokensFromHyp1, scoreFromHyp1, tokensFromHyp2,
+							scoreFromHyp2);
+			lmHypTimer.pause();
+			return result;
+		}
+
 		LanguageModelScore[] vec = new LanguageModelScore[lmArr.length];
 		lmHypTimer.go();
 		for (int i = 0; i < lmArr.length; i++) {
@@ -132,6 +200,15 @@ public class LanguageModelFeature<R extends GrammarRule<T>, T extends Token> imp
 			LanguageModelMultiScore addedScore, TokenSequence<T> combinedSequence,
 			List<T> inputSentence) {
 
+		if (fusedLM != null) {
+			lmParserTimer.go();
+			LanguageModelMultiScore result =
+					fusedLM.scoreBoundaryAndCombine(accumulatedSeq, accumulatedScore, addedSeq,
+							addedScore);
+			lmParserTimer.pause();
+			return result;
+		}
+
 		LanguageModelScore[] vec = new LanguageModelScore[lmArr.length];
 
 		lmParserTimer.go();
@@ -149,6 +226,13 @@ public class LanguageModelFeature<R extends GrammarRule<T>, T extends Token> imp
 	public LanguageModelMultiScore scoreTerminalParse(PartialParse<T> terminalParse,
 			TokenSequence<T> seq) {
 
+		if (fusedLM != null) {
+			lmTerminalTimer.go();
+			LanguageModelMultiScore result = fusedLM.scoreSequence(seq);
+			lmTerminalTimer.pause();
+			return result;
+		}
+
 		LanguageModelScore[] vec = new LanguageModelScore[lmArr.length];
 
 		lmTerminalTimer.go();
@@ -160,10 +244,22 @@ public class LanguageModelFeature<R extends GrammarRule<T>, T extends Token> imp
 		return new LanguageModelMultiScore(vec);
 	}
 
+	public void beginSentence(T[] inputSentence) {
+		for (LanguageModel<T> lm : lmArr) {
+			lm.beginSentence();
+		}
+	}
+
+	public void endSentence(T[] inputSentence) {
+		for (LanguageModel<T> lm : lmArr) {
+			lm.endSentence();
+		}
+	}
+
 	public LanguageModelMultiScore getInitialScore() {
 		LanguageModelScore[] vec = new LanguageModelScore[lmArr.length];
 		for (int i = 0; i < lmArr.length; i++) {
-			vec[i] = new LanguageModelScore(Collections.EMPTY_LIST, 0.0);
+			vec[i] = LanguageModelScore.EMPTY;
 		}
 		return new LanguageModelMultiScore(vec);
 	}
@@ -181,7 +277,7 @@ public class LanguageModelFeature<R extends GrammarRule<T>, T extends Token> imp
 			double sum =
 					ProbUtils.sumInNonLogSpace(a.scores[i].getSequenceScore(),
 							b.scores[i].getSequenceScore());
-			vec[i] = new LanguageModelScore(a.scores[i].getScoredTokens(), sum);
+			vec[i] = a.scores[i].withSequenceScore(sum);
 		}
 		return new LanguageModelMultiScore(vec);
 	}
@@ -18,14 +18,21 @@ import info.jonclark.treegraft.parsing.rules.GrammarRule;
 import info.jonclark.util.FileUtils;
 import info.jonclark.util.StringUtils;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map.Entry;
 import java.util.logging.Logger;
 
 @OptionsTarget(LexicalProbsFeature.LexicalProbsFeatureOptions.class)
@@ -38,6 +45,8 @@ public class LexicalProbsFeature<R extends GrammarRule<T>, T extends Token> impl
 
 	public static final int DEFAULT_LEX_PROB_SIZE = 1000000;
 
+	private static final int SNAPSHOT_MAGIC = 0x54474C58; // "TGLX"
+
 	// BOTH hashmaps index by source word THEN target word
 	private final HashMap<Pair<T, T>, Double> sgtLex =
 			new HashMap<Pair<T, T>, Double>(DEFAULT_LEX_PROB_SIZE);
@@ -73,7 +82,20 @@ public class LexicalProbsFeature<R extends GrammarRule<T>, T extends Token> impl
 		this.lexProbTimer =
 				ProfilerTimer.newTimer("lexProbs", config.profiler.featureTimer, true, false);
 		this.weights = new double[] { opts.lexSgtWeight, opts.lexTgsWeight };
-		
+
+		File snapshotFile = null;
+		if (config.snapshot != null) {
+			snapshotFile = config.snapshot.getFile("lex", opts.sgtFile, opts.tgsFile);
+			if (config.snapshot.isAvailable(snapshotFile)) {
+				log.info("Loading filtered lexical probability snapshot "
+						+ snapshotFile.getAbsolutePath());
+				readSnapshot(snapshotFile, config);
+				log.info("Read " + (sgtLex.size() + tgsLex.size())
+						+ " lexical probability entries.");
+				return;
+			}
+		}
+
 		int nEntries = FileUtils.countLines(opts.sgtFile) + FileUtils.countLines(opts.tgsFile);
 		task.beginTask(nEntries);
 
@@ -133,6 +155,53 @@ public class LexicalProbsFeature<R extends GrammarRule<T>, T extends Token> impl
 		task.endTask();
 
 		log.info("Read " + nRead + " and kept " + nKept + " lexical probability entries.");
+
+		if (snapshotFile != null && config.snapshot.isPrepareMode()) {
+			log.info("Writing filtered lexical probability snapshot "
+					+ snapshotFile.getAbsolutePath());
+			writeSnapshot(snapshotFile);
+		}
+	}
+
+	private void writeSnapshot(File file) throws IOException {
+		DataOutputStream out =
+				new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		out.writeInt(SNAPSHOT_MAGIC);
+		writeTable(sgtLex, out);
+		writeTable(tgsLex, out);
+		out.close();
+	}
+
+	private static <T extends Token> void writeTable(HashMap<Pair<T, T>, Double> table,
+			DataOutputStream out) throws IOException {
+		out.writeInt(table.size());
+		for (Entry<Pair<T, T>, Double> entry : table.entrySet()) {
+			out.writeUTF(entry.getKey().first.getWord());
+			out.writeUTF(entry.getKey().second.getWord());
+			out.writeDouble(entry.getValue());
+		}
+	}
+
+	private void readSnapshot(File file, TreegraftConfig<R, T> config) throws IOException {
+		DataInputStream in =
+				new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		if (in.readInt() != SNAPSHOT_MAGIC) {
+			throw new IOException("Not a lexical probability snapshot: " + file.getAbsolutePath());
+		}
+		readTable(sgtLex, in, config);
+		readTable(tgsLex, in, config);
+		in.close();
+	}
+
+	private static <R extends GrammarRule<T>, T extends Token> void readTable(
+			HashMap<Pair<T, T>, Double> table, DataInputStream in, TreegraftConfig<R, T> config)
+			throws IOException {
+		int size = in.readInt();
+		for (int i = 0; i < size; i++) {
+			T source = config.tokenFactory.makeToken(in.readUTF(), true);
+			T target = config.tokenFactory.makeToken(in.readUTF(), true);
+			table.put(new Pair<T, T>(source, target), in.readDouble());
+		}
 	}
 
 	private static <T extends Token> double agbProb(HashMap<Pair<T, T>, Double> agbLexicon, T a, T b) {
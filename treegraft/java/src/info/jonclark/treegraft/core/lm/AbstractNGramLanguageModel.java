@@ -1,6 +1,7 @@
 package info.jonclark.treegraft.core.lm;
 
 import info.jonclark.stat.ProfilerTimer;
+import info.jonclark.treegraft.Treegraft.TreegraftProfiler.RatioCounter;
 import info.jonclark.treegraft.core.tokens.Token;
 import info.jonclark.treegraft.core.tokens.TokenFactory;
 import info.jonclark.treegraft.core.tokens.TokenSequence;
@@ -14,12 +15,22 @@ public abstract class AbstractNGramLanguageModel<T extends Token> implements Lan
 	protected int order;
 	protected TokenSequence<T> sentenceBegin;
 	protected TokenSequence<T> sentenceEnd;
+	protected final TokenFactory<T> tokenFactory;
 	protected final ProfilerTimer lmBoundaryTimer;
 	protected final ProfilerTimer lmScoreTokenTimer;
 
+	private int cacheSize = 0;
+	private RatioCounter cacheHitCounter;
+	private final ThreadLocal<NGramScoreCache> cache = new ThreadLocal<NGramScoreCache>() {
+		protected NGramScoreCache initialValue() {
+			return (cacheSize > 0) ? new NGramScoreCache(cacheSize) : null;
+		}
+	};
+
 	public AbstractNGramLanguageModel(T bos, T eos, TokenFactory<T> tokenFactory,
 			ProfilerTimer parentTimer) {
 
+		this.tokenFactory = tokenFactory;
 		sentenceBegin = tokenFactory.makeTokenSequence(asList(bos));
 		sentenceEnd = tokenFactory.makeTokenSequence(asList(eos));
 
@@ -41,16 +52,50 @@ public abstract class AbstractNGramLanguageModel<T extends Token> implements Lan
 		this.oovProb = logProb;
 	}
 
+	public void setScoreCache(int nEntries, RatioCounter hitCounter) {
+		this.cacheSize = nEntries;
+		this.cacheHitCounter = hitCounter;
+	}
+
+	/**
+	 * @return the score cache for the current thread, or null if caching is
+	 *         disabled
+	 */
+	protected NGramScoreCache getScoreCache() {
+		return cache.get();
+	}
+
+	public void beginSentence() {
+		NGramScoreCache c = cache.get();
+		if (c != null) {
+			c.clear();
+		}
+	}
+
+	public void endSentence() {
+		NGramScoreCache c = cache.get();
+		if (c != null) {
+			if (cacheHitCounter != null) {
+				cacheHitCounter.record(c.getHits(), c.getLookups());
+			}
+			c.resetStatistics();
+		}
+	}
+
 	// TODO: Presize LM hashes
 	public abstract void addEntry(TokenSequence<T> tokenSequence, double logProb,
 			double backoffLogProb);
 
 	public LanguageModelScore scoreSequence(TokenSequence<T> tokenSequence) {
 
+		List<T> tokens = tokenSequence.getContentTokens(tokenFactory);
+		int length = tokens.size();
+		int nBoundary = Math.min(length, this.order - 1);
+
 		// score each token then combine
 		double sequenceLogProb = 0.0;
-		List<ScoredToken> scoredTokens = new ArrayList<ScoredToken>(tokenSequence.size());
-		for (int i = 0; i < tokenSequence.size(); i++) {
+		double[] leftScores = new double[nBoundary];
+		for (int i = 0; i < length; i++) {
 
 			// keep a moving window of context, which has a maximum size of the
 			// order of this ngram model
@@ -60,14 +105,18 @@ public abstract class AbstractNGramLanguageModel<T extends Token> implements Lan
 			TokenSequence<T> subsequence = tokenSequence.subsequence(nStart, nEnd);
 			ScoredToken scoredToken = scoreToken(subsequence);
 			sequenceLogProb += scoredToken.lmScore;
-			scoredTokens.add(scoredToken);
+			if (i < nBoundary) {
+				leftScores[i] = scoredToken.lmScore;
+			}
 		}
 
 		// TODO: Cache LM results? (use external caching class (e.g.
 		// ObjectCache)
 
-		LanguageModelScore scoredSequence = new LanguageModelScore(scoredTokens, sequenceLogProb);
-		return scoredSequence;
+		Token[] leftWords = tokens.subList(0, nBoundary).toArray(new Token[nBoundary]);
+		Token[] rightWords =
+				tokens.subList(length - nBoundary, length).toArray(new Token[nBoundary]);
+		return new LanguageModelScore(leftWords, leftScores, rightWords, length, sequenceLogProb);
 	}
 
 	public LanguageModelScore scoreBoundaryAndCombine(TokenSequence<T> seq1,
@@ -76,45 +125,74 @@ public abstract class AbstractNGramLanguageModel<T extends Token> implements Lan
 
 		lmBoundaryTimer.go();
 
-		List<ScoredToken> scoredTokens = new ArrayList<ScoredToken>(combinedSequence.size());
-
-		// no rescoring is necessary for the first sequence
+		// no rescoring is necessary for either sequence
 		// provided that it has been scored before
-		if (seq1.size() > 0 && scores1.getScoredTokens().get(0).ngramUsed == 0) {
+		if (scores1.getLength() != seq1.size()) {
 			scores1 = scoreSequence(seq1);
 		}
-		double sequenceLogProb = scores1.getSequenceScore();
-		scoredTokens.addAll(scores1.getScoredTokens());
-
-		// rescore the first few items of seq2, if necessary
-		for (int i = 0; i < seq2.size(); i++) {
-
-			ScoredToken prevScore = scores2.getScoredTokens().get(i);
-
-			// at most we should only have to rescore the first n tokens where n
-			// is the order of this LM
-			if (prevScore.ngramUsed < this.order && i < this.order) {
-
-				int nStart = Math.max(0, seq1.size() - this.order + i + 1);
-				int nEnd = seq1.size() + i + 1;
-				TokenSequence<T> subsequence = combinedSequence.subsequence(nStart, nEnd);
+		if (scores2.getLength() != seq2.size()) {
+			scores2 = scoreSequence(seq2);
+		}
+		if (scores1.getLength() == 0 || scores2.getLength() == 0) {
+			lmBoundaryTimer.pause();
+			return (scores1.getLength() == 0) ? scores2 : scores1;
+		}
 
-				ScoredToken scoredToken = scoreToken(subsequence);
-				sequenceLogProb += scoredToken.lmScore;
-				scoredTokens.add(scoredToken);
+		int nContext = this.order - 1;
+		Token[] right1 = scores1.getRightWords();
+		Token[] left2 = scores2.getLeftWords();
+		double[] leftScores2 = scores2.getLeftScores();
+		int length1 = scores1.getLength();
+		int length2 = scores2.getLength();
+		int length = length1 + length2;
+
+		// only the left-most words of seq2 were scored without their full
+		// context, so those are the only ones that need rescoring
+		double sequenceLogProb = scores1.getSequenceScore() + scores2.getSequenceScore();
+		double[] rescored = new double[left2.length];
+		List<T> window = new ArrayList<T>(this.order);
+		for (int j = 0; j < left2.length; j++) {
+
+			int nFromSeq1 = Math.min(right1.length, this.order - (j + 1));
+			window.clear();
+			for (int k = right1.length - nFromSeq1; k < right1.length; k++) {
+				window.add((T) right1[k]);
+			}
+			for (int k = 0; k <= j; k++) {
+				window.add((T) left2[k]);
+			}
 
-				// TODO: We might get some time savings if we give lower-order
-				// n-grams information about if higher-level n-grams ending with
-				// their sequence exist
+			// TODO: We might get some time savings if we give lower-order
+			// n-grams information about if higher-level n-grams ending with
+			// their sequence exist
+			ScoredToken scoredToken = scoreToken(tokenFactory.makeTokenSequence(window));
+			rescored[j] = scoredToken.lmScore;
+			sequenceLogProb += scoredToken.lmScore - leftScores2[j];
+		}
 
-			} else {
-				sequenceLogProb += prevScore.lmScore;
-				scoredTokens.add(prevScore);
-			}
+		// the new left boundary is the first (order - 1) words of the
+		// combination, which may extend into seq2 if seq1 is short
+		int nLeft = Math.min(length, nContext);
+		Token[] leftWords = new Token[nLeft];
+		double[] leftScores = new double[nLeft];
+		Token[] left1 = scores1.getLeftWords();
+		System.arraycopy(left1, 0, leftWords, 0, left1.length);
+		System.arraycopy(scores1.getLeftScores(), 0, leftScores, 0, left1.length);
+		for (int i = left1.length; i < nLeft; i++) {
+			leftWords[i] = left2[i - left1.length];
+			leftScores[i] = rescored[i - left1.length];
 		}
 
-		LanguageModelScore scoredSequence = new LanguageModelScore(scoredTokens, sequenceLogProb);
-		assert scoredSequence.getScoredTokens().size() == (seq1.size() + seq2.size()) : "Length mismatch";
+		// likewise, the new right boundary may extend back into seq1
+		Token[] right2 = scores2.getRightWords();
+		int nRight = Math.min(length, nContext);
+		Token[] rightWords = new Token[nRight];
+		int nRightFrom1 = nRight - right2.length;
+		System.arraycopy(right1, right1.length - nRightFrom1, rightWords, 0, nRightFrom1);
+		System.arraycopy(right2, 0, rightWords, nRightFrom1, right2.length);
+
+		LanguageModelScore scoredSequence =
+				new LanguageModelScore(leftWords, leftScores, rightWords, length, sequenceLogProb);
 		lmBoundaryTimer.pause();
 		return scoredSequence;
 	}
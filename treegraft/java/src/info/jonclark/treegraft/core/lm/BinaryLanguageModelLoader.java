@@ -0,0 +1,253 @@
+package info.jonclark.treegraft.core.lm;
+
+import info.jonclark.lang.hash.WideHashMap;
+import info.jonclark.log.LogUtils;
+import info.jonclark.stat.TaskListener;
+import info.jonclark.stat.TextProgressBar;
+import info.jonclark.treegraft.Treegraft.TreegraftConfig;
+import info.jonclark.treegraft.core.lm.EfficientNGramLanguageModel.EfficientNGramLanguageModelOptions;
+import info.jonclark.treegraft.core.tokens.TokenFactory;
+import info.jonclark.treegraft.core.tokens.integer.IntegerToken;
+import info.jonclark.treegraft.core.tokens.integer.IntegerTokenFactory;
+import info.jonclark.treegraft.core.tokens.integer.IntegerTokenSequence;
+import info.jonclark.treegraft.parsing.synccfg.SyncCFGRule;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Loads a language model that was previously compiled into a binary file by
+ * {@link #compile(EfficientNGramLanguageModel, IntegerTokenFactory, File)}
+ * (see {@link #main(String[])}). The n-gram hash tables are memory-mapped
+ * directly from the file so that loading takes time proportional to the size
+ * of the vocabulary rather than the number of n-grams, and so that multiple
+ * decoder processes on the same machine share one copy of the LM through the
+ * OS page cache.
+ * <p>
+ * File layout: a magic number and version, a header containing the LM order,
+ * OOV probability and the vocabulary used to build the n-gram keys, followed
+ * by one serialized {@link WideHashMap} per order, each starting on an 8-byte
+ * boundary.
+ * <p>
+ * The vocabulary is stored in the format of
+ * {@link IntegerTokenFactory#writeVocabulary(DataOutputStream)}. If the
+ * decoder's token factory was started from the same vocabulary (or is empty),
+ * its token IDs match those used when the LM was compiled and the n-gram keys
+ * are used as is. Otherwise, the vocabulary is used to build a map between the
+ * two ID spaces. Only words in the target vocabulary (if one is given) are
+ * mapped; all other words will be treated as OOV.
+ *
+ * @author Jonathan Clark
+ */
+public class BinaryLanguageModelLoader implements LanguageModelLoader<IntegerToken> {
+
+	private static final Logger log = LogUtils.getLogger();
+
+	private static final int MAGIC = 0x54474C4D; // "TGLM"
+	// version 2: Robin Hood hash tables
+	// version 3: shared token factory vocabulary format
+	private static final int VERSION = 3;
+	private static final int PREAMBLE_BYTES = 12;
+
+	// the token factory never assigns this ID in practice, so it can never
+	// match an n-gram key
+	private static final int UNMAPPED_ID = (1 << IntegerTokenSequence.BITS_PER_WORD) - 1;
+
+	public void loadLM(LanguageModel<IntegerToken> lm, TokenFactory<IntegerToken> tokenFactory,
+			InputStream stream, String encoding, HashSet<IntegerToken> targetVocab,
+			TaskListener task) throws IOException {
+
+		if (lm instanceof EfficientNGramLanguageModel == false) {
+			throw new IOException("Binary language models can only be loaded into an "
+					+ EfficientNGramLanguageModel.class.getSimpleName());
+		}
+		if (stream instanceof FileInputStream == false) {
+			throw new IOException("Binary language models must be read directly from a file "
+					+ "(they cannot be compressed)");
+		}
+		if (tokenFactory instanceof IntegerTokenFactory == false) {
+			throw new IOException("Binary language models require an "
+					+ IntegerTokenFactory.class.getSimpleName());
+		}
+		EfficientNGramLanguageModel effLM = (EfficientNGramLanguageModel) lm;
+		FileChannel channel = ((FileInputStream) stream).getChannel();
+
+		// read preamble
+		ByteBuffer preamble = readFully(channel, 0, PREAMBLE_BYTES);
+		if (preamble.getInt() != MAGIC) {
+			throw new IOException("Not a binary language model file. "
+					+ "Use the ARPA loader for text language models.");
+		}
+		int version = preamble.getInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported binary language model version: " + version);
+		}
+		int headerLength = preamble.getInt();
+
+		// read header with order, oov prob, and vocabulary
+		ByteBuffer headerBuf = readFully(channel, PREAMBLE_BYTES, headerLength);
+		DataInputStream header =
+				new DataInputStream(new ByteArrayInputStream(headerBuf.array(), 0, headerLength));
+		int order = header.readInt();
+		double oovLogProb = header.readDouble();
+		IntegerTokenFactory intTokenFactory = (IntegerTokenFactory) tokenFactory;
+		int[] fileIdMap = intTokenFactory.readVocabulary(header);
+		int vocabSize = 0;
+
+		int[] idMap = new int[1 << IntegerTokenSequence.BITS_PER_WORD];
+		Arrays.fill(idMap, UNMAPPED_ID);
+		int nMapped = 0;
+		boolean identity = true;
+		for (int fileId = 0; fileId < fileIdMap.length; fileId++) {
+			IntegerToken tok = intTokenFactory.getToken(fileIdMap[fileId]);
+			if (tok.isTerminal()) {
+				vocabSize++;
+				if (targetVocab == null || targetVocab.contains(tok)) {
+					idMap[tok.getIntId()] = fileId;
+					nMapped++;
+				}
+			}
+			identity &= (fileIdMap[fileId] == fileId);
+		}
+		if (identity && targetVocab == null) {
+			// same ID space, so no remapping is needed
+			idMap = null;
+		}
+
+		// map the n-gram tables
+		if (task != null)
+			task.beginTask(order);
+
+		long position = align(PREAMBLE_BYTES + headerLength);
+		WideHashMap[] probs = new WideHashMap[order];
+		for (int i = 0; i < order; i++) {
+			probs[i] = WideHashMap.map(channel, position, EfficientNGramLanguageModel.outOfHashValue);
+			position += probs[i].getSerializedSize();
+			if (task != null)
+				task.recordEventCompletion();
+		}
+		if (task != null)
+			task.endTask();
+
+		effLM.setTables(probs, idMap);
+		effLM.setOOVProb(oovLogProb);
+
+		// the mappings remain valid after the channel is closed
+		channel.close();
+
+		log.info("Finished mapping binary LM: order " + order + " with " + nMapped + " of "
+				+ vocabSize + " words in target vocabulary");
+	}
+
+	/**
+	 * Writes a fully loaded language model to a binary file that can later be
+	 * loaded with this class.
+	 *
+	 * @param lm
+	 *            The language model, as populated by some other loader
+	 * @param tokenFactory
+	 *            The token factory that was used while populating the LM
+	 * @param file
+	 *            The output file
+	 * @throws IOException
+	 */
+	public static void compile(EfficientNGramLanguageModel lm, IntegerTokenFactory tokenFactory,
+			File file) throws IOException {
+
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(headerBytes);
+
+		WideHashMap[] probs = lm.getTables();
+		header.writeInt(probs.length);
+		header.writeDouble(lm.getOOVProb());
+
+		tokenFactory.writeVocabulary(header);
+		header.close();
+
+		FileOutputStream out = new FileOutputStream(file);
+		FileChannel channel = out.getChannel();
+
+		int headerLength = headerBytes.size();
+		long tablesStart = align(PREAMBLE_BYTES + headerLength);
+		ByteBuffer buf = ByteBuffer.allocate((int) tablesStart);
+		buf.putInt(MAGIC);
+		buf.putInt(VERSION);
+		buf.putInt(headerLength);
+		buf.put(headerBytes.toByteArray());
+		buf.position((int) tablesStart);
+		buf.flip();
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+
+		for (WideHashMap table : probs) {
+			table.write(channel);
+		}
+		out.close();
+	}
+
+	private static ByteBuffer readFully(FileChannel channel, long position, int length)
+			throws IOException {
+
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, position + buf.position()) < 0) {
+				throw new IOException("Unexpected end of binary language model file");
+			}
+		}
+		buf.flip();
+		return buf;
+	}
+
+	private static long align(long position) {
+		return (position + 7) / 8 * 8;
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 2 || args.length > 4) {
+			System.err.println("Usage: program <arpa_lm_in> <binary_lm_out> [load_factor] [encoding]");
+			System.exit(1);
+		}
+
+		File arpaFile = new File(args[0]);
+		File binaryFile = new File(args[1]);
+
+		EfficientNGramLanguageModelOptions opts = new EfficientNGramLanguageModelOptions();
+		opts.loadFactor = (args.length >= 3) ? Float.parseFloat(args[2]) : 0.9f;
+		String encoding = (args.length >= 4) ? args[3] : "UTF-8";
+
+		IntegerTokenFactory tokenFactory = new IntegerTokenFactory();
+		TreegraftConfig<SyncCFGRule<IntegerToken>, IntegerToken> config =
+				new TreegraftConfig<SyncCFGRule<IntegerToken>, IntegerToken>();
+		config.tokenFactory = tokenFactory;
+		config.bos = tokenFactory.makeToken("<s>", true);
+		config.eos = tokenFactory.makeToken("</s>", true);
+
+		EfficientNGramLanguageModel lm = new EfficientNGramLanguageModel(opts, config);
+
+		InputStream stream = new FileInputStream(arpaFile);
+		if (arpaFile.getName().endsWith(".gz")) {
+			stream = new GZIPInputStream(stream);
+		}
+		TextProgressBar progressBar = new TextProgressBar(System.err, "n-gram", 100, 50, false);
+		new ParallelARPALanguageModelLoader<IntegerToken>().loadLM(lm, tokenFactory, stream, encoding,
+				null, progressBar);
+
+		log.info("Writing binary LM to " + binaryFile.getAbsolutePath());
+		compile(lm, tokenFactory, binaryFile);
+	}
+}
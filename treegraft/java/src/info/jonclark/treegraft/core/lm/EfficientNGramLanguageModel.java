@@ -16,10 +16,27 @@ import info.jonclark.util.FormatUtils;
 public class EfficientNGramLanguageModel extends AbstractNGramLanguageModel<IntegerToken> {
 
 	private WideHashMap[] probs;
-	private final float outOfHashValue = Float.MIN_VALUE;
-	private final long[] bitBuffer = new long[2];
+	static final float outOfHashValue = Float.MIN_VALUE;
+
+	// non-null when the tables were loaded from a compiled file whose token
+	// IDs differ from those of our token factory
+	private int[] idMap;
 	private final EfficientNGramLanguageModelOptions opts;
 
+	// each decoder thread gets its own packing buffers so that a single
+	// loaded LM can be queried concurrently
+	private static final int MAX_ORDER = 6;
+	private final ThreadLocal<QueryScratch> scratch = new ThreadLocal<QueryScratch>() {
+		protected QueryScratch initialValue() {
+			return new QueryScratch();
+		}
+	};
+
+	private static class QueryScratch {
+		public final long[] bits = new long[2];
+		public final int[] ids = new int[MAX_ORDER];
+	}
+
 	public static class EfficientNGramLanguageModelOptions implements Options {
 
 		@Option(name = "lm.loadFactor", usage = "The percentage (0 < p < 1) of each LM hash table that will be filled after all n-grams have been loaded", defaultValue = "0.9")
@@ -33,6 +50,10 @@ public class EfficientNGramLanguageModel extends AbstractNGramLanguageModel<Inte
 	}
 
 	public void setOrder(int order, int[] expectedItems) {
+		if (order > MAX_ORDER) {
+			throw new RuntimeException("Language models of order greater than " + MAX_ORDER
+					+ " are not supported: " + order);
+		}
 		this.order = order;
 		this.probs = new WideHashMap[order];
 		for (int i = 0; i < order; i++) {
@@ -40,14 +61,48 @@ public class EfficientNGramLanguageModel extends AbstractNGramLanguageModel<Inte
 		}
 	}
 
+	/**
+	 * Installs n-gram tables that were built elsewhere (e.g. memory-mapped
+	 * from a compiled binary LM) instead of populating them via addEntry.
+	 * 
+	 * @param probs
+	 *            one table per n-gram order
+	 * @param idMap
+	 *            maps IDs from this LM's token factory to the IDs used as keys
+	 *            in <code>probs</code>, or null if they are the same
+	 */
+	void setTables(WideHashMap[] probs, int[] idMap) {
+		this.order = probs.length;
+		this.probs = probs;
+		this.idMap = idMap;
+	}
+
+	WideHashMap[] getTables() {
+		return probs;
+	}
+
+	double getOOVProb() {
+		return oovProb;
+	}
+
+	private void pack(TokenSequence<IntegerToken> seq, long[] bits) {
+		if (idMap == null) {
+			bits[1] = 0;
+			IntegerTokenSequence.getBitSequence(seq, bits);
+		} else {
+			IntegerTokenSequence.getBitSequence(seq, bits, idMap);
+		}
+	}
+
 	// TODO: Presize LM hashes
 	public void addEntry(TokenSequence<IntegerToken> tokenSequence, double logProb,
 			double backoffLogProb) {
 
-		IntegerTokenSequence.getBitSequence(tokenSequence, bitBuffer);
+		long[] bits = scratch.get().bits;
+		pack(tokenSequence, bits);
 
 		int order = tokenSequence.size();
-		probs[order - 1].put(bitBuffer[0], bitBuffer[1], (float) logProb, (float) backoffLogProb);
+		probs[order - 1].put(bits[0], bits[1], (float) logProb, (float) backoffLogProb);
 	}
 
 	// behold, some of the most time-critical code in the decoder
@@ -60,82 +115,131 @@ public class EfficientNGramLanguageModel extends AbstractNGramLanguageModel<Inte
 			return new ScoredToken(0.0, 1, 1);
 		}
 
-		// System.out.println("Scoring: " + originalSeq);
-
 		lmScoreTokenTimer.go();
 
-		if (probs == null)
-			throw new RuntimeException("No language model loaded.");
-
-		TokenSequence<IntegerToken> trimmedSeq = originalSeq;
-		int nGram = trimmedSeq.size();
+		QueryScratch buf = scratch.get();
+		int nGram = IntegerTokenSequence.getIds(originalSeq, buf.ids);
 		assert nGram <= this.order : "N-gram is longer than order of LM";
+		if (idMap != null) {
+			for (int i = 0; i < nGram; i++) {
+				buf.ids[i] = idMap[buf.ids[i]];
+			}
+		}
 
-		// int order = originalSeq.length();
-		// if (order > probs.length) {
-		// order = probs.length;
-		// trimmedSeq = originalSeq.keepNRightMostTokens(order);
-		// }
-
-		float logProb = probs[nGram - 1].getValue1(bitBuffer[0], bitBuffer[1]);
-		double score = 0.0;
-
-		ScoredToken scoredToken;
-		if (logProb != outOfHashValue) {
+		long result;
+		NGramScoreCache cache = getScoreCache();
+		if (cache == null) {
+			result = lookup(buf.ids, 0, nGram, buf.bits);
+		} else {
+			IntegerTokenSequence.packIds(buf.ids, 0, nGram, buf.bits);
+			long key1 = buf.bits[0];
+			long key2 = buf.bits[1];
+			result = cache.get(key1, key2, nGram);
+			if (result == NGramScoreCache.NOT_CACHED) {
+				result = lookup(buf.ids, 0, nGram, buf.bits);
+				cache.put(key1, key2, nGram, result);
+			}
+		}
+		ScoredToken scoredToken =
+				new ScoredToken(unpackScore(result), originalSeq.size(), unpackNGramUsed(result));
 
-			// no backoff required
-			scoredToken = new ScoredToken(logProb, originalSeq.size(), trimmedSeq.size());
+		lmScoreTokenTimer.pause();
+		return scoredToken;
+	}
 
-		} else {
+	/**
+	 * Scores the last word of the n-gram <code>ids[start, end)</code> given the
+	 * preceding words as its context, backing off as necessary. This method
+	 * allocates nothing and touches no mutable state other than
+	 * <code>bits</code>, so any number of threads may call it concurrently on
+	 * the same LM as long as each supplies its own scratch buffer.
+	 * <p>
+	 * Note that if this LM was loaded from a compiled binary file, the IDs
+	 * must already be in the file's ID space (see
+	 * {@link #getLanguageModelId(IntegerToken)}).
+	 * 
+	 * @param ids
+	 *            token IDs
+	 * @param start
+	 *            the first word of the context (inclusive)
+	 * @param end
+	 *            one past the word being scored; end - start must not exceed
+	 *            the order of this LM
+	 * @param bits
+	 *            caller-owned scratch of at least 2 longs
+	 * @return the log probability of the word
+	 */
+	public float scoreNGram(int[] ids, int start, int end, long[] bits) {
+		return unpackScore(lookup(ids, start, end, bits));
+	}
 
-			// do backoff
-			while (logProb == outOfHashValue && nGram > 1) {
-				nGram--;
+	/**
+	 * Gets the ID that should be passed to
+	 * {@link #scoreNGram(int[], int, int, long[])} for a given token.
+	 * 
+	 * @param token
+	 * @return the ID used as a key in this LM's n-gram tables
+	 */
+	public int getLanguageModelId(IntegerToken token) {
+		return (idMap == null) ? token.getIntId() : idMap[token.getIntId()];
+	}
 
-				TokenSequence<IntegerToken> backoffSeq = trimmedSeq.keepNLeftMostTokens(nGram);
-				IntegerTokenSequence.getBitSequence(backoffSeq, bitBuffer);
+	// returns the score in the high 32 bits and the n-gram length actually
+	// used in the low 32 bits so that we need not allocate a result object
+	private long lookup(int[] ids, int start, int end, long[] bits) {
 
-				float backoffLogProb = probs[nGram - 1].getValue2(bitBuffer[0], bitBuffer[1]);
-				if (backoffLogProb != outOfHashValue && backoffLogProb != Double.NEGATIVE_INFINITY) {
-					score += backoffLogProb;
-					// System.out.println("Backoff mass for " + backoffSeq +
-					// ": "
-					// + backoffEntry.backoffLogProb);
-				}
+		if (probs == null)
+			throw new RuntimeException("No language model loaded.");
 
-				trimmedSeq = trimmedSeq.keepNRightMostTokens(nGram);
-				IntegerTokenSequence.getBitSequence(trimmedSeq, bitBuffer);
-				// System.out.println("Backing off to: " + trimmedSeq + "(" +
-				// score + ")");
+		int nGram = end - start;
+		IntegerTokenSequence.packIds(ids, end - nGram, end, bits);
+		float logProb = probs[nGram - 1].getValue1(bits[0], bits[1]);
+		float score = 0.0f;
 
-				logProb = probs[nGram - 1].getValue1(bitBuffer[0], bitBuffer[1]);
-			}
+		// do backoff
+		while (logProb == outOfHashValue && nGram > 1) {
+			nGram--;
 
-			if (logProb != outOfHashValue && nGram > 0) {
-				score += logProb;
-			} else {
-				// word was not in vocabulary
-				score += oovProb;
-				// System.out.println("OOV");
+			// the backoff weight belongs to the context of the longer n-gram
+			IntegerTokenSequence.packIds(ids, end - nGram - 1, end - 1, bits);
+			float backoffLogProb = probs[nGram - 1].getValue2(bits[0], bits[1]);
+			if (backoffLogProb != outOfHashValue && backoffLogProb != Float.NEGATIVE_INFINITY) {
+				score += backoffLogProb;
 			}
 
-			// System.out.println("Score: " + score);
+			IntegerTokenSequence.packIds(ids, end - nGram, end, bits);
+			logProb = probs[nGram - 1].getValue1(bits[0], bits[1]);
+		}
 
-			scoredToken = new ScoredToken(score, originalSeq.size(), trimmedSeq.size());
+		if (logProb != outOfHashValue) {
+			score += logProb;
+		} else {
+			// word was not in vocabulary
+			score += oovProb;
 		}
-		lmScoreTokenTimer.pause();
-		return scoredToken;
+
+		return ((long) Float.floatToRawIntBits(score) << 32) | nGram;
+	}
+
+	private static float unpackScore(long result) {
+		return Float.intBitsToFloat((int) (result >>> 32));
+	}
+
+	private static int unpackNGramUsed(long result) {
+		return (int) result;
 	}
 
 	public String getMetaInfo() {
 
-		long nCollisions = 0;
-		int nElements = 0;
+		// the tables count how far each entry was displaced from its home slot
+		// rather than how many entries share a home slot
+		long totalDisplacement = 0;
+		long nElements = 0;
 		for (int i = 0; i < probs.length; i++) {
-			nCollisions += probs[i].getCollisionCount();
+			totalDisplacement += probs[i].getCollisionCount();
 			nElements += probs[i].size();
 		}
-		double avgCollisionsPerElement = (double) nCollisions / (double) nElements;
-		return FormatUtils.formatDouble2(avgCollisionsPerElement) + " collisions/n-gram";
+		double avgDisplacement = (double) totalDisplacement / (double) nElements;
+		return FormatUtils.formatDouble2(avgDisplacement) + " avg. probe displacement/n-gram";
 	}
 }
@@ -0,0 +1,423 @@
+package info.jonclark.treegraft.core.lm;
+
+import info.jonclark.lang.hash.WideHashMap;
+import info.jonclark.stat.ProfilerTimer;
+import info.jonclark.treegraft.Treegraft.TreegraftConfig;
+import info.jonclark.treegraft.core.lm.EfficientNGramLanguageModel.EfficientNGramLanguageModelOptions;
+import info.jonclark.treegraft.core.tokens.Token;
+import info.jonclark.treegraft.core.tokens.TokenFactory;
+import info.jonclark.treegraft.core.tokens.TokenSequence;
+import info.jonclark.treegraft.core.tokens.integer.IntegerToken;
+import info.jonclark.treegraft.core.tokens.integer.IntegerTokenFactory;
+import info.jonclark.treegraft.core.tokens.integer.IntegerTokenSequence;
+import info.jonclark.util.FormatUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stores several n-gram language models in one set of hash tables: each n-gram
+ * is stored once along with a (prob, backoff) pair for every model, so that
+ * scoring a word under all of the models takes a single sequence of probes
+ * rather than one per model.
+ * <p>
+ * Each model is populated through the ordinary {@link LanguageModelLoader}
+ * interface via {@link #getModel(int)}; the fused scoring methods then return
+ * a {@link LanguageModelMultiScore} with one entry per model. All models are
+ * scored using the highest order among them, which gives the same results as
+ * scoring each at its own order since a lower-order model simply has no
+ * higher-order n-grams or backoff weights.
+ * <p>
+ * The tables are {@link WideHashMap}s holding a (prob, backoff) pair per model
+ * with each key, so the number of distinct n-grams is limited only by memory.
+ * Although the class is typed by token like the other models so that it can be
+ * used wherever they are, it requires the tokens to come from an
+ * {@link IntegerTokenFactory}.
+ *
+ * @author Jonathan Clark
+ */
+public class FusedNGramLanguageModel<T extends Token> {
+
+	private static final float MISSING = Float.NaN;
+	private static final int MAX_ORDER = 6;
+
+	private final int nModels;
+	private final float loadFactor;
+	private final TokenFactory<T> tokenFactory;
+	private final int bosId;
+	private final ArrayList<ModelView> views;
+	private final double[] oovProbs;
+	private final ProfilerTimer lmFusedTimer;
+
+	private WideHashMap[] tables = new WideHashMap[0];
+	private int order = 0;
+
+	private final ThreadLocal<QueryScratch> scratch = new ThreadLocal<QueryScratch>() {
+		protected QueryScratch initialValue() {
+			return new QueryScratch(nModels);
+		}
+	};
+
+	private static class QueryScratch {
+		public final long[] bits = new long[2];
+		public final int[] ids = new int[MAX_ORDER];
+		public final float[] scores;
+		public final float[] backoffs;
+		public final int[] orders;
+
+		public QueryScratch(int nModels) {
+			this.scores = new float[nModels];
+			this.backoffs = new float[nModels];
+			this.orders = new int[nModels];
+		}
+	}
+
+	public FusedNGramLanguageModel(int nModels, EfficientNGramLanguageModelOptions opts,
+			TreegraftConfig<?, T> config) {
+
+		if (config.tokenFactory instanceof IntegerTokenFactory == false) {
+			throw new RuntimeException(FusedNGramLanguageModel.class.getSimpleName()
+					+ " requires an " + IntegerTokenFactory.class.getSimpleName());
+		}
+
+		this.nModels = nModels;
+		this.loadFactor = opts.loadFactor;
+		this.tokenFactory = config.tokenFactory;
+		this.bosId = ((IntegerToken) config.bos).getIntId();
+		this.oovProbs = new double[nModels];
+		this.lmFusedTimer =
+				ProfilerTimer.newTimer("lmFused", config.profiler.featureTimer, true, false);
+
+		this.views = new ArrayList<ModelView>(nModels);
+		for (int i = 0; i < nModels; i++) {
+			views.add(new ModelView(i, config));
+		}
+	}
+
+	/**
+	 * Gets a view of a single model within this store. Loading entries into
+	 * the view adds them to the shared tables.
+	 */
+	public LanguageModel<T> getModel(int model) {
+		return views.get(model);
+	}
+
+	public int getModelCount() {
+		return nModels;
+	}
+
+	private synchronized void setOrder(int modelOrder, int[] expectedItems) {
+		if (modelOrder > MAX_ORDER) {
+			throw new RuntimeException("Language models of order greater than " + MAX_ORDER
+					+ " are not supported: " + modelOrder);
+		}
+		if (modelOrder > order) {
+			tables = Arrays.copyOf(tables, modelOrder);
+			order = modelOrder;
+		}
+
+		// we can't know how many n-grams are shared with previously loaded
+		// models, so assume none are
+		for (int i = 0; i < modelOrder; i++) {
+			if (tables[i] == null) {
+				tables[i] = new WideHashMap(expectedItems[i], loadFactor, nModels * 2, MISSING);
+			} else {
+				tables[i].ensureCapacity(expectedItems[i]);
+			}
+		}
+	}
+
+	/**
+	 * Scores the last word of the n-gram <code>ids[start, end)</code> under
+	 * every model, backing off as necessary. Backoff weights and lower-order
+	 * n-grams are only looked up once no matter how many models need them.
+	 * Thread-safe as long as each thread supplies its own scratch buffers.
+	 *
+	 * @param bits
+	 *            caller-owned scratch of at least 2 longs
+	 * @param backoffs
+	 *            caller-owned scratch with one entry per model
+	 * @param scores
+	 *            receives the log probability of the word under each model
+	 */
+	public void scoreNGram(int[] ids, int start, int end, long[] bits, float[] backoffs,
+			float[] scores) {
+		scoreNGram(ids, start, end, bits, backoffs, scores, null);
+	}
+
+	/**
+	 * Like {@link #scoreNGram(int[], int, int, long[], float[], float[])}, but
+	 * also reports the order of the n-gram each model backed off to.
+	 *
+	 * @param orders
+	 *            if non-null, receives the order of the n-gram found in each
+	 *            model (1 if the word was not in a model's vocabulary)
+	 */
+	public void scoreNGram(int[] ids, int start, int end, long[] bits, float[] backoffs,
+			float[] scores, int[] orders) {
+
+		if (order == 0)
+			throw new RuntimeException("No language model loaded.");
+
+		int nGram = end - start;
+		if (nGram == 1 && ids[start] == bosId) {
+			// <s> is never predicted
+			Arrays.fill(scores, 0, nModels, 0.0f);
+			if (orders != null) {
+				Arrays.fill(orders, 0, nModels, 1);
+			}
+			return;
+		}
+
+		Arrays.fill(scores, 0, nModels, MISSING);
+		Arrays.fill(backoffs, 0, nModels, 0.0f);
+		int nPending = nModels;
+
+		while (true) {
+			IntegerTokenSequence.packIds(ids, end - nGram, end, bits);
+			long slot = tables[nGram - 1].find(bits[0], bits[1]);
+			if (slot != -1) {
+				for (int m = 0; m < nModels; m++) {
+					if (Float.isNaN(scores[m])) {
+						float logProb = tables[nGram - 1].getValue(slot, m * 2);
+						if (!Float.isNaN(logProb)) {
+							scores[m] = backoffs[m] + logProb;
+							if (orders != null) {
+								orders[m] = nGram;
+							}
+							nPending--;
+						}
+					}
+				}
+			}
+
+			if (nPending == 0) {
+				return;
+			} else if (nGram == 1) {
+				// word was not in the vocabulary of some models
+				for (int m = 0; m < nModels; m++) {
+					if (Float.isNaN(scores[m])) {
+						// summed like EfficientNGramLanguageModel so that the
+						// scores are identical
+						scores[m] = (float) (backoffs[m] + oovProbs[m]);
+						if (orders != null) {
+							orders[m] = 1;
+						}
+					}
+				}
+				return;
+			}
+
+			// the backoff weight belongs to the context of the longer n-gram
+			nGram--;
+			IntegerTokenSequence.packIds(ids, end - nGram - 1, end - 1, bits);
+			slot = tables[nGram - 1].find(bits[0], bits[1]);
+			if (slot != -1) {
+				for (int m = 0; m < nModels; m++) {
+					if (Float.isNaN(scores[m])) {
+						float backoffLogProb = tables[nGram - 1].getValue(slot, m * 2 + 1);
+						if (!Float.isNaN(backoffLogProb)
+								&& backoffLogProb != Float.NEGATIVE_INFINITY) {
+							backoffs[m] += backoffLogProb;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	// scores tokens[nStart, nEnd) into buf.scores
+	private void scoreWindow(List<? extends Token> tokens, int nStart, int nEnd, QueryScratch buf) {
+		int n = nEnd - nStart;
+		for (int i = 0; i < n; i++) {
+			buf.ids[i] = ((IntegerToken) tokens.get(nStart + i)).getIntId();
+		}
+		scoreNGram(buf.ids, 0, n, buf.bits, buf.backoffs, buf.scores);
+	}
+
+	/**
+	 * Scores a sequence under every model. See
+	 * {@link LanguageModel#scoreSequence(TokenSequence)}.
+	 */
+	public LanguageModelMultiScore scoreSequence(TokenSequence<T> tokenSequence) {
+
+		lmFusedTimer.go();
+		List<T> tokens = tokenSequence.getContentTokens(tokenFactory);
+		int length = tokens.size();
+		int nBoundary = Math.min(length, this.order - 1);
+		QueryScratch buf = scratch.get();
+
+		double[] sequenceLogProbs = new double[nModels];
+		double[][] leftScores = new double[nModels][nBoundary];
+		for (int i = 0; i < length; i++) {
+			scoreWindow(tokens, Math.max(0, i + 1 - this.order), i + 1, buf);
+			for (int m = 0; m < nModels; m++) {
+				sequenceLogProbs[m] += buf.scores[m];
+				if (i < nBoundary) {
+					leftScores[m][i] = buf.scores[m];
+				}
+			}
+		}
+
+		// the boundary words are the same for every model
+		Token[] leftWords = tokens.subList(0, nBoundary).toArray(new Token[nBoundary]);
+		Token[] rightWords =
+				tokens.subList(length - nBoundary, length).toArray(new Token[nBoundary]);
+		LanguageModelScore[] vec = new LanguageModelScore[nModels];
+		for (int m = 0; m < nModels; m++) {
+			vec[m] =
+					new LanguageModelScore(leftWords, leftScores[m], rightWords, length,
+							sequenceLogProbs[m]);
+		}
+		lmFusedTimer.pause();
+		return new LanguageModelMultiScore(vec);
+	}
+
+	/**
+	 * Combines two sequences under every model, rescoring only the boundary.
+	 * See
+	 * {@link LanguageModel#scoreBoundaryAndCombine(TokenSequence, LanguageModelScore, TokenSequence, LanguageModelScore, TokenSequence)}
+	 * .
+	 */
+	public LanguageModelMultiScore scoreBoundaryAndCombine(TokenSequence<T> seq1,
+			LanguageModelMultiScore multi1, TokenSequence<T> seq2,
+			LanguageModelMultiScore multi2) {
+
+		// every model shares the same boundary words and lengths, so the
+		// first model's state describes the structure of all of them
+		if (multi1.scores[0].getLength() != seq1.size()) {
+			multi1 = scoreSequence(seq1);
+		}
+		if (multi2.scores[0].getLength() != seq2.size()) {
+			multi2 = scoreSequence(seq2);
+		}
+		LanguageModelScore scores1 = multi1.scores[0];
+		LanguageModelScore scores2 = multi2.scores[0];
+		if (scores1.getLength() == 0 || scores2.getLength() == 0) {
+			return (scores1.getLength() == 0) ? multi2 : multi1;
+		}
+
+		lmFusedTimer.go();
+		QueryScratch buf = scratch.get();
+		int nContext = this.order - 1;
+		Token[] right1 = scores1.getRightWords();
+		Token[] left2 = scores2.getLeftWords();
+		int length = scores1.getLength() + scores2.getLength();
+
+		double[] sequenceLogProbs = new double[nModels];
+		for (int m = 0; m < nModels; m++) {
+			sequenceLogProbs[m] =
+					multi1.scores[m].getSequenceScore() + multi2.scores[m].getSequenceScore();
+		}
+
+		// only the left-most words of seq2 were scored without their full
+		// context, so those are the only ones that need rescoring
+		double[][] rescored = new double[nModels][left2.length];
+		for (int j = 0; j < left2.length; j++) {
+
+			int nFromSeq1 = Math.min(right1.length, this.order - (j + 1));
+			int n = 0;
+			for (int k = right1.length - nFromSeq1; k < right1.length; k++) {
+				buf.ids[n++] = ((IntegerToken) right1[k]).getIntId();
+			}
+			for (int k = 0; k <= j; k++) {
+				buf.ids[n++] = ((IntegerToken) left2[k]).getIntId();
+			}
+			scoreNGram(buf.ids, 0, n, buf.bits, buf.backoffs, buf.scores);
+
+			for (int m = 0; m < nModels; m++) {
+				rescored[m][j] = buf.scores[m];
+				sequenceLogProbs[m] += buf.scores[m] - multi2.scores[m].getLeftScores()[j];
+			}
+		}
+
+		// the new left boundary may extend into seq2 if seq1 is short
+		int nLeft = Math.min(length, nContext);
+		Token[] left1 = scores1.getLeftWords();
+		Token[] leftWords = new Token[nLeft];
+		System.arraycopy(left1, 0, leftWords, 0, left1.length);
+		for (int i = left1.length; i < nLeft; i++) {
+			leftWords[i] = left2[i - left1.length];
+		}
+
+		// likewise, the new right boundary may extend back into seq1
+		Token[] right2 = scores2.getRightWords();
+		int nRight = Math.min(length, nContext);
+		Token[] rightWords = new Token[nRight];
+		int nRightFrom1 = nRight - right2.length;
+		System.arraycopy(right1, right1.length - nRightFrom1, rightWords, 0, nRightFrom1);
+		System.arraycopy(right2, 0, rightWords, nRightFrom1, right2.length);
+
+		LanguageModelScore[] vec = new LanguageModelScore[nModels];
+		for (int m = 0; m < nModels; m++) {
+			double[] leftScores = new double[nLeft];
+			System.arraycopy(multi1.scores[m].getLeftScores(), 0, leftScores, 0, left1.length);
+			for (int i = left1.length; i < nLeft; i++) {
+				leftScores[i] = rescored[m][i - left1.length];
+			}
+			vec[m] =
+					new LanguageModelScore(leftWords, leftScores, rightWords, length,
+							sequenceLogProbs[m]);
+		}
+		lmFusedTimer.pause();
+		return new LanguageModelMultiScore(vec);
+	}
+
+	public String getMetaInfo() {
+		long totalDisplacement = 0;
+		long nElements = 0;
+		for (WideHashMap table : tables) {
+			totalDisplacement += table.getCollisionCount();
+			nElements += table.size();
+		}
+		double avgDisplacement = (double) totalDisplacement / (double) nElements;
+		return nModels + " models, " + nElements + " distinct n-grams, "
+				+ FormatUtils.formatDouble2(avgDisplacement) + " avg. probe displacement/n-gram";
+	}
+
+	/**
+	 * A single model within the fused store. Used for loading and, if
+	 * necessary, for scoring one model at a time.
+	 */
+	private class ModelView extends AbstractNGramLanguageModel<T> {
+
+		private final int model;
+
+		public ModelView(int model, TreegraftConfig<?, T> config) {
+			super(config.bos, config.eos, config.tokenFactory, config.profiler.featureTimer);
+			this.model = model;
+		}
+
+		public void setOrder(int order, int[] expectedItems) {
+			FusedNGramLanguageModel.this.setOrder(order, expectedItems);
+			this.order = order;
+		}
+
+		public void setOOVProb(double logProb) {
+			super.setOOVProb(logProb);
+			oovProbs[model] = logProb;
+		}
+
+		public void addEntry(TokenSequence<T> tokenSequence, double logProb,
+				double backoffLogProb) {
+
+			QueryScratch buf = scratch.get();
+			int n = IntegerTokenSequence.getIds(tokenSequence, buf.ids);
+			IntegerTokenSequence.packIds(buf.ids, 0, n, buf.bits);
+			tables[n - 1].put(buf.bits[0], buf.bits[1], model * 2, (float) logProb,
+					(float) backoffLogProb);
+		}
+
+		protected ScoredToken scoreToken(TokenSequence<T> originalSeq) {
+			QueryScratch buf = scratch.get();
+			int n = IntegerTokenSequence.getIds(originalSeq, buf.ids);
+			scoreNGram(buf.ids, 0, n, buf.bits, buf.backoffs, buf.scores, buf.orders);
+			return new ScoredToken(buf.scores[model], n, buf.orders[model]);
+		}
+
+		public String getMetaInfo() {
+			return FusedNGramLanguageModel.this.getMetaInfo();
+		}
+	}
+}
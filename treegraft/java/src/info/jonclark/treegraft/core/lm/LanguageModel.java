@@ -1,5 +1,6 @@
 package info.jonclark.treegraft.core.lm;
 
+import info.jonclark.treegraft.Treegraft.TreegraftProfiler.RatioCounter;
 import info.jonclark.treegraft.core.tokens.Token;
 import info.jonclark.treegraft.core.tokens.TokenSequence;
 
@@ -13,7 +14,9 @@ import info.jonclark.treegraft.core.tokens.TokenSequence;
 public interface LanguageModel<T extends Token> {
 
 	/**
-	 * For use only by language model loader
+	 * For use only by language model loader. Implementations must allow this
+	 * to be called from several threads at once so that loaders can insert
+	 * entries in parallel.
 	 * 
 	 * @param tokenSequence
 	 * @param logProb
@@ -25,7 +28,9 @@ public interface LanguageModel<T extends Token> {
 	public LanguageModelScore scoreSequence(TokenSequence<T> tokens);
 
 	/**
-	 * Much faster than rescoring the whole sequence
+	 * Much faster than rescoring the whole sequence: only the boundary words
+	 * kept in each LanguageModelScore state are rescored, so this takes time
+	 * proportional to the order of the LM.
 	 * 
 	 * @param tokens1
 	 * @param score1
@@ -41,6 +46,30 @@ public interface LanguageModel<T extends Token> {
 
 	public void setOOVProb(double lobProb);
 
+	/**
+	 * Enables a per-thread cache of n-gram scores, which is cleared at the
+	 * start of each sentence. Implementations that cannot cache may ignore
+	 * this.
+	 * 
+	 * @param nEntries
+	 *            the number of entries in each thread's cache; 0 disables
+	 *            caching
+	 * @param hitCounter
+	 *            receives the number of cache hits out of total lookups at the
+	 *            end of each sentence (may be null)
+	 */
+	public void setScoreCache(int nEntries, RatioCounter hitCounter);
+
+	/**
+	 * Called on the decoding thread before each sentence is scored.
+	 */
+	public void beginSentence();
+
+	/**
+	 * Called on the decoding thread after each sentence is scored.
+	 */
+	public void endSentence();
+
 	/**
 	 * Gets a human-readable string with meta-information about the language
 	 * model. This information might be displayed while the LM is loading. For
@@ -17,4 +17,32 @@ public class LanguageModelMultiScore implements FeatureScore {
 		}
 		return vec;
 	}
+
+	/**
+	 * Gets a 64-bit signature of the LM states of all language models. See
+	 * {@link LanguageModelScore#getSignature()}.
+	 */
+	public long getSignature() {
+		long h = 0;
+		for (int i = 0; i < scores.length; i++) {
+			h = h * 31 + scores[i].getSignature();
+		}
+		return h;
+	}
+
+	/**
+	 * @return true if every language model is in the same state in both. See
+	 *         {@link LanguageModelScore#hasSameState(LanguageModelScore)}.
+	 */
+	public boolean hasSameState(LanguageModelMultiScore other) {
+		if (scores.length != other.scores.length) {
+			return false;
+		}
+		for (int i = 0; i < scores.length; i++) {
+			if (!scores[i].hasSameState(other.scores[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
 }
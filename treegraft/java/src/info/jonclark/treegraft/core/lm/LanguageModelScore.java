@@ -1,27 +1,116 @@
 package info.jonclark.treegraft.core.lm;
 
 import info.jonclark.treegraft.core.scoring.FeatureScore;
+import info.jonclark.treegraft.core.tokens.Token;
 
-import java.util.List;
+import java.util.Arrays;
 
+/**
+ * The minimal language model state of a partial hypothesis: its left-most and
+ * right-most (order - 1) words and its accumulated score. This is all that is
+ * needed to score the boundary when two hypotheses are combined, so combining
+ * takes time proportional to the order of the LM rather than the length of the
+ * hypotheses.
+ * <p>
+ * The left-most words were scored without their full context (which will only
+ * be known once something is prepended), so their provisional scores are kept
+ * so that they can be replaced.
+ */
 public class LanguageModelScore implements FeatureScore {
 
-	private final List<ScoredToken> scoredTokens;
+	public static final LanguageModelScore EMPTY =
+			new LanguageModelScore(new Token[0], new double[0], new Token[0], 0, 0.0);
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final Token[] leftWords;
+	private final double[] leftScores;
+	private final Token[] rightWords;
+	private final int length;
 	private final double sequenceScore;
 
-	public LanguageModelScore(List<ScoredToken> scoredTokens, double sequenceScore) {
-		this.scoredTokens = scoredTokens;
+	/**
+	 * @param leftWords
+	 *            the first min(length, order - 1) words of the hypothesis
+	 * @param leftScores
+	 *            the provisional scores of the left words
+	 * @param rightWords
+	 *            the last min(length, order - 1) words of the hypothesis
+	 * @param length
+	 *            the number of words in the hypothesis
+	 * @param sequenceScore
+	 *            the log probability of the whole hypothesis
+	 */
+	public LanguageModelScore(Token[] leftWords, double[] leftScores, Token[] rightWords,
+			int length, double sequenceScore) {
+
+		assert leftWords.length == leftScores.length;
+		this.leftWords = leftWords;
+		this.leftScores = leftScores;
+		this.rightWords = rightWords;
+		this.length = length;
 		this.sequenceScore = sequenceScore;
 	}
 
-	public List<ScoredToken> getScoredTokens() {
-		return scoredTokens;
+	/**
+	 * Gets a copy of this state with a different score (e.g. after
+	 * recombination).
+	 */
+	public LanguageModelScore withSequenceScore(double score) {
+		return new LanguageModelScore(leftWords, leftScores, rightWords, length, score);
+	}
+
+	public Token[] getLeftWords() {
+		return leftWords;
+	}
+
+	public double[] getLeftScores() {
+		return leftScores;
+	}
+
+	public Token[] getRightWords() {
+		return rightWords;
+	}
+
+	public int getLength() {
+		return length;
 	}
 
 	public double getSequenceScore() {
 		return sequenceScore;
 	}
 
+	/**
+	 * Gets a 64-bit hash of the boundary words. Two hypotheses with the same
+	 * signature (barring hash collisions) will receive the same LM score
+	 * adjustments in any future combination, so they may be recombined. Use
+	 * {@link #hasSameState(LanguageModelScore)} to rule out collisions.
+	 *
+	 * @return the signature
+	 */
+	public long getSignature() {
+		long h = FNV_OFFSET;
+		for (Token tok : leftWords) {
+			h = (h ^ tok.hashCode()) * FNV_PRIME;
+		}
+		// separate the left and right words so that they can't alias
+		h = (h ^ leftWords.length) * FNV_PRIME;
+		for (Token tok : rightWords) {
+			h = (h ^ tok.hashCode()) * FNV_PRIME;
+		}
+		return h;
+	}
+
+	/**
+	 * @return true if both states have the same boundary words, in which case
+	 *         the hypotheses they belong to may be recombined
+	 */
+	public boolean hasSameState(LanguageModelScore other) {
+		return Arrays.equals(leftWords, other.leftWords)
+				&& Arrays.equals(rightWords, other.rightWords);
+	}
+
 	public double[] getFeatureProbVector() {
 		return new double[] { sequenceScore };
 	}
@@ -0,0 +1,92 @@
+package info.jonclark.treegraft.core.lm;
+
+import java.util.Arrays;
+
+/**
+ * A direct-mapped cache of n-gram scores keyed on packed n-gram bits (see
+ * IntegerTokenSequence). Each slot holds exactly one n-gram; a colliding n-gram
+ * simply replaces it. Clearing is O(1): each entry is stamped with the
+ * generation in which it was written and entries from older generations are
+ * ignored.
+ * <p>
+ * NOT thread-safe. Each thread should use its own cache.
+ */
+public class NGramScoreCache {
+
+	/**
+	 * Returned by get() if the n-gram is not in the cache. Callers must never
+	 * store this value.
+	 */
+	public static final long NOT_CACHED = 0;
+
+	private static final int LENGTH_BITS = 4;
+
+	private final long[] keys;
+	private final long[] values;
+	private final int[] stamps;
+	private final int mask;
+	private int generation = 1;
+
+	private long hits = 0;
+	private long lookups = 0;
+
+	public NGramScoreCache(int nEntries) {
+		int size = Integer.highestOneBit(Math.max(1, nEntries - 1)) << 1;
+		this.keys = new long[size * 2];
+		this.values = new long[size];
+		this.stamps = new int[size];
+		this.mask = size - 1;
+	}
+
+	private int indexFor(long key1, long key2, int length) {
+		long h = key1 * 0x9e3779b97f4a7c15L + key2;
+		h = (h ^ (h >>> 29)) * 0xbf58476d1ce4e5b9L + length;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	public long get(long key1, long key2, int length) {
+		lookups++;
+		int i = indexFor(key1, key2, length);
+		if (stamps[i] == ((generation << LENGTH_BITS) | length) && keys[2 * i] == key1
+				&& keys[2 * i + 1] == key2) {
+			hits++;
+			return values[i];
+		} else {
+			return NOT_CACHED;
+		}
+	}
+
+	public void put(long key1, long key2, int length, long value) {
+		assert value != NOT_CACHED;
+		int i = indexFor(key1, key2, length);
+		stamps[i] = (generation << LENGTH_BITS) | length;
+		keys[2 * i] = key1;
+		keys[2 * i + 1] = key2;
+		values[i] = value;
+	}
+
+	/**
+	 * Invalidates all entries (e.g. at the start of a new sentence).
+	 */
+	public void clear() {
+		generation++;
+		if (generation >= (1 << (31 - LENGTH_BITS))) {
+			// stamps would overflow, so actually clear them
+			Arrays.fill(stamps, 0);
+			generation = 1;
+		}
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getLookups() {
+		return lookups;
+	}
+
+	public void resetStatistics() {
+		hits = 0;
+		lookups = 0;
+	}
+}
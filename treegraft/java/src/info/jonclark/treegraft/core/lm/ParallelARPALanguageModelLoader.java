@@ -0,0 +1,257 @@
+package info.jonclark.treegraft.core.lm;
+
+import info.jonclark.log.LogUtils;
+import info.jonclark.stat.TaskListener;
+import info.jonclark.treegraft.core.tokens.Token;
+import info.jonclark.treegraft.core.tokens.TokenFactory;
+import info.jonclark.treegraft.core.tokens.TokenSequence;
+import info.jonclark.util.StringUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Loads an ARPA format language model using multiple threads. The file itself
+ * is read sequentially, but each n-gram section is split into chunks of lines
+ * that are tokenized, filtered against the target vocabulary and added to the
+ * language model by a pool of worker threads. Since reading a line is much
+ * cheaper than parsing it, loading time scales with the number of cores.
+ * <p>
+ * Each worker keeps its own cache of the tokens it has seen so that only the
+ * first occurrence of each word in a worker goes through the (shared,
+ * thread-safe) token factory. The language model's addEntry method must be thread-safe (see
+ * {@link LanguageModel#addEntry(TokenSequence, double, double)}).
+ *
+ * @author Jonathan Clark
+ */
+public class ParallelARPALanguageModelLoader<T extends Token> implements LanguageModelLoader<T> {
+
+	private static final Logger log = LogUtils.getLogger();
+
+	private static final int LINES_PER_CHUNK = 10000;
+
+	// how many chunks each worker may have queued before the reader blocks;
+	// this bounds the number of unparsed lines held in memory
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	private final int nThreads;
+
+	/**
+	 * Creates a loader that uses one worker thread per available processor.
+	 */
+	public ParallelARPALanguageModelLoader() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public ParallelARPALanguageModelLoader(int nThreads) {
+		if (nThreads < 1) {
+			throw new IllegalArgumentException("At least one thread is required: " + nThreads);
+		}
+		this.nThreads = nThreads;
+	}
+
+	public void loadLM(final LanguageModel<T> lm, final TokenFactory<T> tokenFactory,
+			InputStream stream, String encoding, final HashSet<T> targetVocab,
+			TaskListener task) throws IOException {
+
+		BufferedReader in = new BufferedReader(new InputStreamReader(stream, encoding));
+
+		final ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		final Semaphore queuedChunks = new Semaphore(nThreads * CHUNKS_PER_THREAD);
+		final LoadState state = new LoadState();
+
+		final ThreadLocal<HashMap<String, T>> tokenCache = new ThreadLocal<HashMap<String, T>>() {
+			protected HashMap<String, T> initialValue() {
+				return new HashMap<String, T>();
+			}
+		};
+
+		long total = 0;
+		ArrayList<Integer> ngramEntries = new ArrayList<Integer>();
+
+		try {
+			int filePosition = -1;
+			boolean inData = false;
+			String line;
+			while ((line = in.readLine()) != null) {
+
+				line = line.trim();
+				if (line.equals("\\data\\")) {
+					inData = true;
+
+					line = in.readLine().trim();
+
+					filePosition = 0;
+					int expectedEntries = 0;
+					while (line.startsWith("ngram ")) {
+						int numEntiresForN =
+								Integer.parseInt(StringUtils.substringAfter(line, "="));
+						ngramEntries.add(numEntiresForN);
+						expectedEntries += numEntiresForN;
+						line = in.readLine();
+					}
+
+					int[] entries = new int[ngramEntries.size()];
+					for (int i = 0; i < entries.length; i++) {
+						entries[i] = ngramEntries.get(i);
+					}
+					lm.setOrder(ngramEntries.size(), entries);
+					if (task != null)
+						task.beginTask(expectedEntries);
+
+				} else if (inData && line.startsWith("\\") && line.endsWith("-grams:")) {
+					filePosition++;
+					int numEntriesForN = ngramEntries.get(filePosition - 1);
+
+					for (int start = 0; start < numEntriesForN; start += LINES_PER_CHUNK) {
+
+						int nLines = Math.min(LINES_PER_CHUNK, numEntriesForN - start);
+						final String[] chunk = new String[nLines];
+						for (int i = 0; i < nLines; i++) {
+							chunk[i] = in.readLine();
+							if (chunk[i] == null) {
+								throw new IOException("Unexpected end of file while reading "
+										+ filePosition + "-grams");
+							}
+							if (task != null)
+								task.recordEventCompletion();
+						}
+						total += nLines;
+
+						// stop reading as soon as any worker fails
+						state.rethrow();
+						try {
+							queuedChunks.acquire();
+						} catch (InterruptedException e) {
+							throw new IOException("Interrupted while loading LM");
+						}
+
+						pool.execute(new Runnable() {
+							public void run() {
+								try {
+									parseChunk(chunk, lm, tokenFactory, tokenCache.get(),
+											targetVocab, state);
+								} catch (Throwable t) {
+									state.fail(t);
+								} finally {
+									queuedChunks.release();
+								}
+							}
+						});
+					}
+				}
+			}
+		} finally {
+			pool.shutdown();
+			try {
+				pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				pool.shutdownNow();
+			}
+			in.close();
+		}
+		state.rethrow();
+
+		if (state.oovLogProb != null) {
+			lm.setOOVProb(state.oovLogProb);
+		}
+
+		if (task != null)
+			task.endTask();
+
+		log.info("Finished loading LM with " + nThreads + " threads: Read " + total
+				+ " n-grams and kept " + state.kept.get());
+	}
+
+	private void parseChunk(String[] lines, LanguageModel<T> lm, TokenFactory<T> tokenFactory,
+			HashMap<String, T> tokenCache, HashSet<T> targetVocab, LoadState state) {
+
+		int kept = 0;
+		for (String line : lines) {
+			String[] entry = StringUtils.tokenize(line, "\t");
+
+			String[] strTokens = StringUtils.tokenize(entry[1]);
+			ArrayList<T> tokens = new ArrayList<T>(strTokens.length);
+			for (String token : strTokens) {
+				tokens.add(intern(token, tokenFactory, tokenCache));
+			}
+
+			if (tokens.size() == 1 && strTokens[0].equals("<unk>")) {
+				state.oovLogProb = Double.parseDouble(entry[0]);
+			}
+
+			boolean vocabContainsAll = true;
+			if (targetVocab != null) {
+				for (T token : tokens) {
+					if (targetVocab.contains(token) == false) {
+						vocabContainsAll = false;
+						break;
+					}
+				}
+			}
+
+			if (vocabContainsAll) {
+				kept++;
+
+				TokenSequence<T> tokenSequence = tokenFactory.makeTokenSequence(tokens);
+
+				double logProb = Double.parseDouble(entry[0]);
+				double backoffLogProb = Double.NEGATIVE_INFINITY;
+				if (entry.length == 3) {
+					backoffLogProb = Double.parseDouble(entry[2]);
+				}
+
+				lm.addEntry(tokenSequence, logProb, backoffLogProb);
+			}
+		}
+		state.kept.addAndGet(kept);
+	}
+
+	private T intern(String word, TokenFactory<T> tokenFactory, HashMap<String, T> tokenCache) {
+		T tok = tokenCache.get(word);
+		if (tok == null) {
+			tok = tokenFactory.makeToken(word, true);
+			tokenCache.put(word, tok);
+		}
+		return tok;
+	}
+
+	/**
+	 * Results shared between the reader and the worker threads.
+	 */
+	private static class LoadState {
+		private final AtomicLong kept = new AtomicLong();
+		private volatile Double oovLogProb = null;
+		private volatile Throwable error = null;
+
+		private synchronized void fail(Throwable t) {
+			if (error == null) {
+				error = t;
+			}
+		}
+
+		private void rethrow() throws IOException {
+			Throwable t = error;
+			if (t instanceof IOException) {
+				throw (IOException) t;
+			} else if (t instanceof RuntimeException) {
+				throw (RuntimeException) t;
+			} else if (t instanceof Error) {
+				throw (Error) t;
+			} else if (t != null) {
+				throw new RuntimeException(t);
+			}
+		}
+	}
+}
@@ -0,0 +1,617 @@
+package info.jonclark.treegraft.core.lm;
+
+import info.jonclark.lang.Option;
+import info.jonclark.lang.Options;
+import info.jonclark.lang.OptionsTarget;
+import info.jonclark.log.LogUtils;
+import info.jonclark.treegraft.Treegraft.TreegraftConfig;
+import info.jonclark.treegraft.core.tokens.TokenSequence;
+import info.jonclark.treegraft.core.tokens.integer.IntegerToken;
+import info.jonclark.treegraft.core.tokens.integer.IntegerTokenSequence;
+import info.jonclark.util.FormatUtils;
+
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * A compact n-gram language model that stores each order as a sorted array of
+ * bit-packed records. Each record holds a word ID, a quantized log
+ * probability, a quantized backoff weight, and a pointer to the first of its
+ * children in the next order, so that the records of all orders form a trie
+ * keyed on the words of the n-gram from left to right. Children of the same
+ * context are contiguous and sorted by word ID, so a lookup is one binary
+ * search per word.
+ * <p>
+ * Probabilities and backoff weights are quantized separately for each order
+ * into 2^k bins, each of which is represented by the mean of the values
+ * encoded to it. Bins start out with (roughly) equal populations and are then
+ * refined by a few rounds of Lloyd's algorithm. ARPA's stand-in for log 0
+ * (-99, used for the probability of &lt;s&gt;) gets a bin of its own so that it
+ * neither drags a bin center away from the other values in that bin nor loses
+ * its own value. Specifying 32 bits disables quantization, in which case
+ * scores are identical to those of {@link EfficientNGramLanguageModel}.
+ * <p>
+ * Entries are buffered while the LM is being loaded and the trie is built the
+ * first time the LM is queried, so peak memory during loading is roughly that
+ * of the uncompressed n-grams.
+ *
+ * @author Jonathan Clark
+ */
+@OptionsTarget(QuantizedTrieLanguageModel.QuantizedTrieLanguageModelOptions.class)
+public class QuantizedTrieLanguageModel extends AbstractNGramLanguageModel<IntegerToken> {
+
+	private static final Logger log = LogUtils.getLogger();
+
+	private static final int WORD_BITS = IntegerTokenSequence.BITS_PER_WORD;
+	private static final int NOT_FOUND = -1;
+	private static final int ROOT = -2;
+
+	// values at or below this are sentinels rather than real log probabilities
+	private static final float SENTINEL_LOG_PROB = -99.0f;
+	private static final int REFINEMENT_ROUNDS = 3;
+
+	public static class QuantizedTrieLanguageModelOptions implements Options {
+
+		@Option(name = "lm.trie.probBits", usage = "The number of bits (1-32) used to store each log probability in the trie language model; 32 disables quantization", required = false, defaultValue = "8")
+		public int probBits;
+
+		@Option(name = "lm.trie.backoffBits", usage = "The number of bits (1-32) used to store each backoff weight in the trie language model; 32 disables quantization", required = false, defaultValue = "8")
+		public int backoffBits;
+	}
+
+	private final QuantizedTrieLanguageModelOptions opts;
+
+	// entries buffered during loading; released once the trie is built
+	private int[][] pendingWords;
+	private float[][] pendingProbs;
+	private float[][] pendingBackoffs;
+	private int[] pendingCounts;
+	// entries of different orders may be added concurrently
+	private Object[] orderLocks;
+
+	// the trie itself, one of each per order
+	private volatile boolean built = false;
+	private Level[] levels;
+
+	private final ThreadLocal<int[]> idScratch = new ThreadLocal<int[]>() {
+		protected int[] initialValue() {
+			return new int[order];
+		}
+	};
+
+	/**
+	 * One order of the trie: a packed array of fixed-width records.
+	 */
+	private static class Level {
+		public final int count;
+		public final long[] bits;
+		public final int recordBits;
+		public final int probBits;
+		public final int backoffBits;
+		public final int pointerBits;
+		public final float[] probCenters;
+		public final float[] backoffCenters;
+
+		public Level(int count, int probBits, int backoffBits, int pointerBits,
+				float[] probCenters, float[] backoffCenters) {
+			this.count = count;
+			this.probBits = probBits;
+			this.backoffBits = backoffBits;
+			this.pointerBits = pointerBits;
+			this.recordBits = WORD_BITS + probBits + backoffBits + pointerBits;
+			this.bits = new long[(int) (((long) count * recordBits + 63) / 64)];
+			this.probCenters = probCenters;
+			this.backoffCenters = backoffCenters;
+		}
+
+		public int getWord(int i) {
+			return (int) read(bits, (long) i * recordBits, WORD_BITS);
+		}
+
+		public float getProb(int i) {
+			int code = (int) read(bits, (long) i * recordBits + WORD_BITS, probBits);
+			return decode(code, probCenters);
+		}
+
+		public float getBackoff(int i) {
+			int code =
+					(int) read(bits, (long) i * recordBits + WORD_BITS + probBits, backoffBits);
+			return decode(code, backoffCenters);
+		}
+
+		// the first child of record i in the next level
+		public int getPointer(int i) {
+			return (int) read(bits, (long) i * recordBits + WORD_BITS + probBits + backoffBits,
+					pointerBits);
+		}
+
+		public void set(int i, int word, int probCode, int backoffCode, int pointer) {
+			long pos = (long) i * recordBits;
+			write(bits, pos, WORD_BITS, word);
+			pos += WORD_BITS;
+			write(bits, pos, probBits, probCode);
+			pos += probBits;
+			write(bits, pos, backoffBits, backoffCode);
+			pos += backoffBits;
+			write(bits, pos, pointerBits, pointer);
+		}
+
+		public long getMemoryUsage() {
+			return (long) bits.length * 8
+					+ (probCenters == null ? 0 : probCenters.length * 4)
+					+ (backoffCenters == null ? 0 : backoffCenters.length * 4);
+		}
+	}
+
+	public QuantizedTrieLanguageModel(QuantizedTrieLanguageModelOptions opts,
+			TreegraftConfig<?, IntegerToken> config) {
+		super(config.bos, config.eos, config.tokenFactory, config.profiler.featureTimer);
+
+		if (opts.probBits < 1 || opts.probBits > 32 || opts.backoffBits < 1
+				|| opts.backoffBits > 32) {
+			throw new RuntimeException("Quantization bits must be between 1 and 32");
+		}
+		this.opts = opts;
+	}
+
+	public void setOrder(int order, int[] expectedItems) {
+		this.order = order;
+		this.pendingWords = new int[order][];
+		this.pendingProbs = new float[order][];
+		this.pendingBackoffs = new float[order][];
+		this.pendingCounts = new int[order];
+		this.orderLocks = new Object[order];
+		for (int i = 0; i < order; i++) {
+			pendingWords[i] = new int[expectedItems[i] * (i + 1)];
+			pendingProbs[i] = new float[expectedItems[i]];
+			pendingBackoffs[i] = new float[expectedItems[i]];
+			orderLocks[i] = new Object();
+		}
+	}
+
+	public void addEntry(TokenSequence<IntegerToken> tokenSequence, double logProb,
+			double backoffLogProb) {
+
+		if (built) {
+			throw new RuntimeException("Cannot add entries after the LM has been queried");
+		}
+
+		int n = tokenSequence.size();
+		int i = n - 1;
+		int[] ids = idScratch.get();
+		IntegerTokenSequence.getIds(tokenSequence, ids);
+
+		// a missing backoff weight contributes nothing when backing off
+		if (backoffLogProb == Double.NEGATIVE_INFINITY) {
+			backoffLogProb = 0.0;
+		}
+
+		synchronized (orderLocks[i]) {
+			int count = pendingCounts[i];
+			if (count == pendingProbs[i].length) {
+				int newSize = Math.max(16, count * 2);
+				pendingWords[i] = Arrays.copyOf(pendingWords[i], newSize * n);
+				pendingProbs[i] = Arrays.copyOf(pendingProbs[i], newSize);
+				pendingBackoffs[i] = Arrays.copyOf(pendingBackoffs[i], newSize);
+			}
+
+			System.arraycopy(ids, 0, pendingWords[i], count * n, n);
+			pendingProbs[i][count] = (float) logProb;
+			pendingBackoffs[i][count] = (float) backoffLogProb;
+			pendingCounts[i]++;
+		}
+	}
+
+	private void ensureBuilt() {
+		if (!built) {
+			synchronized (this) {
+				if (!built) {
+					if (pendingCounts == null)
+						throw new RuntimeException("No language model loaded.");
+					build();
+					built = true;
+				}
+			}
+		}
+	}
+
+	private void build() {
+
+		levels = new Level[order];
+
+		int nDropped = 0;
+
+		for (int i = 0; i < order; i++) {
+			int n = i + 1;
+			int count = pendingCounts[i];
+			int[] words = pendingWords[i];
+
+			// find the index of each n-gram's (n-1)-gram prefix in the
+			// previous level, which must already be complete
+			int[] parents = new int[count];
+			long[] sortKeys = new long[count];
+			int[] sorted = new int[count];
+			int nKept = 0;
+			for (int j = 0; j < count; j++) {
+				int parent = (i == 0) ? 0 : walk(words, j * n, j * n + i);
+				if (parent == NOT_FOUND) {
+					nDropped++;
+					continue;
+				}
+				int word = words[j * n + i];
+				sortKeys[nKept] = ((long) parent << WORD_BITS) | word;
+				sorted[nKept] = j;
+				nKept++;
+			}
+			sortKeys = Arrays.copyOf(sortKeys, nKept);
+			sorted = Arrays.copyOf(sorted, nKept);
+			sort(sortKeys, sorted, 0, nKept - 1);
+			for (int j = 0; j < nKept; j++) {
+				parents[j] = (int) (sortKeys[j] >>> WORD_BITS);
+			}
+
+			// now that we know where this level's n-grams will go, fill in the
+			// child pointers of the previous level
+			if (i > 0) {
+				fillPointers(levels[i - 1], parents, nKept);
+			}
+
+			boolean last = (i == order - 1);
+			int probBits = opts.probBits;
+			int backoffBits = last ? 0 : opts.backoffBits;
+			int pointerBits = last ? 0 : bitsRequired(pendingCounts[i + 1]);
+
+			float[] probs = gather(pendingProbs[i], sorted);
+			float[] backoffs = last ? null : gather(pendingBackoffs[i], sorted);
+			float[] probCenters = quantize(probs, probBits);
+			float[] backoffCenters = last ? null : quantize(backoffs, backoffBits);
+
+			Level level =
+					new Level(nKept, probBits, backoffBits, pointerBits, probCenters,
+							backoffCenters);
+			for (int j = 0; j < nKept; j++) {
+				int word = (int) (sortKeys[j] & ((1L << WORD_BITS) - 1));
+				int probCode = encode(probs[j], probCenters);
+				int backoffCode = last ? 0 : encode(backoffs[j], backoffCenters);
+				level.set(j, word, probCode, backoffCode, 0);
+			}
+			levels[i] = level;
+
+			// release the raw entries for this level
+			pendingWords[i] = null;
+			pendingProbs[i] = null;
+			pendingBackoffs[i] = null;
+		}
+
+		if (nDropped > 0) {
+			log.warning("Dropped " + nDropped + " n-grams whose prefixes were not in the LM");
+		}
+		log.info("Built trie LM: " + getMetaInfo());
+	}
+
+	// sets the child pointers of a level given the (sorted) parent indices of
+	// the records in the following level
+	private static void fillPointers(Level level, int[] childParents, int nChildren) {
+
+		int child = 0;
+		for (int j = 0; j < level.count; j++) {
+			while (child < nChildren && childParents[child] < j) {
+				child++;
+			}
+			long pos =
+					(long) j * level.recordBits + WORD_BITS + level.probBits + level.backoffBits;
+			write(level.bits, pos, level.pointerBits, child);
+		}
+	}
+
+	private static float[] gather(float[] values, int[] indices) {
+		float[] result = new float[indices.length];
+		for (int i = 0; i < indices.length; i++) {
+			result[i] = values[indices[i]];
+		}
+		return result;
+	}
+
+	private static int bitsRequired(int maxValue) {
+		int bits = 1;
+		while (bits < 32 && (1L << bits) <= maxValue) {
+			bits++;
+		}
+		return bits;
+	}
+
+	/**
+	 * Builds a sorted codebook of 2^nBits centers. Each distinct sentinel
+	 * value gets a center of its own (if there is room); the remaining centers
+	 * start out as the means of bins with (roughly) equal numbers of values
+	 * and are then moved to the mean of the values actually encoded to them.
+	 *
+	 * @return the bin centers or null if no quantization is to be done
+	 */
+	static float[] quantize(float[] values, int nBits) {
+		if (nBits == 32) {
+			return null;
+		}
+
+		float[] sorted = values.clone();
+		Arrays.sort(sorted);
+		int nBins = 1 << nBits;
+		float[] centers = new float[nBins];
+
+		int nSentinels = 0;
+		int nSentinelBins = 0;
+		while (nSentinels < sorted.length && sorted[nSentinels] <= SENTINEL_LOG_PROB) {
+			if (nSentinels == 0 || sorted[nSentinels] != sorted[nSentinels - 1]) {
+				nSentinelBins++;
+			}
+			nSentinels++;
+		}
+		if (nSentinelBins < nBins) {
+			int bin = 0;
+			for (int i = 0; i < nSentinels; i++) {
+				if (i == 0 || sorted[i] != sorted[i - 1]) {
+					centers[bin++] = sorted[i];
+				}
+			}
+		} else {
+			// no room to set them apart
+			nSentinels = 0;
+			nSentinelBins = 0;
+		}
+
+		int nValues = sorted.length - nSentinels;
+		int nFree = nBins - nSentinelBins;
+		for (int j = 0; j < nFree; j++) {
+			int bin = nSentinelBins + j;
+			int from = nSentinels + (int) ((long) nValues * j / nFree);
+			int to = nSentinels + (int) ((long) nValues * (j + 1) / nFree);
+			if (to > from) {
+				double sum = 0.0;
+				for (int i = from; i < to; i++) {
+					sum += sorted[i];
+				}
+				centers[bin] = (float) (sum / (to - from));
+			} else {
+				// more bins than values; keep centers sorted
+				centers[bin] = (bin == 0) ? Float.NEGATIVE_INFINITY : centers[bin - 1];
+			}
+		}
+
+		// values are encoded to the nearest center, which need not be the
+		// center of the bin they started in, so move each center to the mean
+		// of the values that will actually use it. Centers stay sorted since
+		// each bin's values lie between the midpoints to its neighbors.
+		double[] sums = new double[nBins];
+		int[] counts = new int[nBins];
+		for (int round = 0; round < REFINEMENT_ROUNDS; round++) {
+			Arrays.fill(sums, 0.0);
+			Arrays.fill(counts, 0);
+			for (int i = nSentinels; i < sorted.length; i++) {
+				int code = encode(sorted[i], centers);
+				sums[code] += sorted[i];
+				counts[code]++;
+			}
+			for (int bin = nSentinelBins; bin < nBins; bin++) {
+				if (counts[bin] > 0) {
+					centers[bin] = (float) (sums[bin] / counts[bin]);
+				}
+			}
+		}
+		return centers;
+	}
+
+	static int encode(float value, float[] centers) {
+		if (centers == null) {
+			return Float.floatToRawIntBits(value);
+		}
+
+		// find the nearest center
+		int pos = Arrays.binarySearch(centers, value);
+		if (pos >= 0) {
+			return pos;
+		}
+		int above = -pos - 1;
+		if (above == 0) {
+			return 0;
+		} else if (above == centers.length) {
+			return centers.length - 1;
+		} else if (centers[above] - value < value - centers[above - 1]) {
+			return above;
+		} else {
+			return above - 1;
+		}
+	}
+
+	static float decode(int code, float[] centers) {
+		if (centers == null) {
+			return Float.intBitsToFloat(code);
+		} else {
+			return centers[code];
+		}
+	}
+
+	/**
+	 * Finds the record for the n-gram <code>words[start, end)</code>.
+	 *
+	 * @return the index of the n-gram's record in level (end - start - 1),
+	 *         ROOT if the n-gram is empty, or NOT_FOUND
+	 */
+	private int walk(int[] words, int start, int end) {
+
+		int index = ROOT;
+		for (int k = start; k < end; k++) {
+			index = findChild(k - start, index, words[k]);
+			if (index == NOT_FOUND) {
+				return NOT_FOUND;
+			}
+		}
+		return index;
+	}
+
+	// finds the word among the children of parent, which is a record in
+	// the level before levelIndex
+	private int findChild(int levelIndex, int parent, int word) {
+		Level level = levels[levelIndex];
+
+		int lo, hi;
+		if (parent == ROOT) {
+			lo = 0;
+			hi = level.count - 1;
+		} else {
+			Level parentLevel = levels[levelIndex - 1];
+			lo = parentLevel.getPointer(parent);
+			hi = (parent + 1 < parentLevel.count) ? parentLevel.getPointer(parent + 1) - 1
+					: level.count - 1;
+		}
+
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int midWord = level.getWord(mid);
+			if (midWord < word) {
+				lo = mid + 1;
+			} else if (midWord > word) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return NOT_FOUND;
+	}
+
+	protected ScoredToken scoreToken(TokenSequence<IntegerToken> originalSeq) {
+
+		// <s> is never predicted
+		if (originalSeq.equals(sentenceBegin)) {
+			return new ScoredToken(0.0, 1, 1);
+		}
+
+		ensureBuilt();
+		lmScoreTokenTimer.go();
+
+		int[] ids = idScratch.get();
+		int end = IntegerTokenSequence.getIds(originalSeq, ids);
+		assert end <= this.order : "N-gram is longer than order of LM";
+
+		// summed in single precision, as EfficientNGramLanguageModel does, so
+		// that unquantized scores are identical
+		float score = 0.0f;
+		int nGramUsed = 1;
+		boolean found = false;
+		for (int k = 0; k < end && !found; k++) {
+			int word = ids[end - 1];
+			int context = walk(ids, k, end - 1);
+			if (context == NOT_FOUND) {
+				// no backoff weight available for this context
+				continue;
+			}
+
+			int levelIndex = end - 1 - k;
+			int index = findChild(levelIndex, context, word);
+			if (index != NOT_FOUND) {
+				score += levels[levelIndex].getProb(index);
+				nGramUsed = end - k;
+				found = true;
+			} else if (context != ROOT) {
+				score += levels[levelIndex - 1].getBackoff(context);
+			}
+		}
+
+		if (!found) {
+			// word was not in vocabulary
+			score += oovProb;
+		}
+
+		lmScoreTokenTimer.pause();
+		return new ScoredToken(score, originalSeq.size(), nGramUsed);
+	}
+
+	public String getMetaInfo() {
+		if (pendingCounts == null) {
+			return "no n-grams loaded";
+		} else if (!built) {
+			long nEntries = 0;
+			for (int count : pendingCounts) {
+				nEntries += count;
+			}
+			return nEntries + " n-grams buffered";
+		}
+
+		long nEntries = 0;
+		long nBytes = 0;
+		for (Level level : levels) {
+			nEntries += level.count;
+			nBytes += level.getMemoryUsage();
+		}
+		return FormatUtils.formatDouble2((double) nBytes / (double) nEntries) + " bytes/n-gram";
+	}
+
+	private static long read(long[] bits, long pos, int width) {
+		if (width == 0) {
+			return 0;
+		}
+		int i = (int) (pos >>> 6);
+		int offset = (int) (pos & 63);
+		long value = bits[i] >>> offset;
+		if (offset + width > 64) {
+			value |= bits[i + 1] << (64 - offset);
+		}
+		return (width == 64) ? value : value & ((1L << width) - 1);
+	}
+
+	private static void write(long[] bits, long pos, int width, long value) {
+		if (width == 0) {
+			return;
+		}
+		long mask = (width == 64) ? -1L : (1L << width) - 1;
+		value &= mask;
+		int i = (int) (pos >>> 6);
+		int offset = (int) (pos & 63);
+		bits[i] = (bits[i] & ~(mask << offset)) | (value << offset);
+		if (offset + width > 64) {
+			int spill = 64 - offset;
+			bits[i + 1] = (bits[i + 1] & ~(mask >>> spill)) | (value >>> spill);
+		}
+	}
+
+	// sorts keys ascending, permuting values in parallel
+	private static void sort(long[] keys, int[] values, int lo, int hi) {
+		while (hi - lo > 16) {
+			long pivot = keys[(lo + hi) >>> 1];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (keys[i] < pivot)
+					i++;
+				while (keys[j] > pivot)
+					j--;
+				if (i <= j) {
+					swap(keys, values, i, j);
+					i++;
+					j--;
+				}
+			}
+			// recurse on the smaller half to bound stack depth
+			if (j - lo < hi - i) {
+				sort(keys, values, lo, j);
+				lo = i;
+			} else {
+				sort(keys, values, i, hi);
+				hi = j;
+			}
+		}
+		for (int i = lo + 1; i <= hi; i++) {
+			for (int j = i; j > lo && keys[j - 1] > keys[j]; j--) {
+				swap(keys, values, j - 1, j);
+			}
+		}
+	}
+
+	private static void swap(long[] keys, int[] values, int i, int j) {
+		long k = keys[i];
+		keys[i] = keys[j];
+		keys[j] = k;
+		int v = values[i];
+		values[i] = values[j];
+		values[j] = v;
+	}
+}
@@ -57,7 +57,7 @@ public class SimpleNGramLanguageModel<T extends Token> extends AbstractNGramLang
 		}
 	}
 
-	public void addEntry(TokenSequence<T> tokenSequence, double logProb, double backoffLogProb) {
+	public synchronized void addEntry(TokenSequence<T> tokenSequence, double logProb, double backoffLogProb) {
 		LMEntry entry = new LMEntry(logProb, backoffLogProb);
 		if (TRIE_MODE) {
 			trie.put(tokenSequence, entry);
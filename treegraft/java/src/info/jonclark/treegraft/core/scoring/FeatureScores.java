@@ -41,6 +41,19 @@ public class FeatureScores implements Scored {
 		return result;
 	}
 
+	/**
+	 * @return the score of the first feature whose score is of the given type
+	 *         or null if there is none
+	 */
+	public <S extends FeatureScore> S getFeatureScore(Class<S> type) {
+		for (FeatureScore score : metadata) {
+			if (type.isInstance(score)) {
+				return type.cast(score);
+			}
+		}
+		return null;
+	}
+
 	public double getLogProb() {
 		return aggregateScore;
 	}
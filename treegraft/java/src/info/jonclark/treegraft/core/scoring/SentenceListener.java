@@ -0,0 +1,18 @@
+package info.jonclark.treegraft.core.scoring;
+
+import info.jonclark.treegraft.core.tokens.Token;
+
+/**
+ * Features implementing this interface are notified before and after each input
+ * sentence is translated so that they can maintain per-sentence state such as
+ * caches. Both calls are made on the thread translating the sentence, so
+ * implementations may keep such state in thread-local storage.
+ * 
+ * @param <T>
+ */
+public interface SentenceListener<T extends Token> {
+
+	public void beginSentence(T[] inputTokens);
+
+	public void endSentence(T[] inputTokens);
+}
@@ -0,0 +1,180 @@
+package info.jonclark.treegraft.core.snapshot;
+
+import info.jonclark.log.LogUtils;
+import info.jonclark.treegraft.core.tokens.Token;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Locates the binary sidecar files that hold test-set-filtered copies of large
+ * models (language models, lexical probability tables, etc.). Each file is
+ * keyed by a hash of the source and target vocabularies together with the
+ * path, size and modification time of the model it was filtered from, so a
+ * snapshot is only ever reused for the same test set and the same model.
+ * <p>
+ * In prepare mode, features write their filtered models to the files given by
+ * {@link #getFile(String, File...)}; once every feature has been loaded, the
+ * vocabulary itself is written by {@link #writeVocabulary()}, which marks the
+ * snapshot as complete. In any other run, features should load from a
+ * snapshot file if {@link #isAvailable(File)} and fall back to the full model
+ * otherwise.
+ *
+ * @author Jonathan Clark
+ */
+public class ModelSnapshot<T extends Token> {
+
+	private static final Logger log = LogUtils.getLogger();
+
+	private static final int VOCAB_MAGIC = 0x54475643; // "TGVC"
+
+	private final File dir;
+	private final boolean prepare;
+	private final List<String> sourceWords;
+	private final List<String> targetWords;
+	private final String vocabHash;
+
+	public ModelSnapshot(File dir, HashSet<T> sourceVocab, HashSet<T> targetVocab,
+			boolean prepare) {
+
+		this.dir = dir;
+		this.prepare = prepare;
+		this.sourceWords = sortedWords(sourceVocab);
+		this.targetWords = sortedWords(targetVocab);
+
+		MessageDigest digest = newDigest();
+		update(digest, "source");
+		for (String word : sourceWords) {
+			update(digest, word);
+		}
+		update(digest, "target");
+		for (String word : targetWords) {
+			update(digest, word);
+		}
+		this.vocabHash = toHex(digest.digest());
+
+		if (prepare && !dir.exists() && !dir.mkdirs()) {
+			throw new RuntimeException("Could not create snapshot directory: "
+					+ dir.getAbsolutePath());
+		}
+	}
+
+	private static <T extends Token> List<String> sortedWords(HashSet<T> vocab) {
+		List<String> words = new ArrayList<String>(vocab.size());
+		for (T token : vocab) {
+			words.add(token.getWord());
+		}
+		Collections.sort(words);
+		return words;
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void update(MessageDigest digest, String str) {
+		try {
+			digest.update(str.getBytes("UTF-8"));
+			// separator that can't appear inside a UTF-8 string
+			digest.update((byte) 0xFF);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		// 64 bits are plenty to tell test sets apart
+		long h = 0;
+		for (int i = 0; i < 8; i++) {
+			h = (h << 8) | (bytes[i] & 0xFF);
+		}
+		String hex = Long.toHexString(h);
+		while (hex.length() < 16) {
+			hex = "0" + hex;
+		}
+		return hex;
+	}
+
+	/**
+	 * @return true if features should write their filtered models rather than
+	 *         loading existing snapshots
+	 */
+	public boolean isPrepareMode() {
+		return prepare;
+	}
+
+	public String getVocabularyHash() {
+		return vocabHash;
+	}
+
+	/**
+	 * Gets the sidecar file for a model filtered to the current vocabulary.
+	 *
+	 * @param kind
+	 *            a short name for the type of model (e.g. "lm"), used as the
+	 *            file extension
+	 * @param modelFiles
+	 *            the full model file(s) from which the snapshot is filtered
+	 * @return the snapshot file, which may not exist yet
+	 */
+	public File getFile(String kind, File... modelFiles) {
+		MessageDigest digest = newDigest();
+		update(digest, vocabHash);
+		for (File f : modelFiles) {
+			update(digest, f.getAbsolutePath());
+			update(digest, f.length() + ":" + f.lastModified());
+		}
+		return new File(dir, modelFiles[0].getName() + "." + toHex(digest.digest()) + "." + kind);
+	}
+
+	private File getVocabularyFile() {
+		return new File(dir, "vocab." + vocabHash);
+	}
+
+	/**
+	 * @return true if the given snapshot file exists and was written by a
+	 *         prepare run that completed successfully
+	 */
+	public boolean isAvailable(File snapshotFile) {
+		return !prepare && snapshotFile.exists() && getVocabularyFile().exists();
+	}
+
+	/**
+	 * Writes the source and target vocabulary, marking all snapshot files
+	 * written for this vocabulary as complete. Call this only after every
+	 * feature has written its snapshot.
+	 *
+	 * @throws IOException
+	 */
+	public void writeVocabulary() throws IOException {
+		File file = getVocabularyFile();
+		DataOutputStream out =
+				new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		out.writeInt(VOCAB_MAGIC);
+		out.writeInt(sourceWords.size());
+		for (String word : sourceWords) {
+			out.writeUTF(word);
+		}
+		out.writeInt(targetWords.size());
+		for (String word : targetWords) {
+			out.writeUTF(word);
+		}
+		out.close();
+		log.info("Wrote vocabulary snapshot " + file.getAbsolutePath());
+	}
+}
@@ -30,6 +30,9 @@ public abstract class TokenFactory<T extends Token> {
 	 * Creates a new unique token instance for each unique string given to it
 	 * (though terminal and non-terminal tokens having the same string should
 	 * also have unique <code>Token</code> instances).
+	 * <p>
+	 * Implementations must be thread-safe: tokens are created by every decoder
+	 * thread (e.g. for OOVs) and by parallel model loaders.
 	 * 
 	 * @param str
 	 *            the string to be turned into a <code>Token</code>
@@ -70,4 +70,11 @@ public class IntegerToken implements Token {
 	public String getWord() {
 		return word;
 	}
+
+	/**
+	 * @return the integer ID assigned to this token by its factory
+	 */
+	public int getIntId() {
+		return id;
+	}
 }
@@ -3,59 +3,94 @@ package info.jonclark.treegraft.core.tokens.integer;
 import info.jonclark.treegraft.core.tokens.TokenFactory;
 import info.jonclark.treegraft.core.tokens.TokenSequence;
 
-import java.util.HashMap;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * A <code>TokenFactory</code> implementation for <code>IntegerTokens</code>.
- * Uses multiple (100) counters, each of which starts counting from a different
- * range to give a more even distribution over sequence numbers; this makes
- * hashing more effective.
- * 
+ * IDs are assigned densely, starting from zero, in the order in which words
+ * are first seen. Looking up the token for an ID (e.g. when formatting
+ * output) is a plain array access: tokens are kept in pages of 2^PAGE_SHIFT
+ * entries that are allocated as the vocabulary grows.
+ * <p>
+ * This class is thread-safe. Looking up a word that already has a token takes
+ * no locks; creating a new token locks only one of several stripes (chosen by
+ * the word's hash) so that two threads never assign different IDs to the same
+ * word, while threads creating different words rarely wait on each other.
+ * <p>
+ * The vocabulary can be saved with {@link #writeVocabulary(DataOutputStream)}
+ * and read back with {@link #readVocabulary(DataInputStream)}. Reading a
+ * vocabulary into an empty factory reproduces the original IDs, so binary
+ * models that store token IDs can be used without remapping by any factory
+ * that was started from the same vocabulary.
+ *
  * @author Jonathan Clark
  */
 public class IntegerTokenFactory extends TokenFactory<IntegerToken> {
 
+	private static final int VOCAB_MAGIC = 0x54475456; // "TGTV"
+	private static final int VOCAB_VERSION = 1;
+
 	private static final int DEFAULT_VOCAB_SIZE = 10000;
-	private final HashMap<String, IntegerToken> str2tok =
-			new HashMap<String, IntegerToken>(DEFAULT_VOCAB_SIZE);
-	private final HashMap<Integer, String> int2str =
-			new HashMap<Integer, String>(DEFAULT_VOCAB_SIZE);
+	private final ConcurrentHashMap<String, IntegerToken> str2tok =
+			new ConcurrentHashMap<String, IntegerToken>(DEFAULT_VOCAB_SIZE);
 
-	private final int maxVocabSize;
+	private static final int PAGE_SHIFT = 12;
+	private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+	private final AtomicReferenceArray<IntegerToken[]> id2tok;
 
-	private final int[] counterStartValues;
-	private final int[] counters;
-	private int whichCounter = 0;
+	// the largest ID is reserved so that it can be used as an "unmapped"
+	// marker by structures that remap IDs (see BinaryLanguageModelLoader)
+	private final int maxVocabSize = (1 << IntegerTokenSequence.BITS_PER_WORD) - 1;
+	private final AtomicInteger nAssigned = new AtomicInteger();
 
-	private static final int N_COUNTERS = 100;
+	private static final int N_STRIPES = 64;
+	private final Object[] stripeLocks = new Object[N_STRIPES];
 
 	public IntegerTokenFactory() {
-
-		// optimize token ID's for faster hashing
-		// by trying to more evenly distribute the ID's
-		// that are assigned among bits
-		this.counters = new int[N_COUNTERS];
-		this.counterStartValues = new int[N_COUNTERS];
-		this.maxVocabSize = (int) Math.pow(2, IntegerTokenSequence.BITS_PER_WORD);
-		int idsPerCounter = maxVocabSize / N_COUNTERS;
-
-		// define starting values for each counter
-		for (int i = 0; i < counters.length; i++) {
-			this.counters[i] = idsPerCounter * i;
-			this.counterStartValues[i] = counters[i];
+		this.id2tok = new AtomicReferenceArray<IntegerToken[]>((maxVocabSize >> PAGE_SHIFT) + 1);
+		for (int i = 0; i < N_STRIPES; i++) {
+			this.stripeLocks[i] = new Object();
 		}
 	}
 
 	protected String getStringFromId(int id) {
-		String str = int2str.get(id);
-		if (str == null) {
+		return getToken(id).getWord();
+	}
+
+	/**
+	 * Gets the token that was assigned the given ID.
+	 *
+	 * @param id
+	 * @return the token
+	 * @throws RuntimeException
+	 *             if no token has that ID
+	 */
+	public IntegerToken getToken(int id) {
+		IntegerToken[] page = (id >= 0 && id < maxVocabSize) ? id2tok.get(id >> PAGE_SHIFT) : null;
+		IntegerToken tok = (page == null) ? null : page[id & PAGE_MASK];
+		if (tok == null) {
 			throw new RuntimeException("Unknown token ID: " + id);
 		} else {
-			return str;
+			return tok;
 		}
 	}
 
+	/**
+	 * @return the number of tokens (terminal and non-terminal) created so far;
+	 *         every ID below this has been assigned
+	 */
+	public int size() {
+		return Math.min(nAssigned.get(), maxVocabSize);
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -70,33 +105,133 @@ public class IntegerTokenFactory extends TokenFactory<IntegerToken> {
 
 		IntegerToken tok = str2tok.get(key);
 		if (tok == null) {
+			synchronized (stripeLocks[(key.hashCode() & 0x7fffffff) % N_STRIPES]) {
 
-			if (int2str.size() == maxVocabSize) {
-				throw new RuntimeException("Vocabulary size exceeded: " + (int2str.size() + 1));
-			}
+				// another thread may have created it while we waited
+				tok = str2tok.get(key);
+				if (tok == null) {
+					int id = nextId();
+					tok = new IntegerToken(str, id, terminal);
 
-			int id = nextId();
-			tok = new IntegerToken(str, id, terminal);
-			str2tok.put(key, tok);
-			int2str.put(id, str);
-//			System.out.println("Assigned " + key + " to " + id);
+					// store by ID first so that anyone who can see the token
+					// can also look it up by its ID
+					pageFor(id)[id & PAGE_MASK] = tok;
+					str2tok.put(key, tok);
+//					System.out.println("Assigned " + key + " to " + id);
+				}
+			}
 		}
 		return tok;
 	}
 
-	private int nextId() {
+	private IntegerToken[] pageFor(int id) {
+		int pageIndex = id >> PAGE_SHIFT;
+		IntegerToken[] page = id2tok.get(pageIndex);
+		if (page == null) {
+			id2tok.compareAndSet(pageIndex, null, new IntegerToken[1 << PAGE_SHIFT]);
+			page = id2tok.get(pageIndex);
+		}
+		return page;
+	}
+
+	/**
+	 * Gets every token (terminal and non-terminal) created by this factory so
+	 * far. Used when persisting structures that are keyed on token IDs so that
+	 * they can be remapped into another factory's ID space.
+	 *
+	 * @return an unmodifiable view of the tokens
+	 */
+	public Collection<IntegerToken> getTokens() {
+		return Collections.unmodifiableCollection(str2tok.values());
+	}
 
-		int id = counters[whichCounter];
+	private int nextId() {
 
-		// advance counters
-		do {
-			counters[whichCounter]++;
-			whichCounter++;
-			whichCounter %= counters.length;
-		} while (counters[whichCounter] == counterStartValues[(whichCounter + 1) % N_COUNTERS]);
+		int id = nAssigned.getAndIncrement();
+		if (id >= maxVocabSize) {
+			throw new RuntimeException("Vocabulary size exceeded: " + (id + 1));
+		}
 		return id;
 	}
 
+	/**
+	 * Writes every token created so far, in ID order. Words are stored as a
+	 * single arena of UTF-8 bytes preceded by the offset at which each word
+	 * ends. Must not be called while other threads are creating tokens.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeVocabulary(DataOutputStream out) throws IOException {
+
+		int n = size();
+		byte[][] words = new byte[n][];
+		int arenaLength = 0;
+		for (int id = 0; id < n; id++) {
+			words[id] = getToken(id).getWord().getBytes("UTF-8");
+			arenaLength += words[id].length;
+		}
+
+		out.writeInt(VOCAB_MAGIC);
+		out.writeInt(VOCAB_VERSION);
+		out.writeInt(n);
+		for (int id = 0; id < n; id++) {
+			out.writeBoolean(getToken(id).isTerminal());
+		}
+		int end = 0;
+		for (int id = 0; id < n; id++) {
+			end += words[id].length;
+			out.writeInt(end);
+		}
+		out.writeInt(arenaLength);
+		for (int id = 0; id < n; id++) {
+			out.write(words[id]);
+		}
+	}
+
+	/**
+	 * Reads a vocabulary written by {@link #writeVocabulary(DataOutputStream)},
+	 * creating a token for each word that doesn't have one yet. If this factory
+	 * was empty or was itself started from the same vocabulary, every token
+	 * keeps the ID that it had when it was written.
+	 *
+	 * @param in
+	 * @return a map from each ID in the stored vocabulary to the ID of the
+	 *         same token in this factory
+	 * @throws IOException
+	 */
+	public int[] readVocabulary(DataInputStream in) throws IOException {
+
+		if (in.readInt() != VOCAB_MAGIC) {
+			throw new IOException("Not a binary vocabulary");
+		}
+		int version = in.readInt();
+		if (version != VOCAB_VERSION) {
+			throw new IOException("Unsupported binary vocabulary version: " + version);
+		}
+
+		int n = in.readInt();
+		boolean[] terminal = new boolean[n];
+		for (int i = 0; i < n; i++) {
+			terminal[i] = in.readBoolean();
+		}
+		int[] ends = new int[n];
+		for (int i = 0; i < n; i++) {
+			ends[i] = in.readInt();
+		}
+		byte[] arena = new byte[in.readInt()];
+		in.readFully(arena);
+
+		int[] idMap = new int[n];
+		int start = 0;
+		for (int i = 0; i < n; i++) {
+			String word = new String(arena, start, ends[i] - start, "UTF-8");
+			idMap[i] = makeToken(word, terminal[i]).getIntId();
+			start = ends[i];
+		}
+		return idMap;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -122,12 +257,4 @@ public class IntegerTokenFactory extends TokenFactory<IntegerToken> {
 	public IntegerToken[] newTokenArray(int length) {
 		return new IntegerToken[length];
 	}
-
-	public static void main(String[] args) throws Exception {
-
-		IntegerTokenFactory f = new IntegerTokenFactory();
-		for (int i = 0; i < 1000; i++) {
-			System.out.println(f.nextId());
-		}
-	}
 }
@@ -2,40 +2,53 @@ package info.jonclark.treegraft.core.tokens.integer;
 
 import info.jonclark.treegraft.core.tokens.TokenFactory;
 import info.jonclark.treegraft.core.tokens.TokenSequence;
-import info.jonclark.util.StringUtils;
 
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * A sequence of <code>IntegerTokens</code> of any length, stored as a window
+ * <code>[start, end)</code> over an array of token IDs that may be shared with
+ * other sequences. Along with the IDs, the array's prefix hashes (a polynomial
+ * rolling hash of <code>ids[0, i)</code> for each <code>i</code>) are computed
+ * once, so that the hash of any window can be found in constant time.
+ * <p>
+ * As a result, {@link #keepNLeftMostTokens(int)},
+ * {@link #keepNRightMostTokens(int)} and {@link #subsequence(int, int)} only
+ * create a new window over the same arrays without copying any IDs, and
+ * {@link #hashCode()} takes constant time for every window. {@link #equals(Object)}
+ * rejects sequences with different lengths or hashes in constant time and
+ * only compares IDs when the hashes match.
+ * <p>
+ * For structures that key on fixed-width integers (e.g. the n-gram tables of
+ * the language models), {@link #packIds(int[], int, int, long[])} packs IDs
+ * into longs of BITS_PER_WORD bits per token, with the first token in the
+ * lowest bits.
+ *
+ * @author Jonathan Clark
+ */
 public class IntegerTokenSequence implements TokenSequence<IntegerToken> {
 
-	private static final boolean DEBUG = false;
 	private static final List<IntegerToken> EMPTY_LIST = new ArrayList<IntegerToken>(0);
 
-	private int hash = -1;
-	private final long[] seqs;
-	private final int length;
-
 	public static final int BITS_PER_WORD = 21;
-	private static int WORDS_PER_LONG = 3;
-	private static long[] masks;
-	static {
-		masks = new long[WORDS_PER_LONG + 1];
-
-		long value = 0;
-		for (int i = 0; i < masks.length; i++) {
-			masks[i] = value;
-			for (int j = 0; j < BITS_PER_WORD; j++) {
-				value <<= 1;
-				value |= 1;
-			}
-		}
-	}
-
-	private IntegerTokenSequence(long[] seqs, int length) {
-		assert length > 0;
-		this.seqs = seqs;
-		this.length = length;
+	private static final int WORDS_PER_LONG = 3;
+	private static final long WORD_MASK = (1L << BITS_PER_WORD) - 1;
+
+	// multiplier for the rolling hash (arithmetic is modulo 2^64)
+	private static final long BASE = 0x9E3779B97F4A7C15L;
+	private static volatile long[] powers = new long[] { 1 };
+
+	private final int[] ids;
+	private final long[] prefixHashes;
+	private final int start;
+	private final int end;
+
+	private IntegerTokenSequence(int[] ids, long[] prefixHashes, int start, int end) {
+		this.ids = ids;
+		this.prefixHashes = prefixHashes;
+		this.start = start;
+		this.end = end;
 	}
 
 	protected IntegerTokenSequence(List<IntegerToken> tokens) {
@@ -48,39 +61,47 @@ public class IntegerTokenSequence implements TokenSequence<IntegerToken> {
 		// }
 		// }
 
-		this.length = tokens.size();
-		int nLongsRequired =
-				tokens.size() / WORDS_PER_LONG + (tokens.size() % WORDS_PER_LONG > 0 ? 1 : 0);
-		this.seqs = new long[nLongsRequired];
+		this.ids = new int[tokens.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = tokens.get(i).id;
+		}
+		this.prefixHashes = computePrefixHashes(ids);
+		this.start = 0;
+		this.end = ids.length;
+	}
 
-		// if (DEBUG) {
-		// System.out.print("CREATE: ");
-		// for (long x : seqs)
-		// System.out.print(str(x) + " - ");
-		// System.out.println();
-		// }
+	private static long[] computePrefixHashes(int[] ids) {
+		long[] prefixHashes = new long[ids.length + 1];
+		for (int i = 0; i < ids.length; i++) {
+			// add one so that ID zero still changes the hash
+			prefixHashes[i + 1] = prefixHashes[i] * BASE + (ids[i] + 1);
+		}
+		return prefixHashes;
+	}
 
-		// store tokens in array of longs so that first token is left-most bit
-		// sequence
-		// this enables the operation "keep right-most" to complete quickly
+	private static long power(int n) {
+		long[] p = powers;
+		if (n >= p.length) {
+			p = growPowers(n);
+		}
+		return p[n];
+	}
 
-		for (int k = tokens.size() - 1; k >= 0; k--) {
-			int i = k / WORDS_PER_LONG;
-			long thisID = tokens.get(k).id;
-			seqs[i] <<= BITS_PER_WORD;
-			seqs[i] |= thisID;
-
-			// if (DEBUG) {
-			// System.out.print("BUILD: ");
-			// for (long x : seqs)
-			// System.out.print(str(x) + " - ");
-			// System.out.println();
-			// }
+	private static synchronized long[] growPowers(int n) {
+		long[] p = powers;
+		if (n >= p.length) {
+			long[] bigger = new long[Math.max(n + 1, p.length * 2)];
+			System.arraycopy(p, 0, bigger, 0, p.length);
+			for (int i = p.length; i < bigger.length; i++) {
+				bigger[i] = bigger[i - 1] * BASE;
+			}
+			powers = p = bigger;
 		}
+		return p;
 	}
 
 	public TokenSequence<IntegerToken> getWithSentenceMarkers(boolean bos, boolean eos) {
-		return new IntegerTokenSequence(this.seqs, this.length);
+		return this;
 	}
 
 	// does not return BOS and EOS markers
@@ -88,56 +109,36 @@ public class IntegerTokenSequence implements TokenSequence<IntegerToken> {
 
 		IntegerTokenFactory iTokenFactory = (IntegerTokenFactory) tokenFactory;
 
-		if (length == 0) {
+		if (start == end) {
 			return EMPTY_LIST;
 		}
 
-		List<IntegerToken> tokens = new ArrayList<IntegerToken>(length);
-
-		// now all except last long
-		for (int i = 0; i < seqs.length - 1; i++) {
-			long seqID = seqs[i];
-			for (int k = 0; k < WORDS_PER_LONG; k++) {
-				int tokID = (int) (seqID & masks[1]);
-				String word = iTokenFactory.getStringFromId(tokID);
-				tokens.add(new IntegerToken(word, tokID, true));
-				seqID >>= BITS_PER_WORD;
-			}
+		List<IntegerToken> tokens = new ArrayList<IntegerToken>(end - start);
+		for (int i = start; i < end; i++) {
+			tokens.add(iTokenFactory.getToken(ids[i]));
 		}
-
-		// handle last long as a special case
-		// since it may have less than WORDS_PER_LONG in it
-		int nToksInLastLong = length % WORDS_PER_LONG;
-		if (nToksInLastLong == 0)
-			nToksInLastLong = WORDS_PER_LONG;
-		long seqID = seqs[seqs.length - 1];
-		for (int k = 0; k < nToksInLastLong; k++) {
-			int tokID = (int) (seqID & masks[1]);
-			String word = iTokenFactory.getStringFromId(tokID);
-			tokens.add(new IntegerToken(word, tokID, true));
-			seqID >>= BITS_PER_WORD;
-		}
-
 		return tokens;
 	}
 
-	public int hashCode() {
-
-		if (hash == -1) {
-
-			for (int i = 0; i < seqs.length; i++) {
-				hash ^= (int) seqs[i] ^ (int) (seqs[i] >>> 32);
-			}
+	/**
+	 * @return a 64-bit rolling hash of the IDs in this sequence, computed in
+	 *         constant time
+	 */
+	public long longHashCode() {
+		return prefixHashes[end] - prefixHashes[start] * power(end - start);
+	}
 
-			// taken from java.util.HashMap:
-			// This function ensures that hashCodes that differ only by
-			// constant multiples at each bit position have a bounded
-			// number of collisions (approximately 8 at default load factor).
-			hash ^= (hash >>> 20) ^ (hash >>> 12);
-			hash ^= (hash >>> 7) ^ (hash >>> 4);
-		}
+	public int hashCode() {
 
-		return hash;
+		// finalizer from MurmurHash3 so that all bits of the rolling hash
+		// affect the low bits used by hash tables
+		long h = longHashCode();
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int) h;
 	}
 
 	public boolean equals(Object obj) {
@@ -146,18 +147,21 @@ public class IntegerTokenSequence implements TokenSequence<IntegerToken> {
 			return true;
 		} else if (obj instanceof IntegerTokenSequence) {
 			IntegerTokenSequence other = (IntegerTokenSequence) obj;
-			if (this.length == other.length) {
-
-				for (int i = 0; i < seqs.length; i++) {
-					if (this.seqs[i] != other.seqs[i]) {
-						return false;
-					}
-				}
+			int length = this.end - this.start;
+			if (length != other.end - other.start) {
+				return false;
+			} else if (this.ids == other.ids && this.start == other.start) {
 				return true;
-
-			} else {
+			} else if (this.longHashCode() != other.longHashCode()) {
 				return false;
 			}
+
+			for (int i = 0; i < length; i++) {
+				if (this.ids[this.start + i] != other.ids[other.start + i]) {
+					return false;
+				}
+			}
+			return true;
 		} else {
 			return false;
 		}
@@ -167,199 +171,137 @@ public class IntegerTokenSequence implements TokenSequence<IntegerToken> {
 	 * {@inheritDoc}
 	 */
 	public int size() {
-		return length;
+		return end - start;
+	}
+
+	/**
+	 * @param i
+	 * @return the ID of the i'th token of this sequence
+	 */
+	public int getId(int i) {
+		return ids[start + i];
 	}
 
 	public TokenSequence<IntegerToken> keepNLeftMostTokens(int n) {
-		if (length <= n) {
+		if (size() <= n) {
 			return this;
 		} else {
-
-			// keep the "left tokens" which are the bit sequence on the right
-			int modulus = n % WORDS_PER_LONG;
-			int nRemainingInLastLong = modulus == 0 ? WORDS_PER_LONG : modulus;
-			int nLongsRequired = n / WORDS_PER_LONG + (n % WORDS_PER_LONG == 0 ? 0 : 1);
-
-			long[] newSeqs = new long[nLongsRequired];
-			System.arraycopy(seqs, 0, newSeqs, 0, nLongsRequired);
-
-			// just mask off the portion that got cut on the last long
-			newSeqs[nLongsRequired - 1] &= masks[nRemainingInLastLong];
-
-			return new IntegerTokenSequence(newSeqs, n);
+			return new IntegerTokenSequence(ids, prefixHashes, start, start + n);
 		}
 	}
 
-	private static String str(long x) {
-		String str = Long.toBinaryString(x);
-		str = StringUtils.forceNumberLength(str, 64);
-		StringBuilder builder = new StringBuilder();
-		int i = 1;
-		for (char c : str.toCharArray()) {
-			if (i == 0) {
-				builder.append(" ");
-				i = BITS_PER_WORD;
-			}
-			builder.append(c);
-			i--;
-		}
-		return builder.toString();
-	}
-
-	// TODO: Create special class for short integer token sequences
 	public TokenSequence<IntegerToken> keepNRightMostTokens(int n) {
-
-		if (length <= n) {
+		if (size() <= n) {
 			return this;
 		} else {
-
-			// keep the "right tokens" which are the bit sequence on the left
-
-			int modulus = n % WORDS_PER_LONG;
-			int nLongsRequired = n / WORDS_PER_LONG + (modulus == 0 ? 0 : 1);
-			long[] newSeqs = new long[nLongsRequired];
-
-			int nCutPerLong = (length - n) % WORDS_PER_LONG;
-			int nRemainingPerLong = WORDS_PER_LONG - nCutPerLong;
-			// int nOriginallyInLastLong = length - (seqs.length - 1) *
-			// WORDS_PER_LONG;
-
-			if (DEBUG) {
-				System.out.print("OLD: ");
-				for (long x : seqs)
-					System.out.print(str(x) + " - ");
-				System.out.println();
-			}
-
-			if (nCutPerLong == 0) {
-
-				// handle "no shifting" as a special case that can be sped up
-				// with a
-				// direct array copy
-
-				int offset = seqs.length - newSeqs.length;
-				System.arraycopy(seqs, offset, newSeqs, 0, nLongsRequired);
-			} else {
-
-				// the harder case: some tokens must "shift" from one array
-				// element to another while other tokens will stay in their
-				// current array element
-
-				int offset = (length - n) / WORDS_PER_LONG;
-				if (DEBUG) {
-					System.out.println("OFFSET = " + offset);
-				}
-				for (int i = 0; i < newSeqs.length; i++) {
-
-					if (i + offset >= 0) {
-						newSeqs[i] = seqs[i + offset] >>> (BITS_PER_WORD * nCutPerLong);
-					}
-
-					if (DEBUG) {
-						System.out.print("NEW1: ");
-						for (long x : newSeqs)
-							System.out.print(str(x) + " - ");
-						System.out.println();
-					}
-
-					if (i + offset + 1 < seqs.length) {
-						newSeqs[i] |=
-								(seqs[i + offset + 1] & masks[nCutPerLong]) << (BITS_PER_WORD * nRemainingPerLong);
-
-						if (DEBUG) {
-							System.out.print("NEW2: ");
-							for (long x : newSeqs)
-								System.out.print(str(x) + " - ");
-							System.out.println();
-						}
-					}
-				}
-			}
-
-			if (DEBUG) {
-				System.out.print("NEW: ");
-				for (long x : newSeqs)
-					System.out.print(str(x) + " - ");
-				System.out.println();
-			}
-
-			return new IntegerTokenSequence(newSeqs, n);
+			return new IntegerTokenSequence(ids, prefixHashes, end - n, end);
 		}
-
 	}
 
 	public TokenSequence<IntegerToken> subsequence(int nStart, int nEnd) {
-		// TODO: Optimize this
-		return this.keepNRightMostTokens(nEnd).keepNLeftMostTokens(nEnd - nStart);
+		if (nStart < 0 || nEnd > size() || nStart > nEnd) {
+			throw new IndexOutOfBoundsException("Invalid subsequence [" + nStart + ", " + nEnd
+					+ ") of sequence with length " + size());
+		}
+		if (nStart == 0 && nEnd == size()) {
+			return this;
+		} else {
+			return new IntegerTokenSequence(ids, prefixHashes, start + nStart, start + nEnd);
+		}
 	}
 
 	public TokenSequence<IntegerToken> append(TokenSequence<IntegerToken> suffix) {
 
 		IntegerTokenSequence iSuffix = (IntegerTokenSequence) suffix;
-		int newLength = this.size() + suffix.size();
-		int nLongsRequired = newLength / WORDS_PER_LONG + (newLength % WORDS_PER_LONG == 0 ? 0 : 1);
-		int nRemainingInThis = this.length % WORDS_PER_LONG;
-		if(nRemainingInThis == 0)
-			nRemainingInThis = WORDS_PER_LONG;
-		int nUnoccupiedInThis = WORDS_PER_LONG - nRemainingInThis;
-
-		long[] newSeqs = new long[nLongsRequired];
-		System.arraycopy(this.seqs, 0, newSeqs, 0, this.seqs.length);
-
-		if (DEBUG) {
-			System.out.print("OLD: ");
-			for (long x : newSeqs)
-				System.out.print(str(x) + " - ");
-			System.out.println();
+		if (iSuffix.size() == 0) {
+			return this;
+		} else if (this.size() == 0) {
+			return iSuffix;
 		}
 
-		if (nUnoccupiedInThis == 0) {
-
-			// we can just concatenate the array from the suffix without
-			// shifting
-			System.arraycopy(iSuffix.seqs, 0, newSeqs, this.seqs.length, iSuffix.seqs.length);
-			return new IntegerTokenSequence(newSeqs, newLength);
-
-		} else {
-
-			// we have to shift part of the appended sequence into the
-			// unoccupied positions in the current sequence to which we are
-			// appending
-
-			int offset = this.seqs.length - 1;
-			for (int i = 0; i < iSuffix.seqs.length; i++) {
-
-				// shift the right-most tokens and concatenate them onto the
-				// previous long to fill the unused token slots
-				newSeqs[i + offset] |= (iSuffix.seqs[i] << nRemainingInThis * BITS_PER_WORD);
+		int length1 = this.size();
+		int length2 = iSuffix.size();
+		int[] newIds = new int[length1 + length2];
+		System.arraycopy(this.ids, this.start, newIds, 0, length1);
+		System.arraycopy(iSuffix.ids, iSuffix.start, newIds, length1, length2);
+		return new IntegerTokenSequence(newIds, computePrefixHashes(newIds), 0, newIds.length);
+	}
 
-				if (DEBUG) {
-					System.out.print("NEW1: ");
-					for (long x : newSeqs)
-						System.out.print(str(x) + " - ");
-					System.out.println();
-				}
+	/**
+	 * Packs as many of the sequence's IDs as fit into <code>bits</code> (see
+	 * {@link #packIds(int[], int, int, long[])}).
+	 *
+	 * @param sequence
+	 * @param bits
+	 */
+	public static void getBitSequence(TokenSequence<IntegerToken> sequence, long[] bits) {
+		IntegerTokenSequence seq = (IntegerTokenSequence) sequence;
+		int end = Math.min(seq.end, seq.start + bits.length * WORDS_PER_LONG);
+		packIds(seq.ids, seq.start, end, bits);
+	}
 
-				// take the remaining left-most tokens (if any) and put them in
-				// the next array position
-				if (i + offset + 1 < newSeqs.length)
-					newSeqs[i + offset + 1] |=
-							(iSuffix.seqs[i] >>> nUnoccupiedInThis * BITS_PER_WORD);
-
-				if (DEBUG) {
-					System.out.print("NEW2: ");
-					for (long x : newSeqs)
-						System.out.print(str(x) + " - ");
-					System.out.println();
-				}
-			}
+	/**
+	 * Like {@link #getBitSequence(TokenSequence, long[])}, but translates each
+	 * token ID through <code>idMap</code> before packing it. Positions of
+	 * <code>bits</code> not covered by the sequence are zeroed.
+	 *
+	 * @param sequence
+	 * @param bits
+	 * @param idMap
+	 *            maps IDs from this factory's ID space to another
+	 */
+	public static void getBitSequence(TokenSequence<IntegerToken> sequence, long[] bits,
+			int[] idMap) {
 
-			return new IntegerTokenSequence(newSeqs, newLength);
+		IntegerTokenSequence seq = (IntegerTokenSequence) sequence;
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = 0;
+		}
+		int length = Math.min(seq.size(), bits.length * WORDS_PER_LONG);
+		for (int k = length - 1; k >= 0; k--) {
+			int i = k / WORDS_PER_LONG;
+			bits[i] <<= BITS_PER_WORD;
+			bits[i] |= idMap[seq.ids[seq.start + k]];
 		}
 	}
 
-	public static void getBitSequence(TokenSequence<IntegerToken> sequence, long[] bits) {
+	/**
+	 * Unpacks the token IDs of a sequence into a caller-owned array without
+	 * allocating any objects.
+	 *
+	 * @param sequence
+	 *            an {@link IntegerTokenSequence}
+	 * @param ids
+	 *            must have room for at least <code>sequence.size()</code> IDs
+	 * @return the number of IDs written
+	 */
+	public static int getIds(TokenSequence<?> sequence, int[] ids) {
 		IntegerTokenSequence seq = (IntegerTokenSequence) sequence;
-		System.arraycopy(seq.seqs, 0, bits, 0, Math.min(seq.seqs.length, bits.length));
+		int length = seq.size();
+		System.arraycopy(seq.ids, seq.start, ids, 0, length);
+		return length;
+	}
+
+	/**
+	 * Packs the IDs <code>ids[start, end)</code> into <code>bits</code>,
+	 * WORDS_PER_LONG per long with the first ID in the lowest bits. This lets
+	 * callers form fixed-width keys for arbitrary windows without creating new
+	 * sequence objects. Positions of <code>bits</code> not covered by the
+	 * window are zeroed.
+	 *
+	 * @param ids
+	 * @param start
+	 * @param end
+	 * @param bits
+	 */
+	public static void packIds(int[] ids, int start, int end, long[] bits) {
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = 0;
+		}
+		for (int k = end - start - 1; k >= 0; k--) {
+			int i = k / WORDS_PER_LONG;
+			bits[i] <<= BITS_PER_WORD;
+			bits[i] |= ids[start + k] & WORD_MASK;
+		}
 	}
 }
@@ -3,8 +3,8 @@ package info.jonclark.treegraft.core.tokens.string;
 import info.jonclark.treegraft.core.tokens.TokenFactory;
 import info.jonclark.treegraft.core.tokens.TokenSequence;
 
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A <code>TokenFactory</code> implementation for <code>StringTokens</code>.
@@ -13,7 +13,8 @@ import java.util.List;
  */
 public class StringTokenFactory extends TokenFactory<StringToken> {
 
-	private final HashMap<String, StringToken> str2tok = new HashMap<String, StringToken>();
+	private final ConcurrentHashMap<String, StringToken> str2tok =
+			new ConcurrentHashMap<String, StringToken>();
 
 	/**
 	 * {@inheritDoc}
@@ -29,8 +30,12 @@ public class StringTokenFactory extends TokenFactory<StringToken> {
 
 		StringToken tok = str2tok.get(key);
 		if (tok == null) {
-			tok = new StringToken(key, terminal);
-			str2tok.put(key, tok);
+			// if another thread got here first, use its token
+			StringToken newTok = new StringToken(key, terminal);
+			tok = str2tok.putIfAbsent(key, newTok);
+			if (tok == null) {
+				tok = newTok;
+			}
 		}
 		return tok;
 	}
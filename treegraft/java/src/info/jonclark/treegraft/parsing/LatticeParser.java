@@ -0,0 +1,20 @@
+package info.jonclark.treegraft.parsing;
+
+import info.jonclark.treegraft.core.tokens.Token;
+import info.jonclark.treegraft.parsing.chartparser.Chart;
+import info.jonclark.treegraft.parsing.rules.GrammarRule;
+import info.jonclark.treegraft.parsing.rules.RuleException;
+
+/**
+ * A <code>Parser</code> that can also parse all paths through a
+ * {@link WordLattice} into a single chart whose spans are indexed by lattice
+ * node. This is the only way to parse a lattice: <code>Treegraft</code> and
+ * the <code>ParallelCKYParser</code> only parse sentences, and the chart's
+ * {@link Chart#getSourceInputTokens()} holds only the words of the lattice's
+ * best path.
+ * 
+ * @author Jonathan Clark
+ */
+public interface LatticeParser<R extends GrammarRule<T>, T extends Token> extends Parser<R, T> {
+	public Chart<R, T> parse(WordLattice<T> lattice) throws RuleException;
+}
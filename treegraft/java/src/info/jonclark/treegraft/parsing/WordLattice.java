@@ -0,0 +1,380 @@
+package info.jonclark.treegraft.parsing;
+
+import info.jonclark.treegraft.core.tokens.Token;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An input to the parser that encodes several alternative source sentences
+ * (e.g. the hypotheses of a speech recognizer or of a word segmenter) as a
+ * directed acyclic graph. Nodes are numbered from 0 (the start) to
+ * {@link #getLength()} (the end) such that every edge leads from a lower to a
+ * higher node; each edge carries one source word and a log probability
+ * weight. Spans of the chart are indexed by lattice node, so a single chart
+ * holds the parses of all paths through the lattice.
+ * <p>
+ * A plain sentence is a lattice with one edge per word (see
+ * {@link #fromSentence(Token[])}); a confusion network is a lattice whose
+ * edges all lead from one node to the next (see
+ * {@link #fromConfusionNetwork(Token[][], double[][])}). Every node other than
+ * the end node must be left by an edge and every node other than the start
+ * node must be entered by one, so that each node lies on a complete path.
+ * <p>
+ * Lattices can only be parsed through a {@link LatticeParser} such as the
+ * <code>ChartParser</code>. Neither <code>Treegraft</code> nor the
+ * <code>ParallelCKYParser</code> ever creates one, so the decoder cannot yet
+ * be given a lattice as input. The chart of a lattice also exposes only the
+ * words of the best path as its source tokens (see {@link #getBestTokens()}
+ * and <code>Chart.getSourceInputTokens()</code>), so anything that reads the
+ * source words by position sees that path rather than the edges a parse
+ * actually used.
+ * <p>
+ * The connectivity check and the best paths from the start node are computed
+ * once and reused until another edge is added, since the parser asks for the
+ * best path to a node for every out-of-vocabulary edge.
+ *
+ * @author Jonathan Clark
+ * @param <T>
+ *            The token type being used
+ */
+public class WordLattice<T extends Token> {
+
+	/**
+	 * A single word of a <code>WordLattice</code>.
+	 */
+	public static class Edge<T extends Token> {
+
+		private final int index;
+		private final int fromNode;
+		private final int toNode;
+		private final T word;
+		private final double weight;
+		private final int wordIndex;
+
+		private Edge(int index, int fromNode, int toNode, T word, double weight, int wordIndex) {
+			this.index = index;
+			this.fromNode = fromNode;
+			this.toNode = toNode;
+			this.word = word;
+			this.weight = weight;
+			this.wordIndex = wordIndex;
+		}
+
+		/**
+		 * @return the position of this edge in {@link WordLattice#getEdges()}
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		public int getFromNode() {
+			return fromNode;
+		}
+
+		public int getToNode() {
+			return toNode;
+		}
+
+		public T getWord() {
+			return word;
+		}
+
+		/**
+		 * @return the log probability of this edge
+		 */
+		public double getWeight() {
+			return weight;
+		}
+
+		/**
+		 * @return see {@link WordLattice#getWordIndex(int, Token)}
+		 */
+		public int getWordIndex() {
+			return wordIndex;
+		}
+
+		public String toString() {
+			return fromNode + "-" + toNode + ":" + word + "/" + weight;
+		}
+	}
+
+	private final ArrayList<Edge<T>> edges = new ArrayList<Edge<T>>();
+	private final ArrayList<Edge<T>>[] edgesFrom;
+	private int nWordIndices = 0;
+
+	// cached until the next edge is added; see checkConnected() and
+	// getBestPathTo()
+	private volatile boolean connected = false;
+	private volatile Edge<T>[] bestEdgesTo = null;
+
+	/**
+	 * Creates a lattice without edges.
+	 *
+	 * @param nNodes
+	 *            the number of nodes, including the start and end nodes
+	 */
+	@SuppressWarnings("unchecked")
+	public WordLattice(int nNodes) {
+		assert nNodes >= 1 : "A lattice needs at least one node";
+
+		this.edgesFrom = new ArrayList[nNodes];
+		for (int i = 0; i < nNodes; i++) {
+			edgesFrom[i] = new ArrayList<Edge<T>>(1);
+		}
+	}
+
+	/**
+	 * Creates a lattice with a single path whose weights are all 0.0.
+	 *
+	 * @param sentence
+	 * @return
+	 */
+	public static <T extends Token> WordLattice<T> fromSentence(T[] sentence) {
+		WordLattice<T> lattice = new WordLattice<T>(sentence.length + 1);
+		for (int i = 0; i < sentence.length; i++) {
+			lattice.addEdge(i, i + 1, sentence[i], 0.0);
+		}
+		return lattice;
+	}
+
+	/**
+	 * Creates a lattice from a confusion network.
+	 *
+	 * @param words
+	 *            the alternative words at each position of the network
+	 * @param weights
+	 *            the log probability of each alternative word
+	 * @return
+	 */
+	public static <T extends Token> WordLattice<T> fromConfusionNetwork(T[][] words,
+			double[][] weights) {
+		assert words.length == weights.length : "Mismatched number of positions";
+
+		WordLattice<T> lattice = new WordLattice<T>(words.length + 1);
+		for (int i = 0; i < words.length; i++) {
+			assert words[i].length == weights[i].length : "Mismatched number of words at position "
+					+ i;
+			for (int j = 0; j < words[i].length; j++) {
+				lattice.addEdge(i, i + 1, words[i][j], weights[i][j]);
+			}
+		}
+		return lattice;
+	}
+
+	/**
+	 * Adds a word to this lattice.
+	 *
+	 * @param fromNode
+	 * @param toNode
+	 *            a node greater than <code>fromNode</code>
+	 * @param word
+	 *            a terminal token
+	 * @param weight
+	 *            the log probability of the word
+	 */
+	public void addEdge(int fromNode, int toNode, T word, double weight) {
+		assert 0 <= fromNode && fromNode < toNode && toNode < edgesFrom.length : "Bad edge: "
+				+ fromNode + "-" + toNode;
+		assert word.isTerminal() : "Lattice edges must be terminals: " + word;
+
+		// edges leaving the same node with the same word share an index
+		int wordIndex = getWordIndex(fromNode, word);
+		if (wordIndex == -1) {
+			wordIndex = nWordIndices;
+			nWordIndices++;
+		}
+
+		Edge<T> edge = new Edge<T>(edges.size(), fromNode, toNode, word, weight, wordIndex);
+		edges.add(edge);
+		edgesFrom[fromNode].add(edge);
+
+		connected = false;
+		bestEdgesTo = null;
+	}
+
+	/**
+	 * Gets a dense index for a word leaving a node that is shared by all edges
+	 * leaving that node with the same word, such that structures that depend
+	 * only on the next word (and not on where it ends) can be kept in arrays.
+	 * For a lattice created by {@link #fromSentence(Token[])}, the index of
+	 * each word is its position in the sentence.
+	 *
+	 * @param node
+	 * @param word
+	 * @return an index less than {@link #getWordIndexCount()}; -1 if no edge
+	 *         leaving the node carries the word
+	 */
+	public int getWordIndex(int node, T word) {
+		if (node < edgesFrom.length) {
+			for (Edge<T> edge : edgesFrom[node]) {
+				if (edge.word.equals(word)) {
+					return edge.wordIndex;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the number of distinct word indices (see
+	 *         {@link #getWordIndex(int, Token)})
+	 */
+	public int getWordIndexCount() {
+		return nWordIndices;
+	}
+
+	/**
+	 * @return the index of the end node, which is also the length of the
+	 *         chart's input
+	 */
+	public int getLength() {
+		return edgesFrom.length - 1;
+	}
+
+	/**
+	 * @return all edges in the order in which they were added
+	 */
+	public List<Edge<T>> getEdges() {
+		return Collections.unmodifiableList(edges);
+	}
+
+	/**
+	 * @param node
+	 * @return the edges leaving a node in the order in which they were added
+	 */
+	public List<Edge<T>> getEdgesFrom(int node) {
+		return edgesFrom[node];
+	}
+
+	/**
+	 * Gets the words of all edges, such that the word of each edge is at the
+	 * position given by {@link Edge#getIndex()}.
+	 *
+	 * @param arr
+	 *            an array with the same length as the number of edges
+	 * @return arr
+	 */
+	public T[] getWords(T[] arr) {
+		assert arr.length == edges.size() : "Array has wrong length";
+		for (int i = 0; i < arr.length; i++) {
+			arr[i] = edges.get(i).word;
+		}
+		return arr;
+	}
+
+	/**
+	 * Gets the first word of the best path from each node other than the end
+	 * node to the end node. For a sentence this is the sentence itself and for
+	 * a confusion network it is the consensus hypothesis; for other lattices,
+	 * following the words from the start node spells out the best path, and
+	 * the list has one word for each position of the chart so that it can be
+	 * used wherever the source tokens of the chart are indexed by position.
+	 *
+	 * @return
+	 * @throws RuntimeException
+	 *             if a node does not lie on a complete path
+	 */
+	public List<T> getBestTokens() {
+		checkConnected();
+
+		// best paths to the end node, found from the end backwards
+		double[] bestScores = new double[edgesFrom.length];
+		Edge<T>[] bestEdges = newEdgeArray();
+		for (int i = getLength() - 1; i >= 0; i--) {
+			bestScores[i] = Double.NEGATIVE_INFINITY;
+			for (Edge<T> edge : edgesFrom[i]) {
+				double score = edge.weight + bestScores[edge.toNode];
+				if (bestEdges[i] == null || score > bestScores[i]) {
+					bestScores[i] = score;
+					bestEdges[i] = edge;
+				}
+			}
+		}
+
+		ArrayList<T> tokens = new ArrayList<T>(getLength());
+		for (int i = 0; i < getLength(); i++) {
+			tokens.add(bestEdges[i].word);
+		}
+		return tokens;
+	}
+
+	/**
+	 * Gets the words of the best path from the start node to a node, such as
+	 * the input that precedes an edge leaving that node. The best paths to all
+	 * nodes are found together and kept until the next call to
+	 * {@link #addEdge(int, int, Token, double)}.
+	 *
+	 * @param node
+	 * @return
+	 * @throws RuntimeException
+	 *             if a node does not lie on a complete path
+	 */
+	public List<T> getBestPathTo(int node) {
+		Edge<T>[] bestEdges = bestEdgesTo;
+		if (bestEdges == null) {
+			bestEdges = findBestEdgesTo();
+			bestEdgesTo = bestEdges;
+		}
+
+		ArrayList<T> path = new ArrayList<T>();
+		for (int i = node; i > 0; i = bestEdges[i].fromNode) {
+			path.add(bestEdges[i].word);
+		}
+		Collections.reverse(path);
+		return path;
+	}
+
+	/**
+	 * @return the last edge of the best path from the start node to each node
+	 */
+	private Edge<T>[] findBestEdgesTo() {
+		checkConnected();
+
+		// edges lead to higher nodes, so every edge into a node has been seen
+		// once the node is reached; since no path through a later node can
+		// reach an earlier one, these are also the best paths that end at
+		// each node
+		double[] bestScores = new double[edgesFrom.length];
+		Edge<T>[] bestEdges = newEdgeArray();
+		Arrays.fill(bestScores, Double.NEGATIVE_INFINITY);
+		bestScores[0] = 0.0;
+		for (int i = 0; i < getLength(); i++) {
+			for (Edge<T> edge : edgesFrom[i]) {
+				double score = bestScores[i] + edge.weight;
+				if (bestEdges[edge.toNode] == null || score > bestScores[edge.toNode]) {
+					bestScores[edge.toNode] = score;
+					bestEdges[edge.toNode] = edge;
+				}
+			}
+		}
+		return bestEdges;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Edge<T>[] newEdgeArray() {
+		return new Edge[edgesFrom.length];
+	}
+
+	private void checkConnected() {
+		if (connected) {
+			return;
+		}
+
+		boolean[] entered = new boolean[edgesFrom.length];
+		for (Edge<T> edge : edges) {
+			entered[edge.toNode] = true;
+		}
+		for (int i = 0; i < edgesFrom.length; i++) {
+			if (i < getLength() && edgesFrom[i].isEmpty()) {
+				throw new RuntimeException("No lattice edges leave node " + i);
+			}
+			if (i > 0 && entered[i] == false) {
+				throw new RuntimeException("No lattice edges enter node " + i);
+			}
+		}
+		connected = true;
+	}
+}
@@ -3,10 +3,13 @@ package info.jonclark.treegraft.parsing.chartparser;
 import info.jonclark.log.LogUtils;
 import info.jonclark.treegraft.core.tokens.Token;
 import info.jonclark.treegraft.core.tokens.TokenSequence;
+import info.jonclark.treegraft.parsing.grammar.RuleTrie;
+import info.jonclark.treegraft.parsing.rules.ConstraintIds;
 import info.jonclark.treegraft.parsing.rules.GrammarRule;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -20,6 +23,13 @@ import java.util.logging.Logger;
  * of theorm-proving, when an <code>ActiveArc</code> is completed, it means the
  * constituent exists, and so it is then converted into a {@link Key} by the
  * <code>ChartParser</code> and stored in the {@link Chart}.
+ * <p>
+ * Incomplete arcs are <i>prefix arcs</i>: rather than a single rule, they
+ * point to a node of a {@link RuleTrie} and so represent every rule whose
+ * source RHS begins with the constituents covered so far. Once a prefix arc
+ * reaches a node at which rules end, a separate <i>rule arc</i> is created
+ * for each group of those rules that share a packing string (see
+ * {@link #complete(List)}); only rule arcs are turned into <code>Keys</code>.
  * 
  * @author Jonathan Clark
  * @param <R>
@@ -46,6 +56,8 @@ public class ActiveArc<R extends GrammarRule<T>, T extends Token> {
 	// private final byte dot;
 	private HashSet<R> rules;
 	private R firstRule;
+	// non-null only for prefix arcs
+	private final RuleTrie<R, T> node;
 	private ArrayList<Key<R, T>> backpointersForCurrentDot =
 			new ArrayList<Key<R, T>>(DEFAULT_BACKPOINTER_LIST_SIZE);
 	private ActiveArc<R, T>[] parentArcs;
@@ -77,13 +89,36 @@ public class ActiveArc<R extends GrammarRule<T>, T extends Token> {
 		this.firstRule = firstRule;
 	}
 
+	/**
+	 * Creates a new prefix arc whose dot follows the first source-side RHS
+	 * constituent.
+	 * 
+	 * @param startIndex
+	 *            The zero-based source input index where this arc begins.
+	 * @param endIndex
+	 *            The zero-based source input index where this arc currently
+	 *            ends.
+	 * @param node
+	 *            The trie node for the first source-side RHS constituent of
+	 *            the rules this arc represents.
+	 */
+	public ActiveArc(int startIndex, int endIndex, RuleTrie<R, T> node) {
+		this(startIndex, endIndex, 1, null, null, null, null, node);
+	}
+
 	public ActiveArc(int startIndex, int endIndex, int dot, R firstRule, HashSet<R> rules,
 			ActiveArc<R, T>[] prevParentArcs, ActiveArc<R, T> parentArc) {
+		this(startIndex, endIndex, dot, firstRule, rules, prevParentArcs, parentArc, null);
+	}
+
+	private ActiveArc(int startIndex, int endIndex, int dot, R firstRule, HashSet<R> rules,
+			ActiveArc<R, T>[] prevParentArcs, ActiveArc<R, T> parentArc, RuleTrie<R, T> node) {
 
 		totalLists++;
 
 		this.rules = rules;
 		this.firstRule = firstRule;
+		this.node = node;
 
 		// since active arcs don't always cover the same spans,
 		// sharing backpointer lists would be a bad idea
@@ -135,6 +170,51 @@ public class ActiveArc<R extends GrammarRule<T>, T extends Token> {
 		return result;
 	}
 
+	/**
+	 * Like {@link #extend(Key)}, but for prefix arcs: creates a prefix arc for
+	 * the rules beginning with this arc's prefix followed by the key's LHS.
+	 * 
+	 * @param key
+	 * @param child
+	 *            the child of this arc's trie node for the key's LHS
+	 * @return a new prefix arc with its dot moved one position to the right
+	 *         and with a backpointer to the given <code>Key</code> added.
+	 */
+	public ActiveArc<R, T> extend(Key<R, T> key, RuleTrie<R, T> child) {
+
+		assert this.getEndIndex() == key.getStartIndex() : "Discontiguous arc extension.";
+		assert child.getParent() == node : "Child does not extend this arc's prefix";
+
+		ActiveArc<R, T> result =
+				new ActiveArc<R, T>(this.getStartIndex(), key.getEndIndex(), this.getDot() + 1,
+						null, null, this.parentArcs, this, child);
+		result.addBackpointer(this.getDot(), key);
+		return result;
+	}
+
+	/**
+	 * Creates a completed rule arc for a group of rules whose source RHS ends
+	 * at this prefix arc's trie node (see
+	 * {@link RuleTrie#getCompleteRuleGroups()}). The new arc shares this arc's
+	 * span and backpointers.
+	 * 
+	 * @param ruleGroup
+	 *            rules with the same packing string
+	 * @return the completed arc
+	 */
+	public ActiveArc<R, T> complete(List<R> ruleGroup) {
+
+		assert node != null : "Only prefix arcs can be completed";
+
+		HashSet<R> groupRules = new HashSet<R>(ruleGroup);
+		ActiveArc<R, T> result =
+				new ActiveArc<R, T>(this.getStartIndex(), this.getEndIndex(), this.getDot(),
+						ruleGroup.get(0), groupRules, null, null, null);
+		result.parentArcs = this.parentArcs;
+		result.backpointersForCurrentDot = this.backpointersForCurrentDot;
+		return result;
+	}
+
 	/**
 	 * Adds a backpointer to an existing <code>Key</code> this
 	 * <code>ActiveArc</code> for the specified source-side RHS consituent so
@@ -249,6 +329,29 @@ public class ActiveArc<R extends GrammarRule<T>, T extends Token> {
 		return Collections.unmodifiableSet(rules);
 	}
 
+	/**
+	 * Gets the trie node of a prefix arc.
+	 * 
+	 * @return NULL for rule arcs
+	 */
+	public RuleTrie<R, T> getNode() {
+		return node;
+	}
+
+	/**
+	 * Gets the arc that this arc was extended from, which holds the
+	 * backpointers of all constituents before the last one.
+	 *
+	 * @return NULL if the dot follows the first constituent
+	 */
+	ActiveArc<R, T> getParentArc() {
+		if (parentArcs == null) {
+			return null;
+		} else {
+			return parentArcs[parentArcs.length - 1];
+		}
+	}
+
 	/**
 	 * Gets the source-side LHS, which is shared by all rules that formed this
 	 * arc.
@@ -259,6 +362,14 @@ public class ActiveArc<R extends GrammarRule<T>, T extends Token> {
 		return firstRule.getLhs();
 	}
 
+	/**
+	 * @return the ID of the source-side LHS (see
+	 *         {@link GrammarRule#getLhsId()})
+	 */
+	public int getLhsId() {
+		return firstRule.getLhsId();
+	}
+
 	/**
 	 * Gets the source-side RHS, which is shared by all rules that formed this
 	 * arc.
@@ -292,19 +403,54 @@ public class ActiveArc<R extends GrammarRule<T>, T extends Token> {
 	 * @param key
 	 *            The proposed key that we might use to extend this are at the
 	 *            given RHS position.
-	 * @return True if the key satisfies the constraints of at least of of the
+	 * @return True if the key satisfies the constraints of at least one of the
 	 *         rules in this arc; false otherwise.
 	 */
 	public boolean areConstraintsSatisfied(int sourceRhsIndex, Key<R, T> key) {
 		for (R arcRule : rules) {
 			assert Arrays.equals(getRhs(), arcRule.getRhs()) : "Incompatible RHS's detected in active arc.";
+		}
+		return areConstraintsSatisfied(rules, sourceRhsIndex, key);
+	}
 
-			for (ActiveArc<R, T> arc : key.getActiveArcs()) {
-				for (R keyRule : arc.getRules()) {
-					if (arcRule.areConstraintsSatisfied(sourceRhsIndex, keyRule)) {
-						return true;
-					}
-				}
+	/**
+	 * Determines if the given Key satisfies the rule constraints for <i>at
+	 * least</i> one of the rules below a trie node at the node's position.
+	 * 
+	 * @param node
+	 * @param key
+	 * @return True if the key satisfies the constraints of at least one of the
+	 *         rules; false otherwise.
+	 */
+	public static <R extends GrammarRule<T>, T extends Token> boolean areConstraintsSatisfied(
+			RuleTrie<R, T> node, Key<R, T> key) {
+
+		long[] required = node.getConstraintIds();
+		return ConstraintIds.contains(required, ConstraintIds.UNCONSTRAINED)
+				|| ConstraintIds.intersects(required, key.getProvidedConstraintIds());
+	}
+
+	/**
+	 * Determines if the given Key satisfies the rule constraints for <i>at
+	 * least</i> one of the given rules (e.g. a group of complete rules).
+	 * 
+	 * @param rules
+	 * @param sourceRhsIndex
+	 * @param key
+	 * @return True if the key satisfies the constraints of at least one of the
+	 *         rules; false otherwise.
+	 */
+	public static <R extends GrammarRule<T>, T extends Token> boolean areConstraintsSatisfied(
+			Collection<R> rules, int sourceRhsIndex, Key<R, T> key) {
+
+		// compare the compiled constraints with the set of values offered by
+		// the key rather than checking each pair of rules
+		long[] provided = key.getProvidedConstraintIds();
+		for (R arcRule : rules) {
+			int required = arcRule.getConstraintId(sourceRhsIndex);
+			if (required == ConstraintIds.UNCONSTRAINED
+					|| ConstraintIds.contains(provided, required)) {
+				return true;
 			}
 		}
 		return false;
@@ -336,6 +482,11 @@ public class ActiveArc<R extends GrammarRule<T>, T extends Token> {
 	 * @return a string representation of this object
 	 */
 	public String toString() {
+		if (node != null) {
+			return "[" + node.toString() + " * ...] (" + getStartIndex() + "," + getEndIndex()
+					+ ")";
+		}
+
 		StringBuilder builder = new StringBuilder();
 		builder.append(getLhs().getWord());
 
@@ -3,18 +3,43 @@ package info.jonclark.treegraft.parsing.chartparser;
 import info.jonclark.log.LogUtils;
 import info.jonclark.stat.ProfilerTimer;
 import info.jonclark.treegraft.core.tokens.Token;
-import info.jonclark.treegraft.core.tokens.TokenSequence;
+import info.jonclark.treegraft.parsing.WordLattice;
+import info.jonclark.treegraft.parsing.grammar.RuleTrie;
 import info.jonclark.treegraft.parsing.rules.GrammarRule;
+import info.jonclark.treegraft.parsing.rules.NonterminalIds;
 
+import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.logging.Logger;
 
 /**
  * Handles extending arcs based on incoming {@link Key}s and storing partially
  * completed {@link ActiveArc}s. All completed arcs are handed off to the
  * {@link Chart}.
+ * <p>
+ * Partially completed arcs are prefix arcs over a {@link RuleTrie}, so a
+ * single arc is extended for all rules that share a source RHS prefix; the
+ * number of arcs grows with the number of distinct prefixes rather than the
+ * number of rules.
+ * <p>
+ * Arcs waiting for a non-terminal are filed in arrays indexed by the position
+ * at which the constituent is needed and the dense ID of the non-terminal (see
+ * {@link NonterminalIds}). Arcs waiting for a terminal are only filed if that
+ * terminal is the word of some input edge leaving the position where it is
+ * needed, since no other terminal can ever extend them; they are indexed by
+ * {@link WordLattice#getWordIndex(int, Token)}, which for a plain sentence is
+ * the position itself. Arcs are packed by their trie node and the arc they
+ * were extended from in lazily created maps held in a flat array indexed by
+ * span; an arc's backpointers are shared with the arcs it was extended from,
+ * so arcs that split their span differently are never packed together.
+ * <p>
+ * When keys are processed strictly from left to right, every arc ending at a
+ * position exists before the first key starting there is processed. If keys
+ * may be processed in any order (e.g. by a {@link BestFirstAgenda}), the
+ * manager also remembers the keys it has processed and extends each new arc
+ * with the processed keys that begin where it ends.
  * 
  * @author Jonathan Clark
  * @param <R>
@@ -49,8 +74,52 @@ public class ActiveArcManager<R extends GrammarRule<T>, T extends Token> {
 				new ArrayList<ActiveArc<R, T>>(DEFAULT_PACKING_SIZE);
 	}
 
-	private final HashMap<T, ArcGroup>[] incompleteArcs;
-	private final HashMap<TokenSequence<T>, HashMap<T, ActiveArc<R, T>>>[][] packedArcs;
+	/**
+	 * The trie node of an arc and the arc it was extended from (if any), which
+	 * together determine the rules and the split points of the arc.
+	 */
+	static class PackingKey<R extends GrammarRule<T>, T extends Token> {
+		private final RuleTrie<R, T> node;
+		private final ActiveArc<R, T> parentArc;
+
+		public PackingKey(RuleTrie<R, T> node, ActiveArc<R, T> parentArc) {
+			this.node = node;
+			this.parentArc = parentArc;
+		}
+
+		@SuppressWarnings("unchecked")
+		public boolean equals(Object obj) {
+			if (obj instanceof PackingKey) {
+				PackingKey<R, T> other = (PackingKey<R, T>) obj;
+				return (node == other.node && parentArc == other.parentArc);
+			} else {
+				return false;
+			}
+		}
+
+		public int hashCode() {
+			return 31 * System.identityHashCode(node) + System.identityHashCode(parentArc);
+		}
+	}
+
+	private final WordLattice<T> input;
+
+	// arcs indexed by the position at which they need their next
+	// constituent and then by the ID of the non-terminal they need
+	private final ArcGroup[][] nonterminalArcs;
+
+	// arcs indexed by the word index of the input word they need next
+	private final ArcGroup[] terminalArcs;
+
+	// arcs indexed by span (see getSpanIndex), trie node and parent arc for
+	// packing
+	private final HashMap<PackingKey<R, T>, ActiveArc<R, T>>[] packedArcs;
+
+	// keys processed so far indexed by start position and LHS ID (and
+	// terminal keys by word index); null unless keys may arrive in any order
+	private final ArrayList<Key<R, T>>[][] processedKeys;
+	private final ArrayList<Key<R, T>>[] processedTerminalKeys;
+
 	private ArrayList<ActiveArc<R, T>> newlyCompletedArcs = new ArrayList<ActiveArc<R, T>>();
 
 	private int size = 0;
@@ -58,19 +127,40 @@ public class ActiveArcManager<R extends GrammarRule<T>, T extends Token> {
 	/**
 	 * Creates a new <code>ActiveArcManager</code>.
 	 * 
-	 * @param inputSize
-	 *            The length in tokens of the source input string to be parsed.
+	 * @param input
+	 *            The source input (sentence or lattice) to be parsed.
 	 */
-	@SuppressWarnings("unchecked")
-	public ActiveArcManager(int inputSize, ProfilerTimer parentTimer) {
+	public ActiveArcManager(WordLattice<T> input, ProfilerTimer parentTimer) {
+		this(input, false, parentTimer);
+	}
 
-		this.incompleteArcs = (HashMap<T, ArcGroup>[]) new HashMap[inputSize + 1];
-		for (int i = 0; i < incompleteArcs.length; i++) {
-			this.incompleteArcs[i] = new HashMap<T, ArcGroup>();
+	/**
+	 * Creates a new <code>ActiveArcManager</code>.
+	 * 
+	 * @param input
+	 *            The source input (sentence or lattice) to be parsed.
+	 * @param anyOrder
+	 *            True if keys may be processed in an order other than left to
+	 *            right, such that new arcs must be combined with keys that
+	 *            have already been processed.
+	 */
+	@SuppressWarnings("unchecked")
+	public ActiveArcManager(WordLattice<T> input, boolean anyOrder, ProfilerTimer parentTimer) {
+
+		int inputSize = input.getLength();
+		int nWordIndices = input.getWordIndexCount();
+		this.input = input;
+		this.nonterminalArcs = (ArcGroup[][]) Array.newInstance(ArcGroup.class, inputSize + 1, 0);
+		this.terminalArcs = (ArcGroup[]) Array.newInstance(ArcGroup.class, nWordIndices);
+		this.packedArcs = new HashMap[inputSize * inputSize];
+		if (anyOrder) {
+			this.processedKeys = new ArrayList[inputSize + 1][0];
+			this.processedTerminalKeys = new ArrayList[nWordIndices];
+		} else {
+			this.processedKeys = null;
+			this.processedTerminalKeys = null;
 		}
 
-		this.packedArcs = new HashMap[inputSize + 1][inputSize + 1];
-
 		this.createNonterminalArcAmbiguityLookup =
 				ProfilerTimer.newTimer("createNonterminalArcAmbiguityLookup", parentTimer, true,
 						false);
@@ -80,85 +170,91 @@ public class ActiveArcManager<R extends GrammarRule<T>, T extends Token> {
 				ProfilerTimer.newTimer("createNonterminalArcAdd", parentTimer, true, false);
 	}
 
-	private ActiveArc<R, T> getPackedArc(int startIndex, int endIndex, T neededConstituent,
-			TokenSequence<T> packingString) {
+	private int getSpanIndex(int startIndex, int endIndex) {
+		return (endIndex - startIndex - 1) * input.getLength() + startIndex;
+	}
+
+	private ActiveArc<R, T> getPackedArc(int startIndex, int endIndex, RuleTrie<R, T> node,
+			ActiveArc<R, T> parentArc) {
 
-		HashMap<TokenSequence<T>, HashMap<T, ActiveArc<R, T>>> packingStringToNeededConstituentMap =
-				packedArcs[startIndex][endIndex];
-		if (packingStringToNeededConstituentMap == null) {
+		HashMap<PackingKey<R, T>, ActiveArc<R, T>> nodeMap =
+				packedArcs[getSpanIndex(startIndex, endIndex)];
+		if (nodeMap == null) {
 			return null;
 		} else {
-			HashMap<T, ActiveArc<R, T>> neededConstituentMap =
-					packingStringToNeededConstituentMap.get(packingString);
-			if (neededConstituentMap == null) {
+			ActiveArc<R, T> arc = nodeMap.get(new PackingKey<R, T>(node, parentArc));
+			if (arc == null) {
 				return null;
 			} else {
-				ActiveArc<R, T> arc = neededConstituentMap.get(neededConstituent);
-				if (arc == null) {
-					return null;
-				} else {
-					assert arc.getStartIndex() == startIndex : "Start index mismatch";
-					assert arc.getEndIndex() == endIndex : "End index mismatch";
-					return arc;
-				}
+				assert arc.getStartIndex() == startIndex : "Start index mismatch";
+				assert arc.getEndIndex() == endIndex : "End index mismatch";
+				return arc;
 			}
 		}
 	}
 
 	/**
-	 * Creates a new <code>ActiveArc</code> for a dummy terminal-initial rule
+	 * Creates a new prefix <code>ActiveArc</code> for the terminal-initial
+	 * rules beginning with the word of an input edge.
 	 * 
-	 * @param i
-	 * @param lexicalRule
+	 * @param startIndex
+	 *            the position (lattice node) at which the word begins
+	 * @param endIndex
+	 *            the position (lattice node) at which the word ends
+	 * @param node
+	 *            the trie of rules beginning with the input word (see
+	 *            {@link info.jonclark.treegraft.parsing.grammar.Grammar#getTerminalInitialTrie(Token)}
+	 *            )
+	 * @param dummyKey
 	 * @return
 	 */
-	public ActiveArc<R, T> createTerminalArc(int i, R lexicalRule, Key<R, T> dummyKey) {
+	public ActiveArc<R, T> createTerminalArc(int startIndex, int endIndex, RuleTrie<R, T> node,
+			Key<R, T> dummyKey) {
 
-		ActiveArc<R, T> ruleArc = null;
+		ActiveArc<R, T> prefixArc = null;
 		if (DO_AMBIGUITY_PACKING) {
-			T nextNeed = null;
-			if (lexicalRule.getRhs().length > 1) {
-				nextNeed = lexicalRule.getRhs()[1];
-			}
-			ruleArc = getPackedArc(i, i + 1, nextNeed, lexicalRule.getArcPackingString());
+			prefixArc = getPackedArc(startIndex, endIndex, node, null);
 		}
 
-		if (ruleArc == null) {
-			ruleArc = new ActiveArc<R, T>(i, i + 1, 1, lexicalRule);
-			ruleArc.addBackpointer(0, dummyKey);
-			add(ruleArc);
+		if (prefixArc == null) {
+			prefixArc = new ActiveArc<R, T>(startIndex, endIndex, node);
+			prefixArc.addBackpointer(0, dummyKey);
+			add(prefixArc);
 		} else {
 			// if we already have an arc here, then it can only have been
 			// triggered by the same lexical item for which a backpointer
 			// already exists, so there is no reason to add another
-			// backpointer?????
-			ruleArc.addRule(lexicalRule);
+			// backpointer
 		}
 
-		return ruleArc;
+		return prefixArc;
 	}
 
-	public void createNonterminalArc(Key<R, T> key, R rule) {
+	/**
+	 * Creates a new prefix <code>ActiveArc</code> for the rules beginning with
+	 * the key's LHS.
+	 * 
+	 * @param key
+	 * @param node
+	 *            the trie of rules beginning with the key's LHS (see
+	 *            {@link info.jonclark.treegraft.parsing.grammar.Grammar#getTrieStartingWith(Key)}
+	 *            )
+	 */
+	public void createNonterminalArc(Key<R, T> key, RuleTrie<R, T> node) {
 
 		ActiveArc<R, T> arc = null;
 
 		createNonterminalArcAmbiguityLookup.go();
 		if (DO_AMBIGUITY_PACKING) {
 			// first, see if we already have an arc like this that we can pack
-			T nextNeed = null;
-			if (rule.getRhs().length > 1) {
-				nextNeed = rule.getRhs()[1];
-			}
-			arc =
-					getPackedArc(key.getStartIndex(), key.getEndIndex(), nextNeed,
-							rule.getArcPackingString());
+			arc = getPackedArc(key.getStartIndex(), key.getEndIndex(), node, null);
 		}
 		createNonterminalArcAmbiguityLookup.pause();
 
 		if (arc == null) {
 			// create arc with dot after the first RHS constituent
 			createNonterminalArcConstructor.go();
-			arc = new ActiveArc<R, T>(key.getStartIndex(), key.getEndIndex(), 1, rule);
+			arc = new ActiveArc<R, T>(key.getStartIndex(), key.getEndIndex(), node);
 			arc.addBackpointer(0, key);
 			createNonterminalArcConstructor.pause();
 
@@ -166,94 +262,135 @@ public class ActiveArcManager<R extends GrammarRule<T>, T extends Token> {
 			add(arc);
 			createNonterminalArcAdd.pause();
 		} else {
-
 			// if the arc already exists, then it already has a
 			// backpointer
-			arc.addRule(rule);
 		}
 	}
 
 	/**
-	 * Adds an arc that has just been extended in some way. It is the caller's
-	 * responsibility to ensure that any necessary backpointers are added to the
-	 * ActiveArc.
+	 * Adds a prefix arc that has just been extended in some way. It is the
+	 * caller's responsibility to ensure that any necessary backpointers are
+	 * added to the ActiveArc. A completed rule arc is created for each group
+	 * of rules ending at the arc's trie node.
 	 * 
-	 * @param arc
+	 * @param prefixArc
 	 */
-	private void add(ActiveArc<R, T> arc) {
-		int j = arc.getEndIndex();
-		T neededSymbol = arc.getNeededSymbol();
-
-		if (neededSymbol != null) {
-			// store this arc indexed by the next constituent it needs
-			append(incompleteArcs[j], neededSymbol, arc);
-		} else {
-			// no more constituents needed
-			newlyCompletedArcs.add(arc);
-
-			log.fine("ADDING COMPLETED ARC: " + arc);
+	private void add(ActiveArc<R, T> prefixArc) {
+		int j = prefixArc.getEndIndex();
+		RuleTrie<R, T> node = prefixArc.getNode();
+
+		// store this arc indexed by each constituent it could need next
+		for (int i = 0; i < node.getChildCount(); i++) {
+			RuleTrie<R, T> child = node.getChild(i);
+			if (child.getSymbol().isTerminal()) {
+				int wordIndex = input.getWordIndex(j, child.getSymbol());
+				if (wordIndex != -1) {
+					terminalArcs[wordIndex] = append(terminalArcs[wordIndex], prefixArc);
+					if (processedTerminalKeys != null && processedTerminalKeys[wordIndex] != null) {
+						for (Key<R, T> key : processedTerminalKeys[wordIndex]) {
+							extendArc(prefixArc, child, key);
+						}
+					}
+				}
+			} else {
+				int nonterminalId = child.getNonterminalId();
+				appendNonterminalArc(j, nonterminalId, prefixArc);
+				if (processedKeys != null && nonterminalId < processedKeys[j].length
+						&& processedKeys[j][nonterminalId] != null) {
+					for (Key<R, T> key : processedKeys[j][nonterminalId]) {
+						extendArc(prefixArc, child, key);
+					}
+				}
+			}
 		}
 
-		// first, the active arc is filed by its start and end indices in the 2d
-		// array
-
-		// next, we file it by the rule-specific packing string (usually the LHS
-		// + RHS)
-		HashMap<TokenSequence<T>, HashMap<T, ActiveArc<R, T>>> packingStringToNeededConstituentMap =
-				packedArcs[arc.getStartIndex()][arc.getEndIndex()];
+		// complete the rules that end here
+		for (List<R> ruleGroup : node.getCompleteRuleGroups()) {
+			if (areConstraintsSatisfied(prefixArc, ruleGroup)) {
+				ActiveArc<R, T> completedArc = prefixArc.complete(ruleGroup);
+				newlyCompletedArcs.add(completedArc);
+				size++;
 
-		if (packingStringToNeededConstituentMap == null) {
-			packingStringToNeededConstituentMap =
-					new HashMap<TokenSequence<T>, HashMap<T, ActiveArc<R, T>>>();
-			packedArcs[arc.getStartIndex()][arc.getEndIndex()] =
-					packingStringToNeededConstituentMap;
+				log.fine("ADDING COMPLETED ARC: " + completedArc);
+			}
 		}
 
-		// finally, we file it by which constituent it needs next
-		HashMap<T, ActiveArc<R, T>> neededConstituentMap =
-				packingStringToNeededConstituentMap.get(arc.getNeededSymbol());
-
-		if (neededConstituentMap == null) {
-			neededConstituentMap = new HashMap<T, ActiveArc<R, T>>();
-			packingStringToNeededConstituentMap.put(arc.getArcPackingString(), neededConstituentMap);
-			packedArcs[arc.getStartIndex()][arc.getEndIndex()] =
-					packingStringToNeededConstituentMap;
+		// file the arc by its start and end indices, trie node and parent so
+		// that it can be packed
+		int spanIndex = getSpanIndex(prefixArc.getStartIndex(), j);
+		HashMap<PackingKey<R, T>, ActiveArc<R, T>> nodeMap = packedArcs[spanIndex];
+		if (nodeMap == null) {
+			nodeMap = new HashMap<PackingKey<R, T>, ActiveArc<R, T>>();
+			packedArcs[spanIndex] = nodeMap;
 		}
-		neededConstituentMap.put(arc.getNeededSymbol(), arc);
+		nodeMap.put(new PackingKey<R, T>(node, prefixArc.getParentArc()), prefixArc);
 
 		size++;
 	}
 
 	/**
-	 * Append an arc to a packed arc list for the map associated with a
-	 * particular input span. Arcs are index by both the position that will
-	 * provide its next needed constituent and the constituent that is needed
-	 * (either a terminal symbol or a non-terminal type).
+	 * A prefix arc was extended if any rule below its trie node accepted each
+	 * of its keys. Before a group of complete rules can be used, we must make
+	 * sure that some rule <i>in the group</i> accepted the key at each
+	 * position (other than the first, which is never constrained).
+	 */
+	static <R extends GrammarRule<T>, T extends Token> boolean areConstraintsSatisfied(
+			ActiveArc<R, T> prefixArc, List<R> ruleGroup) {
+		for (int i = 1; i < prefixArc.getDot(); i++) {
+			boolean satisfied = false;
+			for (Key<R, T> key : prefixArc.getBackpointers(i)) {
+				if (ActiveArc.areConstraintsSatisfied(ruleGroup, i, key)) {
+					satisfied = true;
+					break;
+				}
+			}
+			if (!satisfied) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Append an arc to the arcs that need a particular non-terminal at a
+	 * particular position, growing the array for that position if necessary.
 	 * 
-	 * @param map
-	 *            The map of constituents for the position at which the
-	 *            constituent will be needed.
-	 * @param neededTerminalOrNonterminal
+	 * @param j
+	 *            The position at which the constituent will be needed.
+	 * @param nonterminalId
+	 *            The ID of the needed non-terminal.
 	 * @param value
 	 */
-	private void append(Map<T, ArcGroup> map, T neededTerminalOrNonterminal, ActiveArc<R, T> value) {
+	private void appendNonterminalArc(int j, int nonterminalId, ActiveArc<R, T> value) {
+
+		ArcGroup[] groups = nonterminalArcs[j];
+		if (nonterminalId >= groups.length) {
+			ArcGroup[] newGroups =
+					(ArcGroup[]) Array.newInstance(ArcGroup.class, Math.max(nonterminalId + 1,
+							groups.length * 2));
+			System.arraycopy(groups, 0, newGroups, 0, groups.length);
+			groups = newGroups;
+			nonterminalArcs[j] = groups;
+		}
+		groups[nonterminalId] = append(groups[nonterminalId], value);
+	}
 
-		ArcGroup packedArc = map.get(neededTerminalOrNonterminal);
+	private ArcGroup append(ArcGroup packedArc, ActiveArc<R, T> value) {
 		if (packedArc == null) {
 			packedArc = new ArcGroup();
-			map.put(neededTerminalOrNonterminal, packedArc);
-
 			log.fine("ADDING NEW ARC: " + value);
 		} else {
 			log.fine("APPENDING ARC: " + value);
 		}
 		packedArc.list.add(value);
+		return packedArc;
 	}
 
 	/**
 	 * Advance the "dots" that iterates over the source side RHS's of arcs based
 	 * on a new key. We only advance the dot if the candidate key meets the
-	 * constraints enforced by the arc's governing rule as defined in
+	 * constraints enforced by at least one of the rules that could still be
+	 * completed by the arc as defined in
 	 * <code>GrammarRule.areConstraintsSatisfied()</code>. This method is used
 	 * by <code>ChartParser.parse</code> to extend the arcs using terminals
 	 * symbols from the input.
@@ -263,40 +400,87 @@ public class ActiveArcManager<R extends GrammarRule<T>, T extends Token> {
 		// find any active arcs that need this Key's LHS to advance further
 		int j = key.getStartIndex();
 		T needs = key.getLhs();
-		ArcGroup affectedArcs = incompleteArcs[j].get(needs);
+		ArcGroup affectedArcs;
+		if (key.isTerminal()) {
+			affectedArcs = terminalArcs[input.getWordIndex(j, key.getWord())];
+		} else if (key.getLhsId() < nonterminalArcs[j].length) {
+			affectedArcs = nonterminalArcs[j][key.getLhsId()];
+		} else {
+			affectedArcs = null;
+		}
 
-		if (affectedArcs != null) {
+		if (processedKeys != null) {
+			recordProcessedKey(key);
+		}
 
+		if (affectedArcs != null) {
 			for (final ActiveArc<R, T> affectedArc : affectedArcs.list) {
-				assert key.getLhs().equals(affectedArc.getRhs()[affectedArc.getDot()]) : "Key cannot expand this rule: LHS mismatch (key:"
+				RuleTrie<R, T> child = affectedArc.getNode().getChild(needs);
+				assert child != null : "Key cannot expand this rule: LHS mismatch (key:"
 						+ key.toString() + " arc:" + affectedArc.toString() + ")";
+				extendArc(affectedArc, child, key);
+			}
+		}
+	}
 
-				if (affectedArc.areConstraintsSatisfied(affectedArc.getDot(), key)) {
+	/**
+	 * Records a key that has been processed so that arcs created later can be
+	 * extended with it.
+	 */
+	@SuppressWarnings("unchecked")
+	private void recordProcessedKey(Key<R, T> key) {
+		int j = key.getStartIndex();
+		if (key.isTerminal()) {
+			int wordIndex = input.getWordIndex(j, key.getWord());
+			if (processedTerminalKeys[wordIndex] == null) {
+				processedTerminalKeys[wordIndex] = new ArrayList<Key<R, T>>(1);
+			}
+			processedTerminalKeys[wordIndex].add(key);
+		} else {
+			int lhsId = key.getLhsId();
+			if (lhsId >= processedKeys[j].length) {
+				ArrayList<Key<R, T>>[] newKeys =
+						new ArrayList[Math.max(lhsId + 1, processedKeys[j].length * 2)];
+				System.arraycopy(processedKeys[j], 0, newKeys, 0, processedKeys[j].length);
+				processedKeys[j] = newKeys;
+			}
+			if (processedKeys[j][lhsId] == null) {
+				processedKeys[j][lhsId] = new ArrayList<Key<R, T>>(DEFAULT_PACKING_SIZE);
+			}
+			processedKeys[j][lhsId].add(key);
+		}
+	}
 
-					ActiveArc<R, T> extendedArc = null;
-					if (DO_AMBIGUITY_PACKING) {
-						T neededSymbol = null;
-						if (affectedArc.getDot() + 2 < affectedArc.getRhs().length) {
-							neededSymbol = affectedArc.getRhs()[affectedArc.getDot() + 1];
-						}
-						extendedArc =
-								getPackedArc(affectedArc.getStartIndex(), key.getEndIndex(),
-										neededSymbol, affectedArc.getArcPackingString());
-					}
+	/**
+	 * Extends an arc that needs the key's LHS next.
+	 * 
+	 * @param affectedArc
+	 * @param child
+	 *            the child of the arc's trie node for the key's LHS
+	 * @param key
+	 */
+	private void extendArc(ActiveArc<R, T> affectedArc, RuleTrie<R, T> child, Key<R, T> key) {
 
-					if (extendedArc == null) {
-						// there was no existing arc, so add a new one
-						extendedArc = affectedArc.extend(key);
-						add(extendedArc);
-					} else {
-						// if the arc already exists, then we've already added
-						// the key with the same LHS and span as a backpointer
-						// to this arc
-						
-						// extendedArc.addBackpointer(affectedArc.getDot(),
-						// key);
-					}
-				}
+		assert child.getDepth() == affectedArc.getDot() + 1;
+		if (ActiveArc.areConstraintsSatisfied(child, key)) {
+
+			ActiveArc<R, T> extendedArc = null;
+			if (DO_AMBIGUITY_PACKING) {
+				extendedArc =
+						getPackedArc(affectedArc.getStartIndex(), key.getEndIndex(), child,
+								affectedArc);
+			}
+
+			if (extendedArc == null) {
+				// there was no existing arc, so add a new one
+				extendedArc = affectedArc.extend(key, child);
+				add(extendedArc);
+			} else {
+				// if the arc already exists, then we've already extended
+				// this arc with a key with the same LHS and span
+
+				// extendedArc.addBackpointer(affectedArc.getDot(),
+				// key);
 			}
 		}
 	}
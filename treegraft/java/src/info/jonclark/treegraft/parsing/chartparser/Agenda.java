@@ -13,6 +13,11 @@ import java.util.Queue;
  * <code>Key</code> from the <code>Agenda</code> in turn and as each
  * <code>Key</code> is handled, it is removed from the <code>Agenda</code> and
  * placed into the <code>Chart</code>.
+ * <p>
+ * If the agenda is given a {@link KeyScorer}, each key is scored as it is
+ * completed, and if it is given a {@link CellBeam}, keys that fall outside the
+ * beam of their span are discarded, either when they are completed or when
+ * they reach the front of the queue.
  * 
  * @author Jonathan Clark
  * @param <R>
@@ -22,11 +27,42 @@ import java.util.Queue;
  */
 public class Agenda<R extends GrammarRule<T>, T extends Token> {
 
-	private final Queue<Key<R, T>> q = new LinkedList<Key<R, T>>();
+	private final Queue<Key<R, T>> q;
 	private final Chart<R, T> chart;
+	private final KeyScorer<R, T> scorer;
+	private final CellBeam<R, T> beam;
 
 	public Agenda(Chart<R, T> chart) {
+		this(chart, null, null);
+	}
+
+	/**
+	 * @param chart
+	 * @param scorer
+	 *            scores keys as they are completed; may be null unless a beam
+	 *            is given
+	 * @param beam
+	 *            prunes keys by their scores; may be null
+	 */
+	public Agenda(Chart<R, T> chart, KeyScorer<R, T> scorer, CellBeam<R, T> beam) {
+		this(chart, new LinkedList<Key<R, T>>(), scorer, beam);
+	}
+
+	/**
+	 * @param chart
+	 * @param q
+	 *            the queue that determines the order in which keys are
+	 *            processed
+	 * @param scorer
+	 * @param beam
+	 */
+	protected Agenda(Chart<R, T> chart, Queue<Key<R, T>> q, KeyScorer<R, T> scorer,
+			CellBeam<R, T> beam) {
+		assert beam == null || scorer != null : "Pruning requires a scorer";
 		this.chart = chart;
+		this.q = q;
+		this.scorer = scorer;
+		this.beam = beam;
 	}
 
 	/**
@@ -35,9 +71,24 @@ public class Agenda<R extends GrammarRule<T>, T extends Token> {
 	 * @return True if the agenda is empty; false otherwise.
 	 */
 	public boolean isEmpty() {
+		discardPrunedKeys();
 		return q.isEmpty();
 	}
 
+	/**
+	 * Removes keys from the front of the queue that have fallen outside the
+	 * beam since they were added, removing them from the chart as well.
+	 */
+	private void discardPrunedKeys() {
+		if (beam != null) {
+			while (q.isEmpty() == false && beam.keepWaitingKey(chart, q.peek()) == false) {
+				Key<R, T> key = q.remove();
+				key.onAgenda = false;
+				chart.removeKey(key);
+			}
+		}
+	}
+
 	public int size() {
 		return q.size();
 	}
@@ -74,6 +125,12 @@ public class Agenda<R extends GrammarRule<T>, T extends Token> {
 		// assert chart.contains(newKey) == false :
 		// "Chart already contains duplicate key: " + newKey;
 
+		score(newKey);
+		if (beam != null && beam.admitNewKey(chart, newKey) == false) {
+			return;
+		}
+
+		newKey.onAgenda = true;
 		q.add(newKey);
 		chart.addKey(newKey);
 
@@ -100,6 +157,27 @@ public class Agenda<R extends GrammarRule<T>, T extends Token> {
 		}
 	}
 
+	/**
+	 * Assigns scores to a new key before it is placed on the queue.
+	 * 
+	 * @param key
+	 */
+	protected void score(Key<R, T> key) {
+		if (scorer != null) {
+			scorer.score(key);
+		}
+	}
+
+	/**
+	 * Gets the next <code>Key</code> to be processed without removing it.
+	 * 
+	 * @return NULL if the agenda is empty
+	 */
+	public Key<R, T> peek() {
+		discardPrunedKeys();
+		return q.peek();
+	}
+
 	/**
 	 * Gets and removes from the <code>Agenda</code> the next <code>Key</code>
 	 * to be processed in first-in, first-out (FIFO) order such that we perform
@@ -108,11 +186,30 @@ public class Agenda<R extends GrammarRule<T>, T extends Token> {
 	 * @return
 	 */
 	public Key<R, T> get() {
-		return q.remove();
+		discardPrunedKeys();
+		Key<R, T> key = q.remove();
+		key.onAgenda = false;
+		return key;
 	}
 
+	/**
+	 * Determines whether a key with the same LHS and span as the specified key
+	 * is waiting on this <code>Agenda</code>. Since every key on the agenda is
+	 * also in the chart, only the chart cell for the key's span is searched.
+	 * 
+	 * @param key
+	 * @return
+	 */
 	public boolean contains(Key<R, T> key) {
-		return q.contains(key);
+		ChartCell<R, T> cell = chart.getCell(key.getStartIndex(), key.getEndIndex());
+		if (cell != null) {
+			for (Key<R, T> other : cell.getKeys()) {
+				if (other.onAgenda && other.getLhsId() == key.getLhsId()) {
+					return true;
+				}
+			}
+		}
+		return false;
 	}
 
 	/**
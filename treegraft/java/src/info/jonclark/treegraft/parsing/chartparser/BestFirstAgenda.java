@@ -0,0 +1,58 @@
+package info.jonclark.treegraft.parsing.chartparser;
+
+import info.jonclark.treegraft.core.tokens.Token;
+import info.jonclark.treegraft.parsing.rules.GrammarRule;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * An <code>Agenda</code> that hands out <code>Keys</code> in order of their
+ * figure of merit (see {@link KeyScorer}) rather than in the order in which
+ * they were created. Since all scores are log probabilities, keys built from
+ * cheap derivations are processed first and the parser can stop after
+ * finding a few complete parses; with an admissible {@link OutsideHeuristic}
+ * this is A* search and the first complete parse is the best one.
+ *
+ * @author Jonathan Clark
+ * @param <R>
+ *            The rule type being used in this <code>ChartParser</code>
+ * @param <T>
+ *            The token type being used in this <code>ChartParser</code>
+ */
+public class BestFirstAgenda<R extends GrammarRule<T>, T extends Token> extends Agenda<R, T> {
+
+	private int nScored = 0;
+
+	/**
+	 * @param chart
+	 * @param scorer
+	 *            computes the figure of merit of each key
+	 * @param beam
+	 *            prunes keys by their inside scores; may be null
+	 */
+	public BestFirstAgenda(Chart<R, T> chart, KeyScorer<R, T> scorer, CellBeam<R, T> beam) {
+		super(chart, new PriorityQueue<Key<R, T>>(Chart.DEFAULT_CHART_SIZE,
+				new Comparator<Key<R, T>>() {
+					public int compare(Key<R, T> a, Key<R, T> b) {
+						// best first; break ties by the order in which keys
+						// were created so that parsing is deterministic
+						int result = Double.compare(b.getFigureOfMerit(), a.getFigureOfMerit());
+						if (result == 0) {
+							result = (a.agendaOrder < b.agendaOrder ? -1
+									: (a.agendaOrder == b.agendaOrder ? 0 : 1));
+						}
+						return result;
+					}
+				}), scorer, beam);
+		assert scorer != null : "A best-first agenda requires a scorer";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	protected void score(Key<R, T> key) {
+		super.score(key);
+		key.agendaOrder = nScored++;
+	}
+}
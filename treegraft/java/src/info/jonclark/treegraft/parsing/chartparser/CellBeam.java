@@ -0,0 +1,141 @@
+package info.jonclark.treegraft.parsing.chartparser;
+
+import info.jonclark.treegraft.core.tokens.Token;
+import info.jonclark.treegraft.parsing.rules.GrammarRule;
+
+/**
+ * Prunes the <code>Keys</code> of each chart cell by their Viterbi inside
+ * scores (see {@link KeyScorer}) so that the number of keys, and so the time
+ * spent parsing, is bounded no matter how ambiguous the grammar is. A key is
+ * pruned if it is more than a threshold worse than the best key of its span
+ * (relative threshold pruning) or if the span already has a given number of
+ * keys that are at least as good (histogram pruning).
+ * <p>
+ * New keys are checked as they are completed and are discarded before they
+ * reach the chart. Since a better key may arrive later, keys are checked again
+ * when they are taken from the agenda, in which case they are removed from
+ * the chart before they can be extended. A <code>CellBeam</code> belongs to a
+ * single sentence.
+ *
+ * @author Jonathan Clark
+ * @param <R>
+ *            The rule type being used in this <code>ChartParser</code>
+ * @param <T>
+ *            The token type being used in this <code>ChartParser</code>
+ */
+public class CellBeam<R extends GrammarRule<T>, T extends Token> {
+
+	private static final int KEEP = 0;
+	private static final int PRUNE_BY_HISTOGRAM = 1;
+	private static final int PRUNE_BY_THRESHOLD = 2;
+
+	private final int cellSize;
+	private final double threshold;
+
+	private int nKeysOffered = 0;
+	private int nPrunedByHistogram = 0;
+	private int nPrunedByThreshold = 0;
+
+	/**
+	 * @param cellSize
+	 *            the maximum number of keys per span; 0 for no limit
+	 * @param threshold
+	 *            the maximum difference in log probability between the inside
+	 *            score of a key and the best inside score of its span;
+	 *            infinity for no limit
+	 */
+	public CellBeam(int cellSize, double threshold) {
+		this.cellSize = cellSize;
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Checks a newly completed (and scored) key before it is added to the
+	 * chart.
+	 * 
+	 * @param chart
+	 * @param key
+	 * @return true if the key should be added to the chart and agenda
+	 */
+	public boolean admitNewKey(Chart<R, T> chart, Key<R, T> key) {
+		nKeysOffered++;
+		return record(check(chart, key));
+	}
+
+	/**
+	 * Checks a key that has been waiting on the agenda, during which time
+	 * better keys may have been added to its span.
+	 * 
+	 * @param chart
+	 * @param key
+	 * @return true if the key should still be processed
+	 */
+	public boolean keepWaitingKey(Chart<R, T> chart, Key<R, T> key) {
+		return record(check(chart, key));
+	}
+
+	private boolean record(int decision) {
+		if (decision == PRUNE_BY_HISTOGRAM) {
+			nPrunedByHistogram++;
+		} else if (decision == PRUNE_BY_THRESHOLD) {
+			nPrunedByThreshold++;
+		}
+		return (decision == KEEP);
+	}
+
+	private int check(Chart<R, T> chart, Key<R, T> key) {
+
+		ChartCell<R, T> cell = chart.getCell(key.getStartIndex(), key.getEndIndex());
+		if (cell == null) {
+			return KEEP;
+		}
+
+		double inside = key.getInsideScore();
+		if (inside < cell.getBestInsideScore() - threshold) {
+			return PRUNE_BY_THRESHOLD;
+		}
+
+		if (cellSize > 0) {
+			// count the keys that rank ahead of this one; ties go to the key
+			// that was added first
+			int nBetter = 0;
+			boolean seenSelf = false;
+			for (Key<R, T> other : cell.getKeys()) {
+				if (other == key) {
+					seenSelf = true;
+				} else if (other.getInsideScore() > inside
+						|| (other.getInsideScore() == inside && seenSelf == false)) {
+					nBetter++;
+					if (nBetter >= cellSize) {
+						return PRUNE_BY_HISTOGRAM;
+					}
+				}
+			}
+		}
+		return KEEP;
+	}
+
+	/**
+	 * @return the number of completed keys that were checked before being
+	 *         added to the chart
+	 */
+	public int getKeysOffered() {
+		return nKeysOffered;
+	}
+
+	/**
+	 * @return the number of keys pruned because their span had enough better
+	 *         keys
+	 */
+	public int getPrunedByHistogram() {
+		return nPrunedByHistogram;
+	}
+
+	/**
+	 * @return the number of keys pruned because they were too much worse than
+	 *         the best key of their span
+	 */
+	public int getPrunedByThreshold() {
+		return nPrunedByThreshold;
+	}
+}
@@ -8,14 +8,19 @@ import info.jonclark.treegraft.parsing.parses.PartialParse;
 import info.jonclark.treegraft.parsing.rules.GrammarRule;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
  * A packed forest of <code>Keys</code> that represent the search space of valid
  * parses (and partial parses) for the input sequence that generated the
  * <code>Chart</code>.
+ * <p>
+ * Keys are filed in {@link ChartCell}s held in a flat array indexed by the
+ * start and length of their span, such that all cells of the same length are
+ * adjacent. Cells are created only for spans that receive keys and index
+ * their keys by the dense ID of their LHS (see
+ * {@link info.jonclark.treegraft.parsing.rules.NonterminalIds}), so the
+ * chart needs no per-span hash maps.
  * 
  * @author Jonathan Clark
  * @param <R>
@@ -25,39 +30,50 @@ import java.util.Map;
  */
 public class Chart<R extends GrammarRule<T>, T extends Token> {
 
-	/**
-	 * A wrapper for ambiguity lists that handle the packing of arcs. See also
-	 * ActiveArcManager.PackedArc
-	 */
-	private class KeyGroup {
-		// TODO: exchange array list for a scored beam
-		public ArrayList<Key<R, T>> list =
-				new ArrayList<Key<R, T>>(ActiveArcManager.DEFAULT_PACKING_SIZE);
-	}
-
 	/**
 	 * The initial number of keys that space should be allocated for.
 	 */
 	public static final int DEFAULT_CHART_SIZE = 10000;
 
-	private final HashMap<Key<R, T>, KeyGroup> chart =
-			new HashMap<Key<R, T>, KeyGroup>(DEFAULT_CHART_SIZE);
-	private final HashMap<T, Key<R, T>>[][] existingKeys;
+	private final ChartCell<R, T>[] cells;
 	private final ArrayList<Key<R, T>> parses = new ArrayList<Key<R, T>>();
 	private final ArrayList<Key<R, T>> keys = new ArrayList<Key<R, T>>(DEFAULT_CHART_SIZE);
+	private int nRemoved = 0;
 	private final int inputSize;
 	private final List<T> sourceInputTokens;
 
+	@SuppressWarnings("unchecked")
 	public Chart(List<T> sourceInputTokens) {
 		this.inputSize = sourceInputTokens.size();
 		this.sourceInputTokens = sourceInputTokens;
-		existingKeys = new HashMap[inputSize + 1][inputSize + 1];
+		this.cells = new ChartCell[inputSize * inputSize];
 	}
 
+	/**
+	 * @return the parsed words; for a chart of a <code>WordLattice</code>,
+	 *         the words of its best path, one per span between adjacent nodes
+	 */
 	public List<T> getSourceInputTokens() {
 		return sourceInputTokens;
 	}
 
+	private int getCellIndex(int startIndex, int endIndex) {
+		assert startIndex < endIndex && endIndex <= inputSize : "Bad span: " + startIndex + "-"
+				+ endIndex;
+		return (endIndex - startIndex - 1) * inputSize + startIndex;
+	}
+
+	/**
+	 * Gets the keys that cover a span of the input.
+	 * 
+	 * @param startIndex
+	 * @param endIndex
+	 * @return the cell for the span; null if no keys cover it
+	 */
+	public ChartCell<R, T> getCell(int startIndex, int endIndex) {
+		return cells[getCellIndex(startIndex, endIndex)];
+	}
+
 	/**
 	 * Adds a <code>Key</code> to this <code>Chart</code> after it has been
 	 * removed from the <code>Agenda</code> and its implications have been
@@ -68,27 +84,50 @@ public class Chart<R extends GrammarRule<T>, T extends Token> {
 	 *            the key to be added
 	 */
 	public void addKey(Key<R, T> key) {
-		// do ambiguity packing by virtue of id choice and hashing,
-		// this allows us to store multiple ambiguities in the array list which
-		// is the map value (NOTE: ambiguity packing is also done in the
-		// ActiveArcManager)
-		append(chart, key, key);
+		// keys with the same LHS and span are found via the cell's LHS index
+		// (NOTE: ambiguity packing is also done in the ActiveArcManager)
+		int index = getCellIndex(key.getStartIndex(), key.getEndIndex());
+		ChartCell<R, T> cell = cells[index];
+		if (cell == null) {
+			cell = new ChartCell<R, T>(key.getStartIndex(), key.getEndIndex());
+			cells[index] = cell;
+		}
+		cell.add(key);
 		keys.add(key);
 	}
 
-	private void append(Map<Key<R, T>, KeyGroup> chart, Key<R, T> key, Key<R, T> valueToAppend) {
+	/**
+	 * Adds all of the keys of a cell that was filled outside of this
+	 * <code>Chart</code> (e.g. by a parsing thread that owns the cell's span).
+	 * 
+	 * @param cell
+	 *            a cell for a span that has no keys in this chart yet
+	 */
+	public void addCell(ChartCell<R, T> cell) {
+		int index = getCellIndex(cell.getStartIndex(), cell.getEndIndex());
+		assert cells[index] == null : "Span already has keys";
+		cells[index] = cell;
+		keys.addAll(cell.getKeys());
+	}
 
-		KeyGroup packedKey = chart.get(key);
-		if (packedKey == null) {
-			packedKey = new KeyGroup();
-			chart.put(key, packedKey);
-		}
-		packedKey.list.add(valueToAppend);
+	/**
+	 * Removes a <code>Key</code> that was pruned before it was processed, and
+	 * so before any arc could refer to it.
+	 * 
+	 * @param key
+	 */
+	public void removeKey(Key<R, T> key) {
+		ChartCell<R, T> cell = getCell(key.getStartIndex(), key.getEndIndex());
+		cell.remove(key);
+		key.removed = true;
+		nRemoved++;
+	}
 
-		if (existingKeys[key.getStartIndex()][key.getEndIndex()] == null) {
-			existingKeys[key.getStartIndex()][key.getEndIndex()] = new HashMap<T, Key<R, T>>();
-		}
-		existingKeys[key.getStartIndex()][key.getEndIndex()].put(key.getKeyPackingString(), key);
+	/**
+	 * @return the number of keys in this chart
+	 */
+	public int getKeyCount() {
+		return keys.size() - nRemoved;
 	}
 
 	/**
@@ -101,10 +140,17 @@ public class Chart<R extends GrammarRule<T>, T extends Token> {
 	 *            the key that represents a complete parse
 	 */
 	public void addParse(Key<R, T> key) {
-		assert chart.containsKey(key) : "Key for parse not in chart.";
+		assert contains(key) : "Key for parse not in chart.";
 		parses.add(key);
 	}
 
+	/**
+	 * @return the number of complete parses added so far
+	 */
+	public int getParseCount() {
+		return parses.size();
+	}
+
 	/**
 	 * Check if the input is grammatical according to the given Grammar.
 	 * 
@@ -121,22 +167,32 @@ public class Chart<R extends GrammarRule<T>, T extends Token> {
 	 * @return a set of keys
 	 */
 	public List<Key<R, T>> getKeys() {
+		if (nRemoved > 0) {
+			// drop removed keys lazily so that removal is cheap
+			int j = 0;
+			for (int i = 0; i < keys.size(); i++) {
+				if (keys.get(i).removed == false) {
+					keys.set(j++, keys.get(i));
+				}
+			}
+			keys.subList(j, keys.size()).clear();
+			nRemoved = 0;
+		}
 		return keys;
 	}
 
 	protected Key<R, T> getKeyForPacking(ActiveArc<R, T> completedArc) {
-		HashMap<T, Key<R, T>> map =
-				existingKeys[completedArc.getStartIndex()][completedArc.getEndIndex()];
-		if (map == null) {
+		ChartCell<R, T> cell = getCell(completedArc.getStartIndex(), completedArc.getEndIndex());
+		if (cell == null) {
 			return null;
 		} else {
-			Key<R, T> existingKey = map.get(completedArc.getKeyPackingString());
-			return existingKey;
+			return cell.getKey(completedArc.getLhsId());
 		}
 	}
 
 	public boolean contains(Key<R, T> key) {
-		return keys.contains(key);
+		ChartCell<R, T> cell = getCell(key.getStartIndex(), key.getEndIndex());
+		return cell != null && cell.contains(key);
 	}
 
 	/**
@@ -177,7 +233,7 @@ public class Chart<R extends GrammarRule<T>, T extends Token> {
 	 */
 	public <F> F getParseForest(ParseForestFormatter<R, T, F> formatter) {
 
-		for (Key<R, T> key : keys) {
+		for (Key<R, T> key : getKeys()) {
 			if (key.isTerminal()) {
 				// formatter.addTerminal(key);
 			} else {
@@ -0,0 +1,187 @@
+package info.jonclark.treegraft.parsing.chartparser;
+
+import info.jonclark.treegraft.core.tokens.Token;
+import info.jonclark.treegraft.parsing.rules.GrammarRule;
+import info.jonclark.treegraft.parsing.rules.NonterminalIds;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The <code>Keys</code> of a <code>Chart</code> that cover a single span of
+ * the input. Keys are kept in the order in which they were added and are also
+ * indexed by the {@link NonterminalIds} ID of their LHS in a small
+ * open-addressing table, so finding the key for a non-terminal requires
+ * neither hashing tokens nor boxing. The table is sized by the number of
+ * distinct LHS's in the cell rather than in the grammar and is only allocated
+ * when the first non-terminal key is added. Cells are only created for spans
+ * that receive keys.
+ *
+ * @author Jonathan Clark
+ * @param <R>
+ *            The rule type being used in this <code>ChartParser</code>
+ * @param <T>
+ *            The token type being used in this <code>ChartParser</code>
+ */
+public class ChartCell<R extends GrammarRule<T>, T extends Token> {
+
+	private static final int DEFAULT_CELL_SIZE = 4;
+
+	private final int startIndex;
+	private final int endIndex;
+	private final ArrayList<Key<R, T>> keys = new ArrayList<Key<R, T>>(DEFAULT_CELL_SIZE);
+
+	private static final int DEFAULT_TABLE_SIZE = 8;
+
+	// the first key added for each LHS, in a linear probing table whose size
+	// is a power of two; slotLhsIds holds the LHS ID plus one (0 for an empty
+	// slot) and slotKeys may be null for an LHS whose keys were all removed
+	private int[] slotLhsIds = null;
+	private Key<R, T>[] slotKeys = null;
+	private int nSlotsUsed = 0;
+
+	private double bestInsideScore = Double.NEGATIVE_INFINITY;
+
+	public ChartCell(int startIndex, int endIndex) {
+		this.startIndex = startIndex;
+		this.endIndex = endIndex;
+	}
+
+	public void add(Key<R, T> key) {
+		assert key.getStartIndex() == startIndex : "Start index mismatch";
+		assert key.getEndIndex() == endIndex : "End index mismatch";
+
+		keys.add(key);
+		bestInsideScore = Math.max(bestInsideScore, key.getInsideScore());
+
+		int lhsId = key.getLhsId();
+		assert lhsId >= 0 : "Key has no LHS ID: " + key;
+		if (slotLhsIds == null || (nSlotsUsed + 1) * 2 > slotLhsIds.length) {
+			growTable();
+		}
+		int slot = findSlot(slotLhsIds, lhsId);
+		if (slotLhsIds[slot] == 0) {
+			slotLhsIds[slot] = lhsId + 1;
+			nSlotsUsed++;
+		}
+		if (slotKeys[slot] == null) {
+			slotKeys[slot] = key;
+		}
+	}
+
+	/**
+	 * @return the slot of the given LHS ID in the given table, or the empty
+	 *         slot where it belongs if it is not in the table
+	 */
+	private static int findSlot(int[] lhsIds, int lhsId) {
+		int mask = lhsIds.length - 1;
+		int slot = (lhsId * 0x9E3779B9) >>> 16 & mask;
+		while (lhsIds[slot] != 0 && lhsIds[slot] != lhsId + 1) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void growTable() {
+		if (slotLhsIds == null) {
+			slotLhsIds = new int[DEFAULT_TABLE_SIZE];
+			slotKeys = new Key[DEFAULT_TABLE_SIZE];
+			return;
+		}
+
+		int[] newLhsIds = new int[slotLhsIds.length * 2];
+		Key<R, T>[] newKeys = new Key[slotLhsIds.length * 2];
+		for (int i = 0; i < slotLhsIds.length; i++) {
+			if (slotLhsIds[i] != 0) {
+				int slot = findSlot(newLhsIds, slotLhsIds[i] - 1);
+				newLhsIds[slot] = slotLhsIds[i];
+				newKeys[slot] = slotKeys[i];
+			}
+		}
+		slotLhsIds = newLhsIds;
+		slotKeys = newKeys;
+	}
+
+	/**
+	 * Removes a key that was pruned before it was processed.
+	 * 
+	 * @param key
+	 */
+	public void remove(Key<R, T> key) {
+		// Key.equals() only compares LHS and span, so search by identity
+		for (int i = 0; i < keys.size(); i++) {
+			if (keys.get(i) == key) {
+				keys.remove(i);
+				break;
+			}
+		}
+
+		if (slotLhsIds == null) {
+			return;
+		}
+		int lhsId = key.getLhsId();
+		int slot = findSlot(slotLhsIds, lhsId);
+		if (slotKeys[slot] == key) {
+			// the slot stays in use so that probing is unaffected
+			slotKeys[slot] = null;
+			for (Key<R, T> other : keys) {
+				if (other.getLhsId() == lhsId) {
+					slotKeys[slot] = other;
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the best inside score of any key added to this cell (see
+	 *         {@link Key#getInsideScore()})
+	 */
+	public double getBestInsideScore() {
+		return bestInsideScore;
+	}
+
+	/**
+	 * @param lhsId
+	 *            a {@link NonterminalIds} ID
+	 * @return the first key added to this cell with the given LHS; null if
+	 *         there is none
+	 */
+	public Key<R, T> getKey(int lhsId) {
+		if (lhsId < 0 || slotLhsIds == null) {
+			return null;
+		} else {
+			return slotKeys[findSlot(slotLhsIds, lhsId)];
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return true if this cell contains a key equal to <code>key</code> (see
+	 *         {@link Key#equals(Object)})
+	 */
+	public boolean contains(Key<R, T> key) {
+		return key.getStartIndex() == startIndex && key.getEndIndex() == endIndex
+				&& getKey(key.getLhsId()) != null;
+	}
+
+	/**
+	 * @return the keys in this cell in the order in which they were added
+	 */
+	public List<Key<R, T>> getKeys() {
+		return keys;
+	}
+
+	public int getStartIndex() {
+		return startIndex;
+	}
+
+	public int getEndIndex() {
+		return endIndex;
+	}
+
+	public int size() {
+		return keys.size();
+	}
+}
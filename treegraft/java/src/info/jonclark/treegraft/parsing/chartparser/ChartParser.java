@@ -1,26 +1,51 @@
 package info.jonclark.treegraft.parsing.chartparser;
 
+import info.jonclark.lang.Option;
 import info.jonclark.lang.Options;
 import info.jonclark.lang.OptionsTarget;
 import info.jonclark.log.LogUtils;
 import info.jonclark.stat.ProfilerTimer;
 import info.jonclark.treegraft.Treegraft.TreegraftConfig;
+import info.jonclark.treegraft.Treegraft.TreegraftProfiler.RatioCounter;
+import info.jonclark.treegraft.core.plugin.PluginLoader;
 import info.jonclark.treegraft.core.tokens.Token;
-import info.jonclark.treegraft.parsing.Parser;
+import info.jonclark.treegraft.parsing.LatticeParser;
+import info.jonclark.treegraft.parsing.WordLattice;
+import info.jonclark.treegraft.parsing.WordLattice.Edge;
 import info.jonclark.treegraft.parsing.grammar.Grammar;
+import info.jonclark.treegraft.parsing.grammar.RuleTrie;
+import info.jonclark.treegraft.parsing.grammar.SentenceGrammar;
 import info.jonclark.treegraft.parsing.oov.OutOfVocabularyHandler;
 import info.jonclark.treegraft.parsing.rules.GrammarRule;
 import info.jonclark.treegraft.parsing.rules.RuleException;
 import info.jonclark.treegraft.parsing.rules.RuleFactory;
 
+import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Logger;
 
 /**
  * A left-to-right bottom-up depth-first-search chart parser that accepts both
  * monolingual and synchronous grammars.
+ * <p>
+ * Besides plain sentences, the parser accepts a {@link WordLattice} (e.g. a
+ * confusion network), in which case a terminal arc is created for each
+ * lattice edge and chart spans are indexed by lattice node, so all paths
+ * through the lattice share one chart. Edge weights, scaled by
+ * parser.latticeWeight, are the inside scores of the terminals and so are
+ * included in the inside scores used by best-first search and beams.
+ * <p>
+ * Optionally, keys can instead be processed best-first using a
+ * {@link BestFirstAgenda} (with an {@link OutsideHeuristic} this is A*
+ * search), in which case parsing can stop after a given number of complete
+ * parses has been found or once the best figure of merit on the agenda falls
+ * below a threshold.
+ * <p>
+ * To bound the time spent on highly ambiguous inputs, the keys of each span
+ * can also be pruned to a fixed number and/or to those within a threshold of
+ * the best inside score of the span (see {@link CellBeam}); the number of keys
+ * pruned is reported by the profiler.
  * 
  * @author Jonathan Clark
  * @param <R>
@@ -29,11 +54,26 @@ import java.util.logging.Logger;
  *            The token type being used in this <code>ChartParser</code>
  */
 @OptionsTarget(ChartParser.ChartParserOptions.class)
-public class ChartParser<R extends GrammarRule<T>, T extends Token> implements Parser<R, T> {
+public class ChartParser<R extends GrammarRule<T>, T extends Token> implements
+		LatticeParser<R, T> {
 
 	private Grammar<R, T> grammar;
 	private RuleFactory<R, T> ruleFactory;
 	private OutOfVocabularyHandler<R, T> oovHandler;
+	private final boolean filterPerSentence;
+	private final boolean profileRules;
+	private final boolean bestFirst;
+	private final double sgtWeight;
+	private final double tgsWeight;
+	private final double latticeWeight;
+	private final OutsideHeuristic<R, T> outsideHeuristic;
+	private final double minFigureOfMerit;
+	private final int maxParses;
+	private final int beamCellSize;
+	private final double beamThreshold;
+	private final RatioCounter histogramPrunedCounter;
+	private final RatioCounter thresholdPrunedCounter;
+	private final RatioCounter rulesRemovedCounter;
 
 	private static final Logger log = LogUtils.getLogger();
 
@@ -50,6 +90,35 @@ public class ChartParser<R extends GrammarRule<T>, T extends Token> implements P
 
 	public static class ChartParserOptions implements Options {
 
+		@Option(name = "parser.filterGrammarPerSentence", usage = "Should the parser only consider rules whose source-side terminal n-grams occur in the sentence being parsed?", required = false, defaultValue = "false")
+		public boolean filterGrammarPerSentence;
+
+		@Option(name = "parser.bestFirst", usage = "Should keys be processed best-first by figure of merit (their rule scores plus an optional outside estimate) rather than in the order in which they were created?", required = false, defaultValue = "false")
+		public boolean bestFirst;
+
+		@Option(name = "parser.sgtWeight", usage = "The weight of the source-given-target rule scores in the inside scores used by parser.bestFirst and parser.beam", required = false, defaultValue = "1.0")
+		public double sgtWeight;
+
+		@Option(name = "parser.tgsWeight", usage = "The weight of the target-given-source rule scores in the inside scores used by parser.bestFirst and parser.beam", required = false, defaultValue = "1.0")
+		public double tgsWeight;
+
+		@Option(name = "parser.latticeWeight", usage = "The weight of the log probabilities of the edges of lattice input in the inside scores used by parser.bestFirst and parser.beam", required = false, defaultValue = "1.0")
+		public double latticeWeight;
+
+		@Option(name = "parser.bestFirst.outsideHeuristic", usage = "Fully qualified Java class name of an OutsideHeuristic that estimates the score outside each key for parser.bestFirst (e.g. info.jonclark.treegraft.parsing.chartparser.LexicalOutsideHeuristic); if not specified, keys are ordered by inside score alone", required = false)
+		public Class<? extends OutsideHeuristic> outsideHeuristicClass;
+
+		@Option(name = "parser.bestFirst.minFigureOfMerit", usage = "Stop parsing when the best figure of merit on the agenda falls below this log probability (requires parser.bestFirst)", required = false, defaultValue = "-Infinity")
+		public double minFigureOfMerit;
+
+		@Option(name = "parser.maxParses", usage = "Stop parsing once this many complete parses rooted in a start symbol have been found (0 means no limit); most useful with parser.bestFirst", required = false, defaultValue = "0")
+		public int maxParses;
+
+		@Option(name = "parser.beam.cellSize", usage = "The maximum number of keys kept for each span of the input, ranked by inside score (0 means no limit)", required = false, defaultValue = "0")
+		public int beamCellSize;
+
+		@Option(name = "parser.beam.threshold", usage = "Prune keys whose inside log probability is more than this much worse than the best key of the same span", required = false, defaultValue = "Infinity")
+		public double beamThreshold;
 	}
 
 	private class PostMortem extends Thread {
@@ -79,7 +148,9 @@ public class ChartParser<R extends GrammarRule<T>, T extends Token> implements P
 	// OutOfVocabularyHandler<R, T> oovHandler, ProfilerTimer parentTimer) {
 	// }
 
-	public ChartParser(ChartParserOptions opts, TreegraftConfig<R, T> config) {
+	@SuppressWarnings("unchecked")
+	public ChartParser(ChartParserOptions opts, TreegraftConfig<R, T> config)
+			throws InvocationTargetException {
 
 		assert config.ruleFactory != null;
 		assert config.grammar != null;
@@ -88,6 +159,29 @@ public class ChartParser<R extends GrammarRule<T>, T extends Token> implements P
 		this.ruleFactory = config.ruleFactory;
 		this.grammar = config.grammar;
 		this.oovHandler = config.oovHandler;
+		this.filterPerSentence = opts.filterGrammarPerSentence;
+		this.bestFirst = opts.bestFirst;
+		this.sgtWeight = opts.sgtWeight;
+		this.tgsWeight = opts.tgsWeight;
+		this.latticeWeight = opts.latticeWeight;
+		this.minFigureOfMerit = opts.minFigureOfMerit;
+		this.maxParses = opts.maxParses;
+		this.beamCellSize = opts.beamCellSize;
+		this.beamThreshold = opts.beamThreshold;
+		if (opts.bestFirst && opts.outsideHeuristicClass != null) {
+			this.outsideHeuristic =
+					(OutsideHeuristic<R, T>) PluginLoader.loadPlugin(opts.outsideHeuristicClass,
+							config.configurator, config, false);
+		} else {
+			this.outsideHeuristic = null;
+		}
+		this.profileRules = (config.opts != null && config.opts.ruleProfileOutFile != null);
+		this.rulesRemovedCounter =
+				config.profiler.newCounter("Rules removed by per-sentence grammar filtering");
+		this.histogramPrunedCounter =
+				config.profiler.newCounter("Keys pruned by parser.beam.cellSize");
+		this.thresholdPrunedCounter =
+				config.profiler.newCounter("Keys pruned by parser.beam.threshold");
 
 		this.parserTimer =
 				ProfilerTimer.newTimer("ChartParser", config.profiler.processingTimer, true, false);
@@ -119,13 +213,55 @@ public class ChartParser<R extends GrammarRule<T>, T extends Token> implements P
 	 *             If the OOV handler generates a bad rule
 	 */
 	public Chart<R, T> parse(T[] input) throws RuleException {
+		return parse(WordLattice.fromSentence(input));
+	}
+
+	/**
+	 * Populates the parse chart with the keys of all paths through a lattice.
+	 * The spans of the chart are indexed by lattice node and its source input
+	 * tokens are the lattice's best tokens (see
+	 * {@link WordLattice#getBestTokens()}); an OOV word is given the best path
+	 * into the node it leaves as its context.
+	 * 
+	 * @param lattice
+	 * @throws RuleException
+	 *             If the OOV handler generates a bad rule
+	 */
+	@SuppressWarnings("unchecked")
+	public Chart<R, T> parse(WordLattice<T> lattice) throws RuleException {
 
 		parserTimer.go();
 
-		List<T> inputList = Arrays.asList(input);
+		List<T> inputList = lattice.getBestTokens();
+		int inputLength = lattice.getLength();
 		Chart<R, T> chart = new Chart<R, T>(inputList);
-		Agenda<R, T> agenda = new Agenda<R, T>(chart);
-		ActiveArcManager<R, T> arcMan = new ActiveArcManager<R, T>(input.length, parserTimer);
+		CellBeam<R, T> beam = null;
+		if (beamCellSize > 0 || beamThreshold < Double.POSITIVE_INFINITY) {
+			beam = new CellBeam<R, T>(beamCellSize, beamThreshold);
+		}
+		KeyScorer<R, T> scorer = null;
+		if (bestFirst || beam != null) {
+			double[] edgeBounds = null;
+			if (outsideHeuristic != null) {
+				T[] words = lattice.getWords((T[]) new Token[lattice.getEdges().size()]);
+				edgeBounds = outsideHeuristic.getWordBounds(words, sgtWeight, tgsWeight);
+				for (Edge<T> edge : lattice.getEdges()) {
+					edgeBounds[edge.getIndex()] += latticeWeight * edge.getWeight();
+				}
+			}
+			scorer = new KeyScorer<R, T>(sgtWeight, tgsWeight, lattice, edgeBounds);
+		}
+		Agenda<R, T> agenda;
+		if (bestFirst) {
+			agenda = new BestFirstAgenda<R, T>(chart, scorer, beam);
+		} else {
+			agenda = new Agenda<R, T>(chart, scorer, beam);
+		}
+		ActiveArcManager<R, T> arcMan = new ActiveArcManager<R, T>(lattice, bestFirst, parserTimer);
+		SentenceGrammar<R, T> sentenceGrammar = null;
+		if (filterPerSentence) {
+			sentenceGrammar = new SentenceGrammar<R, T>(grammar, lattice);
+		}
 		// ConstraintEngine constraintEngine = new ConstraintEngine();
 
 		// do a post-mortem analysis of what was taking so @#$! long if the user
@@ -138,42 +274,63 @@ public class ChartParser<R extends GrammarRule<T>, T extends Token> implements P
 		
 		do {
 
-			// step 2 -- turn tokens into keys and/or active arcs
-			while (agenda.isEmpty() && i < input.length) {
-
-				Key<R, T> dummyTerminalKey = makeDummyKey(input[i], i);
-
-				lexicalLookup.go();
-				List<R> matchingLexicalRules = grammar.getTerminalInitialRules(input[i]);
-				lexicalLookup.pause();
-
-				// check if this input word was out of vocabulary
-				if (matchingLexicalRules.size() == 0) {
-					matchingLexicalRules =
-							oovHandler.generateOOVRules(input[i], inputList.subList(0, i));
-				}
-
-				for (final R lexicalRule : matchingLexicalRules) {
-					// make a new arc due to a lexical input
-					arcMan.createTerminalArc(i, lexicalRule, dummyTerminalKey);
+			// step 2 -- turn tokens into keys and/or active arcs (a best-first
+			// agenda needs all of them at once to order keys by score)
+			while ((bestFirst || agenda.isEmpty()) && i < inputLength) {
+
+				// seed the words of all lattice edges leaving this node
+				for (Edge<T> edge : lattice.getEdgesFrom(i)) {
+					T word = edge.getWord();
+					Key<R, T> dummyTerminalKey = makeDummyKey(word, i, edge.getToNode());
+					double weight = latticeWeight * edge.getWeight();
+					dummyTerminalKey.setScores(weight, weight);
+
+					lexicalLookup.go();
+					RuleTrie<R, T> matchingLexicalRules;
+					boolean inVocabulary;
+					if (sentenceGrammar != null) {
+						matchingLexicalRules = sentenceGrammar.getTerminalInitialTrie(word);
+						inVocabulary =
+								(matchingLexicalRules != null || sentenceGrammar.hasTerminalInitialRules(word));
+					} else {
+						matchingLexicalRules = grammar.getTerminalInitialTrie(word);
+						inVocabulary = (matchingLexicalRules != null);
+					}
+					lexicalLookup.pause();
+
+					// check if this input word was out of vocabulary
+					if (inVocabulary == false) {
+						List<R> oovRules =
+								oovHandler.generateOOVRules(word, lattice.getBestPathTo(i));
+						if (oovRules.size() > 0) {
+							matchingLexicalRules =
+									RuleTrie.build(word, oovRules, grammar.getNonterminalIds());
+						}
+					}
+
+					if (matchingLexicalRules != null) {
+						// make a new arc due to a lexical input
+						arcMan.createTerminalArc(i, edge.getToNode(), matchingLexicalRules,
+								dummyTerminalKey);
+					}
+
+					// extend terminals in arcs created by previous tokens
+					// NOTE: Arcs we just added are extended by default
+					lexicalArcExtending.go();
+					arcMan.extendArcs(dummyTerminalKey);
+					lexicalArcExtending.pause();
+
+					// check for completed lexical arcs
+					lexicalArcAdding.go();
+					ActiveArc<R, T>[] completedArcs = arcMan.getAndClearCompletedArcs();
+					for (final ActiveArc<R, T> completedArc : completedArcs) {
+						agenda.addKeyToChartAndAgenda(completedArc);
+					}
+					lexicalArcAdding.pause();
 				}
 
-				// extend terminals in arcs created by previous tokens
-				// NOTE: Arcs we just added are extended by default
-				lexicalArcExtending.go();
-				arcMan.extendArcs(dummyTerminalKey);
-				lexicalArcExtending.pause();
-
-				// check for completed lexical arcs
-				lexicalArcAdding.go();
-				ActiveArc<R, T>[] completedArcs = arcMan.getAndClearCompletedArcs();
-				for (final ActiveArc<R, T> completedArc : completedArcs) {
-					agenda.addKeyToChartAndAgenda(completedArc);
-				}
-				lexicalArcAdding.pause();
-
 				i++;
-				log.fine("Now processing input symbol " + i + " of " + input.length);
+				log.fine("Now processing input symbol " + i + " of " + inputLength);
 			}
 
 			if (agenda.isEmpty()) {
@@ -181,9 +338,17 @@ public class ChartParser<R extends GrammarRule<T>, T extends Token> implements P
 				break;
 			}
 
+			if (bestFirst && agenda.peek().getFigureOfMerit() < minFigureOfMerit) {
+				// everything left on the agenda is worse than the threshold
+				log.fine("Stopping at figure of merit " + agenda.peek().getFigureOfMerit());
+				break;
+			}
+
 			// step 3
 			Key<R, T> key = agenda.get();
-			key.startTimer();
+			if (profileRules) {
+				key.startTimer();
+			}
 
 			// check if this key begins a cycle, which we might want to break
 			// final int DEPTH = 3;
@@ -195,11 +360,16 @@ public class ChartParser<R extends GrammarRule<T>, T extends Token> implements P
 
 			// step 4 -- add arcs beginning with this key
 			nonterminalLookup.go();
-			List<R> rules = grammar.getRulesStartingWith(key);
+			RuleTrie<R, T> rules;
+			if (sentenceGrammar != null) {
+				rules = sentenceGrammar.getTrieStartingWith(key);
+			} else {
+				rules = grammar.getTrieStartingWith(key);
+			}
 			nonterminalLookup.pause();
 			nonterminalArcCreation.go();
-			for (final R rule : rules) {
-				arcMan.createNonterminalArc(key, rule);
+			if (rules != null) {
+				arcMan.createNonterminalArc(key, rules);
 			}
 			nonterminalArcCreation.pause();
 
@@ -235,27 +405,45 @@ public class ChartParser<R extends GrammarRule<T>, T extends Token> implements P
 
 			// step 8 -- check for completed parses
 			if (grammar.isStartSymbol(key.getLhs()) && key.getStartIndex() == 0
-					&& key.getEndIndex() == input.length) {
+					&& key.getEndIndex() == inputLength) {
 				chart.addParse(key);
 			}
+			boolean enoughParses = (maxParses > 0 && chart.getParseCount() >= maxParses);
 
-			if (chart.getKeys().size() % 1000 == 0) {
+			if (chart.getKeyCount() % 1000 == 0) {
 				if (updated == false) {
 					log.info("Created " + arcMan.size() + " active arcs and "
-							+ chart.getKeys().size() + " keys so far...");
+							+ chart.getKeyCount() + " keys so far...");
 				}
 				updated = true;
 			} else {
 				updated = false;
 			}
 
-			key.stopTimer();
-		} while (!agenda.isEmpty() || i < input.length);
+			if (profileRules) {
+				key.stopTimer();
+			}
+
+			if (enoughParses) {
+				log.fine("Stopping after finding " + chart.getParseCount() + " parses");
+				break;
+			}
+		} while (!agenda.isEmpty() || i < inputLength);
+
+		if (beam != null) {
+			histogramPrunedCounter.record(beam.getPrunedByHistogram(), beam.getKeysOffered());
+			thresholdPrunedCounter.record(beam.getPrunedByThreshold(), beam.getKeysOffered());
+		}
+
+		if (sentenceGrammar != null) {
+			rulesRemovedCounter.record(sentenceGrammar.getRulesRemoved(),
+					sentenceGrammar.getRulesKept() + sentenceGrammar.getRulesRemoved());
+		}
 
 		parserTimer.pause();
 
 		log.fine("PARSING COMPLETE: Created " + arcMan.size() + " active arcs and "
-				+ chart.getKeys().size() + " keys.");
+				+ chart.getKeyCount() + " keys.");
 
 		// postmortem.run();
 		// Runtime.getRuntime().removeShutdownHook(postmortem);
@@ -263,10 +451,10 @@ public class ChartParser<R extends GrammarRule<T>, T extends Token> implements P
 		return chart;
 	}
 
-	private Key<R, T> makeDummyKey(T token, int i) {
+	private Key<R, T> makeDummyKey(T token, int startIndex, int endIndex) {
 
 		R dummyRule = ruleFactory.makeDummyRule(token);
-		ActiveArc<R, T> dummyArc = new ActiveArc<R, T>(i, i + 1, 1, dummyRule);
+		ActiveArc<R, T> dummyArc = new ActiveArc<R, T>(startIndex, endIndex, 1, dummyRule);
 		Key<R, T> dummyKey = new Key<R, T>(dummyArc, token);
 		return dummyKey;
 	}
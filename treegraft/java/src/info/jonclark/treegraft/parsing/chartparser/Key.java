@@ -3,7 +3,9 @@ package info.jonclark.treegraft.parsing.chartparser;
 import info.jonclark.log.LogUtils;
 import info.jonclark.treegraft.core.tokens.Token;
 import info.jonclark.treegraft.parsing.parses.PartialParse;
+import info.jonclark.treegraft.parsing.rules.ConstraintIds;
 import info.jonclark.treegraft.parsing.rules.GrammarRule;
+import info.jonclark.treegraft.parsing.rules.NonterminalIds;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -31,8 +33,24 @@ public class Key<R extends GrammarRule<T>, T extends Token> {
 	private final ActiveArc<R, T> firstArc;
 	private final T word;
 	private final int hashCode;
+	private final int lhsId;
 	private List<PartialParse<T>> cache;
 
+	// scores used to order a best-first agenda (see BestFirstAgenda)
+	private double insideScore = 0.0;
+	private double figureOfMerit = 0.0;
+
+	// true while this key is waiting on the agenda
+	boolean onAgenda = false;
+	int agendaOrder = 0;
+
+	// true if this key was pruned from the chart
+	boolean removed = false;
+
+	// the constraint IDs provided by the rules of this key's arcs; built on
+	// demand
+	private volatile long[] providedConstraintIds = null;
+
 	// private double maxLogProb;
 
 	/**
@@ -52,6 +70,7 @@ public class Key<R extends GrammarRule<T>, T extends Token> {
 		this.word = word;
 		this.firstArc = arc;
 		this.hashCode = genHash();
+		this.lhsId = (word == null) ? arc.getLhsId() : -1;
 		if (arc != null) {
 			this.arcs.add(arc);
 		}
@@ -69,6 +88,29 @@ public class Key<R extends GrammarRule<T>, T extends Token> {
 
 	public void addCompletedArc(ActiveArc<R, T> completedArc) {
 		arcs.add(completedArc);
+		providedConstraintIds = null;
+	}
+
+	/**
+	 * Gets the set of constraint IDs (see
+	 * {@link GrammarRule#getProvidedConstraintId()}) offered by the rules of
+	 * this key, such that a rule's constraint at some position is satisfied
+	 * by this key if the set contains its constraint ID for that position.
+	 * 
+	 * @return a bitset from {@link ConstraintIds}
+	 */
+	public long[] getProvidedConstraintIds() {
+		long[] bits = providedConstraintIds;
+		if (bits == null) {
+			bits = new long[1];
+			for (ActiveArc<R, T> arc : arcs) {
+				for (R rule : arc.getRules()) {
+					bits = ConstraintIds.add(bits, rule.getProvidedConstraintId());
+				}
+			}
+			providedConstraintIds = bits;
+		}
+		return bits;
 	}
 
 	/**
@@ -122,6 +164,41 @@ public class Key<R extends GrammarRule<T>, T extends Token> {
 		return firstArc.getLhs();
 	}
 
+	/**
+	 * Gets the dense ID of this key's LHS, which the <code>Chart</code> and
+	 * <code>ActiveArcManager</code> use to index their arrays.
+	 * 
+	 * @return the {@link NonterminalIds} ID of the LHS; -1 for terminals
+	 */
+	public int getLhsId() {
+		return lhsId;
+	}
+
+	/**
+	 * Gets the score of the best derivation of this key according to the
+	 * scores of its rules, as computed by a {@link BestFirstAgenda}.
+	 * 
+	 * @return a weighted log probability; 0.0 if the key was not scored
+	 */
+	public double getInsideScore() {
+		return insideScore;
+	}
+
+	/**
+	 * Gets the priority of this key on a {@link BestFirstAgenda}: its inside
+	 * score plus an estimate of the score of the words outside its span.
+	 * 
+	 * @return a weighted log probability; 0.0 if the key was not scored
+	 */
+	public double getFigureOfMerit() {
+		return figureOfMerit;
+	}
+
+	void setScores(double insideScore, double figureOfMerit) {
+		this.insideScore = insideScore;
+		this.figureOfMerit = figureOfMerit;
+	}
+
 	/**
 	 * Gets the length of this key in terms of source-side tokens covered.
 	 * 
@@ -161,19 +238,27 @@ public class Key<R extends GrammarRule<T>, T extends Token> {
 	}
 
 	/**
-	 * Starts the grammar profiling timer for the rule associated with this key.
+	 * Starts the grammar profiling timers for the rules associated with this
+	 * key such that each is charged for the time spent processing the key.
 	 */
 	public void startTimer() {
-		// if (getRules() != null)
-		// getRules().beginEvaluation();
+		for (ActiveArc<R, T> arc : arcs) {
+			for (R rule : arc.getRules()) {
+				rule.beginEvaluation();
+			}
+		}
 	}
 
 	/**
-	 * Stops the grammar profiling timer for the rule associated with this key.
+	 * Stops the grammar profiling timers for the rules associated with this
+	 * key.
 	 */
 	public void stopTimer() {
-		// if (getRules() != null)
-		// getRules().stopEvaluation();
+		for (ActiveArc<R, T> arc : arcs) {
+			for (R rule : arc.getRules()) {
+				rule.stopEvaluation();
+			}
+		}
 	}
 
 	private String genId() {
@@ -0,0 +1,121 @@
+package info.jonclark.treegraft.parsing.chartparser;
+
+import info.jonclark.treegraft.core.featureimpl.RuleScore;
+import info.jonclark.treegraft.core.tokens.Token;
+import info.jonclark.treegraft.parsing.WordLattice;
+import info.jonclark.treegraft.parsing.WordLattice.Edge;
+import info.jonclark.treegraft.parsing.rules.GrammarRule;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Computes the Viterbi inside score and the figure of merit of each
+ * <code>Key</code> as it is completed (see {@link Key#getInsideScore()}). The
+ * inside score of a key is the weighted score of its best rule plus the
+ * inside scores of the keys it was built from, so lexical rules contribute
+ * their lexical translation scores; the figure of merit adds an optional
+ * estimate of the score of the words outside the key's span (see
+ * {@link OutsideHeuristic}). For lattice input, the estimate is the best
+ * bound of any path from the start of the lattice to the key's start node
+ * plus that of any path from its end node to the end of the lattice. These scores order a {@link BestFirstAgenda} and
+ * determine which keys fall outside a {@link CellBeam}.
+ *
+ * @author Jonathan Clark
+ * @param <R>
+ *            The rule type being used in this <code>ChartParser</code>
+ * @param <T>
+ *            The token type being used in this <code>ChartParser</code>
+ */
+public class KeyScorer<R extends GrammarRule<T>, T extends Token> {
+
+	private final double sgtWeight;
+	private final double tgsWeight;
+
+	// the best sum of edge bounds along any path from the start node to each
+	// node and from each node to the end node
+	private final double[] outsideBefore;
+	private final double[] outsideAfter;
+
+	/**
+	 * @param sgtWeight
+	 *            the weight of the source-given-target rule scores
+	 * @param tgsWeight
+	 *            the weight of the target-given-source rule scores
+	 * @param input
+	 *            the sentence or lattice being parsed
+	 * @param edgeBounds
+	 *            the outside bound of the word of each lattice edge (see
+	 *            {@link OutsideHeuristic#getWordBounds(Token[], double, double)}
+	 *            ), indexed by {@link Edge#getIndex()}; NULL to use the inside
+	 *            score as the figure of merit
+	 */
+	public KeyScorer(double sgtWeight, double tgsWeight, WordLattice<T> input,
+			double[] edgeBounds) {
+
+		this.sgtWeight = sgtWeight;
+		this.tgsWeight = tgsWeight;
+
+		if (edgeBounds != null) {
+			// nodes are numbered in topological order
+			int n = input.getLength();
+			this.outsideBefore = new double[n + 1];
+			this.outsideAfter = new double[n + 1];
+			Arrays.fill(outsideBefore, Double.NEGATIVE_INFINITY);
+			Arrays.fill(outsideAfter, Double.NEGATIVE_INFINITY);
+			outsideBefore[0] = 0.0;
+			outsideAfter[n] = 0.0;
+			for (int i = 0; i < n; i++) {
+				for (Edge<T> edge : input.getEdgesFrom(i)) {
+					outsideBefore[edge.getToNode()] =
+							Math.max(outsideBefore[edge.getToNode()], outsideBefore[i]
+									+ edgeBounds[edge.getIndex()]);
+				}
+			}
+			for (int i = n - 1; i >= 0; i--) {
+				for (Edge<T> edge : input.getEdgesFrom(i)) {
+					outsideAfter[i] =
+							Math.max(outsideAfter[i], outsideAfter[edge.getToNode()]
+									+ edgeBounds[edge.getIndex()]);
+				}
+			}
+		} else {
+			this.outsideBefore = null;
+			this.outsideAfter = null;
+		}
+	}
+
+	/**
+	 * Sets the inside score and figure of merit of a newly completed key.
+	 * 
+	 * @param key
+	 */
+	public void score(Key<R, T> key) {
+
+		ActiveArc<R, T> arc = key.getActiveArcs().get(0);
+
+		double inside = Double.NEGATIVE_INFINITY;
+		for (R rule : arc.getRules()) {
+			RuleScore scores = rule.getRuleScores();
+			inside = Math.max(inside, sgtWeight * scores.sgt + tgsWeight * scores.tgs);
+		}
+
+		for (int i = 0; i < arc.getRhs().length; i++) {
+			List<Key<R, T>> backpointers = arc.getBackpointers(i);
+			if (backpointers.isEmpty() == false) {
+				double best = Double.NEGATIVE_INFINITY;
+				for (Key<R, T> backpointer : backpointers) {
+					best = Math.max(best, backpointer.getInsideScore());
+				}
+				inside += best;
+			}
+		}
+
+		double outside = 0.0;
+		if (outsideBefore != null) {
+			outside = outsideBefore[key.getStartIndex()] + outsideAfter[key.getEndIndex()];
+		}
+
+		key.setScores(inside, inside + outside);
+	}
+}
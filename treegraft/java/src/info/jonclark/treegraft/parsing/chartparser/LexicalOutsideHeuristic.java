@@ -0,0 +1,103 @@
+package info.jonclark.treegraft.parsing.chartparser;
+
+import info.jonclark.lang.Options;
+import info.jonclark.lang.OptionsTarget;
+import info.jonclark.log.LogUtils;
+import info.jonclark.treegraft.Treegraft.TreegraftConfig;
+import info.jonclark.treegraft.core.featureimpl.RuleScore;
+import info.jonclark.treegraft.core.tokens.Token;
+import info.jonclark.treegraft.parsing.grammar.Grammar;
+import info.jonclark.treegraft.parsing.rules.GrammarRule;
+
+import java.util.HashMap;
+import java.util.logging.Logger;
+
+/**
+ * An admissible {@link OutsideHeuristic} that bounds the score of covering
+ * each word by the best score per source terminal of any rule containing that
+ * word. Every word of a parse is covered by a terminal of exactly one rule,
+ * and a rule with <i>k</i> source terminals can be charged 1/<i>k</i> of its
+ * score for each of them; rules without terminals only lower the score of a
+ * parse. Words that no rule contains (e.g. out-of-vocabulary words) are
+ * bounded by 0.0.
+ * <p>
+ * The bounds are computed from every rule in the grammar when the parser is
+ * created, which forces any lazily loaded rules to be read.
+ * 
+ * @author Jonathan Clark
+ * @param <R>
+ *            The rule type being used in this <code>ChartParser</code>
+ * @param <T>
+ *            The token type being used in this <code>ChartParser</code>
+ */
+@OptionsTarget(LexicalOutsideHeuristic.LexicalOutsideHeuristicOptions.class)
+public class LexicalOutsideHeuristic<R extends GrammarRule<T>, T extends Token> implements
+		OutsideHeuristic<R, T> {
+
+	private static final Logger log = LogUtils.getLogger();
+
+	// the best source-given-target and target-given-source score per
+	// terminal of the rules containing each word
+	private final HashMap<T, double[]> bestShares = new HashMap<T, double[]>();
+
+	public static class LexicalOutsideHeuristicOptions implements Options {
+	}
+
+	public LexicalOutsideHeuristic(LexicalOutsideHeuristicOptions opts,
+			TreegraftConfig<R, T> config) {
+
+		Grammar<R, T> grammar = config.grammar;
+		grammar.materializeRules();
+		for (R rule : grammar.getAllRules()) {
+			addRule(rule);
+		}
+		log.info("Computed outside bounds for " + bestShares.size() + " words");
+	}
+
+	private void addRule(R rule) {
+
+		T[] rhs = rule.getRhs();
+		int nTerminals = 0;
+		for (T token : rhs) {
+			if (token.isTerminal()) {
+				nTerminals++;
+			}
+		}
+		if (nTerminals == 0) {
+			return;
+		}
+
+		RuleScore scores = rule.getRuleScores();
+		double sgtShare = scores.sgt / nTerminals;
+		double tgsShare = scores.tgs / nTerminals;
+		for (T token : rhs) {
+			if (token.isTerminal()) {
+				double[] best = bestShares.get(token);
+				if (best == null) {
+					bestShares.put(token, new double[] { sgtShare, tgsShare });
+				} else {
+					best[0] = Math.max(best[0], sgtShare);
+					best[1] = Math.max(best[1], tgsShare);
+				}
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public double[] getWordBounds(T[] input, double sgtWeight, double tgsWeight) {
+
+		assert sgtWeight >= 0.0 && tgsWeight >= 0.0 : "Negative weights are not admissible";
+
+		double[] bounds = new double[input.length];
+		for (int i = 0; i < input.length; i++) {
+			double[] best = bestShares.get(input[i]);
+			if (best != null) {
+				// maximizing each score separately can only loosen the bound
+				bounds[i] = sgtWeight * best[0] + tgsWeight * best[1];
+			}
+		}
+		return bounds;
+	}
+}
@@ -0,0 +1,41 @@
+package info.jonclark.treegraft.parsing.chartparser;
+
+import info.jonclark.treegraft.core.Plugin;
+import info.jonclark.treegraft.core.tokens.Token;
+import info.jonclark.treegraft.parsing.rules.GrammarRule;
+
+/**
+ * Estimates the score of the part of a parse that lies outside the span of a
+ * <code>Key</code> so that a {@link BestFirstAgenda} can order keys by their
+ * inside score plus this estimate (A* search). Estimates are decomposed over
+ * the words of the input: the estimate for a span is the sum of the bounds of
+ * the words outside it. If each word's bound is at least the share of the
+ * rule score that any parse can spend covering that word, the heuristic is
+ * admissible and the first complete parse taken from the agenda is the best
+ * one.
+ * 
+ * @author Jonathan Clark
+ * @param <R>
+ *            The rule type being used in this <code>ChartParser</code>
+ * @param <T>
+ *            The token type being used in this <code>ChartParser</code>
+ */
+public interface OutsideHeuristic<R extends GrammarRule<T>, T extends Token> extends Plugin<R, T> {
+
+	/**
+	 * Gets an upper bound on the score contributed by covering each word of
+	 * an input sentence. Implementations must be safe to call from several
+	 * parsing threads at once.
+	 * 
+	 * @param input
+	 *            the sentence being parsed (for a lattice, the words of its
+	 *            edges)
+	 * @param sgtWeight
+	 *            the weight of the source-given-target rule scores
+	 * @param tgsWeight
+	 *            the weight of the target-given-source rule scores
+	 * @return a weighted log probability (at most 0.0) for each word of the
+	 *         input
+	 */
+	public double[] getWordBounds(T[] input, double sgtWeight, double tgsWeight);
+}
@@ -0,0 +1,393 @@
+package info.jonclark.treegraft.parsing.chartparser;
+
+import info.jonclark.lang.Option;
+import info.jonclark.lang.Options;
+import info.jonclark.lang.OptionsTarget;
+import info.jonclark.log.LogUtils;
+import info.jonclark.treegraft.Treegraft.TreegraftConfig;
+import info.jonclark.treegraft.core.tokens.Token;
+import info.jonclark.treegraft.parsing.Parser;
+import info.jonclark.treegraft.parsing.chartparser.ActiveArcManager.PackingKey;
+import info.jonclark.treegraft.parsing.chartparser.ChartParser.ChartParserOptions;
+import info.jonclark.treegraft.parsing.grammar.Grammar;
+import info.jonclark.treegraft.parsing.grammar.RuleTrie;
+import info.jonclark.treegraft.parsing.grammar.SentenceGrammar;
+import info.jonclark.treegraft.parsing.oov.OutOfVocabularyHandler;
+import info.jonclark.treegraft.parsing.rules.GrammarRule;
+import info.jonclark.treegraft.parsing.rules.RuleException;
+import info.jonclark.treegraft.parsing.rules.RuleFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Logger;
+
+/**
+ * A bottom-up chart parser that fills the chart span by span in order of
+ * increasing length (CKY order) rather than from an agenda. Every key of a
+ * span is built from keys and prefix arcs of strictly shorter spans, except
+ * for unary rules, which are closed over within the span. Since the spans of
+ * one length depend only on shorter spans, they are filled in parallel by a
+ * fork-join pool, so a single long sentence can use all cores.
+ * <p>
+ * Each span is filled by exactly one task, which owns the span's
+ * {@link ChartCell} and prefix arcs until all spans of that length are done;
+ * later tasks only read them. The cells are then added to the
+ * <code>Chart</code> in order of their start index, so the chart is the same
+ * no matter how the tasks were scheduled. Arcs are packed per span, trie
+ * node and parent arc as in the {@link ChartParser}, though the order in which
+ * keys are found, and so which of several keys with the same LHS and span
+ * becomes the backpointer of a packed arc, differs; with constrained rules,
+ * the two parsers may therefore complete slightly different sets of keys.
+ * <p>
+ * Parsers with the same number of threads share one pool, whose daemon threads
+ * live as long as the JVM. Rule profiling timers are not thread-safe, so spans
+ * are filled by a single thread when rules are being profiled.
+ *
+ * @author Jonathan Clark
+ * @param <R>
+ *            The rule type being used in this <code>ChartParser</code>
+ * @param <T>
+ *            The token type being used in this <code>ChartParser</code>
+ */
+@OptionsTarget(ParallelCKYParser.ParallelCKYParserOptions.class)
+public class ParallelCKYParser<R extends GrammarRule<T>, T extends Token> implements Parser<R, T> {
+
+	private static final Logger log = LogUtils.getLogger();
+
+	private final Grammar<R, T> grammar;
+	private final RuleFactory<R, T> ruleFactory;
+	private final OutOfVocabularyHandler<R, T> oovHandler;
+	private final boolean filterPerSentence;
+	private final boolean profileRules;
+	private final ForkJoinPool pool;
+
+	// pools shared by all parsers, indexed by number of threads
+	private static final ConcurrentHashMap<Integer, ForkJoinPool> pools =
+			new ConcurrentHashMap<Integer, ForkJoinPool>();
+
+	public static class ParallelCKYParserOptions implements Options {
+
+		@Option(name = "parser.cky.threads", usage = "The number of threads that fill the spans of each sentence in parallel (0 uses one thread per available processor)", required = false, defaultValue = "0")
+		public int threads;
+	}
+
+	public ParallelCKYParser(ParallelCKYParserOptions opts, TreegraftConfig<R, T> config) {
+
+		assert config.ruleFactory != null;
+		assert config.grammar != null;
+		assert config.oovHandler != null;
+
+		this.ruleFactory = config.ruleFactory;
+		this.grammar = config.grammar;
+		this.oovHandler = config.oovHandler;
+		this.profileRules = (config.opts != null && config.opts.ruleProfileOutFile != null);
+
+		// parser.filterGrammarPerSentence belongs to the ChartParser's options
+		if (config.configurator != null) {
+			this.filterPerSentence =
+					config.configurator.getOptions(ChartParserOptions.class).filterGrammarPerSentence;
+		} else {
+			this.filterPerSentence = false;
+		}
+
+		int threads = opts.threads;
+		if (threads <= 0) {
+			threads = Runtime.getRuntime().availableProcessors();
+		}
+		if (profileRules && threads > 1) {
+			log.info("Profiling rules requires a single thread");
+			threads = 1;
+		}
+		this.pool = getPool(threads);
+		log.info("Parsing spans with " + threads + " threads");
+	}
+
+	private static ForkJoinPool getPool(int threads) {
+		ForkJoinPool pool = pools.get(threads);
+		if (pool == null) {
+			ForkJoinPool newPool = new ForkJoinPool(threads);
+			pool = pools.putIfAbsent(threads, newPool);
+			if (pool == null) {
+				pool = newPool;
+			} else {
+				newPool.shutdown();
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * The prefix arcs that cover a single span, packed by trie node and parent
+	 * arc.
+	 */
+	private class ArcCell {
+		public final ArrayList<ActiveArc<R, T>> arcs = new ArrayList<ActiveArc<R, T>>();
+		public final HashMap<PackingKey<R, T>, ActiveArc<R, T>> packedArcs =
+				new HashMap<PackingKey<R, T>, ActiveArc<R, T>>();
+	}
+
+	/**
+	 * The state of a single sentence that is shared by all span tasks.
+	 * Entries of the arrays for spans of the current length are written by
+	 * their own task only; entries for shorter spans are read-only.
+	 */
+	private class SentenceState {
+		public final T[] input;
+		public final Chart<R, T> chart;
+		public final SentenceGrammar<R, T> sentenceGrammar;
+		public final Key<R, T>[] terminalKeys;
+		public final RuleTrie<R, T>[] terminalTries;
+		public final ArcCell[] arcCells;
+		public final ChartCell<R, T>[] cells;
+
+		@SuppressWarnings("unchecked")
+		public SentenceState(T[] input, Chart<R, T> chart, SentenceGrammar<R, T> sentenceGrammar) {
+			this.input = input;
+			this.chart = chart;
+			this.sentenceGrammar = sentenceGrammar;
+			this.terminalKeys = new Key[input.length];
+			this.terminalTries = new RuleTrie[input.length];
+			this.arcCells = (ArcCell[]) java.lang.reflect.Array.newInstance(ArcCell.class,
+					input.length * input.length);
+			this.cells = new ChartCell[input.length * input.length];
+		}
+
+		public int getSpanIndex(int startIndex, int endIndex) {
+			return (endIndex - startIndex - 1) * input.length + startIndex;
+		}
+
+		public RuleTrie<R, T> getTrieStartingWith(Key<R, T> key) {
+			if (sentenceGrammar != null) {
+				return sentenceGrammar.getTrieStartingWith(key);
+			} else {
+				return grammar.getTrieStartingWith(key);
+			}
+		}
+	}
+
+	/**
+	 * Fills the spans of one length whose start indices fall in a range,
+	 * splitting the range among several tasks.
+	 */
+	private class SpanTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final SentenceState state;
+		private final int length;
+		private final int fromStart;
+		private final int toStart;
+
+		public SpanTask(SentenceState state, int length, int fromStart, int toStart) {
+			this.state = state;
+			this.length = length;
+			this.fromStart = fromStart;
+			this.toStart = toStart;
+		}
+
+		protected void compute() {
+			if (toStart - fromStart == 1) {
+				fillSpan(state, fromStart, fromStart + length);
+			} else {
+				int mid = (fromStart + toStart) >>> 1;
+				invokeAll(new SpanTask(state, length, fromStart, mid), new SpanTask(state,
+						length, mid, toStart));
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Chart<R, T> parse(T[] input) throws RuleException {
+
+		List<T> inputList = Arrays.asList(input);
+		Chart<R, T> chart = new Chart<R, T>(inputList);
+		SentenceGrammar<R, T> sentenceGrammar = null;
+		if (filterPerSentence) {
+			sentenceGrammar = new SentenceGrammar<R, T>(grammar, input);
+		}
+		SentenceState state = new SentenceState(input, chart, sentenceGrammar);
+
+		// look up the lexical rules (and create any OOV rules) up front since
+		// OOV handlers need not be thread-safe
+		for (int i = 0; i < input.length; i++) {
+			state.terminalKeys[i] = makeDummyKey(input[i], i);
+
+			RuleTrie<R, T> matchingLexicalRules;
+			boolean inVocabulary;
+			if (sentenceGrammar != null) {
+				matchingLexicalRules = sentenceGrammar.getTerminalInitialTrie(input[i]);
+				inVocabulary =
+						(matchingLexicalRules != null || sentenceGrammar.hasTerminalInitialRules(input[i]));
+			} else {
+				matchingLexicalRules = grammar.getTerminalInitialTrie(input[i]);
+				inVocabulary = (matchingLexicalRules != null);
+			}
+			if (inVocabulary == false) {
+				List<R> oovRules = oovHandler.generateOOVRules(input[i], inputList.subList(0, i));
+				if (oovRules.size() > 0) {
+					matchingLexicalRules = RuleTrie.build(input[i], oovRules,
+							grammar.getNonterminalIds());
+				}
+			}
+			state.terminalTries[i] = matchingLexicalRules;
+		}
+
+		for (int length = 1; length <= input.length; length++) {
+
+			// all spans of this length depend only on shorter spans
+			int nSpans = input.length - length + 1;
+			pool.invoke(new SpanTask(state, length, 0, nSpans));
+
+			for (int start = 0; start < nSpans; start++) {
+				ChartCell<R, T> cell = state.cells[state.getSpanIndex(start, start + length)];
+				if (cell != null) {
+					chart.addCell(cell);
+					for (Key<R, T> key : cell.getKeys()) {
+						for (ActiveArc<R, T> arc : key.getActiveArcs()) {
+							for (R rule : arc.getRules()) {
+								rule.incrementKeysCreated();
+							}
+						}
+					}
+				}
+			}
+		}
+
+		if (input.length > 0) {
+			ChartCell<R, T> top = chart.getCell(0, input.length);
+			if (top != null) {
+				for (Key<R, T> key : top.getKeys()) {
+					if (grammar.isStartSymbol(key.getLhs())) {
+						chart.addParse(key);
+					}
+				}
+			}
+		}
+
+		log.fine("PARSING COMPLETE: Created " + chart.getKeyCount() + " keys.");
+		return chart;
+	}
+
+	/**
+	 * Creates the prefix arcs and keys of one span from the keys and arcs of
+	 * shorter spans and then closes the span under unary rules.
+	 */
+	private void fillSpan(SentenceState state, int start, int end) {
+
+		ArcCell arcCell = new ArcCell();
+		ChartCell<R, T> cell = new ChartCell<R, T>(start, end);
+
+		if (end - start == 1 && state.terminalTries[start] != null) {
+			ActiveArc<R, T> arc = new ActiveArc<R, T>(start, end, state.terminalTries[start]);
+			arc.addBackpointer(0, state.terminalKeys[start]);
+			add(arc, arcCell, cell);
+		}
+
+		// extend the arcs of each shorter prefix [start, mid) with the keys or
+		// terminal covering [mid, end)
+		for (int mid = start + 1; mid < end; mid++) {
+			ArcCell prefixArcs = state.arcCells[state.getSpanIndex(start, mid)];
+			if (prefixArcs == null) {
+				continue;
+			}
+			ChartCell<R, T> suffixKeys = state.cells[state.getSpanIndex(mid, end)];
+
+			for (ActiveArc<R, T> arc : prefixArcs.arcs) {
+				RuleTrie<R, T> node = arc.getNode();
+				if (node.getChildCount() == 0) {
+					continue;
+				}
+				if (end - mid == 1) {
+					RuleTrie<R, T> child = node.getChild(state.input[mid]);
+					if (child != null) {
+						extend(arc, child, state.terminalKeys[mid], arcCell, cell);
+					}
+				}
+				if (suffixKeys != null) {
+					for (Key<R, T> key : suffixKeys.getKeys()) {
+						RuleTrie<R, T> child = node.getChild(key.getLhs());
+						if (child != null) {
+							if (profileRules) {
+								key.startTimer();
+							}
+							extend(arc, child, key, arcCell, cell);
+							if (profileRules) {
+								key.stopTimer();
+							}
+						}
+					}
+				}
+			}
+		}
+
+		// start arcs with each key of this span, which may complete unary
+		// rules and so add keys to this span
+		for (int i = 0; i < cell.size(); i++) {
+			Key<R, T> key = cell.getKeys().get(i);
+			if (profileRules) {
+				key.startTimer();
+			}
+			RuleTrie<R, T> node = state.getTrieStartingWith(key);
+			if (node != null
+					&& arcCell.packedArcs.containsKey(new PackingKey<R, T>(node, null)) == false) {
+				ActiveArc<R, T> arc = new ActiveArc<R, T>(start, end, node);
+				arc.addBackpointer(0, key);
+				add(arc, arcCell, cell);
+			}
+			if (profileRules) {
+				key.stopTimer();
+			}
+		}
+
+		int spanIndex = state.getSpanIndex(start, end);
+		if (arcCell.arcs.isEmpty() == false) {
+			state.arcCells[spanIndex] = arcCell;
+		}
+		if (cell.size() > 0) {
+			state.cells[spanIndex] = cell;
+		}
+	}
+
+	private void extend(ActiveArc<R, T> arc, RuleTrie<R, T> child, Key<R, T> key,
+			ArcCell arcCell, ChartCell<R, T> cell) {
+
+		assert child.getDepth() == arc.getDot() + 1;
+		if (arcCell.packedArcs.containsKey(new PackingKey<R, T>(child, arc)) == false
+				&& ActiveArc.areConstraintsSatisfied(child, key)) {
+			add(arc.extend(key, child), arcCell, cell);
+		}
+	}
+
+	/**
+	 * Files a new prefix arc with its span and completes the rules that end at
+	 * its trie node.
+	 */
+	private void add(ActiveArc<R, T> prefixArc, ArcCell arcCell, ChartCell<R, T> cell) {
+
+		arcCell.packedArcs.put(new PackingKey<R, T>(prefixArc.getNode(), prefixArc.getParentArc()),
+				prefixArc);
+		arcCell.arcs.add(prefixArc);
+
+		for (List<R> ruleGroup : prefixArc.getNode().getCompleteRuleGroups()) {
+			if (ActiveArcManager.areConstraintsSatisfied(prefixArc, ruleGroup)) {
+				ActiveArc<R, T> completedArc = prefixArc.complete(ruleGroup);
+				cell.add(new Key<R, T>(completedArc, null));
+			}
+		}
+	}
+
+	private Key<R, T> makeDummyKey(T token, int i) {
+
+		R dummyRule = ruleFactory.makeDummyRule(token);
+		ActiveArc<R, T> dummyArc = new ActiveArc<R, T>(i, i + 1, 1, dummyRule);
+		Key<R, T> dummyKey = new Key<R, T>(dummyArc, token);
+		return dummyKey;
+	}
+}
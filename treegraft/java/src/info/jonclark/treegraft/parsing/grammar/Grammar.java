@@ -3,23 +3,36 @@ package info.jonclark.treegraft.parsing.grammar;
 import info.jonclark.log.LogUtils;
 import info.jonclark.treegraft.core.tokens.Token;
 import info.jonclark.treegraft.core.tokens.TokenFactory;
+import info.jonclark.treegraft.core.tokens.TokenSequence;
 import info.jonclark.treegraft.parsing.chartparser.Key;
 import info.jonclark.treegraft.parsing.rules.GrammarRule;
+import info.jonclark.treegraft.parsing.rules.NonterminalIds;
+import info.jonclark.treegraft.parsing.rules.RuleException;
 import info.jonclark.treegraft.parsing.transduction.Transducer;
 import info.jonclark.util.HashUtils;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 /**
  * Contains (and can read in) the rules with which input sequences will be
  * parsed.
+ * <p>
+ * Besides individual rules, a grammar can hold blocks of rules from compiled
+ * grammars (see {@link RuleBlock}), which are only materialized the first
+ * time rules beginning with their symbol are requested. Such rules are
+ * filtered as they are materialized and are only included in
+ * {@link #getAllRules()} once they have been materialized.
  * 
  * @author Jonathan Clark
  * @param <R>
@@ -37,13 +50,36 @@ public class Grammar<R extends GrammarRule<T>, T extends Token> {
 	private HashMap<T, ArrayList<R>> nonterminalInitialRules = new HashMap<T, ArrayList<R>>();
 	private HashMap<T, ArrayList<R>> terminalInitialRules = new HashMap<T, ArrayList<R>>();
 	private ArrayList<R> allRules = new ArrayList<R>();
+	private HashMap<T, LazyRules> lazyNonterminalInitialRules = new HashMap<T, LazyRules>();
+	private HashMap<T, LazyRules> lazyTerminalInitialRules = new HashMap<T, LazyRules>();
+	private ConcurrentHashMap<T, RuleTrie<R, T>> nonterminalInitialTries =
+			new ConcurrentHashMap<T, RuleTrie<R, T>>();
+	private ConcurrentHashMap<T, RuleTrie<R, T>> terminalInitialTries =
+			new ConcurrentHashMap<T, RuleTrie<R, T>>();
+	private ConcurrentHashMap<T, TerminalRunIndex<R, T>> nonterminalInitialRuns =
+			new ConcurrentHashMap<T, TerminalRunIndex<R, T>>();
+	private ConcurrentHashMap<T, TerminalRunIndex<R, T>> terminalInitialRuns =
+			new ConcurrentHashMap<T, TerminalRunIndex<R, T>>();
 	private HashSet<T> startSymbols = new HashSet<T>();
+	private NonterminalIds nonterminalIds;
 	private HashSet<T> vocabulary;
 	private int nCandidates = 0;
 
+	// rules kept so far for each (source LHS, source RHS) while loading with
+	// a k-best limit; see keepKBestRulesWhileLoading()
+	private int kBestWhileLoading = 0;
+	private LinkedHashMap<TokenSequence<T>, KBestGroup> kBestGroups = null;
+	private volatile boolean kBestDirty = false;
+	private long nRulesOffered = 0;
+	private int nRulesKept = 0;
+
 	private HashSet<T> filterLHSTokens;
 	private HashSet<T> filterRHSTokens;
 
+	// IDs of rules removed by pruneRules(); compiled rules are checked as they
+	// are materialized
+	private HashSet<String> prunedRuleIds = new HashSet<String>();
+
 	/**
 	 * @param tokenFactory
 	 * @param startSymbols
@@ -63,6 +99,7 @@ public class Grammar<R extends GrammarRule<T>, T extends Token> {
 		for (String startSymbol : startSymbols) {
 			this.startSymbols.add(tokenFactory.makeToken(startSymbol, false));
 		}
+		this.nonterminalIds = NonterminalIds.forTokenFactory(tokenFactory);
 		this.vocabulary = vocabulary;
 		this.filterLHSTokens = filterLHSTokens;
 		this.filterRHSTokens = filterRHSTokens;
@@ -88,15 +125,27 @@ public class Grammar<R extends GrammarRule<T>, T extends Token> {
 	 * @return a new grammar filtered to the specified vocabulary
 	 */
 	public Grammar<R, T> filterToVocabulary(HashSet<T> vocabulary) {
+		mergeKBestRules();
 
 		Grammar<R, T> filteredGrammar = new Grammar<R, T>();
 		filteredGrammar.startSymbols = this.startSymbols;
+		filteredGrammar.nonterminalIds = this.nonterminalIds;
 
 		filterSet(vocabulary, filteredGrammar, this.nonterminalInitialRules,
 				filteredGrammar.nonterminalInitialRules);
 		filterSet(vocabulary, filteredGrammar, this.terminalInitialRules,
 				filteredGrammar.terminalInitialRules);
 
+		// compiled rule blocks are filtered as they are materialized
+		filteredGrammar.vocabulary = vocabulary;
+		filteredGrammar.filterLHSTokens = this.filterLHSTokens;
+		filteredGrammar.filterRHSTokens = this.filterRHSTokens;
+		filteredGrammar.prunedRuleIds = this.prunedRuleIds;
+		copyRuleBlocks(this.lazyNonterminalInitialRules,
+				filteredGrammar.lazyNonterminalInitialRules, filteredGrammar);
+		copyRuleBlocks(this.lazyTerminalInitialRules, filteredGrammar.lazyTerminalInitialRules,
+				filteredGrammar);
+
 		log.info("Kept " + filteredGrammar.getAllRules().size() + " / " + this.getAllRules().size()
 				+ " rules.");
 
@@ -117,16 +166,26 @@ public class Grammar<R extends GrammarRule<T>, T extends Token> {
 		}
 	}
 
+	/**
+	 * Keeps the k best rules for each source LHS and source RHS, ranked by
+	 * sgt*tgs with lower values first and ties broken by load order. This
+	 * keeps the same rules as {@link #keepKBestRulesWhileLoading(int)}.
+	 * 
+	 * @param k
+	 *            the number of rules to keep for each source LHS and RHS; zero
+	 *            or less keeps all rules
+	 * @return a new grammar containing the k-best rules
+	 */
 	public Grammar<R, T> keepKBestRules(int k) {
 
 		// declare 2 rules equal if their source LHS
 		// and source RHS are equal
 		Comparator<R> category = new Comparator<R>() {
 			public int compare(R o1, R o2) {
-				// int eq = o1.getLhs().compareTo(o2.getLhs());
-				// if (eq != 0) {
-				// return eq;
-				// }
+				int lhsEq = o1.getLhs().compareTo(o2.getLhs());
+				if (lhsEq != 0) {
+					return lhsEq;
+				}
 				if (o1.getRhs().length < o2.getRhs().length) {
 					return -1;
 				} else if (o1.getRhs().length > o2.getRhs().length) {
@@ -144,20 +203,40 @@ public class Grammar<R extends GrammarRule<T>, T extends Token> {
 		};
 		Comparator<R> ranker = new Comparator<R>() {
 			public int compare(R o1, R o2) {
-				double s1 = o1.getRuleScores().sgt * o1.getRuleScores().tgs;
-				double s2 = o2.getRuleScores().sgt * o2.getRuleScores().tgs;
-				return (int) (s1 - s2);
+				return Double.compare(getRank(o1), getRank(o2));
 			}
 		};
 		return keepKBestRules(k, category, ranker);
 	}
 
+	/**
+	 * The value by which rules in the same category are ranked when keeping
+	 * the k-best rules; lower is better.
+	 */
+	private static double getRank(GrammarRule<?> rule) {
+		return rule.getRuleScores().sgt * rule.getRuleScores().tgs;
+	}
+
 	public Grammar<R, T> keepKBestRules(int k, Comparator<R> categoryComparator,
 			Comparator<R> ranker) {
 
+		mergeKBestRules();
 		Collections.sort(allRules, categoryComparator);
 
 		Grammar<R, T> newGrammar = new Grammar<R, T>();
+		newGrammar.startSymbols = this.startSymbols;
+		newGrammar.nonterminalIds = this.nonterminalIds;
+		newGrammar.vocabulary = this.vocabulary;
+		newGrammar.filterLHSTokens = this.filterLHSTokens;
+		newGrammar.filterRHSTokens = this.filterRHSTokens;
+		newGrammar.prunedRuleIds = this.prunedRuleIds;
+
+		// compiled rule blocks were already pruned when they were compiled
+		copyRuleBlocks(this.lazyNonterminalInitialRules, newGrammar.lazyNonterminalInitialRules,
+				newGrammar);
+		copyRuleBlocks(this.lazyTerminalInitialRules, newGrammar.lazyTerminalInitialRules,
+				newGrammar);
+
 		for (int i = 0; i < allRules.size();) {
 			R firstRule = allRules.get(i);
 			int j = i;
@@ -168,7 +247,7 @@ public class Grammar<R extends GrammarRule<T>, T extends Token> {
 
 			List<R> ruleGroup = allRules.subList(i, j);
 			Collections.sort(ruleGroup, ranker);
-			for (int x = 0; x < k && x < ruleGroup.size(); x++) {
+			for (int x = 0; (k <= 0 || x < k) && x < ruleGroup.size(); x++) {
 				R r = ruleGroup.get(x);
 				boolean lexicalInitial = r.getRhs()[0].isTerminal();
 				newGrammar.addRule(r, lexicalInitial);
@@ -223,7 +302,9 @@ public class Grammar<R extends GrammarRule<T>, T extends Token> {
 	public void addRule(R rule, boolean terminalInitial) {
 
 		if (vocabulary == null || ruleIsInVocabulary(vocabulary, rule)) {
-			if (terminalInitial) {
+			if (kBestWhileLoading > 0) {
+				offerKBest(rule);
+			} else if (terminalInitial) {
 				putRule(rule, terminalInitialRules);
 			} else {
 				putRule(rule, nonterminalInitialRules);
@@ -232,7 +313,267 @@ public class Grammar<R extends GrammarRule<T>, T extends Token> {
 
 		nCandidates++;
 		if (nCandidates % 100000 == 0)
-			log.fine("Read " + nCandidates + " so far and kept " + getAllRules().size() + "...");
+			log.fine("Read " + nCandidates + " so far and kept " + getKeptCount() + "...");
+	}
+
+	/**
+	 * Determines whether {@link #addRule(GrammarRule, boolean)} would keep a
+	 * rule. This only reads the grammar's filters, so it may be called from
+	 * any number of threads (e.g. by loaders that filter rules in parallel
+	 * before handing them to {@link #addFilteredRules(List, int)}).
+	 *
+	 * @param rule
+	 * @return true if the rule passes this grammar's vocabulary filters
+	 */
+	public boolean accepts(R rule) {
+		return (vocabulary == null || ruleIsInVocabulary(vocabulary, rule));
+	}
+
+	/**
+	 * Adds a batch of rules that have already been checked with
+	 * {@link #accepts(GrammarRule)}, each indexed as terminal-initial if the
+	 * first symbol of its RHS is a terminal. Like
+	 * {@link #addRule(GrammarRule, boolean)}, this is not thread-safe: parallel
+	 * loaders build one batch per chunk of input and merge the batches from a
+	 * single thread.
+	 *
+	 * @param acceptedRules
+	 * @param nCandidates
+	 *            the number of rules that were read to produce this batch,
+	 *            including those that were not accepted
+	 */
+	public void addFilteredRules(List<R> acceptedRules, int nCandidates) {
+
+		for (R rule : acceptedRules) {
+			if (kBestWhileLoading > 0) {
+				offerKBest(rule);
+			} else if (rule.getRhs()[0].isTerminal()) {
+				putRule(rule, terminalInitialRules);
+			} else {
+				putRule(rule, nonterminalInitialRules);
+			}
+		}
+
+		int before = this.nCandidates;
+		this.nCandidates += nCandidates;
+		if (before / 100000 != this.nCandidates / 100000)
+			log.fine("Read " + this.nCandidates + " so far and kept " + getKeptCount() + "...");
+	}
+
+	/**
+	 * Limits the rules that are added to this grammar from now on to the k
+	 * best for each source LHS and source RHS (as ranked by
+	 * {@link #keepKBestRules(int)}), applying the limit as each rule is added
+	 * rather than after loading. Each (LHS, RHS) pair keeps a bounded heap
+	 * whose worst rule is evicted when a better one arrives, so memory stays
+	 * proportional to the pruned grammar. The surviving rules are indexed
+	 * the first time the grammar is read.
+	 * 
+	 * @param k
+	 *            the number of rules to keep for each source LHS and RHS; zero
+	 *            or less keeps all rules
+	 */
+	public void keepKBestRulesWhileLoading(int k) {
+		if (allRules.isEmpty() == false || kBestGroups != null) {
+			throw new IllegalStateException("The k-best limit must be set before adding rules");
+		}
+		this.kBestWhileLoading = k;
+		if (k > 0) {
+			this.kBestGroups = new LinkedHashMap<TokenSequence<T>, KBestGroup>();
+		}
+	}
+
+	/**
+	 * A rule kept by the k-best limit along with the order in which it was
+	 * added so that ties are broken in favor of earlier rules.
+	 */
+	private class RankedRule implements Comparable<RankedRule> {
+		public final R rule;
+		public final double rank;
+		public final long order;
+
+		public RankedRule(R rule, long order) {
+			this.rule = rule;
+			this.rank = getRank(rule);
+			this.order = order;
+		}
+
+		/**
+		 * Sorts better rules first.
+		 */
+		public int compareTo(RankedRule other) {
+			int cmp = Double.compare(this.rank, other.rank);
+			if (cmp == 0) {
+				cmp = (this.order < other.order) ? -1 : ((this.order == other.order) ? 0 : 1);
+			}
+			return cmp;
+		}
+	}
+
+	/**
+	 * The best rules seen so far for one source LHS and RHS, with the worst
+	 * of them at the head of the heap.
+	 */
+	private class KBestGroup {
+		public final PriorityQueue<RankedRule> worstFirst =
+				new PriorityQueue<RankedRule>(1, Collections.reverseOrder());
+	}
+
+	private void offerKBest(R rule) {
+
+		TokenSequence<T> category = rule.getArcPackingString();
+		KBestGroup group = kBestGroups.get(category);
+		if (group == null) {
+			group = new KBestGroup();
+			kBestGroups.put(category, group);
+		}
+
+		RankedRule ranked = new RankedRule(rule, nRulesOffered++);
+		if (group.worstFirst.size() < kBestWhileLoading) {
+			group.worstFirst.add(ranked);
+			nRulesKept++;
+		} else if (ranked.compareTo(group.worstFirst.peek()) < 0) {
+			group.worstFirst.poll();
+			group.worstFirst.add(ranked);
+		} else {
+			return;
+		}
+
+		if (kBestDirty == false) {
+			kBestDirty = true;
+			clearTries();
+		}
+	}
+
+	/**
+	 * Rebuilds the rule indices from the rules kept by the k-best limit if
+	 * any rules have been added since they were last built.
+	 */
+	private void mergeKBestRules() {
+		if (kBestDirty) {
+			synchronized (this) {
+				if (kBestDirty) {
+					terminalInitialRules.clear();
+					nonterminalInitialRules.clear();
+					allRules.clear();
+					allRules.ensureCapacity(nRulesKept);
+
+					for (KBestGroup group : kBestGroups.values()) {
+						ArrayList<RankedRule> ranked = new ArrayList<RankedRule>(group.worstFirst);
+						Collections.sort(ranked);
+						for (RankedRule r : ranked) {
+							if (isPruned(r.rule)) {
+								continue;
+							} else if (r.rule.getRhs()[0].isTerminal()) {
+								putRule(r.rule, terminalInitialRules);
+							} else {
+								putRule(r.rule, nonterminalInitialRules);
+							}
+						}
+					}
+					kBestDirty = false;
+				}
+			}
+		}
+	}
+
+	private int getKeptCount() {
+		if (kBestWhileLoading > 0) {
+			return nRulesKept;
+		} else {
+			return allRules.size();
+		}
+	}
+
+	/**
+	 * Adds a block of rules from a compiled grammar, all of which begin with
+	 * the same source RHS symbol. The rules will be created (and filtered like
+	 * those passed to {@link #addRule(GrammarRule, boolean)}) the first time
+	 * rules beginning with that symbol are requested. Must not be called
+	 * concurrently with lookups.
+	 * 
+	 * @param firstRhs
+	 *            the first symbol of the source RHS of every rule in the block
+	 * @param terminalInitial
+	 *            true if that symbol is a terminal
+	 * @param block
+	 */
+	public void addRuleBlock(T firstRhs, boolean terminalInitial, RuleBlock<R, T> block) {
+
+		nCandidates += block.size();
+		if (terminalInitial && vocabulary != null && vocabulary.contains(firstRhs) == false) {
+			// none of these rules could pass the vocabulary filter
+			return;
+		}
+
+		HashMap<T, LazyRules> lazyMap =
+				terminalInitial ? lazyTerminalInitialRules : lazyNonterminalInitialRules;
+		clearTries();
+		LazyRules lazy = lazyMap.get(firstRhs);
+		if (lazy == null) {
+			lazy = new LazyRules();
+			lazyMap.put(firstRhs, lazy);
+		}
+		lazy.blocks.add(block);
+	}
+
+	private void copyRuleBlocks(HashMap<T, LazyRules> from, HashMap<T, LazyRules> to,
+			Grammar<R, T> toGrammar) {
+
+		for (Entry<T, LazyRules> entry : from.entrySet()) {
+			LazyRules lazy = toGrammar.new LazyRules();
+			lazy.blocks.addAll(entry.getValue().blocks);
+			to.put(entry.getKey(), lazy);
+		}
+	}
+
+	/**
+	 * The rule blocks that begin with a given symbol, along with the rules
+	 * created from them once they are first needed.
+	 */
+	private class LazyRules {
+		private final ArrayList<RuleBlock<R, T>> blocks = new ArrayList<RuleBlock<R, T>>(1);
+		private volatile List<R> rules = null;
+
+		/**
+		 * @param eagerRules
+		 *            the rules beginning with the same symbol that were added
+		 *            individually (may be null)
+		 * @return the combination of eagerRules and the rules from all blocks
+		 */
+		public List<R> getRules(List<R> eagerRules) {
+			List<R> result = rules;
+			if (result == null) {
+				synchronized (this) {
+					if (rules == null) {
+						ArrayList<R> list = new ArrayList<R>();
+						if (eagerRules != null) {
+							list.addAll(eagerRules);
+						}
+						try {
+							for (RuleBlock<R, T> block : blocks) {
+								for (R rule : block.getRules()) {
+									if ((vocabulary == null || ruleIsInVocabulary(vocabulary, rule))
+											&& isPruned(rule) == false) {
+										list.add(rule);
+									}
+								}
+							}
+						} catch (RuleException e) {
+							throw new RuntimeException("Could not read compiled rules", e);
+						}
+						list.trimToSize();
+						rules = list;
+					}
+					result = rules;
+				}
+			}
+			return result;
+		}
+
+		public List<R> getRulesIfMaterialized() {
+			return rules;
+		}
 	}
 
 	private void putRule(R rule, HashMap<T, ArrayList<R>> ruleMap) {
@@ -243,11 +584,69 @@ public class Grammar<R extends GrammarRule<T>, T extends Token> {
 		}
 		existingRules.add(rule);
 		allRules.add(rule);
+		clearTries();
 		
 //		System.out.println("Loading rule: " + rule.toString() + " TO " + rule.getRhs()[0]);
 //		System.out.println(ruleMap.toString());
 	}
 
+	/**
+	 * Removes rules from this grammar (e.g. those chosen by a
+	 * {@link GrammarPruner}). Rules from compiled blocks that have not been
+	 * materialized yet are removed as they are materialized. Must not be
+	 * called concurrently with lookups.
+	 * 
+	 * @param ruleIds
+	 *            the IDs of the rules to be removed
+	 * @return the number of rules that were removed from the rules added so
+	 *         far
+	 */
+	public int pruneRules(Collection<String> ruleIds) {
+		int nRulesBefore = getAllRules().size();
+		prunedRuleIds.addAll(ruleIds);
+
+		ArrayList<R> keptRules = new ArrayList<R>(allRules.size());
+		for (R rule : allRules) {
+			if (isPruned(rule) == false) {
+				keptRules.add(rule);
+			}
+		}
+		allRules.clear();
+		terminalInitialRules.clear();
+		nonterminalInitialRules.clear();
+		for (R rule : keptRules) {
+			if (rule.getRhs()[0].isTerminal()) {
+				putRule(rule, terminalInitialRules);
+			} else {
+				putRule(rule, nonterminalInitialRules);
+			}
+		}
+
+		// rules that were already materialized from compiled blocks
+		for (HashMap<T, LazyRules> lazyMap : lazyMaps()) {
+			for (LazyRules lazy : lazyMap.values()) {
+				List<R> materialized = lazy.getRulesIfMaterialized();
+				if (materialized != null) {
+					ArrayList<R> list = new ArrayList<R>(materialized.size());
+					for (R rule : materialized) {
+						if (isPruned(rule) == false) {
+							list.add(rule);
+						}
+					}
+					list.trimToSize();
+					lazy.rules = list;
+				}
+			}
+		}
+		clearTries();
+
+		return nRulesBefore - getAllRules().size();
+	}
+
+	private boolean isPruned(R rule) {
+		return prunedRuleIds.isEmpty() == false && prunedRuleIds.contains(rule.getRuleId());
+	}
+
 	/**
 	 * Gets the number of rules that were added to this <code>Grammar</code>
 	 * before the internal filtering was applied.
@@ -259,6 +658,7 @@ public class Grammar<R extends GrammarRule<T>, T extends Token> {
 	}
 
 	public HashSet<T> getTargetVocabulary(Transducer<R, T> transducer) {
+		mergeKBestRules();
 		HashSet<T> targetVocabulary = new HashSet<T>();
 		for (R rule : allRules) {
 			T[] targetRhs = transducer.transduceRhs(rule);
@@ -268,9 +668,25 @@ public class Grammar<R extends GrammarRule<T>, T extends Token> {
 				}
 			}
 		}
+
+		// read directly from compiled rules so that they needn't be created
+		for (HashMap<T, LazyRules> lazyMap : lazyMaps()) {
+			for (LazyRules lazy : lazyMap.values()) {
+				for (RuleBlock<R, T> block : lazy.blocks) {
+					block.addTargetVocabulary(vocabulary, targetVocabulary);
+				}
+			}
+		}
 		return targetVocabulary;
 	}
 
+	private List<HashMap<T, LazyRules>> lazyMaps() {
+		List<HashMap<T, LazyRules>> maps = new ArrayList<HashMap<T, LazyRules>>(2);
+		maps.add(lazyNonterminalInitialRules);
+		maps.add(lazyTerminalInitialRules);
+		return maps;
+	}
+
 	/**
 	 * Gets rules whose source LHS begin with the specified terminal token.
 	 * 
@@ -278,7 +694,12 @@ public class Grammar<R extends GrammarRule<T>, T extends Token> {
 	 * @return
 	 */
 	public List<R> getTerminalInitialRules(T word) {
+		mergeKBestRules();
 		List<R> rules = this.terminalInitialRules.get(word);
+		LazyRules lazy = this.lazyTerminalInitialRules.get(word);
+		if (lazy != null) {
+			rules = lazy.getRules(rules);
+		}
 //		System.out.println(terminalInitialRules.toString());
 //		System.out.println(word.toString());
 //		System.out.println("RULES: " + rules);
@@ -297,8 +718,13 @@ public class Grammar<R extends GrammarRule<T>, T extends Token> {
 	 * @return
 	 */
 	public List<R> getRulesStartingWith(Key<R, T> key) {
+		mergeKBestRules();
 		// if (useTopDownPredictions) {}
 		List<R> result = nonterminalInitialRules.get(key.getLhs());
+		LazyRules lazy = lazyNonterminalInitialRules.get(key.getLhs());
+		if (lazy != null) {
+			result = lazy.getRules(result);
+		}
 		if (result == null) {
 			return emptyRuleList;
 		} else {
@@ -307,12 +733,157 @@ public class Grammar<R extends GrammarRule<T>, T extends Token> {
 	}
 
 	/**
-	 * Gets a list of all rules contained in this <code>Grammar</code>
+	 * Gets a prefix trie of the rules whose source RHS begins with the
+	 * specified terminal token. Tries are built the first time they are
+	 * requested and may be shared by several parsing threads.
+	 * 
+	 * @param word
+	 * @return the trie node for <code>word</code> or NULL if no rules begin
+	 *         with it
+	 */
+	public RuleTrie<R, T> getTerminalInitialTrie(T word) {
+		RuleTrie<R, T> trie = terminalInitialTries.get(word);
+		if (trie == null) {
+			List<R> rules = getTerminalInitialRules(word);
+			if (rules.isEmpty()) {
+				return null;
+			}
+			trie = RuleTrie.build(word, rules, nonterminalIds);
+			RuleTrie<R, T> prev = terminalInitialTries.putIfAbsent(word, trie);
+			if (prev != null) {
+				trie = prev;
+			}
+		}
+		return trie;
+	}
+
+	/**
+	 * Gets a prefix trie of the rules whose source RHS begins with the
+	 * specified key's LHS (see {@link #getTerminalInitialTrie(Token)}).
+	 * 
+	 * @param key
+	 * @return the trie node for the key's LHS or NULL if no rules begin with
+	 *         it
+	 */
+	public RuleTrie<R, T> getTrieStartingWith(Key<R, T> key) {
+		T lhs = key.getLhs();
+		RuleTrie<R, T> trie = nonterminalInitialTries.get(lhs);
+		if (trie == null) {
+			List<R> rules = getRulesStartingWith(key);
+			if (rules.isEmpty()) {
+				return null;
+			}
+			trie = RuleTrie.build(lhs, rules, nonterminalIds);
+			RuleTrie<R, T> prev = nonterminalInitialTries.putIfAbsent(lhs, trie);
+			if (prev != null) {
+				trie = prev;
+			}
+		}
+		return trie;
+	}
+
+	/**
+	 * Gets an index of the terminal runs of the rules in
+	 * {@link #getTerminalInitialTrie(Token)}, which is built the first time it
+	 * is requested.
+	 * 
+	 * @param word
+	 * @return
+	 */
+	TerminalRunIndex<R, T> getTerminalInitialRuns(T word) {
+		TerminalRunIndex<R, T> index = terminalInitialRuns.get(word);
+		if (index == null) {
+			index = new TerminalRunIndex<R, T>(getTerminalInitialRules(word));
+			TerminalRunIndex<R, T> prev = terminalInitialRuns.putIfAbsent(word, index);
+			if (prev != null) {
+				index = prev;
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Gets an index of the terminal runs of the rules in
+	 * {@link #getTrieStartingWith(Key)}, which is built the first time it is
+	 * requested.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	TerminalRunIndex<R, T> getRunsStartingWith(Key<R, T> key) {
+		T lhs = key.getLhs();
+		TerminalRunIndex<R, T> index = nonterminalInitialRuns.get(lhs);
+		if (index == null) {
+			index = new TerminalRunIndex<R, T>(getRulesStartingWith(key));
+			TerminalRunIndex<R, T> prev = nonterminalInitialRuns.putIfAbsent(lhs, index);
+			if (prev != null) {
+				index = prev;
+			}
+		}
+		return index;
+	}
+
+	private void clearTries() {
+		if (terminalInitialTries.isEmpty() == false) {
+			terminalInitialTries.clear();
+		}
+		if (nonterminalInitialTries.isEmpty() == false) {
+			nonterminalInitialTries.clear();
+		}
+		if (terminalInitialRuns.isEmpty() == false) {
+			terminalInitialRuns.clear();
+		}
+		if (nonterminalInitialRuns.isEmpty() == false) {
+			nonterminalInitialRuns.clear();
+		}
+	}
+
+	/**
+	 * Gets a list of all rules contained in this <code>Grammar</code>,
+	 * including rules from compiled blocks that have been materialized so far.
 	 * 
 	 * @return a list of rules
 	 */
 	public ArrayList<R> getAllRules() {
-		return allRules;
+		mergeKBestRules();
+		if (lazyNonterminalInitialRules.isEmpty() && lazyTerminalInitialRules.isEmpty()) {
+			return allRules;
+		}
+
+		// materialized lists also contain the eager rules with the same first
+		// symbol, so skip those
+		ArrayList<R> rules = new ArrayList<R>(allRules);
+		addMaterialized(lazyNonterminalInitialRules, nonterminalInitialRules, rules);
+		addMaterialized(lazyTerminalInitialRules, terminalInitialRules, rules);
+		return rules;
+	}
+
+	/**
+	 * Creates the rules of all compiled rule blocks now rather than when they
+	 * are first needed so that {@link #getAllRules()} returns every rule in
+	 * this <code>Grammar</code>.
+	 */
+	public void materializeRules() {
+		mergeKBestRules();
+		for (Entry<T, LazyRules> entry : lazyNonterminalInitialRules.entrySet()) {
+			entry.getValue().getRules(nonterminalInitialRules.get(entry.getKey()));
+		}
+		for (Entry<T, LazyRules> entry : lazyTerminalInitialRules.entrySet()) {
+			entry.getValue().getRules(terminalInitialRules.get(entry.getKey()));
+		}
+	}
+
+	private void addMaterialized(HashMap<T, LazyRules> lazyMap,
+			HashMap<T, ArrayList<R>> eagerMap, ArrayList<R> rules) {
+
+		for (Entry<T, LazyRules> entry : lazyMap.entrySet()) {
+			List<R> materialized = entry.getValue().getRulesIfMaterialized();
+			if (materialized != null) {
+				ArrayList<R> eager = eagerMap.get(entry.getKey());
+				int nEager = (eager == null) ? 0 : eager.size();
+				rules.addAll(materialized.subList(nEager, materialized.size()));
+			}
+		}
 	}
 
 	/**
@@ -324,6 +895,7 @@ public class Grammar<R extends GrammarRule<T>, T extends Token> {
 	 * @return a list of the most productive rules in the grammar
 	 */
 	public ArrayList<R> getNMostProductiveRules(int n) {
+		ArrayList<R> allRules = getAllRules();
 		Collections.sort(allRules, new Comparator<R>() {
 			public int compare(R a, R b) {
 				return (b.getKeysCreated() - a.getKeysCreated());
@@ -338,6 +910,7 @@ public class Grammar<R extends GrammarRule<T>, T extends Token> {
 	}
 
 	public ArrayList<R> getNSlowestRules(int n) {
+		ArrayList<R> allRules = getAllRules();
 		Collections.sort(allRules, new Comparator<R>() {
 			public int compare(R a, R b) {
 				return (int) ((b.getTimeCost() - a.getTimeCost()) * 1000);
@@ -352,6 +925,15 @@ public class Grammar<R extends GrammarRule<T>, T extends Token> {
 		return list;
 	}
 
+	/**
+	 * @return the IDs of the non-terminals of this grammar's token factory,
+	 *         which are also used by any rules built for it while parsing
+	 *         (e.g. for out-of-vocabulary words)
+	 */
+	public NonterminalIds getNonterminalIds() {
+		return nonterminalIds;
+	}
+
 	/**
 	 * Determines if a terminal or non-terminal token is a start symbol.
 	 * 
@@ -1,8 +1,15 @@
 package info.jonclark.treegraft.parsing.grammar;
 
+import info.jonclark.treegraft.core.Plugin;
 import info.jonclark.treegraft.core.tokens.Token;
 import info.jonclark.treegraft.parsing.rules.GrammarRule;
 
-public interface GrammarPruner<R extends GrammarRule<T>, T extends Token> {
+/**
+ * Removes rules from a grammar once it has been loaded, e.g. to trade a small
+ * loss in quality for faster parsing.
+ * 
+ * @author Jonathan Clark
+ */
+public interface GrammarPruner<R extends GrammarRule<T>, T extends Token> extends Plugin<R, T> {
 	public void pruneGrammar(Grammar<R,T> grammar);
 }
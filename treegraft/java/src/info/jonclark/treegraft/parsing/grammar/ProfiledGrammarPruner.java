@@ -0,0 +1,46 @@
+package info.jonclark.treegraft.parsing.grammar;
+
+import info.jonclark.log.LogUtils;
+import info.jonclark.treegraft.Treegraft.TreegraftConfig;
+import info.jonclark.treegraft.core.tokens.Token;
+import info.jonclark.treegraft.parsing.rules.GrammarRule;
+
+import java.util.Collection;
+import java.util.logging.Logger;
+
+/**
+ * Base class for pruners that choose which rules to remove using the
+ * statistics of a profiling run (see {@link RuleProfile}), which is read from
+ * <code>grammar.profile.inFile</code>. Rules that were never used during
+ * profiling are never pruned, since there is no evidence against them.
+ * 
+ * @author Jonathan Clark
+ */
+public abstract class ProfiledGrammarPruner<R extends GrammarRule<T>, T extends Token> implements
+		GrammarPruner<R, T> {
+
+	private static final Logger log = LogUtils.getLogger();
+
+	protected final RuleProfile profile;
+
+	protected ProfiledGrammarPruner(TreegraftConfig<R, T> config) {
+		if (config.ruleProfile == null) {
+			throw new RuntimeException(getClass().getSimpleName()
+					+ " requires grammar.profile.inFile");
+		}
+		this.profile = config.ruleProfile;
+	}
+
+	/**
+	 * @return the IDs of the rules to be removed
+	 */
+	protected abstract Collection<String> selectRulesToPrune();
+
+	public void pruneGrammar(Grammar<R, T> grammar) {
+		Collection<String> ruleIds = selectRulesToPrune();
+		int nPruned = grammar.pruneRules(ruleIds);
+		log.info(getClass().getSimpleName() + " selected " + ruleIds.size()
+				+ " rules from a profile of " + profile.getSentenceCount() + " sentences and removed "
+				+ nPruned + " from the grammar.");
+	}
+}
@@ -0,0 +1,52 @@
+package info.jonclark.treegraft.parsing.grammar;
+
+import info.jonclark.treegraft.core.tokens.Token;
+import info.jonclark.treegraft.parsing.rules.GrammarRule;
+import info.jonclark.treegraft.parsing.rules.RuleException;
+
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * A group of rules that all begin with the same source RHS symbol and that
+ * are only materialized as rule objects when a <code>Grammar</code> is first
+ * asked for rules beginning with that symbol (see
+ * {@link Grammar#addRuleBlock(Token, boolean, RuleBlock)}). This allows large
+ * compiled grammars to be loaded without creating an object for every rule.
+ * <p>
+ * Implementations must be thread-safe, since blocks may be materialized by
+ * any parser thread.
+ *
+ * @author Jonathan Clark
+ * @param <R>
+ *            The rule type being used in this <code>ChartParser</code>
+ * @param <T>
+ *            The token type being used in this <code>ChartParser</code>
+ */
+public interface RuleBlock<R extends GrammarRule<T>, T extends Token> {
+
+	/**
+	 * @return the number of rules in this block
+	 */
+	public int size();
+
+	/**
+	 * Creates the rules in this block. Each call returns new rule instances.
+	 *
+	 * @return the rules
+	 * @throws RuleException
+	 */
+	public List<R> getRules() throws RuleException;
+
+	/**
+	 * Adds the target-side terminals of every rule in this block whose
+	 * source-side terminals are all contained in the source vocabulary,
+	 * without materializing the rules.
+	 *
+	 * @param sourceVocabulary
+	 *            NULL implies that all rules should be included
+	 * @param targetVocabulary
+	 *            the set to which terminals are added
+	 */
+	public void addTargetVocabulary(HashSet<T> sourceVocabulary, HashSet<T> targetVocabulary);
+}
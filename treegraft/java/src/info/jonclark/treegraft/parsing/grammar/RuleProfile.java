@@ -0,0 +1,225 @@
+package info.jonclark.treegraft.parsing.grammar;
+
+import info.jonclark.log.LogUtils;
+import info.jonclark.treegraft.core.tokens.Token;
+import info.jonclark.treegraft.parsing.parses.PartialParse;
+import info.jonclark.treegraft.parsing.parses.Tree;
+import info.jonclark.treegraft.parsing.rules.GrammarRule;
+import info.jonclark.util.StringUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.text.ParseException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.logging.Logger;
+
+/**
+ * Per-rule statistics gathered during a profiling run: how many keys each rule
+ * created (see {@link GrammarRule#getKeysCreated()}), how much parsing time
+ * was spent on the keys it created (see {@link GrammarRule#getTimeCost()})
+ * and how often it was used by a hypothesis in a final n-best list. Rules are
+ * identified by their rule IDs, so a profile can be written to disk and read
+ * back by later runs with the same grammar, where {@link GrammarPruner}s use
+ * it to remove rules that cost much more than they contribute. Rules without
+ * IDs are not profiled.
+ * <p>
+ * The file format is one line per rule with the tab-delimited fields: rule
+ * ID, keys created, seconds and n-best uses. Lines beginning with '#' are
+ * comments.
+ *
+ * @author Jonathan Clark
+ */
+public class RuleProfile {
+
+	private static final Logger log = LogUtils.getLogger();
+
+	private static final String SENTENCES_HEADER = "# sentences\t";
+
+	private final HashMap<String, RuleStats> stats = new HashMap<String, RuleStats>();
+	private int nSentences = 0;
+
+	/**
+	 * The statistics of one rule.
+	 */
+	public static class RuleStats {
+		public long keysCreated = 0;
+		public double seconds = 0.0;
+		public long nBestUses = 0;
+	}
+
+	/**
+	 * Adds the key counts and time costs that the rules of a grammar have
+	 * accumulated while parsing.
+	 *
+	 * @param grammar
+	 */
+	public <R extends GrammarRule<T>, T extends Token> void recordGrammar(Grammar<R, T> grammar) {
+		int nWithoutIds = 0;
+		for (R rule : grammar.getAllRules()) {
+			if (rule.getKeysCreated() > 0 || rule.getTimeCost() > 0.0) {
+				if (rule.getRuleId() == null) {
+					// such rules can't be told apart, let alone pruned
+					nWithoutIds++;
+					continue;
+				}
+				RuleStats ruleStats = getOrCreate(rule.getRuleId());
+				ruleStats.keysCreated += rule.getKeysCreated();
+				ruleStats.seconds += rule.getTimeCost();
+			}
+		}
+		if (nWithoutIds > 0) {
+			log.warning("Not profiling " + nWithoutIds
+					+ " rules that were used but have no rule IDs");
+		}
+	}
+
+	/**
+	 * Counts each use of a rule by the hypotheses in the final n-best list of
+	 * one sentence.
+	 *
+	 * @param nBestList
+	 */
+	public <T extends Token> void recordNBestList(List<PartialParse<T>> nBestList) {
+		for (PartialParse<T> parse : nBestList) {
+			if (parse.getSourceTree() != null) {
+				recordTree(parse.getSourceTree());
+			}
+		}
+		nSentences++;
+	}
+
+	private <T extends Token> void recordTree(Tree<T> tree) {
+		if (tree.getRuleId() != null) {
+			getOrCreate(tree.getRuleId()).nBestUses++;
+		}
+		for (Tree<T> child : tree.getChildren()) {
+			if (child != null) {
+				recordTree(child);
+			}
+		}
+	}
+
+	private RuleStats getOrCreate(String ruleId) {
+		RuleStats ruleStats = stats.get(ruleId);
+		if (ruleStats == null) {
+			ruleStats = new RuleStats();
+			stats.put(ruleId, ruleStats);
+		}
+		return ruleStats;
+	}
+
+	/**
+	 * @param ruleId
+	 * @return the statistics for a rule or NULL if it was never used during
+	 *         profiling
+	 */
+	public RuleStats get(String ruleId) {
+		return stats.get(ruleId);
+	}
+
+	/**
+	 * @return the IDs of all rules that were used during profiling
+	 */
+	public Collection<String> getRuleIds() {
+		return stats.keySet();
+	}
+
+	/**
+	 * @return the number of sentences that were profiled
+	 */
+	public int getSentenceCount() {
+		return nSentences;
+	}
+
+	/**
+	 * @return the parsing time spent on all rules
+	 */
+	public double getTotalSeconds() {
+		double total = 0.0;
+		for (RuleStats ruleStats : stats.values()) {
+			total += ruleStats.seconds;
+		}
+		return total;
+	}
+
+	/**
+	 * @return the number of keys created by all rules
+	 */
+	public long getTotalKeysCreated() {
+		long total = 0;
+		for (RuleStats ruleStats : stats.values()) {
+			total += ruleStats.keysCreated;
+		}
+		return total;
+	}
+
+	/**
+	 * Reads a profile written by {@link #write(File, String)}.
+	 *
+	 * @param file
+	 * @param encoding
+	 * @return
+	 * @throws IOException
+	 * @throws ParseException
+	 */
+	public static RuleProfile read(File file, String encoding) throws IOException, ParseException {
+
+		RuleProfile profile = new RuleProfile();
+		BufferedReader in =
+				new BufferedReader(new InputStreamReader(new FileInputStream(file), encoding));
+		String line;
+		int nLine = 0;
+		while ((line = in.readLine()) != null) {
+			nLine++;
+			if (line.startsWith(SENTENCES_HEADER)) {
+				profile.nSentences =
+						Integer.parseInt(line.substring(SENTENCES_HEADER.length()).trim());
+				continue;
+			} else if (line.startsWith("#") || line.trim().length() == 0) {
+				continue;
+			}
+
+			String[] columns = StringUtils.tokenize(line, "\t");
+			if (columns.length != 4) {
+				throw new ParseException("Expected 4 columns in rule profile " + file.getPath()
+						+ " on line " + nLine + ": " + line, nLine);
+			}
+			try {
+				RuleStats ruleStats = profile.getOrCreate(columns[0]);
+				ruleStats.keysCreated += Long.parseLong(columns[1]);
+				ruleStats.seconds += Double.parseDouble(columns[2]);
+				ruleStats.nBestUses += Long.parseLong(columns[3]);
+			} catch (NumberFormatException e) {
+				throw new ParseException("Invalid number in rule profile " + file.getPath()
+						+ " on line " + nLine + ": " + line, nLine);
+			}
+		}
+		in.close();
+		return profile;
+	}
+
+	/**
+	 * @param file
+	 * @param encoding
+	 * @throws IOException
+	 */
+	public void write(File file, String encoding) throws IOException {
+
+		PrintWriter out = new PrintWriter(file, encoding);
+		out.println(SENTENCES_HEADER + nSentences);
+		out.println("# ruleId\tkeysCreated\tseconds\tnBestUses");
+		for (Entry<String, RuleStats> entry : stats.entrySet()) {
+			RuleStats ruleStats = entry.getValue();
+			out.println(entry.getKey() + "\t" + ruleStats.keysCreated + "\t" + ruleStats.seconds
+					+ "\t" + ruleStats.nBestUses);
+		}
+		out.close();
+	}
+}
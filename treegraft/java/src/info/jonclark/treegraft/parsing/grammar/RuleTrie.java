@@ -0,0 +1,333 @@
+package info.jonclark.treegraft.parsing.grammar;
+
+import info.jonclark.treegraft.core.tokens.Token;
+import info.jonclark.treegraft.core.tokens.TokenSequence;
+import info.jonclark.treegraft.parsing.rules.ConstraintIds;
+import info.jonclark.treegraft.parsing.rules.GrammarRule;
+import info.jonclark.treegraft.parsing.rules.NonterminalIds;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A prefix trie over the source-side RHS's of a set of grammar rules, all of
+ * which begin with the same symbol (a generalization of
+ * {@link info.jonclark.lang.trie.Trie} to tokens). Each node represents the
+ * RHS prefix spelled out by the path from the root and holds the rules whose
+ * RHS is exactly that prefix, grouped by their arc packing strings (see
+ * {@link GrammarRule#getArcPackingString()}). This allows the
+ * <code>ChartParser</code> to create one active arc per distinct prefix
+ * rather than one per rule.
+ * <p>
+ * Children are kept in arrays sorted by the integer hash code of their
+ * symbol (the ID for integer tokens) and are found by binary search, so
+ * lookups neither allocate nor rely on <code>compareTo</code>. While a trie
+ * is being built, children are appended in the order they are first seen and
+ * found through a temporary hash map; each node's children are sorted once
+ * when the trie is finished. A trie is never modified once it has been
+ * built, so it can be shared by parsing threads.
+ *
+ * @author Jonathan Clark
+ * @param <R>
+ *            The rule type being used in this <code>ChartParser</code>
+ * @param <T>
+ *            The token type being used in this <code>ChartParser</code>
+ */
+public class RuleTrie<R extends GrammarRule<T>, T extends Token> {
+
+	private static final int DEFAULT_CHILDREN_SIZE = 2;
+
+	private static final Comparator<RuleTrie<?, ?>> BY_KEY = new Comparator<RuleTrie<?, ?>>() {
+		public int compare(RuleTrie<?, ?> a, RuleTrie<?, ?> b) {
+			int keyA = a.symbol.hashCode();
+			int keyB = b.symbol.hashCode();
+			return (keyA < keyB) ? -1 : ((keyA == keyB) ? 0 : 1);
+		}
+	};
+
+	private final T symbol;
+	private final int depth;
+	private final RuleTrie<R, T> parent;
+
+	// the NonterminalIds ID of the symbol; -1 for terminals
+	private final int nonterminalId;
+
+	private int[] childKeys = null;
+	private RuleTrie<R, T>[] children = null;
+	private int nChildren = 0;
+
+	// finds children by symbol until the trie is finished
+	private HashMap<T, RuleTrie<R, T>> unsortedChildren = null;
+
+	// rules whose RHS ends at this node, grouped by arc packing string
+	private ArrayList<List<R>> completeRuleGroups = null;
+
+	// the constraint IDs at this node's position of every rule in this
+	// subtree; computed on demand
+	private volatile long[] constraintIds = null;
+
+	// whether any symbol below this node is a terminal; computed on demand
+	private volatile Boolean terminalsBelow = null;
+
+	private RuleTrie(T symbol, int depth, RuleTrie<R, T> parent, NonterminalIds nonterminalIds) {
+		this.symbol = symbol;
+		this.depth = depth;
+		this.parent = parent;
+		this.nonterminalId = symbol.isTerminal() ? -1 : nonterminalIds.getId(symbol);
+	}
+
+	/**
+	 * Builds a trie from rules that all begin with the same source RHS symbol.
+	 *
+	 * @param firstSymbol
+	 *            the first source RHS symbol of every rule
+	 * @param rules
+	 * @param nonterminalIds
+	 *            the IDs of the non-terminals of the token factory from which
+	 *            the rules were made (see {@link Grammar#getNonterminalIds()})
+	 * @return the node for the one-symbol prefix <code>firstSymbol</code>
+	 */
+	public static <R extends GrammarRule<T>, T extends Token> RuleTrie<R, T> build(
+			T firstSymbol, List<R> rules, NonterminalIds nonterminalIds) {
+
+		RuleTrie<R, T> root = new RuleTrie<R, T>(firstSymbol, 1, null, nonterminalIds);
+		for (R rule : rules) {
+			root.put(rule, nonterminalIds);
+		}
+		root.finish();
+		return root;
+	}
+
+	private void put(R rule, NonterminalIds nonterminalIds) {
+
+		T[] rhs = rule.getRhs();
+		assert rhs[0].equals(symbol) : "Rule does not begin with " + symbol + ": " + rule;
+
+		RuleTrie<R, T> node = this;
+		for (int i = 1; i < rhs.length; i++) {
+			RuleTrie<R, T> child =
+					(node.unsortedChildren == null) ? null : node.unsortedChildren.get(rhs[i]);
+			if (child == null) {
+				child = node.addChild(rhs[i], nonterminalIds);
+			}
+			node = child;
+		}
+		node.addCompleteRule(rule);
+	}
+
+	private void addCompleteRule(R rule) {
+
+		if (completeRuleGroups == null) {
+			completeRuleGroups = new ArrayList<List<R>>(1);
+		}
+
+		TokenSequence<T> packingString = rule.getArcPackingString();
+		for (List<R> group : completeRuleGroups) {
+			if (group.get(0).getArcPackingString().equals(packingString)) {
+				group.add(rule);
+				return;
+			}
+		}
+		List<R> group = new ArrayList<R>(1);
+		group.add(rule);
+		completeRuleGroups.add(group);
+	}
+
+	@SuppressWarnings("unchecked")
+	private RuleTrie<R, T> addChild(T childSymbol, NonterminalIds nonterminalIds) {
+
+		if (children == null) {
+			children = new RuleTrie[DEFAULT_CHILDREN_SIZE];
+			unsortedChildren = new HashMap<T, RuleTrie<R, T>>();
+		} else if (nChildren == children.length) {
+			RuleTrie<R, T>[] newChildren = new RuleTrie[nChildren * 2];
+			System.arraycopy(children, 0, newChildren, 0, nChildren);
+			children = newChildren;
+		}
+
+		// sorted by finish()
+		RuleTrie<R, T> child = new RuleTrie<R, T>(childSymbol, depth + 1, this, nonterminalIds);
+		children[nChildren] = child;
+		nChildren++;
+		unsortedChildren.put(childSymbol, child);
+		return child;
+	}
+
+	/**
+	 * Sorts the children of this node and every node below it by key so that
+	 * they can be found by binary search, trimming the child arrays to size.
+	 */
+	@SuppressWarnings("unchecked")
+	private void finish() {
+
+		if (nChildren > 0) {
+			RuleTrie<R, T>[] sorted = new RuleTrie[nChildren];
+			System.arraycopy(children, 0, sorted, 0, nChildren);
+			Arrays.sort(sorted, BY_KEY);
+
+			children = sorted;
+			childKeys = new int[nChildren];
+			for (int i = 0; i < nChildren; i++) {
+				childKeys[i] = sorted[i].symbol.hashCode();
+				sorted[i].finish();
+			}
+		}
+		unsortedChildren = null;
+	}
+
+	/**
+	 * @param childSymbol
+	 * @return the node for this prefix extended by childSymbol; null if no
+	 *         rule has that prefix
+	 */
+	public RuleTrie<R, T> getChild(T childSymbol) {
+
+		int key = childSymbol.hashCode();
+
+		// binary search for the first child with this key
+		int lo = 0;
+		int hi = nChildren;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (childKeys[mid] < key) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+
+		// several symbols may share a hash code
+		for (int i = lo; i < nChildren && childKeys[i] == key; i++) {
+			if (children[i].symbol.equals(childSymbol)) {
+				return children[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the number of symbols that can follow this prefix
+	 */
+	public int getChildCount() {
+		return nChildren;
+	}
+
+	/**
+	 * @param i
+	 * @return the i'th child of this node, in no particular order
+	 */
+	public RuleTrie<R, T> getChild(int i) {
+		return children[i];
+	}
+
+	/**
+	 * @return the last symbol of the prefix represented by this node
+	 */
+	public T getSymbol() {
+		return symbol;
+	}
+
+	/**
+	 * @return the {@link NonterminalIds} ID of the last symbol of the prefix
+	 *         represented by this node, which must be a non-terminal
+	 */
+	public int getNonterminalId() {
+		assert nonterminalId >= 0 : "Terminals have no IDs: " + symbol;
+		return nonterminalId;
+	}
+
+	/**
+	 * @return the length of the prefix represented by this node
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return the node for this prefix without its last symbol; null for the
+	 *         first symbol
+	 */
+	public RuleTrie<R, T> getParent() {
+		return parent;
+	}
+
+	/**
+	 * Gets the rules whose source RHS is exactly the prefix represented by
+	 * this node. All rules in the same group have the same arc packing string
+	 * and so can share a single completed arc.
+	 *
+	 * @return a (possibly empty) list of rule groups
+	 */
+	public List<List<R>> getCompleteRuleGroups() {
+		if (completeRuleGroups == null) {
+			return Collections.emptyList();
+		} else {
+			return completeRuleGroups;
+		}
+	}
+
+	/**
+	 * Gets the compiled constraints (see
+	 * {@link GrammarRule#getConstraintId(int)}) that the rules in this subtree
+	 * place on the symbol at the end of this prefix. Since these are the same
+	 * every time an arc is extended to this node, they are computed once
+	 * rather than checking every rule in the subtree against each key.
+	 * 
+	 * @return a bitset from {@link ConstraintIds}, which contains
+	 *         {@link ConstraintIds#UNCONSTRAINED} if any rule accepts every
+	 *         child
+	 */
+	public long[] getConstraintIds() {
+		long[] bits = constraintIds;
+		if (bits == null) {
+			bits = addConstraintIds(new long[1], depth - 1);
+			constraintIds = bits;
+		}
+		return bits;
+	}
+
+	private long[] addConstraintIds(long[] bits, int position) {
+		if (completeRuleGroups != null) {
+			for (List<R> group : completeRuleGroups) {
+				for (R rule : group) {
+					bits = ConstraintIds.add(bits, rule.getConstraintId(position));
+				}
+			}
+		}
+		for (int i = 0; i < nChildren; i++) {
+			bits = children[i].addConstraintIds(bits, position);
+		}
+		return bits;
+	}
+
+	/**
+	 * @return true if a terminal follows this prefix in the source RHS of any
+	 *         rule in this subtree
+	 */
+	public boolean hasTerminalsBelow() {
+		Boolean result = terminalsBelow;
+		if (result == null) {
+			boolean found = false;
+			for (int i = 0; i < nChildren && !found; i++) {
+				found = children[i].symbol.isTerminal() || children[i].hasTerminalsBelow();
+			}
+			terminalsBelow = result = found;
+		}
+		return result;
+	}
+
+	/**
+	 * @return the symbols of the prefix represented by this node
+	 */
+	public String toString() {
+		if (parent == null) {
+			return symbol.getWord();
+		} else {
+			return parent.toString() + " " + symbol.getWord();
+		}
+	}
+}
@@ -0,0 +1,310 @@
+package info.jonclark.treegraft.parsing.grammar;
+
+import info.jonclark.treegraft.core.tokens.Token;
+import info.jonclark.treegraft.parsing.WordLattice;
+import info.jonclark.treegraft.parsing.WordLattice.Edge;
+import info.jonclark.treegraft.parsing.chartparser.Key;
+import info.jonclark.treegraft.parsing.rules.GrammarRule;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A view of a {@link Grammar} that contains only those rules that could match
+ * a single input sentence. A rule can only be used if each maximal run of
+ * terminals in its source RHS occurs somewhere in the sentence, so rules
+ * whose terminal n-grams are not found in the sentence's n-gram index are
+ * removed before the parser ever creates arcs for them. This is the
+ * per-sentence analogue of filtering the grammar to the vocabulary of the
+ * whole input file. For a {@link WordLattice}, an n-gram occurs if it lies
+ * along any path through the lattice.
+ * <p>
+ * The n-gram index maps each word to the positions (lattice edges) at which
+ * it occurs, so it is built in time linear in the length of the sentence and
+ * can match n-grams of any length. Filtered tries are built the first time a
+ * symbol is looked up. Each distinct terminal run among the rules of a symbol
+ * is checked once, using an index that the <code>Grammar</code> builds only
+ * once (see {@link TerminalRunIndex}), and symbols none of whose rules are
+ * removed share the unfiltered tries of the underlying grammar. Filtered tries
+ * are cached in concurrent maps without locking so that the threads of a
+ * {@link info.jonclark.treegraft.parsing.chartparser.ParallelCKYParser} can
+ * share the <code>SentenceGrammar</code> of the sentence they are parsing; two
+ * threads may filter the same symbol at once, but only the first result is
+ * kept and counted.
+ *
+ * @author Jonathan Clark
+ * @param <R>
+ *            The rule type being used in this <code>ChartParser</code>
+ * @param <T>
+ *            The token type being used in this <code>ChartParser</code>
+ */
+public class SentenceGrammar<R extends GrammarRule<T>, T extends Token> {
+
+	private static final int[] NO_POSITIONS = new int[0];
+
+	private final Grammar<R, T> grammar;
+	private final WordLattice<T> input;
+	private final HashMap<T, int[]> positions = new HashMap<T, int[]>();
+
+	// filtered tries by first symbol
+	private final ConcurrentHashMap<T, FilteredTrie<R, T>> terminalInitialTries =
+			new ConcurrentHashMap<T, FilteredTrie<R, T>>();
+	private final ConcurrentHashMap<T, FilteredTrie<R, T>> nonterminalInitialTries =
+			new ConcurrentHashMap<T, FilteredTrie<R, T>>();
+
+	private final AtomicInteger nRulesKept = new AtomicInteger();
+	private final AtomicInteger nRulesRemoved = new AtomicInteger();
+
+	/**
+	 * The rules of a symbol that could match this sentence and the number of
+	 * rules kept and removed by filtering.
+	 */
+	private static class FilteredTrie<R extends GrammarRule<T>, T extends Token> {
+
+		// null if no rules match
+		public final RuleTrie<R, T> trie;
+		public final int nKept;
+		public final int nRemoved;
+
+		public FilteredTrie(RuleTrie<R, T> trie, int nKept, int nRemoved) {
+			this.trie = trie;
+			this.nKept = nKept;
+			this.nRemoved = nRemoved;
+		}
+	}
+
+	/**
+	 * @param grammar
+	 *            the grammar to be filtered
+	 * @param input
+	 *            the sentence that will be parsed
+	 */
+	public SentenceGrammar(Grammar<R, T> grammar, T[] input) {
+		this(grammar, WordLattice.fromSentence(input));
+	}
+
+	/**
+	 * @param grammar
+	 *            the grammar to be filtered
+	 * @param input
+	 *            the lattice that will be parsed
+	 */
+	public SentenceGrammar(Grammar<R, T> grammar, WordLattice<T> input) {
+		this.grammar = grammar;
+		this.input = input;
+
+		for (Edge<T> edge : input.getEdges()) {
+			int[] prev = positions.get(edge.getWord());
+			int[] cur;
+			if (prev == null) {
+				cur = new int[1];
+			} else {
+				cur = new int[prev.length + 1];
+				System.arraycopy(prev, 0, cur, 0, prev.length);
+			}
+			cur[cur.length - 1] = edge.getIndex();
+			positions.put(edge.getWord(), cur);
+		}
+	}
+
+	/**
+	 * @return the grammar that this view filters
+	 */
+	public Grammar<R, T> getGrammar() {
+		return grammar;
+	}
+
+	/**
+	 * Determines whether the underlying grammar has any terminal-initial rules
+	 * for a word, regardless of whether they match this sentence (i.e. whether
+	 * the word is in the grammar's vocabulary for the purposes of
+	 * out-of-vocabulary handling).
+	 *
+	 * @param word
+	 * @return
+	 */
+	public boolean hasTerminalInitialRules(T word) {
+		return grammar.getTerminalInitialTrie(word) != null;
+	}
+
+	/**
+	 * Like {@link Grammar#getTerminalInitialTrie(Token)}, but contains only
+	 * the rules that could match this sentence.
+	 *
+	 * @param word
+	 * @return the trie node for <code>word</code> or NULL if no rules
+	 *         beginning with it match this sentence
+	 */
+	public RuleTrie<R, T> getTerminalInitialTrie(T word) {
+		FilteredTrie<R, T> filtered = terminalInitialTries.get(word);
+		if (filtered == null) {
+			RuleTrie<R, T> trie = grammar.getTerminalInitialTrie(word);
+			if (trie == null) {
+				filtered = new FilteredTrie<R, T>(null, 0, 0);
+			} else {
+				filtered = filter(word, trie, grammar.getTerminalInitialRuns(word));
+			}
+			filtered = cache(terminalInitialTries, word, filtered);
+		}
+		return filtered.trie;
+	}
+
+	/**
+	 * Like {@link Grammar#getTrieStartingWith(Key)}, but contains only the
+	 * rules that could match this sentence.
+	 *
+	 * @param key
+	 * @return the trie node for the key's LHS or NULL if no rules beginning
+	 *         with it match this sentence
+	 */
+	public RuleTrie<R, T> getTrieStartingWith(Key<R, T> key) {
+		T lhs = key.getLhs();
+		FilteredTrie<R, T> filtered = nonterminalInitialTries.get(lhs);
+		if (filtered == null) {
+			RuleTrie<R, T> trie = grammar.getTrieStartingWith(key);
+			if (trie == null) {
+				filtered = new FilteredTrie<R, T>(null, 0, 0);
+			} else {
+				filtered = filter(lhs, trie, grammar.getRunsStartingWith(key));
+			}
+			filtered = cache(nonterminalInitialTries, lhs, filtered);
+		}
+		return filtered.trie;
+	}
+
+	/**
+	 * Caches a filtered trie unless another thread got there first, counting
+	 * its rules only if it was cached.
+	 *
+	 * @return the cached trie
+	 */
+	private FilteredTrie<R, T> cache(ConcurrentHashMap<T, FilteredTrie<R, T>> tries,
+			T firstSymbol, FilteredTrie<R, T> filtered) {
+		FilteredTrie<R, T> prev = tries.putIfAbsent(firstSymbol, filtered);
+		if (prev != null) {
+			return prev;
+		}
+		nRulesKept.addAndGet(filtered.nKept);
+		nRulesRemoved.addAndGet(filtered.nRemoved);
+		return filtered;
+	}
+
+	private FilteredTrie<R, T> filter(T firstSymbol, RuleTrie<R, T> trie,
+			TerminalRunIndex<R, T> runs) {
+
+		// check each distinct run once, rather than each rule
+		List<R> rules = runs.getRules();
+		boolean[] removed = null;
+		int nRemoved = 0;
+		for (int i = 0; i < runs.getRunCount(); i++) {
+			T[] run = runs.getRun(i);
+			if (occurs(run, 0, run.length) == false) {
+				if (removed == null) {
+					removed = new boolean[rules.size()];
+				}
+				for (int r : runs.getRulesWithRun(i)) {
+					if (removed[r] == false) {
+						removed[r] = true;
+						nRemoved++;
+					}
+				}
+			}
+		}
+		int nKept = rules.size() - nRemoved;
+
+		if (nRemoved == 0) {
+			return new FilteredTrie<R, T>(trie, nKept, nRemoved);
+		} else if (nKept == 0) {
+			return new FilteredTrie<R, T>(null, nKept, nRemoved);
+		} else {
+			ArrayList<R> kept = new ArrayList<R>(nKept);
+			for (int r = 0; r < rules.size(); r++) {
+				if (removed[r] == false) {
+					kept.add(rules.get(r));
+				}
+			}
+			RuleTrie<R, T> filtered = RuleTrie.build(firstSymbol, kept, grammar.getNonterminalIds());
+			return new FilteredTrie<R, T>(filtered, nKept, nRemoved);
+		}
+	}
+
+	/**
+	 * @param rule
+	 * @return true if every maximal run of terminals in the rule's source RHS
+	 *         occurs in this sentence
+	 */
+	public boolean matches(R rule) {
+		T[] rhs = rule.getRhs();
+		int i = 0;
+		while (i < rhs.length) {
+			if (rhs[i].isTerminal()) {
+				int end = i + 1;
+				while (end < rhs.length && rhs[end].isTerminal()) {
+					end++;
+				}
+				if (occurs(rhs, i, end) == false) {
+					return false;
+				}
+				i = end;
+			} else {
+				i++;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Determines whether the n-gram tokens[start, end) occurs in this
+	 * sentence.
+	 */
+	private boolean occurs(T[] tokens, int start, int end) {
+		int[] starts = positions.get(tokens[start]);
+		if (starts == null) {
+			starts = NO_POSITIONS;
+		}
+
+		List<Edge<T>> edges = input.getEdges();
+		for (int pos : starts) {
+			if (continues(edges.get(pos).getToNode(), tokens, start + 1, end)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Determines whether some path leaving a node begins with the n-gram
+	 * tokens[start, end).
+	 */
+	private boolean continues(int node, T[] tokens, int start, int end) {
+		if (start == end) {
+			return true;
+		}
+		for (Edge<T> edge : input.getEdgesFrom(node)) {
+			if (edge.getWord().equals(tokens[start])
+					&& continues(edge.getToNode(), tokens, start + 1, end)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of rules that were looked up and could match this
+	 *         sentence
+	 */
+	public int getRulesKept() {
+		return nRulesKept.get();
+	}
+
+	/**
+	 * @return the number of rules that were looked up but removed because
+	 *         they could not match this sentence
+	 */
+	public int getRulesRemoved() {
+		return nRulesRemoved.get();
+	}
+}
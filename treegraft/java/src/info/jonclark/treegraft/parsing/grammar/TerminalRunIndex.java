@@ -0,0 +1,114 @@
+package info.jonclark.treegraft.parsing.grammar;
+
+import info.jonclark.treegraft.core.tokens.Token;
+import info.jonclark.treegraft.parsing.rules.GrammarRule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+/**
+ * An index from each distinct maximal run of terminals in the source RHS's
+ * of a list of rules (which all begin with the same symbol) to the rules that
+ * contain it. Rules often share their terminal runs, so a
+ * {@link SentenceGrammar} need only check each distinct run against its
+ * sentence once, and never looks at rules without terminal runs at all. The
+ * index depends only on the grammar, so it is built once and cached by the
+ * {@link Grammar} along with its tries.
+ *
+ * @author Jonathan Clark
+ * @param <R>
+ *            The rule type being used in this <code>ChartParser</code>
+ * @param <T>
+ *            The token type being used in this <code>ChartParser</code>
+ */
+class TerminalRunIndex<R extends GrammarRule<T>, T extends Token> {
+
+	private final List<R> rules;
+	private final List<T[]> runs;
+	private final int[][] rulesWithRun;
+
+	/**
+	 * @param rules
+	 *            the rules from which the trie for their first symbol was
+	 *            built, in the same order
+	 */
+	public TerminalRunIndex(List<R> rules) {
+		this.rules = rules;
+
+		LinkedHashMap<List<T>, List<Integer>> index = new LinkedHashMap<List<T>, List<Integer>>();
+		for (int r = 0; r < rules.size(); r++) {
+			T[] rhs = rules.get(r).getRhs();
+			int i = 0;
+			while (i < rhs.length) {
+				if (rhs[i].isTerminal()) {
+					int end = i + 1;
+					while (end < rhs.length && rhs[end].isTerminal()) {
+						end++;
+					}
+					List<T> run = Arrays.asList(Arrays.copyOfRange(rhs, i, end));
+					List<Integer> withRun = index.get(run);
+					if (withRun == null) {
+						withRun = new ArrayList<Integer>(1);
+						index.put(run, withRun);
+					}
+
+					// a rule may contain the same run twice
+					if (withRun.isEmpty() || withRun.get(withRun.size() - 1) != r) {
+						withRun.add(r);
+					}
+					i = end;
+				} else {
+					i++;
+				}
+			}
+		}
+
+		this.runs = new ArrayList<T[]>(index.size());
+		this.rulesWithRun = new int[index.size()][];
+		int n = 0;
+		for (Entry<List<T>, List<Integer>> entry : index.entrySet()) {
+			List<T> run = entry.getKey();
+			runs.add(run.toArray(Arrays.copyOf(rules.get(entry.getValue().get(0)).getRhs(), 0)));
+			int[] withRun = new int[entry.getValue().size()];
+			for (int i = 0; i < withRun.length; i++) {
+				withRun[i] = entry.getValue().get(i);
+			}
+			rulesWithRun[n] = withRun;
+			n++;
+		}
+	}
+
+	/**
+	 * @return the rules that were indexed
+	 */
+	public List<R> getRules() {
+		return rules;
+	}
+
+	/**
+	 * @return the number of distinct terminal runs
+	 */
+	public int getRunCount() {
+		return runs.size();
+	}
+
+	/**
+	 * @param i
+	 * @return the i'th distinct terminal run
+	 */
+	public T[] getRun(int i) {
+		return runs.get(i);
+	}
+
+	/**
+	 * @param i
+	 * @return the positions in {@link #getRules()} of the rules that contain
+	 *         the i'th run, in increasing order
+	 */
+	public int[] getRulesWithRun(int i) {
+		return rulesWithRun[i];
+	}
+}
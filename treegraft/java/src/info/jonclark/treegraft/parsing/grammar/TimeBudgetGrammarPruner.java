@@ -0,0 +1,96 @@
+package info.jonclark.treegraft.parsing.grammar;
+
+import info.jonclark.lang.Option;
+import info.jonclark.lang.Options;
+import info.jonclark.lang.OptionsTarget;
+import info.jonclark.log.LogUtils;
+import info.jonclark.treegraft.Treegraft.TreegraftConfig;
+import info.jonclark.treegraft.core.tokens.Token;
+import info.jonclark.treegraft.parsing.grammar.RuleProfile.RuleStats;
+import info.jonclark.treegraft.parsing.rules.GrammarRule;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Removes the rules that were most expensive during profiling relative to how
+ * often they were used in the final n-best lists until a given fraction of
+ * the profiled parsing time has been removed. If the profile contains no
+ * timings (rule timing is only enabled while writing a profile), the number
+ * of keys created is used as the cost of each rule instead.
+ * 
+ * @author Jonathan Clark
+ */
+@OptionsTarget(TimeBudgetGrammarPruner.TimeBudgetGrammarPrunerOptions.class)
+public class TimeBudgetGrammarPruner<R extends GrammarRule<T>, T extends Token> extends
+		ProfiledGrammarPruner<R, T> {
+
+	private static final Logger log = LogUtils.getLogger();
+
+	public static class TimeBudgetGrammarPrunerOptions implements Options {
+
+		@Option(name = "grammar.pruner.timeBudget.fraction", usage = "The fraction of the profiled parsing time that should be removed by pruning the most wasteful rules", required = false, defaultValue = "0.25")
+		public double fraction;
+
+		@Option(name = "grammar.pruner.timeBudget.maxNBestUses", usage = "Rules used by the final n-best lists more often than this during profiling are never pruned", required = false, defaultValue = "0")
+		public int maxNBestUses;
+	}
+
+	private final TimeBudgetGrammarPrunerOptions opts;
+
+	public TimeBudgetGrammarPruner(TimeBudgetGrammarPrunerOptions opts,
+			TreegraftConfig<R, T> config) {
+		super(config);
+		this.opts = opts;
+	}
+
+	protected List<String> selectRulesToPrune() {
+
+		final boolean useTime = (profile.getTotalSeconds() > 0.0);
+		final double totalCost;
+		if (useTime) {
+			totalCost = profile.getTotalSeconds();
+		} else {
+			log.warning("Rule profile contains no timings; using keys created as rule costs");
+			totalCost = profile.getTotalKeysCreated();
+		}
+
+		List<String> candidates = new ArrayList<String>();
+		for (String ruleId : profile.getRuleIds()) {
+			if (profile.get(ruleId).nBestUses <= opts.maxNBestUses) {
+				candidates.add(ruleId);
+			}
+		}
+
+		// most wasteful first
+		Collections.sort(candidates, new Comparator<String>() {
+			public int compare(String a, String b) {
+				return Double.compare(getWaste(profile.get(b), useTime), getWaste(profile.get(a),
+						useTime));
+			}
+		});
+
+		List<String> ruleIds = new ArrayList<String>();
+		double budget = opts.fraction * totalCost;
+		double removedCost = 0.0;
+		for (String ruleId : candidates) {
+			if (removedCost >= budget) {
+				break;
+			}
+			ruleIds.add(ruleId);
+			removedCost += getCost(profile.get(ruleId), useTime);
+		}
+		return ruleIds;
+	}
+
+	private static double getCost(RuleStats stats, boolean useTime) {
+		return useTime ? stats.seconds : stats.keysCreated;
+	}
+
+	private static double getWaste(RuleStats stats, boolean useTime) {
+		return getCost(stats, useTime) / (stats.nBestUses + 1);
+	}
+}
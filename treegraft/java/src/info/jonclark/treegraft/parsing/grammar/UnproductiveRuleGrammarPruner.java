@@ -0,0 +1,53 @@
+package info.jonclark.treegraft.parsing.grammar;
+
+import info.jonclark.lang.Option;
+import info.jonclark.lang.Options;
+import info.jonclark.lang.OptionsTarget;
+import info.jonclark.treegraft.Treegraft.TreegraftConfig;
+import info.jonclark.treegraft.core.tokens.Token;
+import info.jonclark.treegraft.parsing.grammar.RuleProfile.RuleStats;
+import info.jonclark.treegraft.parsing.rules.GrammarRule;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Removes rules that created many keys during profiling but were rarely used
+ * by the hypotheses in the final n-best lists, i.e. those that mostly add
+ * ambiguity that the decoder never keeps.
+ * 
+ * @author Jonathan Clark
+ */
+@OptionsTarget(UnproductiveRuleGrammarPruner.UnproductiveRuleGrammarPrunerOptions.class)
+public class UnproductiveRuleGrammarPruner<R extends GrammarRule<T>, T extends Token> extends
+		ProfiledGrammarPruner<R, T> {
+
+	public static class UnproductiveRuleGrammarPrunerOptions implements Options {
+
+		@Option(name = "grammar.pruner.unproductive.minKeysCreated", usage = "Rules that created fewer keys than this during profiling are never pruned", required = false, defaultValue = "100")
+		public int minKeysCreated;
+
+		@Option(name = "grammar.pruner.unproductive.minNBestUsesPerKey", usage = "Rules whose uses in the final n-best lists per key created fall below this ratio are pruned", required = false, defaultValue = "0.001")
+		public double minNBestUsesPerKey;
+	}
+
+	private final UnproductiveRuleGrammarPrunerOptions opts;
+
+	public UnproductiveRuleGrammarPruner(UnproductiveRuleGrammarPrunerOptions opts,
+			TreegraftConfig<R, T> config) {
+		super(config);
+		this.opts = opts;
+	}
+
+	protected List<String> selectRulesToPrune() {
+		List<String> ruleIds = new ArrayList<String>();
+		for (String ruleId : profile.getRuleIds()) {
+			RuleStats stats = profile.get(ruleId);
+			if (stats.keysCreated >= opts.minKeysCreated
+					&& (double) stats.nBestUses / (double) stats.keysCreated < opts.minNBestUsesPerKey) {
+				ruleIds.add(ruleId);
+			}
+		}
+		return ruleIds;
+	}
+}
@@ -6,6 +6,7 @@ import info.jonclark.lang.OptionsTarget;
 import info.jonclark.log.LogUtils;
 import info.jonclark.stat.ProfilerTimer;
 import info.jonclark.treegraft.Treegraft.TreegraftConfig;
+import info.jonclark.treegraft.core.lm.LanguageModelMultiScore;
 import info.jonclark.treegraft.core.scoring.FeatureScores;
 import info.jonclark.treegraft.core.scoring.Scorer;
 import info.jonclark.treegraft.core.search.Beam;
@@ -21,7 +22,7 @@ import info.jonclark.treegraft.parsing.transduction.Transducer;
 import info.jonclark.util.DebugUtils;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -47,7 +48,7 @@ public class BeamSearchMerger<R extends GrammarRule<T>, T extends Token> impleme
 
 		// TODO: Remove decoder recombination along with the DecoderHypothesis
 		// class and the combineHypotheses method
-		@Option(name = "decoder.doHypothesisRecombination", usage = "Should hypotheses that are equivalent according to the model be recombined during decoder search?")
+		@Option(name = "decoder.doHypothesisRecombination", usage = "Should hypotheses that are equivalent according to the model (i.e. that have the same language model state) be recombined during decoder search?")
 		public boolean doHypothesisRecombination;
 
 		@Option(name = "transfer.beamSize", usage = "Number of highest ranking hypotheses to return from the decoding process")
@@ -74,6 +75,53 @@ public class BeamSearchMerger<R extends GrammarRule<T>, T extends Token> impleme
 				ProfilerTimer.newTimer("featureCombination", parentTimer, true, false);
 	}
 
+	/**
+	 * Identifies hypotheses that may be recombined. Since all hypotheses
+	 * combined in one call cover the same source span and only the language
+	 * models look beyond the words of a hypothesis, hypotheses with the same
+	 * LM state (see {@link LanguageModelMultiScore#getSignature()}) will be
+	 * scored the same by any future combination. Without a language model,
+	 * only hypotheses with the same yield are recombined.
+	 */
+	private static class RecombinationKey {
+
+		private final LanguageModelMultiScore lmState;
+		private final List<?> tokens;
+		private final int hash;
+
+		public RecombinationKey(DecoderHypothesis<?> hyp) {
+			this.lmState = hyp.getScores().getFeatureScore(LanguageModelMultiScore.class);
+			if (lmState != null) {
+				long signature = lmState.getSignature();
+				this.tokens = null;
+				this.hash = (int) (signature ^ (signature >>> 32));
+			} else {
+				this.tokens = hyp.getTokens();
+				this.hash = tokens.hashCode();
+			}
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object obj) {
+			if (obj instanceof RecombinationKey == false) {
+				return false;
+			}
+			RecombinationKey other = (RecombinationKey) obj;
+			if (hash != other.hash) {
+				return false;
+			} else if (lmState != null && other.lmState != null) {
+				return lmState.hasSameState(other.lmState);
+			} else if (lmState == null && other.lmState == null) {
+				return tokens.equals(other.tokens);
+			} else {
+				return false;
+			}
+		}
+	}
+
 	public List<PartialParse<T>> combineCrossProductOfChildParses(R parentRule,
 			List<T> sourceInputTokens, int startIndex, int endIndex, Scorer<R, T> scorer,
 			Transducer<R, T> transducer, ParseFactory<R, T> parseFactory,
@@ -87,8 +135,8 @@ public class BeamSearchMerger<R extends GrammarRule<T>, T extends Token> impleme
 		T[] targetRhs = transducer.transduceRhs(parentRule);
 
 		PartialParse<T> seedBlankParse =
-				parseFactory.createParse(sourceInputTokens, startIndex, endIndex, sourceLhs,
-						targetLhs, sourceRhs, targetRhs, scorer.getInitialFeatureScores());
+				parseFactory.createParse(parentRule, sourceInputTokens, startIndex, endIndex,
+						sourceLhs, targetLhs, sourceRhs, targetRhs, scorer.getInitialFeatureScores());
 		for (int sourceRhsIndex = 0; sourceRhsIndex < sourceRhs.length; sourceRhsIndex++) {
 			if (sourceRhs[sourceRhsIndex].isTerminal()) {
 				seedBlankParse.appendSourceTerminal(sourceRhsIndex, sourceRhs[sourceRhsIndex]);
@@ -179,8 +227,9 @@ public class BeamSearchMerger<R extends GrammarRule<T>, T extends Token> impleme
 		// TODO: Only check for recombination if the score is good enough to get
 		// it into the beam in the first place
 		recombinationTimer.go();
-		HashMap<TokenSequence<T>, DecoderHypothesis<T>> uniqueHypotheses =
-				new HashMap<TokenSequence<T>, DecoderHypothesis<T>>(beam1.size() * beam2.size());
+		LinkedHashMap<RecombinationKey, DecoderHypothesis<T>> uniqueHypotheses =
+				new LinkedHashMap<RecombinationKey, DecoderHypothesis<T>>(beam1.size()
+						* beam2.size());
 		recombinationTimer.pause();
 
 		// TODO: Apply cube pruning right here
@@ -198,68 +247,45 @@ public class BeamSearchMerger<R extends GrammarRule<T>, T extends Token> impleme
 				TokenSequence<T> combinedTokenSequence =
 						tokenFactory.makeTokenSequence(combinedTokens);
 
-				DecoderHypothesis<T> previousHypothesisWithSameYield = null;
+				// the LM state is only known once the combined hypothesis has
+				// been scored, which only costs time proportional to the LM
+				// order
+				DecoderHypothesis<T> combinedHyp =
+						makeCombinedHypothesis(scorer, hyp1, hyp2, combinedTokens,
+								combinedTokenSequence, sourceTokens);
 
-				recombinationTimer.go();
-				if (opts.doHypothesisRecombination)
-					previousHypothesisWithSameYield = uniqueHypotheses.get(combinedTokenSequence);
-				recombinationTimer.pause();
-
-				// try to do hypothesis recomination -- any two hypotheses with
-				// the same yield get lumped together
-				if (!opts.doHypothesisRecombination || previousHypothesisWithSameYield == null) {
-
-					// no previous hypothesis found
-					DecoderHypothesis<T> combinedHyp =
-							makeCombinedHypothesis(scorer, hyp1, hyp2, combinedTokens,
-									combinedTokenSequence, sourceTokens);
-
-					// HAAAAAAAACK
-					// String strHyp =
-					// StringUtils.untokenize(combinedHyp.getTokens());
-					// if (combinedHyp.getSourceStartIndex() != 0
-					// || LRStackDecoder.DESIRED_HYPOTHESIS.startsWith(strHyp))
-					// {
+				if (!opts.doHypothesisRecombination) {
 					outputBeam.add(combinedHyp);
-					// }
-					// HAAAAAAAACK
-
-					recombinationTimer.go();
-					if (opts.doHypothesisRecombination)
-						uniqueHypotheses.put(combinedTokenSequence, combinedHyp);
-					recombinationTimer.pause();
-				} else {
+					continue;
+				}
 
-					// if we actually make the new hypothesis and keep scoring
-					// it individually, we waste lots of time, but throwing it
-					// away seems wrong too
-
-					recombinationTimer.go();
-					DecoderHypothesis<T> combinedHyp =
-							makeCombinedHypothesis(scorer, hyp1, hyp2, combinedTokens,
-									combinedTokenSequence, sourceTokens);
-
-					if (combinedHyp.getLogProb() > previousHypothesisWithSameYield.getLogProb()) {
-						combinedHyp.addRecombinedHypothesis(previousHypothesisWithSameYield);
-						for (DecoderHypothesis<T> hyp : previousHypothesisWithSameYield.getRecombinedHypotheses()) {
-							combinedHyp.addRecombinedHypothesis(hyp);
-						}
-						previousHypothesisWithSameYield.clearRecombinedHypotheses();
-					} else {
-						previousHypothesisWithSameYield.addRecombinedHypothesis(combinedHyp);
+				// try to do hypothesis recombination -- any two hypotheses with
+				// the same LM state get lumped together and only the better
+				// one goes on to the beam
+				recombinationTimer.go();
+				RecombinationKey key = new RecombinationKey(combinedHyp);
+				DecoderHypothesis<T> previousHypothesisWithSameState = uniqueHypotheses.get(key);
+				if (previousHypothesisWithSameState == null) {
+					uniqueHypotheses.put(key, combinedHyp);
+
+				} else if (combinedHyp.getLogProb() > previousHypothesisWithSameState.getLogProb()) {
+					combinedHyp.addRecombinedHypothesis(previousHypothesisWithSameState);
+					for (DecoderHypothesis<T> hyp : previousHypothesisWithSameState.getRecombinedHypotheses()) {
+						combinedHyp.addRecombinedHypothesis(hyp);
 					}
+					previousHypothesisWithSameState.clearRecombinedHypotheses();
+					uniqueHypotheses.put(key, combinedHyp);
 
-					// FeatureScores recombinedScores =
-					// scorer.recombineHypotheses(previousHypothesisWithSameYield
-					// , combinedHyp);
-					// previousHypothesisWithSameYield.setCurrentScore(
-					// recombinedScores);
-					// previousHypothesisWithSameYield.addRecombinedHypothesis(
-					// combinedHyp);
-					recombinationTimer.pause();
+				} else {
+					previousHypothesisWithSameState.addRecombinedHypothesis(combinedHyp);
 				}
+				recombinationTimer.pause();
 			}
 		}
+
+		for (DecoderHypothesis<T> hyp : uniqueHypotheses.values()) {
+			outputBeam.add(hyp);
+		}
 	}
 
 	private DecoderHypothesis<T> makeCombinedHypothesis(Scorer<R, T> scorer,
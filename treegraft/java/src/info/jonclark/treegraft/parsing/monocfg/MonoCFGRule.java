@@ -5,7 +5,9 @@ import info.jonclark.treegraft.core.featureimpl.RuleScore;
 import info.jonclark.treegraft.core.tokens.Token;
 import info.jonclark.treegraft.core.tokens.TokenFactory;
 import info.jonclark.treegraft.core.tokens.TokenSequence;
+import info.jonclark.treegraft.parsing.rules.ConstraintIds;
 import info.jonclark.treegraft.parsing.rules.GrammarRule;
+import info.jonclark.treegraft.parsing.rules.NonterminalIds;
 import info.jonclark.treegraft.parsing.unification.Constraint;
 import info.jonclark.util.StringUtils;
 
@@ -23,6 +25,7 @@ import java.util.ArrayList;
 public class MonoCFGRule<T extends Token> implements GrammarRule<T> {
 
 	private final T lhs;
+	private final int lhsId;
 	private final T[] rhs;
 	private final Constraint[] constraints;
 
@@ -60,6 +63,7 @@ public class MonoCFGRule<T extends Token> implements GrammarRule<T> {
 		this.id = id;
 		this.constraints = constraints;
 		this.packingString = makePackingString(lhs, rhs, tokenFactory);
+		this.lhsId = lhs.isTerminal() ? -1 : NonterminalIds.forTokenFactory(tokenFactory).getId(lhs);
 	}
 
 	/**
@@ -84,6 +88,13 @@ public class MonoCFGRule<T extends Token> implements GrammarRule<T> {
 		return lhs;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public int getLhsId() {
+		return lhsId;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -149,6 +160,20 @@ public class MonoCFGRule<T extends Token> implements GrammarRule<T> {
 		return true;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public int getConstraintId(int sourceRhsIndex) {
+		return ConstraintIds.UNCONSTRAINED;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int getProvidedConstraintId() {
+		return ConstraintIds.UNCONSTRAINED;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
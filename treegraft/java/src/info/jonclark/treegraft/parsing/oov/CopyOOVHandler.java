@@ -41,7 +41,7 @@ public class CopyOOVHandler<T extends Token> implements OutOfVocabularyHandler<S
 		this.alignment = new int[] { -1 };
 
 		this.oovRuleScore = new RuleScore(opts.sgt, opts.tgs);
-		this.oovRuleLhsList = tokenFactory.makeTokens(opts.oovRuleLhsList, true);
+		this.oovRuleLhsList = tokenFactory.makeTokens(opts.oovRuleLhsList, false);
 	}
 
 	public List<SyncCFGRule<T>> generateOOVRules(T sourceOovTerminal,
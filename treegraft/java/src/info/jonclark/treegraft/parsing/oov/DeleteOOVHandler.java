@@ -30,7 +30,7 @@ public class DeleteOOVHandler<T extends Token> implements OutOfVocabularyHandler
 		this.blankRhs = tokenFactory.newTokenArray(0);
 		this.oovRuleScore = new RuleScore(opts.sgt, opts.tgs);
 
-		this.oovRuleLhsList = tokenFactory.makeTokens(opts.oovRuleLhsList, true);
+		this.oovRuleLhsList = tokenFactory.makeTokens(opts.oovRuleLhsList, false);
 	}
 
 	public List<SyncCFGRule<T>> generateOOVRules(T sourceOovTerminal,
@@ -32,15 +32,22 @@ public class ParseFactory<R extends GrammarRule<T>, T extends Token> {
 	/**
 	 * Create a new <code>Parse</code> from a non-terminal node
 	 * 
+	 * @param rule
+	 *            The rule that produced this node, whose ID is recorded in the
+	 *            source tree
 	 * @param sourceInputTokens
 	 *            The FULL source input sequence
 	 * @param lispTree
 	 */
-	public PartialParse<T> createParse(List<T> sourceInputTokens, int startIndex, int endIndex,
-			T sourceLhs, T targetLhs, T[] sourceRhs, T[] targetRhs, FeatureScores scores) {
+	public PartialParse<T> createParse(R rule, List<T> sourceInputTokens, int startIndex,
+			int endIndex, T sourceLhs, T targetLhs, T[] sourceRhs, T[] targetRhs,
+			FeatureScores scores) {
 
-		return new PartialParse<T>(sourceInputTokens, startIndex, endIndex, sourceLhs, targetLhs,
-				sourceRhs, targetRhs, scores);
+		PartialParse<T> parse =
+				new PartialParse<T>(sourceInputTokens, startIndex, endIndex, sourceLhs, targetLhs,
+						sourceRhs, targetRhs, scores);
+		parse.getSourceTree().setRuleId(rule.getRuleId());
+		return parse;
 	}
 
 	/**
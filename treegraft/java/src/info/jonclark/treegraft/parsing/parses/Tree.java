@@ -8,6 +8,7 @@ public class Tree<T extends Token> {
 	private T label;
 	private FeatureScores scores;
 	private Tree<T>[] children;
+	private String ruleId;
 
 	public Tree(T label, FeatureScores scores, int nChildren) {
 		this.label = label;
@@ -18,6 +19,7 @@ public class Tree<T extends Token> {
 	public Tree(Tree<T> other) {
 		this.label = other.label;
 		this.scores = other.scores;
+		this.ruleId = other.ruleId;
 		this.children = new Tree[other.children.length];
 		System.arraycopy(other.children, 0, this.children, 0, other.children.length);
 	}
@@ -38,6 +40,19 @@ public class Tree<T extends Token> {
 		this.scores = scores;
 	}
 
+	/**
+	 * @param ruleId
+	 *            the ID of the grammar rule that built this node
+	 */
+	public void setRuleId(String ruleId) {
+		this.ruleId = ruleId;
+	}
+
+	// null for terminals
+	public String getRuleId() {
+		return ruleId;
+	}
+
 	public Tree<T>[] getChildren() {
 		return children;
 	}
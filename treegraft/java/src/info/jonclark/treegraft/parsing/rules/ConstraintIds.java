@@ -0,0 +1,132 @@
+package info.jonclark.treegraft.parsing.rules;
+
+import info.jonclark.treegraft.core.tokens.TokenFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Interns the values that grammar rules use in their constraints (e.g. the
+ * target-side non-terminal required at a source RHS position) as small
+ * positive integers when rules are created, so that checking a constraint
+ * during parsing is an integer comparison (see
+ * {@link GrammarRule#getConstraintId(int)}). Sets of IDs are stored as
+ * bitsets of longs so that a set of rules can be checked against a set of
+ * child rules with a few word operations.
+ * <p>
+ * Constraint values are tokens, so there is one set of IDs for the rules made
+ * from each {@link TokenFactory}'s tokens (see
+ * {@link #forTokenFactory(TokenFactory)}). All grammars that share a token
+ * factory (e.g. a grammar and its filtered copies, which share rules) and the
+ * rules created while parsing (e.g. for out-of-vocabulary words) agree on IDs,
+ * while IDs are never shared between unrelated factories and are freed along
+ * with their factory.
+ * 
+ * @author Jonathan Clark
+ */
+public class ConstraintIds {
+
+	/**
+	 * The ID of a position that any child rule may fill.
+	 */
+	public static final int UNCONSTRAINED = 0;
+
+	private static final TokenFactoryLocal<ConstraintIds> byTokenFactory =
+			new TokenFactoryLocal<ConstraintIds>() {
+				protected ConstraintIds initialValue() {
+					return new ConstraintIds();
+				}
+			};
+
+	private final ConcurrentHashMap<Object, Integer> ids = new ConcurrentHashMap<Object, Integer>();
+	private final AtomicInteger nextId = new AtomicInteger(UNCONSTRAINED + 1);
+
+	/**
+	 * @param tokenFactory
+	 * @return the IDs of the constraint values of the rules made from the
+	 *         given factory's tokens
+	 */
+	public static ConstraintIds forTokenFactory(TokenFactory<?> tokenFactory) {
+		return byTokenFactory.get(tokenFactory);
+	}
+
+	/**
+	 * @param value
+	 *            a constraint value that implements <code>equals</code> and
+	 *            <code>hashCode</code>; may be called from any thread
+	 * @return the ID of the value, which is the same for all equal values
+	 */
+	public int intern(Object value) {
+		Integer id = ids.get(value);
+		if (id == null) {
+			synchronized (ids) {
+				// assign IDs under a lock so that they stay dense
+				id = ids.get(value);
+				if (id == null) {
+					id = nextId.getAndIncrement();
+					ids.put(value, id);
+				}
+			}
+		}
+		return id;
+	}
+
+	/**
+	 * @return the number of values interned so far
+	 */
+	public int size() {
+		return ids.size();
+	}
+
+	/**
+	 * Adds an ID to a bitset, growing it if necessary.
+	 * 
+	 * @param bits
+	 *            may be null
+	 * @param id
+	 * @return the bitset containing the ID, which may be a new array
+	 */
+	public static long[] add(long[] bits, int id) {
+		int word = id >>> 6;
+		if (bits == null) {
+			bits = new long[word + 1];
+		} else if (word >= bits.length) {
+			long[] newBits = new long[word + 1];
+			System.arraycopy(bits, 0, newBits, 0, bits.length);
+			bits = newBits;
+		}
+		bits[word] |= (1L << id);
+		return bits;
+	}
+
+	/**
+	 * @param bits
+	 *            may be null
+	 * @param id
+	 * @return true if the bitset contains the ID
+	 */
+	public static boolean contains(long[] bits, int id) {
+		int word = id >>> 6;
+		return bits != null && word < bits.length && (bits[word] & (1L << id)) != 0;
+	}
+
+	/**
+	 * @param a
+	 *            may be null
+	 * @param b
+	 *            may be null
+	 * @return true if the bitsets have any ID in common
+	 */
+	public static boolean intersects(long[] a, long[] b) {
+		if (a == null || b == null) {
+			return false;
+		}
+		int n = Math.min(a.length, b.length);
+		for (int i = 0; i < n; i++) {
+			if ((a[i] & b[i]) != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -28,6 +28,15 @@ public interface GrammarRule<T extends Token> {
 	 */
 	public T getLhs();
 
+	/**
+	 * Get the ID of the source-side left hand side of this rule among the
+	 * non-terminals of the rules made from the same <code>TokenFactory</code>
+	 * (see {@link NonterminalIds}).
+	 * 
+	 * @return the ID of the LHS of this rule; -1 if the LHS is a terminal
+	 */
+	public int getLhsId();
+
 	/**
 	 * Get the source-side right hand side of this rule in which terminals and
 	 * non-terminals can be freely mixed. e.g. The "NP freely VP" in "S -> NP
@@ -120,6 +129,27 @@ public interface GrammarRule<T extends Token> {
 	public <R extends GrammarRule<T>> boolean areConstraintsSatisfied(int sourceRhsIndex,
 			R childRule);
 
+	/**
+	 * Gets the compiled form of the constraints that this rule places on the
+	 * child at a source RHS position: a child rule satisfies them exactly when
+	 * this is {@link ConstraintIds#UNCONSTRAINED} or equal to the child's
+	 * {@link #getProvidedConstraintId()}. The parser uses this to check many
+	 * rules at once rather than calling
+	 * {@link #areConstraintsSatisfied(int, GrammarRule)} for each pair.
+	 * 
+	 * @param sourceRhsIndex
+	 * @return an ID from {@link ConstraintIds}
+	 */
+	public int getConstraintId(int sourceRhsIndex);
+
+	/**
+	 * Gets the compiled value that this rule offers to the constraints of the
+	 * rules that use it as a child (see {@link #getConstraintId(int)}).
+	 * 
+	 * @return an ID from {@link ConstraintIds}
+	 */
+	public int getProvidedConstraintId();
+
 	/**
 	 * Assuming that an existing arc and a candidate arc have the same start and
 	 * end points in the input sequence and both arcs have the same constituent
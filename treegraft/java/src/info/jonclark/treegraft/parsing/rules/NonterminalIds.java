@@ -0,0 +1,77 @@
+package info.jonclark.treegraft.parsing.rules;
+
+import info.jonclark.treegraft.core.tokens.Token;
+import info.jonclark.treegraft.core.tokens.TokenFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Maps the source-side non-terminal symbols of the grammar to dense IDs
+ * beginning at zero so that the <code>Chart</code> and the
+ * <code>ActiveArcManager</code> can file keys and arcs by non-terminal
+ * without hashing tokens. Since rules may be loaded lazily and OOV rules may
+ * introduce new non-terminals, a symbol is assigned its ID the first time it
+ * is looked up; the number of IDs is small (the number of non-terminal types
+ * in the grammar). Terminals are never given IDs, which keeps the ID space
+ * independent of the vocabulary size.
+ * <p>
+ * As with {@link ConstraintIds}, there is one set of IDs for the rules made
+ * from each {@link TokenFactory}'s tokens (see
+ * {@link #forTokenFactory(TokenFactory)}), so a grammar, its filtered copies
+ * and the rules created while parsing agree on IDs, while unrelated grammars
+ * do not enlarge each other's ID spaces.
+ *
+ * @author Jonathan Clark
+ */
+public class NonterminalIds {
+
+	private static final TokenFactoryLocal<NonterminalIds> byTokenFactory =
+			new TokenFactoryLocal<NonterminalIds>() {
+				protected NonterminalIds initialValue() {
+					return new NonterminalIds();
+				}
+			};
+
+	private final ConcurrentHashMap<Token, Integer> ids = new ConcurrentHashMap<Token, Integer>();
+	private final AtomicInteger nextId = new AtomicInteger(0);
+
+	/**
+	 * @param tokenFactory
+	 * @return the IDs of the non-terminals of the rules made from the given
+	 *         factory's tokens
+	 */
+	public static NonterminalIds forTokenFactory(TokenFactory<?> tokenFactory) {
+		return byTokenFactory.get(tokenFactory);
+	}
+
+	/**
+	 * @param nonterminal
+	 *            a non-terminal symbol; may be called from any thread
+	 * @return the ID of the symbol, which is the same for all equal symbols
+	 */
+	public int getId(Token nonterminal) {
+		assert nonterminal.isTerminal() == false : "Terminals have no IDs: " + nonterminal;
+
+		Integer id = ids.get(nonterminal);
+		if (id == null) {
+			synchronized (ids) {
+				// assign IDs under a lock so that they stay dense
+				id = ids.get(nonterminal);
+				if (id == null) {
+					id = nextId.getAndIncrement();
+					ids.put(nonterminal, id);
+				}
+			}
+		}
+		return id;
+	}
+
+	/**
+	 * @return the number of IDs assigned so far; all IDs are less than this
+	 *         number
+	 */
+	public int size() {
+		return nextId.get();
+	}
+}
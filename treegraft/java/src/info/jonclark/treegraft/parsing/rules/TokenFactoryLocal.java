@@ -0,0 +1,64 @@
+package info.jonclark.treegraft.parsing.rules;
+
+import info.jonclark.treegraft.core.tokens.TokenFactory;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+/**
+ * Like a <code>ThreadLocal</code>, but holds one value per
+ * {@link TokenFactory} rather than per thread. This lets the parsing layer
+ * keep state that belongs with a vocabulary (e.g. the IDs of the symbols used
+ * in rule constraints) without the token classes knowing about it. A value
+ * is created by {@link #initialValue()} the first time it is requested for a
+ * factory and is freed along with its factory.
+ * <p>
+ * This class is thread-safe. Since nearly all requests are for the same
+ * factory, the most recent one is remembered so that they take no locks.
+ *
+ * @author Jonathan Clark
+ * @param <V>
+ *            the type of the value held for each factory
+ */
+public abstract class TokenFactoryLocal<V> {
+
+	private static class Entry<V> {
+		public final WeakReference<TokenFactory<?>> factory;
+		public final V value;
+
+		public Entry(TokenFactory<?> factory, V value) {
+			this.factory = new WeakReference<TokenFactory<?>>(factory);
+			this.value = value;
+		}
+	}
+
+	private final WeakHashMap<TokenFactory<?>, V> values = new WeakHashMap<TokenFactory<?>, V>();
+	private volatile Entry<V> last = null;
+
+	/**
+	 * @return a new value for a factory that has none yet
+	 */
+	protected abstract V initialValue();
+
+	/**
+	 * @param tokenFactory
+	 * @return the value for the given factory, which is the same object every
+	 *         time this method is called for that factory
+	 */
+	public V get(TokenFactory<?> tokenFactory) {
+		Entry<V> entry = last;
+		if (entry != null && entry.factory.get() == tokenFactory) {
+			return entry.value;
+		}
+
+		synchronized (values) {
+			V value = values.get(tokenFactory);
+			if (value == null) {
+				value = initialValue();
+				values.put(tokenFactory, value);
+			}
+			last = new Entry<V>(tokenFactory, value);
+			return value;
+		}
+	}
+}
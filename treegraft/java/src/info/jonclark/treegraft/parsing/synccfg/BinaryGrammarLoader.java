@@ -0,0 +1,462 @@
+package info.jonclark.treegraft.parsing.synccfg;
+
+import info.jonclark.lang.NullOptions;
+import info.jonclark.lang.OptionsTarget;
+import info.jonclark.log.LogUtils;
+import info.jonclark.stat.TaskListener;
+import info.jonclark.stat.TextProgressBar;
+import info.jonclark.treegraft.Treegraft.TreegraftConfig;
+import info.jonclark.treegraft.core.featureimpl.RuleScore;
+import info.jonclark.treegraft.core.tokens.Token;
+import info.jonclark.treegraft.core.tokens.TokenFactory;
+import info.jonclark.treegraft.core.tokens.integer.IntegerToken;
+import info.jonclark.treegraft.core.tokens.integer.IntegerTokenFactory;
+import info.jonclark.treegraft.parsing.grammar.Grammar;
+import info.jonclark.treegraft.parsing.grammar.GrammarLoader;
+import info.jonclark.treegraft.parsing.grammar.RuleBlock;
+import info.jonclark.treegraft.parsing.rules.RuleException;
+import info.jonclark.treegraft.parsing.unification.Constraint;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.logging.Logger;
+
+/**
+ * Loads a synchronous grammar that was previously compiled into a binary file
+ * by {@link #compile(Grammar, File)} (see {@link #main(String[])}). Rather
+ * than parsing any text, the rules are memory-mapped and added to the
+ * <code>Grammar</code> as one {@link RuleBlock} per initial source RHS symbol,
+ * so that <code>SyncCFGRule</code> objects are only created for the symbols
+ * that are actually looked up while parsing. Blocks for terminals that aren't
+ * in the source vocabulary are never materialized.
+ * <p>
+ * File layout: a magic number, version and the position of the header,
+ * followed by the rule records of each block and finally the header, which
+ * contains the symbol table and the index of rule blocks. (The header comes
+ * last so that rules can be streamed to disk as they are written.) Rules
+ * refer to symbols by their position in the symbol table, which is mapped to
+ * the decoder's tokens when the grammar is loaded.
+ * <p>
+ * The compiled grammar is the grammar as it was after loading with
+ * {@link Grammar#keepKBestRulesWhileLoading(int)}, but before any vocabulary
+ * filtering, so that one compiled grammar can be used for any test set.
+ * Constraints are not retained by <code>SyncCFGRule</code> and so are not
+ * stored.
+ *
+ * @author Jonathan Clark
+ */
+@OptionsTarget(NullOptions.class)
+public class BinaryGrammarLoader<T extends Token> implements GrammarLoader<SyncCFGRule<T>, T> {
+
+	private static final Logger log = LogUtils.getLogger();
+
+	private static final int MAGIC = 0x54474752; // "TGGR"
+	private static final int VERSION = 1;
+	private static final int PREAMBLE_BYTES = 16;
+
+	private final TokenFactory<T> tokenFactory;
+
+	public BinaryGrammarLoader(NullOptions opts, TreegraftConfig<SyncCFGRule<T>, T> config) {
+		this.tokenFactory = config.tokenFactory;
+	}
+
+	public BinaryGrammarLoader(TokenFactory<T> tokenFactory) {
+		this.tokenFactory = tokenFactory;
+	}
+
+	public void loadGrammar(Grammar<SyncCFGRule<T>, T> grammar, InputStream stream,
+			String inputSourceName, String encoding, TaskListener task) throws IOException,
+			RuleException {
+
+		if (stream instanceof FileInputStream == false) {
+			throw new IOException("Binary grammars must be read directly from a file "
+					+ "(they cannot be compressed)");
+		}
+		FileChannel channel = ((FileInputStream) stream).getChannel();
+
+		ByteBuffer preamble = readFully(channel, 0, PREAMBLE_BYTES);
+		if (preamble.getInt() != MAGIC) {
+			throw new IOException("Not a binary grammar file: " + inputSourceName);
+		}
+		int version = preamble.getInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported binary grammar version: " + version);
+		}
+		long headerPosition = preamble.getLong();
+		long headerBytes = channel.size() - headerPosition;
+		if (headerPosition < PREAMBLE_BYTES || headerBytes < 0) {
+			throw new IOException("Corrupt binary grammar file (bad header position "
+					+ headerPosition + "): " + inputSourceName);
+		}
+		if (headerBytes > Integer.MAX_VALUE) {
+			// the header is read into a single array
+			throw new IOException("Binary grammar header is too large (" + headerBytes
+					+ " bytes; the maximum is " + Integer.MAX_VALUE + "): " + inputSourceName);
+		}
+		int headerLength = (int) headerBytes;
+
+		ByteBuffer headerBuf = readFully(channel, headerPosition, headerLength);
+		DataInputStream header =
+				new DataInputStream(new ByteArrayInputStream(headerBuf.array(), 0, headerLength));
+
+		// map the symbol table into the decoder's tokens
+		int nSymbols = header.readInt();
+		T[] symbols = tokenFactory.newTokenArray(nSymbols);
+		for (int i = 0; i < nSymbols; i++) {
+			boolean terminal = header.readBoolean();
+			symbols[i] = tokenFactory.makeToken(header.readUTF(), terminal);
+		}
+
+		int nBlocks = header.readInt();
+		int[] firstSymbols = new int[nBlocks];
+		long[] offsets = new long[nBlocks + 1];
+		int[] nRules = new int[nBlocks];
+		for (int i = 0; i < nBlocks; i++) {
+			firstSymbols[i] = header.readInt();
+			offsets[i] = header.readLong();
+			nRules[i] = header.readInt();
+		}
+		offsets[nBlocks] = header.readLong();
+
+		if (task != null)
+			task.beginTask(nBlocks);
+
+		// map the rule records in segments of whole blocks, since a single
+		// mapping can't exceed 2GB
+		long rulesStart = PREAMBLE_BYTES;
+		int segmentFirstBlock = 0;
+		ByteBuffer segment = null;
+		int nCandidates = 0;
+		for (int i = 0; i < nBlocks; i++) {
+			if (segment == null || offsets[i + 1] - offsets[segmentFirstBlock] > Integer.MAX_VALUE) {
+				segmentFirstBlock = i;
+				long segmentEnd = offsets[i + 1];
+				for (int j = i + 1; j <= nBlocks
+						&& offsets[j] - offsets[segmentFirstBlock] <= Integer.MAX_VALUE; j++) {
+					segmentEnd = offsets[j];
+				}
+				segment =
+						channel.map(FileChannel.MapMode.READ_ONLY, rulesStart
+								+ offsets[segmentFirstBlock], segmentEnd
+								- offsets[segmentFirstBlock]);
+			}
+
+			T firstRhs = symbols[firstSymbols[i]];
+			int start = (int) (offsets[i] - offsets[segmentFirstBlock]);
+			grammar.addRuleBlock(firstRhs, firstRhs.isTerminal(), new CompiledRuleBlock(segment,
+					start, nRules[i], symbols, inputSourceName));
+			nCandidates += nRules[i];
+
+			if (task != null)
+				task.recordEventCompletion();
+		}
+		if (task != null)
+			task.endTask();
+
+		// the mappings remain valid after the channel is closed
+		channel.close();
+
+		log.info("FINISHED LOADING COMPILED GRAMMAR: " + nCandidates + " rules in " + nBlocks
+				+ " blocks from " + inputSourceName);
+	}
+
+	/**
+	 * The rules of one block, read from the mapped file on demand.
+	 */
+	private class CompiledRuleBlock implements RuleBlock<SyncCFGRule<T>, T> {
+
+		private final ByteBuffer buf;
+		private final int start;
+		private final int nRules;
+		private final T[] symbols;
+		private final String inputSourceName;
+
+		public CompiledRuleBlock(ByteBuffer buf, int start, int nRules, T[] symbols,
+				String inputSourceName) {
+			this.buf = buf;
+			this.start = start;
+			this.nRules = nRules;
+			this.symbols = symbols;
+			this.inputSourceName = inputSourceName;
+		}
+
+		public int size() {
+			return nRules;
+		}
+
+		public List<SyncCFGRule<T>> getRules() throws RuleException {
+
+			// only absolute gets are used, so the shared buffer is never
+			// modified and several threads may read it at once
+			List<SyncCFGRule<T>> rules = new ArrayList<SyncCFGRule<T>>(nRules);
+			int pos = start;
+			for (int i = 0; i < nRules; i++) {
+				T lhs = symbols[buf.getInt(pos)];
+				T targetLhs = symbols[buf.getInt(pos + 4)];
+				pos += 8;
+
+				int nRhs = buf.getInt(pos);
+				T[] rhs = tokenFactory.newTokenArray(nRhs);
+				for (int j = 0; j < nRhs; j++) {
+					rhs[j] = symbols[buf.getInt(pos + 4 + 4 * j)];
+				}
+				pos += 4 + 4 * nRhs;
+
+				int nTargetRhs = buf.getInt(pos);
+				T[] targetRhs = tokenFactory.newTokenArray(nTargetRhs);
+				int[] alignment = new int[nTargetRhs];
+				for (int j = 0; j < nTargetRhs; j++) {
+					targetRhs[j] = symbols[buf.getInt(pos + 4 + 4 * j)];
+					alignment[j] = buf.getInt(pos + 4 + 4 * (nTargetRhs + j));
+				}
+				pos += 4 + 8 * nTargetRhs;
+
+				double sgt = buf.getDouble(pos);
+				double tgs = buf.getDouble(pos + 8);
+				pos += 16;
+
+				String ruleId = null;
+				int idLength = buf.getInt(pos);
+				pos += 4;
+				if (idLength >= 0) {
+					byte[] bytes = new byte[idLength];
+					for (int j = 0; j < idLength; j++) {
+						bytes[j] = buf.get(pos + j);
+					}
+					ruleId = decodeUTF8(bytes);
+					pos += idLength;
+				}
+
+				rules.add(new SyncCFGRule<T>(lhs, rhs, targetLhs, targetRhs, ruleId, alignment,
+						new RuleScore(sgt, tgs), new Constraint[0], inputSourceName, i,
+						tokenFactory));
+			}
+			return rules;
+		}
+
+		public void addTargetVocabulary(HashSet<T> sourceVocabulary, HashSet<T> targetVocabulary) {
+
+			int pos = start;
+			for (int i = 0; i < nRules; i++) {
+				pos += 8;
+
+				boolean inVocabulary = true;
+				int nRhs = buf.getInt(pos);
+				if (sourceVocabulary != null) {
+					for (int j = 0; j < nRhs; j++) {
+						T tok = symbols[buf.getInt(pos + 4 + 4 * j)];
+						if (tok.isTerminal() && sourceVocabulary.contains(tok) == false) {
+							inVocabulary = false;
+							break;
+						}
+					}
+				}
+				pos += 4 + 4 * nRhs;
+
+				int nTargetRhs = buf.getInt(pos);
+				if (inVocabulary) {
+					for (int j = 0; j < nTargetRhs; j++) {
+						T tok = symbols[buf.getInt(pos + 4 + 4 * j)];
+						if (tok.isTerminal()) {
+							targetVocabulary.add(tok);
+						}
+					}
+				}
+				pos += 4 + 8 * nTargetRhs + 16;
+
+				int idLength = buf.getInt(pos);
+				pos += 4 + Math.max(0, idLength);
+			}
+		}
+	}
+
+	private static String decodeUTF8(byte[] bytes) {
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Writes every rule in a grammar to a binary file that can later be loaded
+	 * with this class.
+	 *
+	 * @param grammar
+	 *            a grammar populated by some other loader(s)
+	 * @param file
+	 *            The output file
+	 * @throws IOException
+	 */
+	public static <T extends Token> void compile(Grammar<SyncCFGRule<T>, T> grammar, File file)
+			throws IOException {
+
+		// group rules by their first source RHS symbol
+		LinkedHashMap<T, List<SyncCFGRule<T>>> blocks =
+				new LinkedHashMap<T, List<SyncCFGRule<T>>>();
+		for (SyncCFGRule<T> rule : grammar.getAllRules()) {
+			T first = rule.getRhs()[0];
+			List<SyncCFGRule<T>> block = blocks.get(first);
+			if (block == null) {
+				block = new ArrayList<SyncCFGRule<T>>();
+				blocks.put(first, block);
+			}
+			block.add(rule);
+		}
+
+		HashMap<T, Integer> symbolIds = new HashMap<T, Integer>();
+		List<T> symbols = new ArrayList<T>();
+
+		DataOutputStream out =
+				new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(0); // header position, filled in below
+
+		// write the rule records, remembering where each block begins
+		// (DataOutputStream.size() overflows at 2GB, so keep our own count)
+		long position = 0;
+		List<long[]> index = new ArrayList<long[]>(blocks.size());
+		for (Entry<T, List<SyncCFGRule<T>>> entry : blocks.entrySet()) {
+			index.add(new long[] { symbolId(entry.getKey(), symbolIds, symbols), position,
+					entry.getValue().size() });
+
+			for (SyncCFGRule<T> rule : entry.getValue()) {
+				out.writeInt(symbolId(rule.getLhs(), symbolIds, symbols));
+				out.writeInt(symbolId(rule.getTargetLhs(), symbolIds, symbols));
+				out.writeInt(rule.getRhs().length);
+				for (T tok : rule.getRhs()) {
+					out.writeInt(symbolId(tok, symbolIds, symbols));
+				}
+				out.writeInt(rule.getTargetRhs().length);
+				for (T tok : rule.getTargetRhs()) {
+					out.writeInt(symbolId(tok, symbolIds, symbols));
+				}
+				for (int alignment : rule.getTargetToSourceAlignment()) {
+					out.writeInt(alignment);
+				}
+				out.writeDouble(rule.getRuleScores().sgt);
+				out.writeDouble(rule.getRuleScores().tgs);
+				position +=
+						8 + 4 + 4 * rule.getRhs().length + 4 + 8 * rule.getTargetRhs().length + 16
+								+ 4;
+
+				if (rule.getRuleId() == null) {
+					out.writeInt(-1);
+				} else {
+					byte[] id = rule.getRuleId().getBytes("UTF-8");
+					out.writeInt(id.length);
+					out.write(id);
+					position += id.length;
+				}
+			}
+		}
+
+		out.writeInt(symbols.size());
+		for (T tok : symbols) {
+			out.writeBoolean(tok.isTerminal());
+			out.writeUTF(tok.getWord());
+		}
+		out.writeInt(index.size());
+		for (long[] block : index) {
+			out.writeInt((int) block[0]);
+			out.writeLong(block[1]);
+			out.writeInt((int) block[2]);
+		}
+		out.writeLong(position);
+		out.close();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(8);
+		raf.writeLong(PREAMBLE_BYTES + position);
+		raf.close();
+
+		log.info("Wrote " + grammar.getAllRules().size() + " rules in " + index.size()
+				+ " blocks to " + file.getAbsolutePath());
+	}
+
+	private static <T extends Token> int symbolId(T tok, HashMap<T, Integer> symbolIds,
+			List<T> symbols) {
+		Integer id = symbolIds.get(tok);
+		if (id == null) {
+			id = symbols.size();
+			symbolIds.put(tok, id);
+			symbols.add(tok);
+		}
+		return id;
+	}
+
+	private static ByteBuffer readFully(FileChannel channel, long position, int length)
+			throws IOException {
+
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, position + buf.position()) < 0) {
+				throw new IOException("Unexpected end of binary grammar file");
+			}
+		}
+		buf.flip();
+		return buf;
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 4) {
+			System.err.println("Usage: program <binary_grammar_out> <keep_k_best> "
+					+ "[-grammar <grammar_file>]... [-lexicon <lexicon_file>]... [-encoding <enc>]");
+			System.exit(1);
+		}
+
+		File binaryFile = new File(args[0]);
+		int keepKBest = Integer.parseInt(args[1]);
+
+		// the loaders used here need nothing but a token factory, so they are
+		// created directly rather than from a TreegraftConfig
+		IntegerTokenFactory tokenFactory = new IntegerTokenFactory();
+
+		String encoding = "UTF-8";
+		for (int i = 2; i + 1 < args.length; i += 2) {
+			if (args[i].equals("-encoding")) {
+				encoding = args[i + 1];
+			}
+		}
+
+		Grammar<SyncCFGRule<IntegerToken>, IntegerToken> grammar =
+				new Grammar<SyncCFGRule<IntegerToken>, IntegerToken>(tokenFactory,
+						Grammar.DEFAULT_START_SYMBOLS, null, null, null);
+		grammar.keepKBestRulesWhileLoading(keepKBest);
+		TextProgressBar progressBar = new TextProgressBar(System.err, "rule", 100, 50, false);
+		for (int i = 2; i + 1 < args.length; i += 2) {
+			File file = new File(args[i + 1]);
+			GrammarLoader<SyncCFGRule<IntegerToken>, IntegerToken> loader;
+			if (args[i].equals("-grammar")) {
+				loader = new SyncCFGGrammarLoader<IntegerToken>(tokenFactory, true);
+			} else if (args[i].equals("-lexicon")) {
+				loader = new OneLineLexiconGrammarLoader<IntegerToken>(tokenFactory);
+			} else {
+				continue;
+			}
+			loader.loadGrammar(grammar, new FileInputStream(file), file.getAbsolutePath(),
+					encoding, progressBar);
+		}
+
+		log.info("Writing binary grammar to " + binaryFile.getAbsolutePath());
+		compile(grammar, binaryFile);
+	}
+}
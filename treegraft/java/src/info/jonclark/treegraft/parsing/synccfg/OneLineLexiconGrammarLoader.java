@@ -32,7 +32,12 @@ public class OneLineLexiconGrammarLoader<T extends Token> implements
 
 	public OneLineLexiconGrammarLoader(NullOptions opts, TreegraftConfig<SyncCFGRule<T>, T> config) {
 
-		this.tokenFactory = config.tokenFactory;
+		this(config.tokenFactory);
+	}
+
+	public OneLineLexiconGrammarLoader(TokenFactory<T> tokenFactory) {
+
+		this.tokenFactory = tokenFactory;
 	}
 
 	/**
@@ -0,0 +1,362 @@
+package info.jonclark.treegraft.parsing.synccfg;
+
+import info.jonclark.log.LogUtils;
+import info.jonclark.stat.TaskListener;
+import info.jonclark.treegraft.core.tokens.Token;
+import info.jonclark.treegraft.core.tokens.TokenFactory;
+import info.jonclark.treegraft.parsing.grammar.Grammar;
+import info.jonclark.treegraft.parsing.grammar.GrammarLoader;
+import info.jonclark.treegraft.parsing.rules.RuleException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Base class for grammar loaders that parse a text grammar on multiple
+ * threads. The input is read sequentially as raw bytes and split into chunks
+ * of roughly CHUNK_BYTES at rule boundaries (see
+ * {@link #findChunkEnd(byte[], int, boolean)}); no characters are decoded
+ * while splitting. Each chunk is then parsed and filtered against the
+ * grammar's vocabulary (see {@link Grammar#accepts(GrammarRule)}) by a pool
+ * of worker threads, each producing its own list of rules. Since
+ * <code>Grammar</code> is not thread-safe, the per-chunk lists are merged
+ * into the grammar by the reading thread, in the order of the input, so that
+ * the resulting grammar is identical to that of a sequential load.
+ * <p>
+ * Chunks are found by scanning for ASCII delimiters, so the grammar's
+ * encoding must encode ASCII characters as single bytes (e.g. UTF-8 or
+ * ISO-8859-1).
+ *
+ * @author Jonathan Clark
+ */
+public abstract class ParallelGrammarLoader<T extends Token> implements
+		GrammarLoader<SyncCFGRule<T>, T> {
+
+	private static final Logger log = LogUtils.getLogger();
+
+	private static final int CHUNK_BYTES = 1 << 20;
+
+	// how many parsed chunks may be waiting to be merged per worker before the
+	// reader blocks; this bounds the memory used by unmerged rules
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	private static final String ASCII_DELIMS = " \t\r\n#;(){}[]\":";
+
+	protected final TokenFactory<T> tokenFactory;
+	private final int nThreads;
+
+	private final ThreadLocal<ByteTokenCache> terminalCache = new ThreadLocal<ByteTokenCache>() {
+		protected ByteTokenCache initialValue() {
+			return new ByteTokenCache(true);
+		}
+	};
+
+	private final ThreadLocal<ByteTokenCache> nonterminalCache =
+			new ThreadLocal<ByteTokenCache>() {
+				protected ByteTokenCache initialValue() {
+					return new ByteTokenCache(false);
+				}
+			};
+
+	/**
+	 * @param tokenFactory
+	 * @param nThreads
+	 *            the number of parsing threads; zero or less uses one per
+	 *            available processor
+	 */
+	protected ParallelGrammarLoader(TokenFactory<T> tokenFactory, int nThreads) {
+		this.tokenFactory = tokenFactory;
+		if (nThreads <= 0) {
+			nThreads = Runtime.getRuntime().availableProcessors();
+		}
+		this.nThreads = nThreads;
+	}
+
+	/**
+	 * Finds the end of the last complete rule in a buffer that begins at a rule
+	 * boundary.
+	 *
+	 * @param buf
+	 * @param length
+	 *            the number of valid bytes in buf
+	 * @param eof
+	 *            true if no more input follows the buffer
+	 * @return the number of bytes at the start of buf that contain only whole
+	 *         rules (possibly zero)
+	 */
+	protected abstract int findChunkEnd(byte[] buf, int length, boolean eof);
+
+	/**
+	 * Parses a chunk of whole rules. Called concurrently by the worker threads,
+	 * each with its own chunk.
+	 *
+	 * @param chunk
+	 *            the bytes of the chunk
+	 * @param firstLine
+	 *            the line number (1-based) of the first line of the chunk
+	 * @param inputSourceName
+	 * @param charset
+	 * @return the rules in the chunk, in order
+	 * @throws IOException
+	 * @throws RuleException
+	 */
+	protected abstract List<SyncCFGRule<T>> parseChunk(byte[] chunk, int firstLine,
+			String inputSourceName, Charset charset) throws IOException, RuleException;
+
+	/**
+	 * Gets the calling worker thread's cache of terminal tokens.
+	 */
+	protected ByteTokenCache getTerminalCache(Charset charset) {
+		ByteTokenCache cache = terminalCache.get();
+		cache.charset = charset;
+		return cache;
+	}
+
+	/**
+	 * Gets the calling worker thread's cache of non-terminal tokens.
+	 */
+	protected ByteTokenCache getNonterminalCache(Charset charset) {
+		ByteTokenCache cache = nonterminalCache.get();
+		cache.charset = charset;
+		return cache;
+	}
+
+	/**
+	 * Gets the tokens of buf whose [start, end) offsets are given by spans, in
+	 * the format [n, start_1, end_1, ..., start_n, end_n].
+	 */
+	protected T[] makeTokens(byte[] buf, int[] spans, ByteTokenCache cache) {
+		int n = spans[0];
+		T[] tokens = tokenFactory.newTokenArray(n);
+		for (int i = 0; i < n; i++) {
+			tokens[i] = cache.get(buf, spans[2 * i + 1], spans[2 * i + 2]);
+		}
+		return tokens;
+	}
+
+	public void loadGrammar(final Grammar<SyncCFGRule<T>, T> grammar, InputStream stream,
+			final String inputSourceName, String encoding, TaskListener task) throws IOException,
+			RuleException {
+
+		final Charset charset = Charset.forName(encoding);
+		byte[] asciiDelims = ASCII_DELIMS.getBytes("US-ASCII");
+		if (Arrays.equals(ASCII_DELIMS.getBytes(charset), asciiDelims) == false) {
+			throw new IOException(
+					"Parallel grammar loading requires an ASCII-compatible encoding: " + encoding);
+		}
+
+		// note: task may be null
+		File possibleFile = new File(inputSourceName);
+		if (task != null && possibleFile.exists()) {
+			task.beginTask((int) (possibleFile.length() / CHUNK_BYTES + 1));
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		ArrayDeque<Future<ParsedChunk>> pending = new ArrayDeque<Future<ParsedChunk>>();
+		int nChunks = 0;
+
+		try {
+			byte[] buf = new byte[CHUNK_BYTES];
+			int length = 0;
+			int nLine = 1;
+			boolean eof = false;
+			while (!eof || length > 0) {
+
+				// fill the buffer
+				while (!eof && length < buf.length) {
+					int nRead = stream.read(buf, length, buf.length - length);
+					if (nRead == -1) {
+						eof = true;
+					} else {
+						length += nRead;
+					}
+				}
+
+				int end = findChunkEnd(buf, length, eof);
+				if (end == 0) {
+					if (eof) {
+						break;
+					}
+					// a single rule is longer than the buffer
+					buf = Arrays.copyOf(buf, buf.length * 2);
+					continue;
+				}
+
+				final byte[] chunk = Arrays.copyOf(buf, end);
+				final int firstLine = nLine;
+				for (int i = 0; i < end; i++) {
+					if (buf[i] == '\n') {
+						nLine++;
+					}
+				}
+				System.arraycopy(buf, end, buf, 0, length - end);
+				length -= end;
+
+				pending.add(pool.submit(new Callable<ParsedChunk>() {
+					public ParsedChunk call() throws IOException, RuleException {
+						List<SyncCFGRule<T>> rules =
+								parseChunk(chunk, firstLine, inputSourceName, charset);
+						return new ParsedChunk(rules, grammar);
+					}
+				}));
+				nChunks++;
+
+				// merge finished chunks in order, waiting if too many are
+				// outstanding
+				while (pending.isEmpty() == false
+						&& (pending.peek().isDone() || pending.size() >= nThreads
+								* CHUNKS_PER_THREAD)) {
+					merge(pending.poll(), grammar, task);
+				}
+			}
+
+			while (pending.isEmpty() == false) {
+				merge(pending.poll(), grammar, task);
+			}
+		} finally {
+			pool.shutdownNow();
+			stream.close();
+		}
+
+		if (task != null)
+			task.endTask();
+
+		log.info("FINISHED LOADING GRAMMAR with " + nThreads + " threads in " + nChunks
+				+ " chunks: Read " + grammar.getCandidateCount() + " and kept "
+				+ grammar.getAllRules().size() + "...");
+	}
+
+	private void merge(Future<ParsedChunk> future, Grammar<SyncCFGRule<T>, T> grammar,
+			TaskListener task) throws IOException, RuleException {
+
+		ParsedChunk parsed;
+		try {
+			parsed = future.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while loading grammar");
+		} catch (ExecutionException e) {
+			Throwable t = e.getCause();
+			if (t instanceof IOException) {
+				throw (IOException) t;
+			} else if (t instanceof RuleException) {
+				throw (RuleException) t;
+			} else if (t instanceof RuntimeException) {
+				throw (RuntimeException) t;
+			} else if (t instanceof Error) {
+				throw (Error) t;
+			} else {
+				throw new RuntimeException(t);
+			}
+		}
+
+		grammar.addFilteredRules(parsed.accepted, parsed.nCandidates);
+		if (task != null)
+			task.recordEventCompletion();
+	}
+
+	/**
+	 * The rules of one chunk that passed the grammar's filters, built by a
+	 * worker thread.
+	 */
+	private class ParsedChunk {
+		private final ArrayList<SyncCFGRule<T>> accepted = new ArrayList<SyncCFGRule<T>>();
+		private final int nCandidates;
+
+		public ParsedChunk(List<SyncCFGRule<T>> rules, Grammar<SyncCFGRule<T>, T> grammar) {
+			this.nCandidates = rules.size();
+			for (SyncCFGRule<T> rule : rules) {
+				if (grammar.accepts(rule)) {
+					accepted.add(rule);
+				}
+			}
+		}
+	}
+
+	/**
+	 * An open-addressing map from the bytes of a token to the token, owned by
+	 * a single worker thread.
+	 */
+	protected class ByteTokenCache {
+		private final boolean terminal;
+		private Charset charset;
+		private byte[][] keys = new byte[1024][];
+		private Object[] values = new Object[1024];
+		private int size = 0;
+
+		private ByteTokenCache(boolean terminal) {
+			this.terminal = terminal;
+		}
+
+		@SuppressWarnings("unchecked")
+		public T get(byte[] buf, int start, int end) {
+			int mask = keys.length - 1;
+			int slot = hash(buf, start, end) & mask;
+			while (keys[slot] != null) {
+				if (matches(keys[slot], buf, start, end)) {
+					return (T) values[slot];
+				}
+				slot = (slot + 1) & mask;
+			}
+
+			T tok = tokenFactory.makeToken(new String(buf, start, end - start, charset), terminal);
+			keys[slot] = Arrays.copyOfRange(buf, start, end);
+			values[slot] = tok;
+			size++;
+			if (size * 2 > keys.length) {
+				grow();
+			}
+			return tok;
+		}
+
+		private int hash(byte[] buf, int start, int end) {
+			int hash = 0;
+			for (int i = start; i < end; i++) {
+				hash = 31 * hash + buf[i];
+			}
+			return hash ^ (hash >>> 16);
+		}
+
+		private boolean matches(byte[] key, byte[] buf, int start, int end) {
+			if (key.length != end - start) {
+				return false;
+			}
+			for (int i = 0; i < key.length; i++) {
+				if (key[i] != buf[start + i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void grow() {
+			byte[][] oldKeys = keys;
+			Object[] oldValues = values;
+			keys = new byte[oldKeys.length * 2][];
+			values = new Object[oldValues.length * 2];
+			int mask = keys.length - 1;
+			for (int j = 0; j < oldKeys.length; j++) {
+				byte[] key = oldKeys[j];
+				if (key != null) {
+					int slot = hash(key, 0, key.length) & mask;
+					while (keys[slot] != null) {
+						slot = (slot + 1) & mask;
+					}
+					keys[slot] = key;
+					values[slot] = oldValues[j];
+				}
+			}
+		}
+	}
+}
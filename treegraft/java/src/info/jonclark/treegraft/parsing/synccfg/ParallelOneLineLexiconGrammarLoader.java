@@ -0,0 +1,216 @@
+package info.jonclark.treegraft.parsing.synccfg;
+
+import info.jonclark.lang.NullOptions;
+import info.jonclark.lang.OptionsTarget;
+import info.jonclark.log.LogUtils;
+import info.jonclark.treegraft.Treegraft.TreegraftConfig;
+import info.jonclark.treegraft.core.featureimpl.RuleScore;
+import info.jonclark.treegraft.core.scoring.ProbUtils;
+import info.jonclark.treegraft.core.tokens.Token;
+import info.jonclark.treegraft.core.tokens.TokenFactory;
+import info.jonclark.treegraft.parsing.rules.RuleException;
+import info.jonclark.treegraft.parsing.unification.Constraint;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * A parallel version of {@link OneLineLexiconGrammarLoader} for the same
+ * format (one rule per line:
+ * <code>id # srcLHS # tgtLHS # srcRHS # tgtRHS # tgs sgt</code>). Chunks end
+ * at line breaks and are parsed by scanning their bytes directly: columns and
+ * tokens are found by their byte offsets, and each worker thread keeps a
+ * cache from the bytes of each token to the <code>Token</code>, so that
+ * strings are only decoded the first time a worker sees a word. The number
+ * of threads is set by the <code>grammar.loadThreads</code> option.
+ *
+ * @author Jonathan Clark
+ */
+@OptionsTarget(NullOptions.class)
+public class ParallelOneLineLexiconGrammarLoader<T extends Token> extends
+		ParallelGrammarLoader<T> {
+
+	private static final Logger log = LogUtils.getLogger();
+
+	private static final int N_COLUMNS = 6;
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	public ParallelOneLineLexiconGrammarLoader(NullOptions opts,
+			TreegraftConfig<SyncCFGRule<T>, T> config) {
+
+		super(config.tokenFactory, config.opts.grammarLoadThreads);
+	}
+
+	public ParallelOneLineLexiconGrammarLoader(TokenFactory<T> tokenFactory, int nThreads) {
+		super(tokenFactory, nThreads);
+	}
+
+	protected int findChunkEnd(byte[] buf, int length, boolean eof) {
+		if (eof) {
+			return length;
+		}
+		for (int i = length - 1; i >= 0; i--) {
+			if (buf[i] == '\n') {
+				return i + 1;
+			}
+		}
+		return 0;
+	}
+
+	protected List<SyncCFGRule<T>> parseChunk(byte[] chunk, int firstLine,
+			String inputSourceName, Charset charset) throws RuleException {
+
+		ByteTokenCache terminals = getTerminalCache(charset);
+		ByteTokenCache nonterminals = getNonterminalCache(charset);
+
+		List<SyncCFGRule<T>> rules = new ArrayList<SyncCFGRule<T>>();
+
+		// [start, end) of each trimmed column
+		int[] columns = new int[N_COLUMNS * 2];
+		int[] spans = new int[16];
+
+		int nLine = firstLine;
+		int lineStart = 0;
+		while (lineStart < chunk.length) {
+			int lineEnd = lineStart;
+			while (lineEnd < chunk.length && chunk[lineEnd] != '\n') {
+				lineEnd++;
+			}
+
+			try {
+				int nColumns = findColumns(chunk, lineStart, lineEnd, columns);
+				if (nColumns == 0) {
+					// skip blank lines
+				} else if (nColumns < N_COLUMNS) {
+					throw new RuleException("Expected " + N_COLUMNS + " columns but found "
+							+ nColumns);
+				} else {
+					String ruleId =
+							new String(chunk, columns[0], columns[1] - columns[0], charset);
+					T sourceLhs = nonterminals.get(chunk, columns[2], columns[3]);
+					T targetLhs = nonterminals.get(chunk, columns[4], columns[5]);
+
+					spans = findTokens(chunk, columns[6], columns[7], spans);
+					T[] sourceRhs = makeTokens(chunk, spans, terminals);
+					spans = findTokens(chunk, columns[8], columns[9], spans);
+					T[] targetRhs = makeTokens(chunk, spans, terminals);
+
+					spans = findTokens(chunk, columns[10], columns[11], spans);
+					if (spans[0] < 2) {
+						throw new RuleException("Expected 2 scores but found " + spans[0]);
+					}
+					double tgs = parseDouble(chunk, spans[1], spans[2]);
+					double sgt = parseDouble(chunk, spans[3], spans[4]);
+
+					double logTgs = ProbUtils.logProb(tgs);
+					double logSgt = ProbUtils.logProb(sgt);
+
+					int[] alignment = new int[targetRhs.length];
+					Arrays.fill(alignment, -1);
+
+					try {
+						rules.add(new SyncCFGRule<T>(sourceLhs, sourceRhs, targetLhs, targetRhs,
+								ruleId, alignment, new RuleScore(logSgt, logTgs),
+								new Constraint[0], inputSourceName, nLine, tokenFactory));
+					} catch (RuleException e) {
+						log.severe("Malformed rule (skipping rule): " + e.getMessage());
+					}
+				}
+			} catch (Throwable t) {
+				throw new RuleException("Could not read rule in " + inputSourceName + " on line "
+						+ nLine, t);
+			}
+
+			nLine++;
+			lineStart = lineEnd + 1;
+		}
+
+		return rules;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return (b & 0xff) <= ' ';
+	}
+
+	/**
+	 * Splits a line at '#' characters into trimmed columns, skipping empty
+	 * columns (like <code>StringUtils.tokenize(line, "#")</code>).
+	 *
+	 * @return the number of columns found (at most N_COLUMNS are stored), or
+	 *         zero if the line is blank
+	 */
+	private static int findColumns(byte[] buf, int start, int end, int[] columns) {
+
+		int firstChar = start;
+		while (firstChar < end && isWhitespace(buf[firstChar])) {
+			firstChar++;
+		}
+		if (firstChar == end) {
+			return 0;
+		}
+
+		int nColumns = 0;
+		int colStart = start;
+		for (int i = start; i <= end; i++) {
+			if (i == end || buf[i] == '#') {
+				if (i > colStart) {
+					if (nColumns < N_COLUMNS) {
+						int s = colStart;
+						int e = i;
+						while (s < e && isWhitespace(buf[s])) {
+							s++;
+						}
+						while (e > s && isWhitespace(buf[e - 1])) {
+							e--;
+						}
+						columns[2 * nColumns] = s;
+						columns[2 * nColumns + 1] = e;
+					}
+					nColumns++;
+				}
+				colStart = i + 1;
+			}
+		}
+		return nColumns;
+	}
+
+	/**
+	 * Finds the whitespace-delimited tokens in buf[start, end).
+	 *
+	 * @return an array whose first element is the number of tokens n,
+	 *         followed by n pairs of [start, end) offsets (spans is reused if
+	 *         it's big enough)
+	 */
+	private static int[] findTokens(byte[] buf, int start, int end, int[] spans) {
+		int n = 0;
+		int i = start;
+		while (i < end) {
+			while (i < end && isWhitespace(buf[i])) {
+				i++;
+			}
+			if (i == end) {
+				break;
+			}
+			int tokStart = i;
+			while (i < end && isWhitespace(buf[i]) == false) {
+				i++;
+			}
+			if (2 * n + 3 > spans.length) {
+				spans = Arrays.copyOf(spans, spans.length * 2);
+			}
+			spans[2 * n + 1] = tokStart;
+			spans[2 * n + 2] = i;
+			n++;
+		}
+		spans[0] = n;
+		return spans;
+	}
+
+	private static double parseDouble(byte[] buf, int start, int end) {
+		// scores are always ASCII
+		return Double.parseDouble(new String(buf, start, end - start, ASCII));
+	}
+}
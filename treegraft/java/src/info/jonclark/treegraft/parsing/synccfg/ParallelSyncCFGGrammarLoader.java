@@ -0,0 +1,561 @@
+package info.jonclark.treegraft.parsing.synccfg;
+
+import info.jonclark.lang.NullOptions;
+import info.jonclark.lang.OptionsTarget;
+import info.jonclark.log.LogUtils;
+import info.jonclark.treegraft.Treegraft.TreegraftConfig;
+import info.jonclark.treegraft.core.featureimpl.RuleScore;
+import info.jonclark.treegraft.core.scoring.ProbUtils;
+import info.jonclark.treegraft.core.tokens.Token;
+import info.jonclark.treegraft.core.tokens.TokenFactory;
+import info.jonclark.treegraft.parsing.rules.RuleException;
+import info.jonclark.treegraft.parsing.unification.Constraint;
+import info.jonclark.util.StringUtils;
+
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * A parallel version of {@link SyncCFGGrammarLoader} for the same format.
+ * Rule boundaries are found by scanning the raw bytes of the grammar with the
+ * same rules the sequential parser uses: a rule begins with a line containing
+ * "->" and ends once the parentheses of the feature lines that follow it are
+ * balanced. Each chunk of whole rules is then parsed from its bytes, as
+ * {@link ParallelOneLineLexiconGrammarLoader} does: symbols are found by their
+ * byte offsets and looked up in each worker thread's token caches, and score
+ * and alignment lines are read in place, so that only constraint lines and
+ * words not yet seen by a worker are decoded into strings. Header lines in an
+ * unusual form are decoded and parsed with the string functions of
+ * <code>SyncCFGGrammarLoader</code>, so both loaders produce the same rules.
+ * The number of threads is set by the <code>grammar.loadThreads</code>
+ * option.
+ *
+ * @author Jonathan Clark
+ */
+@OptionsTarget(NullOptions.class)
+public class ParallelSyncCFGGrammarLoader<T extends Token> extends ParallelGrammarLoader<T> {
+
+	private static final Logger log = LogUtils.getLogger();
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final String SGT = "(*sgtrule* ";
+	private static final String TGS = "(*tgsrule* ";
+	private static final String SCORE = "(*score* ";
+
+	private final boolean convertScoresToLog;
+
+	public ParallelSyncCFGGrammarLoader(NullOptions opts,
+			TreegraftConfig<SyncCFGRule<T>, T> config) {
+
+		this(config.tokenFactory, true, config.opts.grammarLoadThreads);
+	}
+
+	public ParallelSyncCFGGrammarLoader(TokenFactory<T> tokenFactory, boolean convertScoresToLog,
+			int nThreads) {
+
+		super(tokenFactory, nThreads);
+		this.convertScoresToLog = convertScoresToLog;
+	}
+
+	protected int findChunkEnd(byte[] buf, int length, boolean eof) {
+
+		if (eof) {
+			return length;
+		}
+
+		int chunkEnd = 0;
+		int ruleEnd;
+		while ((ruleEnd = findRuleEnd(buf, chunkEnd, length)) != -1) {
+			chunkEnd = ruleEnd;
+		}
+		return chunkEnd;
+	}
+
+	/**
+	 * Finds the end of the first complete rule in buf[start, length), where
+	 * start is a rule boundary. Any blank lines, comments and rule ID lines
+	 * before the rule are considered to be part of it.
+	 * 
+	 * @param buf
+	 * @param start
+	 * @param length
+	 * @return the offset just past the newline that ends the rule's features;
+	 *         -1 if the buffer does not contain a complete rule
+	 */
+	public static int findRuleEnd(byte[] buf, int start, int length) {
+
+		boolean inFeatures = false;
+		boolean opened = false;
+		int nOpen = 0;
+
+		int lineStart = start;
+		while (true) {
+			int lineEnd = lineStart;
+			while (lineEnd < length && buf[lineEnd] != '\n') {
+				lineEnd++;
+			}
+			if (lineEnd == length) {
+				// incomplete line
+				return -1;
+			}
+
+			int first = lineStart;
+			while (first < lineEnd && (buf[first] & 0xff) <= ' ') {
+				first++;
+			}
+
+			if (first == lineEnd || buf[first] == ';') {
+				// skip blank and comment lines
+			} else if (inFeatures == false) {
+				if (buf[lineStart] != '{' && contains(buf, lineStart, lineEnd, '-', '>')) {
+					inFeatures = true;
+					opened = false;
+					nOpen = 0;
+				}
+			} else if (buf[first] != '#') {
+				for (int i = first; i < lineEnd; i++) {
+					if (buf[i] == '(') {
+						nOpen++;
+						opened = true;
+					} else if (buf[i] == ')') {
+						nOpen--;
+					}
+				}
+				if (opened && nOpen == 0) {
+					return lineEnd + 1;
+				}
+			}
+
+			lineStart = lineEnd + 1;
+		}
+	}
+
+	private static boolean contains(byte[] buf, int start, int end, char a, char b) {
+		for (int i = start; i < end - 1; i++) {
+			if (buf[i] == a && buf[i + 1] == b) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	protected List<SyncCFGRule<T>> parseChunk(byte[] chunk, int firstLine,
+			String inputSourceName, Charset charset) throws RuleException {
+
+		ByteTokenCache terminals = getTerminalCache(charset);
+		ByteTokenCache nonterminals = getNonterminalCache(charset);
+
+		List<SyncCFGRule<T>> rules = new ArrayList<SyncCFGRule<T>>();
+		int[] spans = new int[16];
+
+		String ruleId = null;
+		PendingRule pending = null; // the rule whose features are being read
+
+		int nLine = firstLine;
+		int lineStart = 0;
+		while (lineStart < chunk.length) {
+			int lineEnd = lineStart;
+			while (lineEnd < chunk.length && chunk[lineEnd] != '\n') {
+				lineEnd++;
+			}
+			int next = lineEnd + 1;
+			if (lineEnd > lineStart && chunk[lineEnd - 1] == '\r') {
+				lineEnd--;
+			}
+
+			try {
+				int first = lineStart;
+				while (first < lineEnd && isWhitespace(chunk[first])) {
+					first++;
+				}
+				int last = lineEnd;
+				while (last > first && isWhitespace(chunk[last - 1])) {
+					last--;
+				}
+
+				if (pending == null) {
+					if (first == lineEnd || chunk[first] == ';') {
+						// skip blank and comment lines
+					} else if (chunk[lineStart] == '{') {
+						ruleId = parseRuleId(chunk, lineStart, lineEnd, charset);
+					} else if (indexOf(chunk, lineStart, lineEnd, "->") != -1) {
+						pending =
+								parseHeader(chunk, lineStart, lineEnd, charset, terminals,
+										nonterminals, spans);
+						pending.ruleId = ruleId;
+						ruleId = null;
+					}
+
+				} else if (first == last || chunk[first] == '#' || chunk[first] == ';') {
+					// skip blank and comment lines within the features
+
+				} else if (pending.addFeatureLine(chunk, first, last, charset, inputSourceName,
+						nLine)) {
+					SyncCFGRule<T> rule = pending.toRule(inputSourceName, nLine);
+					if (rule != null) {
+						rules.add(rule);
+					}
+					pending = null;
+				}
+			} catch (Throwable t) {
+				throw new RuleException("Could not read rule in " + inputSourceName + " on line "
+						+ nLine, t);
+			}
+
+			nLine++;
+			lineStart = next;
+		}
+
+		// only the last chunk can end inside a rule
+		if (pending != null) {
+			if (pending.opened == false || pending.nOpen > 0) {
+				throw new RuleException("Unfinished rule at the end of " + inputSourceName);
+			}
+			SyncCFGRule<T> rule = pending.toRule(inputSourceName, nLine - 1);
+			if (rule != null) {
+				rules.add(rule);
+			}
+		}
+
+		return rules;
+	}
+
+	/**
+	 * A rule whose header line has been read, but not (all of) its features.
+	 */
+	private class PendingRule {
+		private final T sourceLhs;
+		private final T targetLhs;
+		private final T[] sourceRhs;
+		private final T[] targetRhs;
+		private final SyncCFGGrammarLoader.RuleFeatures features;
+		private String ruleId;
+
+		private int nOpen = 0;
+		private boolean opened = false;
+		private boolean sawBrace = false;
+
+		public PendingRule(T sourceLhs, T targetLhs, T[] sourceRhs, T[] targetRhs) {
+			this.sourceLhs = sourceLhs;
+			this.targetLhs = targetLhs;
+			this.sourceRhs = sourceRhs;
+			this.targetRhs = targetRhs;
+			this.features = new SyncCFGGrammarLoader.RuleFeatures(targetRhs.length);
+		}
+
+		/**
+		 * Reads a trimmed, non-blank, non-comment feature line buf[start,
+		 * end) the same way <code>SyncCFGGrammarLoader</code> does.
+		 * 
+		 * @return true if the line completes the rule's features
+		 */
+		public boolean addFeatureLine(byte[] buf, int start, int end, Charset charset,
+				String inputSourceName, int nLine) throws ParseException {
+
+			int nNewOpen = 0;
+			int nNewClose = 0;
+			boolean brace = false;
+			for (int i = start; i < end; i++) {
+				if (buf[i] == '(') {
+					nNewOpen++;
+				} else if (buf[i] == ')') {
+					nNewClose++;
+				} else if (buf[i] == '{' || buf[i] == '}') {
+					brace = true;
+				}
+			}
+			if (brace) {
+				if (sawBrace) {
+					throw new ParseException("Unfinished rule ending at " + inputSourceName + ":"
+							+ nLine, nLine);
+				}
+				sawBrace = true;
+			}
+			if (nNewOpen > 0) {
+				opened = true;
+			}
+
+			if (startsWith(buf, start, end, SGT)) {
+				features.sgt = parseScore(buf, start + SGT.length(), end);
+			} else if (startsWith(buf, start, end, TGS)) {
+				features.tgs = parseScore(buf, start + TGS.length(), end);
+			} else if (startsWith(buf, start, end, SCORE)) {
+				features.tgs = parseScore(buf, start + SCORE.length(), end);
+				features.sgt = 1.0;
+			} else if (startsWith(buf, start, end, "(X") && buf[end - 1] == ')'
+					&& indexOf(buf, start, end, "::Y") != -1) {
+				int sep = indexOf(buf, start, end, "::Y");
+				int close = indexOf(buf, sep + 3, end, ")");
+				int x = Integer.parseInt(new String(buf, start + 2, sep - start - 2, ASCII));
+				int y = Integer.parseInt(new String(buf, sep + 3, close - sep - 3, ASCII));
+
+				// convert 1-based to 0-based alignments
+				features.alignment[y - 1] = x - 1;
+			} else {
+				features.addConstraint(new Constraint(new String(buf, start, end - start,
+						charset), inputSourceName, nLine));
+			}
+
+			nOpen = nOpen + nNewOpen - nNewClose;
+			return opened && nOpen == 0;
+		}
+
+		/**
+		 * @return the rule, or null if it is malformed
+		 */
+		public SyncCFGRule<T> toRule(String inputSourceName, int nLine) {
+			if (convertScoresToLog) {
+				features.sgt = ProbUtils.logProb(features.sgt);
+				features.tgs = ProbUtils.logProb(features.tgs);
+			}
+			try {
+				return new SyncCFGRule<T>(sourceLhs, sourceRhs, targetLhs, targetRhs, ruleId,
+						features.alignment, new RuleScore(features.sgt, features.tgs),
+						features.getConstraintArray(), inputSourceName, nLine, tokenFactory);
+			} catch (RuleException e) {
+				log.severe("Malformed rule (skipping rule): " + e.getMessage());
+				return null;
+			}
+		}
+	}
+
+	private static String parseRuleId(byte[] buf, int start, int end, Charset charset) {
+		int close = indexOf(buf, start + 1, end, "}");
+		if (close == -1) {
+			// let the sequential loader decide what this means
+			return StringUtils.substringBetween(new String(buf, start, end - start, charset), "{",
+					"}");
+		}
+		return new String(buf, start + 1, close - start - 1, charset);
+	}
+
+	// the value of a score line, which runs up to the first ')'
+	private static double parseScore(byte[] buf, int start, int end) {
+		int close = indexOf(buf, start, end, ")");
+		if (close == -1) {
+			throw new NumberFormatException("Unterminated score");
+		}
+		return Double.parseDouble(new String(buf, start, close - start, ASCII));
+	}
+
+	/**
+	 * Parses a rule's header line (the line containing "->"). Header lines in
+	 * the usual form are split by byte offset and their symbols are found in
+	 * the token caches; anything unusual (escapes, empty quotes, control
+	 * characters, missing delimiters) is decoded and handed to the string
+	 * functions of <code>SyncCFGGrammarLoader</code> so that both loaders
+	 * always agree.
+	 */
+	private PendingRule parseHeader(byte[] buf, int start, int end, Charset charset,
+			ByteTokenCache terminals, ByteTokenCache nonterminals, int[] spans)
+			throws ParseException {
+
+		// like the sequential loader, treat tabs as spaces (the chunk is ours,
+		// so we may modify it)
+		for (int i = start; i < end; i++) {
+			if (buf[i] == '\t') {
+				buf[i] = ' ';
+			}
+		}
+
+		int colons = indexOf(buf, start, end, "::");
+		int bracket = indexOf(buf, start, end, "[");
+		if (colons != -1 && bracket != -1) {
+			int remaining = colons + 2;
+			int targetLhsEnd;
+			int rhsStart;
+			int marker;
+			if ((marker = indexOf(buf, start, bracket, " |: ")) != -1) {
+				targetLhsEnd = indexOf(buf, remaining, end, " |: ");
+				rhsStart = marker + 4;
+			} else if ((marker = indexOf(buf, start, bracket, " : ")) != -1) {
+				targetLhsEnd = indexOf(buf, remaining, end, " : ");
+				rhsStart = marker + 3;
+			} else {
+				targetLhsEnd = indexOf(buf, remaining, end, "[");
+				rhsStart = bracket;
+			}
+			int arrow = indexOf(buf, rhsStart, end, "->");
+
+			if (targetLhsEnd != -1 && arrow != -1) {
+				int[] sourceRhs = trimBrackets(buf, rhsStart, arrow);
+				int[] targetRhs = trimBrackets(buf, arrow + 2, end);
+				if (sourceRhs != null && targetRhs != null) {
+					spans = findSymbols(buf, sourceRhs[0], sourceRhs[1], spans);
+					T[] sourceToks = (spans == null) ? null : makeSymbols(buf, spans, terminals,
+							nonterminals);
+					if (sourceToks != null) {
+						spans = findSymbols(buf, targetRhs[0], targetRhs[1], spans);
+						T[] targetToks = (spans == null) ? null : makeSymbols(buf, spans,
+								terminals, nonterminals);
+						if (targetToks != null) {
+							return new PendingRule(nonterminal(buf, start, colons, nonterminals),
+									nonterminal(buf, remaining, targetLhsEnd, nonterminals),
+									sourceToks, targetToks);
+						}
+					}
+				}
+			}
+		}
+
+		String line = new String(buf, start, end - start, charset);
+		return new PendingRule(tokenFactory.makeToken(SyncCFGGrammarLoader.getSourceLhs(line),
+				false), tokenFactory.makeToken(SyncCFGGrammarLoader.getTargetLhs(line), false),
+				SyncCFGGrammarLoader.tokenizeRhs(SyncCFGGrammarLoader.getSourceRhs(line),
+						tokenFactory), SyncCFGGrammarLoader.tokenizeRhs(SyncCFGGrammarLoader
+						.getTargetRhs(line), tokenFactory));
+	}
+
+	private T nonterminal(byte[] buf, int start, int end, ByteTokenCache nonterminals) {
+		while (start < end && isWhitespace(buf[start])) {
+			start++;
+		}
+		while (end > start && isWhitespace(buf[end - 1])) {
+			end--;
+		}
+		return nonterminals.get(buf, start, end);
+	}
+
+	/**
+	 * Trims buf[start, end) and removes its first and last characters (the
+	 * brackets around a RHS).
+	 * 
+	 * @return the [start, end) offsets of the remainder; null if fewer than 2
+	 *         characters remain after trimming
+	 */
+	private static int[] trimBrackets(byte[] buf, int start, int end) {
+		while (start < end && isWhitespace(buf[start])) {
+			start++;
+		}
+		while (end > start && isWhitespace(buf[end - 1])) {
+			end--;
+		}
+		if (end - start < 2) {
+			return null;
+		}
+		return new int[] { start + 1, end - 1 };
+	}
+
+	/**
+	 * Finds the symbols of a RHS without its outer brackets: space-delimited
+	 * non-terminal names and quoted phrases of one or more space-delimited
+	 * terminals.
+	 * 
+	 * @return an array whose first element is the number of symbols n,
+	 *         followed by n triples of [start, end) offsets and 1 for a
+	 *         terminal or 0 for a non-terminal (spans is reused if it's big
+	 *         enough); null if the RHS contains anything other than these
+	 */
+	private static int[] findSymbols(byte[] buf, int start, int end, int[] spans) {
+		int n = 0;
+		int i = start;
+		while (i < end) {
+			if (buf[i] == ' ') {
+				i++;
+				continue;
+			}
+
+			boolean quoted = (buf[i] == '"');
+			int elementEnd;
+			if (quoted) {
+				i++;
+				elementEnd = i;
+				while (elementEnd < end && buf[elementEnd] != '"') {
+					elementEnd++;
+				}
+				if (elementEnd == end || (elementEnd + 1 < end && buf[elementEnd + 1] != ' ')) {
+					// unterminated, or followed by more characters
+					return null;
+				}
+			} else {
+				elementEnd = i;
+				while (elementEnd < end && buf[elementEnd] != ' ') {
+					elementEnd++;
+				}
+			}
+
+			int nElementSymbols = 0;
+			int j = i;
+			while (j < elementEnd) {
+				int b = buf[j] & 0xff;
+				if (b < ' ' || b == '\\' || (b == '"' && quoted == false)) {
+					return null;
+				} else if (b == ' ') {
+					j++;
+					continue;
+				}
+				int symbolStart = j;
+				if (quoted) {
+					while (j < elementEnd && buf[j] != ' ') {
+						j++;
+					}
+				} else {
+					j = elementEnd;
+				}
+				for (int k = symbolStart; k < j; k++) {
+					int c = buf[k] & 0xff;
+					if (c < ' ' || c == '\\' || c == '"') {
+						return null;
+					}
+				}
+				if (3 * n + 4 > spans.length) {
+					spans = Arrays.copyOf(spans, spans.length * 2);
+				}
+				spans[3 * n + 1] = symbolStart;
+				spans[3 * n + 2] = j;
+				spans[3 * n + 3] = quoted ? 1 : 0;
+				n++;
+				nElementSymbols++;
+			}
+			if (nElementSymbols == 0) {
+				// e.g. a quoted space
+				return null;
+			}
+
+			i = quoted ? elementEnd + 1 : elementEnd;
+		}
+		spans[0] = n;
+		return spans;
+	}
+
+	private T[] makeSymbols(byte[] buf, int[] spans, ByteTokenCache terminals,
+			ByteTokenCache nonterminals) {
+		int n = spans[0];
+		T[] tokens = tokenFactory.newTokenArray(n);
+		for (int i = 0; i < n; i++) {
+			ByteTokenCache cache = (spans[3 * i + 3] == 1) ? terminals : nonterminals;
+			tokens[i] = cache.get(buf, spans[3 * i + 1], spans[3 * i + 2]);
+		}
+		return tokens;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return (b & 0xff) <= ' ';
+	}
+
+	private static boolean startsWith(byte[] buf, int start, int end, String prefix) {
+		if (end - start < prefix.length()) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (buf[start + i] != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// the first offset of the ASCII string s in buf[start, end); -1 if absent
+	private static int indexOf(byte[] buf, int start, int end, String s) {
+		for (int i = start; i <= end - s.length(); i++) {
+			if (startsWith(buf, i, end, s)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -36,6 +36,16 @@ public class SyncCFGGrammarLoader<T extends Token> implements GrammarLoader<Sync
 		this.convertScoresToLog = convertScoresToLog;
 	}
 
+	/**
+	 * Sets the number of lines that have been read so far, for loaders that
+	 * begin reading in the middle of a file.
+	 * 
+	 * @param nLine
+	 */
+	public void setLineNumber(int nLine) {
+		this.nLine.set(nLine);
+	}
+
 	/**
 	 * Reads in a synchronous grammar file (see included data files for example
 	 * format).
@@ -107,35 +117,10 @@ public class SyncCFGGrammarLoader<T extends Token> implements GrammarLoader<Sync
 					// TODO: Check for duplicate rules
 
 					// parse synchronous rule
-					String strSourceLhs = StringUtils.substringBefore(line, "::").trim();
-					String remaining = StringUtils.substringAfter(line, "::");
-
-					boolean markedAsLexical;
-					String strTargetLhs;
-
-					String lhs = StringUtils.substringBefore(line, "[");
-
-					if (lhs.contains(" |: ")) {
-						strTargetLhs = StringUtils.substringBefore(remaining, " |: ").trim();
-						remaining = StringUtils.substringAfter(line, " |: ");
-						markedAsLexical = true;
-					} else if (lhs.contains(" : ")) {
-						strTargetLhs = StringUtils.substringBefore(remaining, " : ").trim();
-						remaining = StringUtils.substringAfter(line, " : ");
-						markedAsLexical = false;
-					} else {
-
-						strTargetLhs = StringUtils.substringBefore(remaining, "[").trim();
-						remaining = StringUtils.substringAfter(line, "[", true);
-						markedAsLexical = false;
-					}
-
-					String strSourceRhs = StringUtils.substringBefore(remaining, "->").trim();
-					String strTargetRhs = StringUtils.substringAfter(remaining, "->").trim();
-
-					// remove outer brackets and turn into Tokens
-					strSourceRhs = strSourceRhs.substring(1, strSourceRhs.length() - 1);
-					strTargetRhs = strTargetRhs.substring(1, strTargetRhs.length() - 1);
+					String strSourceLhs = getSourceLhs(line);
+					String strTargetLhs = getTargetLhs(line);
+					String strSourceRhs = getSourceRhs(line);
+					String strTargetRhs = getTargetRhs(line);
 
 					T sourceLhs = tokenFactory.makeToken(strSourceLhs, false);
 					T targetLhs = tokenFactory.makeToken(strTargetLhs, false);
@@ -173,7 +158,7 @@ public class SyncCFGGrammarLoader<T extends Token> implements GrammarLoader<Sync
 		return null;
 	}
 
-	private static class RuleFeatures {
+	static class RuleFeatures {
 		public double sgt;
 		public double tgs;
 		public int[] alignment;
@@ -303,13 +288,105 @@ public class SyncCFGGrammarLoader<T extends Token> implements GrammarLoader<Sync
 		return ruleFeatures;
 	}
 
+	/**
+	 * Gets the source LHS of a rule's header line (the line containing "->").
+	 * 
+	 * @param line
+	 * @return
+	 */
+	public static String getSourceLhs(String line) {
+		return StringUtils.substringBefore(line, "::").trim();
+	}
+
+	/**
+	 * Gets the target LHS of a rule's header line.
+	 * 
+	 * @param line
+	 * @return
+	 */
+	public static String getTargetLhs(String line) {
+		String remaining = StringUtils.substringAfter(line, "::");
+		String lhs = StringUtils.substringBefore(line, "[");
+		if (lhs.contains(" |: ")) {
+			return StringUtils.substringBefore(remaining, " |: ").trim();
+		} else if (lhs.contains(" : ")) {
+			return StringUtils.substringBefore(remaining, " : ").trim();
+		} else {
+			return StringUtils.substringBefore(remaining, "[").trim();
+		}
+	}
+
+	/**
+	 * Gets the part of a rule's header line that follows the LHS's, i.e.
+	 * <code>[source RHS] -> [target RHS]</code>.
+	 */
+	private static String getRhsPart(String line) {
+		String lhs = StringUtils.substringBefore(line, "[");
+		if (lhs.contains(" |: ")) {
+			return StringUtils.substringAfter(line, " |: ");
+		} else if (lhs.contains(" : ")) {
+			return StringUtils.substringAfter(line, " : ");
+		} else {
+			return StringUtils.substringAfter(line, "[", true);
+		}
+	}
+
+	/**
+	 * Gets the source RHS of a rule's header line (the line containing
+	 * "->") without its outer brackets, suitable for
+	 * {@link #tokenizeRhs(String, TokenFactory)}.
+	 * 
+	 * @param line
+	 * @return
+	 */
+	public static String getSourceRhs(String line) {
+		String strSourceRhs = StringUtils.substringBefore(getRhsPart(line), "->").trim();
+		return strSourceRhs.substring(1, strSourceRhs.length() - 1);
+	}
+
+	/**
+	 * Gets the target RHS of a rule's header line without its outer brackets.
+	 * 
+	 * @param line
+	 * @return
+	 */
+	public static String getTargetRhs(String line) {
+		String strTargetRhs = StringUtils.substringAfter(getRhsPart(line), "->").trim();
+		return strTargetRhs.substring(1, strTargetRhs.length() - 1);
+	}
+
 	public static <T extends Token> T[] tokenizeRhs(String strRhs, TokenFactory<T> tokenFactory)
 			throws ParseException {
 
+		List<String> symbols = new ArrayList<String>();
+		List<Boolean> terminals = new ArrayList<Boolean>();
+		splitRhs(strRhs, symbols, terminals);
+
+		T[] rhsToks = tokenFactory.newTokenArray(symbols.size());
+		for (int i = 0; i < rhsToks.length; i++) {
+			rhsToks[i] = tokenFactory.makeToken(symbols.get(i), terminals.get(i));
+		}
+		return rhsToks;
+	}
+
+	/**
+	 * Splits a RHS into its symbols without creating any tokens (e.g. for
+	 * tools that examine more rules than they keep).
+	 * 
+	 * @param strRhs
+	 *            a RHS without its outer brackets
+	 * @param symbols
+	 *            receives the words and non-terminal names in order
+	 * @param terminals
+	 *            receives whether each symbol is a terminal
+	 * @throws ParseException
+	 */
+	public static void splitRhs(String strRhs, List<String> symbols, List<Boolean> terminals)
+			throws ParseException {
+
 		ArrayList<String> rhs =
 				StringUtils.tokenizeEscapedQuotedValues(strRhs, " ", "\"", "\"", "\\", false, true,
 						Integer.MAX_VALUE);
-		List<T> rhsToks = new ArrayList<T>();
 
 		for (String rhsElement : rhs) {
 			if (rhsElement.startsWith("\"")) {
@@ -326,15 +403,13 @@ public class SyncCFGGrammarLoader<T extends Token> implements GrammarLoader<Sync
 					toks = new String[] { " " };
 				}
 				for (String terminal : toks) {
-					T tok = tokenFactory.makeToken(terminal, true);
-					rhsToks.add(tok);
+					symbols.add(terminal);
+					terminals.add(true);
 				}
 			} else {
-				T tok = tokenFactory.makeToken(rhsElement, false);
-				rhsToks.add(tok);
+				symbols.add(rhsElement);
+				terminals.add(false);
 			}
 		}
-
-		return rhsToks.toArray(tokenFactory.newTokenArray(rhsToks.size()));
 	}
 }
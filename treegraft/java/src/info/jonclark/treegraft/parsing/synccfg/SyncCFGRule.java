@@ -7,7 +7,9 @@ import info.jonclark.treegraft.core.tokens.TokenFactory;
 import info.jonclark.treegraft.core.tokens.TokenSequence;
 import info.jonclark.treegraft.parsing.monocfg.MonoCFGRule;
 import info.jonclark.treegraft.parsing.parses.BasicTreeFormatter;
+import info.jonclark.treegraft.parsing.rules.ConstraintIds;
 import info.jonclark.treegraft.parsing.rules.GrammarRule;
+import info.jonclark.treegraft.parsing.rules.NonterminalIds;
 import info.jonclark.treegraft.parsing.rules.RuleException;
 import info.jonclark.treegraft.parsing.unification.Constraint;
 import info.jonclark.util.StringUtils;
@@ -34,6 +36,12 @@ public class SyncCFGRule<T extends Token> implements GrammarRule<T> {
 
 	private int[] sourceToTargetAlignment;
 	private int[] targetToSourceAlignment;
+
+	// the interned target non-terminal required at each source RHS position
+	// and the interned target LHS; see areConstraintsSatisfied()
+	private int[] constraintIds;
+	private int providedConstraintId;
+	private final int lhsId;
 	private final RuleScore score;
 
 	private final String ruleId;
@@ -77,9 +85,29 @@ public class SyncCFGRule<T extends Token> implements GrammarRule<T> {
 		this.ruleId = ruleId;
 		this.targetToSourceAlignment = targetToSourceAlignment;
 		this.score = ruleScores;
+		this.lhsId = lhs.isTerminal() ? -1 : NonterminalIds.forTokenFactory(tokenFactory).getId(lhs);
 
 		this.packingString = MonoCFGRule.makePackingString(lhs, rhs, tokenFactory);
 		precomputeAlignment(rhs, targetRhs, targetToSourceAlignment);
+		compileConstraints(ConstraintIds.forTokenFactory(tokenFactory));
+	}
+
+	private void compileConstraints(ConstraintIds ids) {
+		this.constraintIds = new int[rhs.length];
+		for (int i = 0; i < rhs.length; i++) {
+			int targetRhsIndex = sourceToTargetAlignment[i];
+			if (rhs[i].isTerminal() || targetRhsIndex == -1 || targetRhs == null) {
+				constraintIds[i] = ConstraintIds.UNCONSTRAINED;
+			} else {
+				constraintIds[i] = ids.intern(targetRhs[targetRhsIndex]);
+			}
+		}
+		if (targetLhs == null) {
+			// dummy rules are never used as children of non-terminals
+			this.providedConstraintId = ConstraintIds.UNCONSTRAINED;
+		} else {
+			this.providedConstraintId = ids.intern(targetLhs);
+		}
 	}
 
 	private void precomputeAlignment(T[] rhs, T[] targetRhs, int[] targetToSourceAlignment)
@@ -142,6 +170,13 @@ public class SyncCFGRule<T extends Token> implements GrammarRule<T> {
 		return lhs;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public int getLhsId() {
+		return lhsId;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -269,20 +304,26 @@ public class SyncCFGRule<T extends Token> implements GrammarRule<T> {
 	public <R extends GrammarRule<T>> boolean areConstraintsSatisfied(int sourceRhsIndex,
 			R ruleFromKey) {
 
-		SyncCFGRule<T> syncRuleFromKey = (SyncCFGRule<T>) ruleFromKey;
-		if (rhs[sourceRhsIndex].isTerminal()) {
-			// terminals are always okay
-			return true;
-		} else {
-			int targetRhsIndex = sourceToTargetAlignment[sourceRhsIndex];
+		// terminals are always okay; for non-terminals, we have to make sure
+		// the target non-terminal symbols match, which were interned when this
+		// rule was created
+		int required = constraintIds[sourceRhsIndex];
+		return required == ConstraintIds.UNCONSTRAINED
+				|| required == ruleFromKey.getProvidedConstraintId();
+	}
 
-			T requiredNonterminal = targetRhs[targetRhsIndex];
-			T actualNonterminal = syncRuleFromKey.targetLhs;
+	/**
+	 * {@inheritDoc}
+	 */
+	public int getConstraintId(int sourceRhsIndex) {
+		return constraintIds[sourceRhsIndex];
+	}
 
-			// for a synchronous CFG rule, we have to make sure the target
-			// non-terminal symbols match
-			return requiredNonterminal.equals(actualNonterminal);
-		}
+	/**
+	 * {@inheritDoc}
+	 */
+	public int getProvidedConstraintId() {
+		return providedConstraintId;
 	}
 
 	/**
@@ -0,0 +1,98 @@
+package edu.cmu.cs.lti.avenue;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+public class FastLexiconFiltererTest {
+
+	private static final String SENTENCES = "the dog barks\n" + "a  big\tcat\n";
+
+	private static String rule(String id, String header, double sgt, double tgs) {
+		return "{" + id + "}\n" + header + "\n" + "(\n" + "\t(*sgtrule* " + sgt + ")\n"
+				+ "\t(*tgsrule* " + tgs + ")\n" + ")\n";
+	}
+
+	// a single terminal that occurs in the test set
+	private static final String DOG_1 =
+			rule("dog,1", "N::N |: [\"dog\"] -> [\"perro\"]", 0.5, 0.5);
+	private static final String DOG_2 =
+			rule("dog,2", "N::N |: [\"dog\"] -> [\"can\"]", 0.75, 0.75);
+	private static final String DOG_3 =
+			rule("dog,3", "N::N |: [\"dog\"] -> [\"chucho\"]", 0.5, 0.5);
+
+	// the same source RHS with a different LHS is in the same group
+	private static final String DOG_4 =
+			rule("dog,4", "V::V |: [\"dog\"] -> [\"seguir\"]", 0.125, 0.125);
+
+	private static final String COW = rule("cow,1", "N::N |: [\"cow\"] -> [\"vaca\"]", 0.5, 0.5);
+
+	// multi-word runs that are and aren't n-grams of a test sentence
+	private static final String THE_DOG =
+			rule("np,1", "NP::NP |: [\"the\" \"dog\"] -> [\"el\" \"perro\"]", 0.5, 0.5);
+	private static final String DOG_THE =
+			rule("np,2", "NP::NP |: [\"dog\" \"the\"] -> [\"el\" \"perro\"]", 0.5, 0.5);
+	private static final String BIG_CAT =
+			"{np,3}\n" + "NP::NP\t:\t[\"a\" \"big\" N] -> [\"un\" N \"grande\"]\n" + "(\n"
+					+ "\t(*sgtrule* 0.25)\n" + "\t(*tgsrule* 0.5)\n" + "\t(X3::Y2)\n" + ")\n";
+	private static final String BIG_BARKS =
+			"{s,1}\n" + "S::S : [\"big\" N \"barks\" \"loudly\"] -> [N \"ladra\"]\n" + "(\n"
+					+ "\t(*sgtrule* 0.25)\n" + "\t(*tgsrule* 0.5)\n" + "\t(X2::Y1)\n" + ")\n";
+
+	private static String filter(String lexicon, int threshold, int nThreads) throws Exception {
+		FastLexiconFilterer filterer =
+				new FastLexiconFilterer(threshold, 1.0, 1.0, nThreads, "UTF-8");
+		filterer.loadSentences(new ByteArrayInputStream(SENTENCES.getBytes("UTF-8")));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		filterer.filter(new ByteArrayInputStream(lexicon.getBytes("UTF-8")), "test", out);
+		return out.toString("UTF-8");
+	}
+
+	@Test
+	public void testMatchingRules() throws Exception {
+
+		String lexicon =
+				DOG_1 + "\n" + COW + "\n" + THE_DOG + "\n" + DOG_THE + "\n" + BIG_CAT + "\n"
+						+ BIG_BARKS;
+		for (int nThreads : new int[] { 1, 2 }) {
+			assertEquals(DOG_1 + "\n" + THE_DOG + "\n" + BIG_CAT + "\n", filter(lexicon, 0,
+					nThreads));
+		}
+	}
+
+	@Test
+	public void testTopKPerSourceRhs() throws Exception {
+
+		// dog,1 and dog,3 tie, so the earlier one is kept
+		String lexicon =
+				DOG_1 + "\n" + THE_DOG + "\n" + DOG_3 + "\n" + DOG_4 + "\n" + DOG_2 + "\n";
+		assertEquals(DOG_2 + "\n" + DOG_1 + "\n" + THE_DOG + "\n", filter(lexicon, 2, 1));
+		assertEquals(DOG_2 + "\n" + DOG_1 + "\n" + DOG_3 + "\n" + THE_DOG + "\n", filter(
+				lexicon, 3, 1));
+		assertEquals(DOG_2 + "\n" + DOG_1 + "\n" + DOG_3 + "\n" + DOG_4 + "\n" + THE_DOG + "\n",
+				filter(lexicon, 0, 1));
+	}
+
+	@Test
+	public void testKeptRulesAreUnchanged() throws Exception {
+
+		// comments, tabs, CRLFs and extra features are passed through as they
+		// were read
+		String odd =
+				"{odd,1}\r\n" + "N::N |:\t[\"dog\"]  ->  [\"perro\"]\r\n" + "(\r\n"
+						+ "\t; a comment (\r\n" + "\t(*sgtrule* 0.5)\r\n"
+						+ "\t(*tgsrule* 0.5)\r\n" + "\t((X0 agr) = (Y0 agr))\r\n" + ")\r\n";
+		String lexicon = "\n\n" + odd + "\n\n\n" + THE_DOG;
+		assertEquals(odd + "\n" + THE_DOG + "\n", filter(lexicon, 0, 1));
+	}
+
+	@Test
+	public void testNoTrailingNewline() throws Exception {
+
+		String lexicon = COW + "\n" + THE_DOG.substring(0, THE_DOG.length() - 1);
+		assertEquals(THE_DOG + "\n", filter(lexicon, 0, 1));
+	}
+}
@@ -1,15 +1,46 @@
 package info.jonclark.treegraft;
 
+import edu.cmu.cs.lti.avenue.FastLexiconFiltererTest;
 import info.jonclark.lang.hash.WideHashMapTest;
 import info.jonclark.treegraft.chartparser.ChartParserTest;
+import info.jonclark.treegraft.core.IntegerTokenFactoryTest;
 import info.jonclark.treegraft.core.IntegerTokenTest;
+import info.jonclark.treegraft.core.lm.BinaryLanguageModelLoaderTest;
+import info.jonclark.treegraft.core.lm.EfficientNGramLanguageModelTest;
+import info.jonclark.treegraft.core.lm.FusedNGramLanguageModelTest;
 import info.jonclark.treegraft.core.lm.LanguageModelTest;
+import info.jonclark.treegraft.core.lm.NGramScoreCacheTest;
+import info.jonclark.treegraft.core.lm.ParallelARPALanguageModelLoaderTest;
+import info.jonclark.treegraft.core.lm.QuantizedTrieLanguageModelTest;
+import info.jonclark.treegraft.core.snapshot.ModelSnapshotTest;
+import info.jonclark.treegraft.parsing.chartparser.BestFirstParserTest;
+import info.jonclark.treegraft.parsing.chartparser.CellBeamTest;
+import info.jonclark.treegraft.parsing.chartparser.ChartTest;
+import info.jonclark.treegraft.parsing.chartparser.LatticeParsingTest;
+import info.jonclark.treegraft.parsing.chartparser.ParallelCKYParserTest;
+import info.jonclark.treegraft.parsing.grammar.GrammarTest;
+import info.jonclark.treegraft.parsing.grammar.RuleProfileTest;
+import info.jonclark.treegraft.parsing.grammar.RuleTrieTest;
+import info.jonclark.treegraft.parsing.grammar.SentenceGrammarTest;
+import info.jonclark.treegraft.parsing.merging.BeamSearchMergerTest;
+import info.jonclark.treegraft.parsing.rules.ConstraintIdsTest;
+import info.jonclark.treegraft.parsing.synccfg.BinaryGrammarLoaderTest;
+import info.jonclark.treegraft.parsing.synccfg.ParallelSyncCFGGrammarLoaderTest;
 
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses( { IntegerTokenTest.class, WideHashMapTest.class, LanguageModelTest.class,
-		ChartParserTest.class })
+		ChartParserTest.class, BinaryGrammarLoaderTest.class,
+		ParallelSyncCFGGrammarLoaderTest.class, RuleTrieTest.class, SentenceGrammarTest.class,
+		GrammarTest.class, FastLexiconFiltererTest.class, RuleProfileTest.class,
+		ConstraintIdsTest.class, ChartTest.class, BestFirstParserTest.class,
+		CellBeamTest.class, ParallelCKYParserTest.class, LatticeParsingTest.class,
+		FusedNGramLanguageModelTest.class, QuantizedTrieLanguageModelTest.class,
+		BeamSearchMergerTest.class, BinaryLanguageModelLoaderTest.class,
+		EfficientNGramLanguageModelTest.class, NGramScoreCacheTest.class,
+		ParallelARPALanguageModelLoaderTest.class, ModelSnapshotTest.class,
+		IntegerTokenFactoryTest.class })
 public class FullTest {
 }
@@ -0,0 +1,196 @@
+package info.jonclark.treegraft.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import info.jonclark.treegraft.core.tokens.integer.IntegerToken;
+import info.jonclark.treegraft.core.tokens.integer.IntegerTokenFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class IntegerTokenFactoryTest {
+
+	private static final int N_THREADS = 8;
+
+	// more words than fit in one page of the ID-to-token table
+	private static final int N_WORDS = 10000;
+
+	@Test
+	public void testConcurrentInterning() throws Exception {
+
+		final IntegerTokenFactory tokenFactory = new IntegerTokenFactory();
+		final List<String> words = new ArrayList<String>(N_WORDS);
+		for (int i = 0; i < N_WORDS; i++) {
+			words.add("w" + i);
+		}
+
+		// every thread makes every word, both as a terminal and as a
+		// non-terminal, each in its own order
+		final IntegerToken[][][] made = new IntegerToken[N_THREADS][2][N_WORDS];
+		final Throwable[] errors = new Throwable[N_THREADS];
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[N_THREADS];
+		for (int t = 0; t < N_THREADS; t++) {
+			final int thread = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						List<Integer> order = new ArrayList<Integer>(N_WORDS);
+						for (int i = 0; i < N_WORDS; i++) {
+							order.add(i);
+						}
+						Collections.shuffle(order, new Random(thread));
+						start.await();
+						for (int i : order) {
+							made[thread][0][i] = tokenFactory.makeToken(words.get(i), true);
+							made[thread][1][i] = tokenFactory.makeToken(words.get(i), false);
+
+							// a token can be looked up by ID as soon as it is
+							// handed out
+							assertSame(made[thread][0][i],
+									tokenFactory.getToken(made[thread][0][i].getIntId()));
+						}
+					} catch (Throwable e) {
+						errors[thread] = e;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		for (int t = 0; t < N_THREADS; t++) {
+			if (errors[t] != null) {
+				throw new RuntimeException("Thread " + t + " failed", errors[t]);
+			}
+		}
+
+		// all threads got the same token for each word
+		for (int t = 1; t < N_THREADS; t++) {
+			for (int kind = 0; kind < 2; kind++) {
+				for (int i = 0; i < N_WORDS; i++) {
+					assertSame(made[0][kind][i], made[t][kind][i]);
+				}
+			}
+		}
+
+		// and the IDs are exactly 0 ... 2 * N_WORDS - 1
+		assertEquals(2 * N_WORDS, tokenFactory.size());
+		assertEquals(2 * N_WORDS, tokenFactory.getTokens().size());
+		HashSet<Integer> ids = new HashSet<Integer>();
+		for (int kind = 0; kind < 2; kind++) {
+			for (int i = 0; i < N_WORDS; i++) {
+				IntegerToken token = made[0][kind][i];
+				assertEquals(words.get(i), token.getWord());
+				assertEquals(kind == 0, token.isTerminal());
+				assertSame(token, tokenFactory.getToken(token.getIntId()));
+				ids.add(token.getIntId());
+			}
+		}
+		assertEquals(2 * N_WORDS, ids.size());
+		for (int id = 0; id < 2 * N_WORDS; id++) {
+			assertTrue(ids.contains(id));
+		}
+	}
+
+	private static byte[] writeVocabulary(IntegerTokenFactory tokenFactory) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		tokenFactory.writeVocabulary(out);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static int[] readVocabulary(IntegerTokenFactory tokenFactory, byte[] vocab)
+			throws IOException {
+		return tokenFactory.readVocabulary(new DataInputStream(new ByteArrayInputStream(vocab)));
+	}
+
+	private static IntegerTokenFactory newVocabulary() {
+		IntegerTokenFactory tokenFactory = new IntegerTokenFactory();
+		tokenFactory.makeToken("<s>", true);
+		tokenFactory.makeToken("NP", false);
+		tokenFactory.makeToken("NP", true);
+		tokenFactory.makeToken("", true);
+		tokenFactory.makeToken("gr\u00fc\u00dfe", true);
+		tokenFactory.makeToken("\u4e2d\u6587", true);
+		for (int i = 0; i < 5000; i++) {
+			tokenFactory.makeToken("w" + i, true);
+		}
+		return tokenFactory;
+	}
+
+	@Test
+	public void testVocabularyRoundTrip() throws IOException {
+		IntegerTokenFactory original = newVocabulary();
+		byte[] vocab = writeVocabulary(original);
+
+		// an empty factory reproduces every ID
+		IntegerTokenFactory copy = new IntegerTokenFactory();
+		int[] idMap = readVocabulary(copy, vocab);
+		assertEquals(original.size(), idMap.length);
+		assertEquals(original.size(), copy.size());
+		for (int id = 0; id < original.size(); id++) {
+			assertEquals(id, idMap[id]);
+			IntegerToken expected = original.getToken(id);
+			IntegerToken actual = copy.getToken(id);
+			assertEquals(expected.getWord(), actual.getWord());
+			assertEquals(expected.isTerminal(), actual.isTerminal());
+		}
+
+		// which writes exactly the same vocabulary
+		assertTrue(Arrays.equals(vocab, writeVocabulary(copy)));
+
+		// and reading it again changes nothing
+		idMap = readVocabulary(copy, vocab);
+		assertEquals(original.size(), copy.size());
+		for (int id = 0; id < original.size(); id++) {
+			assertEquals(id, idMap[id]);
+		}
+	}
+
+	@Test
+	public void testVocabularyRemap() throws IOException {
+		IntegerTokenFactory original = newVocabulary();
+		byte[] vocab = writeVocabulary(original);
+
+		// a factory that already has words of its own keeps their IDs and
+		// maps the stored IDs onto them
+		IntegerTokenFactory other = new IntegerTokenFactory();
+		IntegerToken only = other.makeToken("only here", true);
+		IntegerToken w7 = other.makeToken("w7", true);
+		IntegerToken np = other.makeToken("NP", false);
+		int[] idMap = readVocabulary(other, vocab);
+
+		assertSame(only, other.getToken(only.getIntId()));
+		assertEquals(original.size() + 1, other.size());
+		for (int id = 0; id < original.size(); id++) {
+			IntegerToken expected = original.getToken(id);
+			IntegerToken actual = other.getToken(idMap[id]);
+			assertEquals(expected.getWord(), actual.getWord());
+			assertEquals(expected.isTerminal(), actual.isTerminal());
+		}
+		assertEquals(w7.getIntId(), idMap[original.makeToken("w7", true).getIntId()]);
+		assertEquals(np.getIntId(), idMap[original.makeToken("NP", false).getIntId()]);
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotAVocabulary() throws IOException {
+		readVocabulary(new IntegerTokenFactory(), new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+	}
+}
@@ -3,10 +3,13 @@ package info.jonclark.treegraft.core;
 import info.jonclark.treegraft.core.tokens.TokenSequence;
 import info.jonclark.treegraft.core.tokens.integer.IntegerToken;
 import info.jonclark.treegraft.core.tokens.integer.IntegerTokenFactory;
+import info.jonclark.treegraft.core.tokens.integer.IntegerTokenSequence;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Random;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -65,6 +68,99 @@ public class IntegerTokenTest {
 		}
 	}
 
+	@Test
+	public void testSubsequence() {
+
+		IntegerTokenFactory tokenFactory = new IntegerTokenFactory();
+		List<String> words =
+				Arrays.asList(new String[] { "a", "b", "c", "a", "b", "c", "d", "e", "f", "g" });
+		TokenSequence<IntegerToken> sequence = makeSeq(tokenFactory, words);
+
+		for (int i = 0; i <= words.size(); i++) {
+			for (int j = i; j <= words.size(); j++) {
+				List<String> expected = words.subList(i, j);
+				TokenSequence<IntegerToken> actual = sequence.subsequence(i, j);
+				Assert.assertArrayEquals(expected.toArray(),
+						tokenFactory.getTokensAsStrings(actual.getContentTokens(tokenFactory)));
+
+				// windows must hash and compare like freshly built sequences
+				TokenSequence<IntegerToken> fresh = makeSeq(tokenFactory, expected);
+				Assert.assertEquals(fresh, actual);
+				Assert.assertEquals(fresh.hashCode(), actual.hashCode());
+			}
+		}
+
+		// the same words at different offsets
+		Assert.assertEquals(sequence.subsequence(0, 3), sequence.subsequence(3, 6));
+		Assert.assertFalse(sequence.subsequence(0, 3).equals(sequence.subsequence(1, 4)));
+	}
+
+	@Test
+	public void testRollingHashWindows() {
+
+		// a long sequence over a small vocabulary, so that many windows at
+		// different offsets hold the same words
+		IntegerTokenFactory tokenFactory = new IntegerTokenFactory();
+		Random random = new Random(19);
+		List<String> words = new ArrayList<String>(3000);
+		for (int i = 0; i < 3000; i++) {
+			words.add("w" + random.nextInt(4));
+		}
+		TokenSequence<IntegerToken> sequence = makeSeq(tokenFactory, words);
+
+		HashMap<TokenSequence<IntegerToken>, List<String>> windows =
+				new HashMap<TokenSequence<IntegerToken>, List<String>>();
+		long[] expectedBits = new long[2];
+		long[] actualBits = new long[2];
+		for (int trial = 0; trial < 5000; trial++) {
+
+			// build the window by chaining operations on windows
+			int i = random.nextInt(words.size() + 1);
+			int j = i + random.nextInt(words.size() - i + 1);
+			List<String> expected = words.subList(i, j);
+			TokenSequence<IntegerToken> actual;
+			switch (random.nextInt(4)) {
+			case 0:
+				actual = sequence.subsequence(i, j);
+				break;
+			case 1:
+				actual = sequence.keepNRightMostTokens(words.size() - i).keepNLeftMostTokens(j - i);
+				break;
+			case 2:
+				int k = i + random.nextInt(j - i + 1);
+				actual = sequence.subsequence(i, k).append(sequence.subsequence(k, j));
+				break;
+			default:
+				actual = sequence.subsequence(i, words.size()).subsequence(0, j - i);
+				break;
+			}
+
+			TokenSequence<IntegerToken> fresh = makeSeq(tokenFactory, expected);
+			Assert.assertEquals(fresh, actual);
+			Assert.assertEquals(actual, fresh);
+			Assert.assertEquals(fresh.hashCode(), actual.hashCode());
+			Assert.assertEquals(((IntegerTokenSequence) fresh).longHashCode(),
+					((IntegerTokenSequence) actual).longHashCode());
+
+			IntegerTokenSequence.getBitSequence(fresh, expectedBits);
+			IntegerTokenSequence.getBitSequence(actual, actualBits);
+			Assert.assertArrayEquals(expectedBits, actualBits);
+
+			// a window finds, and is found by, windows with the same words
+			List<String> previous = windows.get(fresh);
+			if (previous != null) {
+				Assert.assertEquals(expected, previous);
+			}
+			windows.put(actual, expected);
+		}
+
+		// short windows collide often enough to have exercised the lookups
+		Assert.assertTrue(windows.size() < 5000);
+		for (List<String> expected : windows.values()) {
+			Assert.assertEquals(expected, windows.get(makeSeq(tokenFactory, expected)));
+		}
+	}
+
 	private static String[] append(List<String> a, List<String> b) {
 		List<String> c = new ArrayList<String>(a);
 		c.addAll(b);
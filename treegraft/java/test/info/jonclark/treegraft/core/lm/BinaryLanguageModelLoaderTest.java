@@ -0,0 +1,87 @@
+package info.jonclark.treegraft.core.lm;
+
+import static org.junit.Assert.assertEquals;
+import info.jonclark.treegraft.Treegraft.TreegraftConfig;
+import info.jonclark.treegraft.core.tokens.integer.IntegerToken;
+import info.jonclark.treegraft.core.tokens.integer.IntegerTokenFactory;
+import info.jonclark.treegraft.parsing.synccfg.SyncCFGRule;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BinaryLanguageModelLoaderTest {
+
+	private static final int ORDER = 3;
+
+	/**
+	 * Compiles an ARPA model to a binary file, maps it back into a model whose
+	 * token factory assigns IDs in the given order and checks that every query
+	 * gets the same score as from the ARPA model.
+	 */
+	private void testRoundTrip(boolean sameVocabulary) throws Exception {
+
+		Random random = new Random(11);
+		String[] vocab = LanguageModelTestUtils.vocab(20);
+		String arpa = LanguageModelTestUtils.randomArpa(random, ORDER, vocab);
+
+		IntegerTokenFactory tokenFactory = new IntegerTokenFactory();
+		TreegraftConfig<SyncCFGRule<IntegerToken>, IntegerToken> config =
+				LanguageModelTestUtils.newConfig(tokenFactory, new Properties());
+		EfficientNGramLanguageModel expected = LanguageModelTestUtils.newEfficientLM(config);
+		LanguageModelTestUtils.load(expected, tokenFactory, arpa);
+
+		File file = File.createTempFile("treegraft-lm", ".bin");
+		file.deleteOnExit();
+		BinaryLanguageModelLoader.compile(expected, tokenFactory, file);
+
+		// a decoder that saw its words in a different order has different IDs,
+		// so the loader must map between the two ID spaces
+		IntegerTokenFactory mappedFactory = new IntegerTokenFactory();
+		if (!sameVocabulary) {
+			for (int i = vocab.length - 1; i >= 0; i--) {
+				mappedFactory.makeToken(vocab[i], true);
+			}
+		}
+		TreegraftConfig<SyncCFGRule<IntegerToken>, IntegerToken> mappedConfig =
+				LanguageModelTestUtils.newConfig(mappedFactory, new Properties());
+		EfficientNGramLanguageModel mapped = LanguageModelTestUtils.newEfficientLM(mappedConfig);
+		new BinaryLanguageModelLoader().loadLM(mapped, mappedFactory, new FileInputStream(file),
+				"UTF-8", null, null);
+
+		List<String> words = new ArrayList<String>(Arrays.asList(vocab));
+		words.addAll(Arrays.asList("<s>", "</s>", "unknown"));
+		for (int q = 0; q < 3000; q++) {
+			int n = random.nextInt(ORDER) + 1;
+			List<IntegerToken> tokens = new ArrayList<IntegerToken>(n);
+			List<IntegerToken> mappedTokens = new ArrayList<IntegerToken>(n);
+			for (int i = 0; i < n; i++) {
+				String word = words.get(random.nextInt(words.size()));
+				tokens.add(tokenFactory.makeToken(word, true));
+				mappedTokens.add(mappedFactory.makeToken(word, true));
+			}
+			ScoredToken expectedScore =
+					expected.scoreToken(tokenFactory.makeTokenSequence(tokens));
+			ScoredToken actualScore = mapped.scoreToken(mappedFactory.makeTokenSequence(mappedTokens));
+			assertEquals(tokens.toString(), expectedScore.lmScore, actualScore.lmScore, 0.0);
+			assertEquals(tokens.toString(), expectedScore.ngramUsed, actualScore.ngramUsed);
+		}
+		file.delete();
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		testRoundTrip(true);
+	}
+
+	@Test
+	public void testRoundTripWithDifferentIds() throws Exception {
+		testRoundTrip(false);
+	}
+}
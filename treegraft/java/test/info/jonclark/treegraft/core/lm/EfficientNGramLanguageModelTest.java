@@ -0,0 +1,149 @@
+package info.jonclark.treegraft.core.lm;
+
+import static org.junit.Assert.assertEquals;
+import info.jonclark.treegraft.Treegraft.TreegraftConfig;
+import info.jonclark.treegraft.core.tokens.TokenSequence;
+import info.jonclark.treegraft.core.tokens.integer.IntegerToken;
+import info.jonclark.treegraft.core.tokens.integer.IntegerTokenFactory;
+import info.jonclark.treegraft.parsing.synccfg.SyncCFGRule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class EfficientNGramLanguageModelTest {
+
+	private static final int ORDER = 4;
+	private static final int N_QUERIES = 2000;
+	private static final int N_THREADS = 8;
+	private static final int N_ROUNDS = 20;
+
+	private final IntegerTokenFactory tokenFactory = new IntegerTokenFactory();
+
+	private List<List<IntegerToken>> randomQueries(Random random, String[] vocab) {
+		List<String> words = new ArrayList<String>(Arrays.asList(vocab));
+		words.addAll(Arrays.asList("<s>", "</s>", "unknown"));
+
+		List<List<IntegerToken>> queries = new ArrayList<List<IntegerToken>>(N_QUERIES);
+		for (int q = 0; q < N_QUERIES; q++) {
+			int n = random.nextInt(ORDER) + 1;
+			List<IntegerToken> tokens = new ArrayList<IntegerToken>(n);
+			for (int i = 0; i < n; i++) {
+				tokens.add(tokenFactory.makeToken(words.get(random.nextInt(words.size())), true));
+			}
+			queries.add(tokens);
+		}
+		return queries;
+	}
+
+	/**
+	 * Queries one LM from many threads at once, each thread in its own order,
+	 * and checks every thread gets exactly the scores that a single thread
+	 * got beforehand.
+	 */
+	private void testConcurrentQueries(final int cacheSize) throws Exception {
+
+		Random random = new Random(3);
+		String[] vocab = LanguageModelTestUtils.vocab(25);
+		TreegraftConfig<SyncCFGRule<IntegerToken>, IntegerToken> config =
+				LanguageModelTestUtils.newConfig(tokenFactory, new Properties());
+		final EfficientNGramLanguageModel lm = LanguageModelTestUtils.newEfficientLM(config);
+		LanguageModelTestUtils.load(lm, tokenFactory, LanguageModelTestUtils.randomArpa(random,
+				ORDER, vocab));
+		lm.setScoreCache(cacheSize, null);
+
+		final List<List<IntegerToken>> queryTokens = randomQueries(random, vocab);
+		final List<TokenSequence<IntegerToken>> queries =
+				new ArrayList<TokenSequence<IntegerToken>>(N_QUERIES);
+		for (List<IntegerToken> tokens : queryTokens) {
+			queries.add(tokenFactory.makeTokenSequence(tokens));
+		}
+		final double[] expectedScores = new double[N_QUERIES];
+		final int[] expectedNGramUsed = new int[N_QUERIES];
+		for (int q = 0; q < N_QUERIES; q++) {
+			ScoredToken expected = lm.scoreToken(queries.get(q));
+			expectedScores[q] = expected.lmScore;
+			expectedNGramUsed[q] = expected.ngramUsed;
+		}
+
+		final double[][] scores = new double[N_THREADS][N_QUERIES];
+		final int[][] nGramUsed = new int[N_THREADS][N_QUERIES];
+		final float[][] rawScores = new float[N_THREADS][N_QUERIES];
+		final Throwable[] errors = new Throwable[N_THREADS];
+		Thread[] threads = new Thread[N_THREADS];
+		for (int t = 0; t < N_THREADS; t++) {
+			final int thread = t;
+			final long seed = random.nextLong();
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						Random order = new Random(seed);
+						long[] bits = new long[2];
+						int[] ids = new int[ORDER];
+						for (int round = 0; round < N_ROUNDS; round++) {
+							lm.beginSentence();
+							for (int i = 0; i < N_QUERIES; i++) {
+								int q = order.nextInt(N_QUERIES);
+								ScoredToken scored = lm.scoreToken(queries.get(q));
+								scores[thread][q] = scored.lmScore;
+								nGramUsed[thread][q] = scored.ngramUsed;
+
+								List<IntegerToken> tokens = queryTokens.get(q);
+								for (int j = 0; j < tokens.size(); j++) {
+									ids[j] = lm.getLanguageModelId(tokens.get(j));
+								}
+								rawScores[thread][q] = lm.scoreNGram(ids, 0, tokens.size(), bits);
+							}
+							lm.endSentence();
+						}
+					} catch (Throwable e) {
+						errors[thread] = e;
+					}
+				}
+			};
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		TokenSequence<IntegerToken> sentenceBegin =
+				tokenFactory.makeTokenSequence(Arrays.asList(config.bos));
+		for (int t = 0; t < N_THREADS; t++) {
+			if (errors[t] != null) {
+				throw new RuntimeException("Thread " + t + " failed", errors[t]);
+			}
+			for (int q = 0; q < N_QUERIES; q++) {
+				if (nGramUsed[t][q] == 0) {
+					// never drawn by this thread
+					continue;
+				}
+				String message = "thread " + t + ": " + queryTokens.get(q);
+				assertEquals(message, expectedScores[q], scores[t][q], 0.0);
+				assertEquals(message, expectedNGramUsed[q], nGramUsed[t][q]);
+
+				// <s> alone is special-cased by scoreToken only
+				if (!queries.get(q).equals(sentenceBegin)) {
+					assertEquals(message, expectedScores[q], rawScores[t][q], 0.0);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testConcurrentQueries() throws Exception {
+		testConcurrentQueries(0);
+	}
+
+	@Test
+	public void testConcurrentQueriesWithCache() throws Exception {
+		// small enough that n-grams keep evicting each other
+		testConcurrentQueries(64);
+	}
+}
@@ -0,0 +1,108 @@
+package info.jonclark.treegraft.core.lm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import info.jonclark.treegraft.Treegraft.TreegraftConfig;
+import info.jonclark.treegraft.core.lm.EfficientNGramLanguageModel.EfficientNGramLanguageModelOptions;
+import info.jonclark.treegraft.core.tokens.TokenSequence;
+import info.jonclark.treegraft.core.tokens.integer.IntegerToken;
+import info.jonclark.treegraft.core.tokens.integer.IntegerTokenFactory;
+import info.jonclark.treegraft.parsing.synccfg.SyncCFGRule;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FusedNGramLanguageModelTest {
+
+	// each model knows only some of the words and f is unknown to all of them
+	private static final String[][] VOCABS =
+			{ { "a", "b", "c", "d" }, { "a", "b", "c", "e" }, { "b", "c", "d", "e" } };
+	private static final int[] ORDERS = { 3, 2, 4 };
+	private static final String[] WORDS = { "<s>", "</s>", "a", "b", "c", "d", "e", "f" };
+
+	private final IntegerTokenFactory tokenFactory = new IntegerTokenFactory();
+
+	private List<IntegerToken> randomTokens(Random random, int n) {
+		List<IntegerToken> tokens = new ArrayList<IntegerToken>(n);
+		for (int i = 0; i < n; i++) {
+			tokens.add(tokenFactory.makeToken(WORDS[random.nextInt(WORDS.length)], true));
+		}
+		return tokens;
+	}
+
+	@Test
+	public void testSameScoresAsSeparateModels() throws Exception {
+
+		Random random = new Random(7);
+		TreegraftConfig<SyncCFGRule<IntegerToken>, IntegerToken> config =
+				LanguageModelTestUtils.newConfig(tokenFactory, new Properties());
+
+		FusedNGramLanguageModel<IntegerToken> fused =
+				new FusedNGramLanguageModel<IntegerToken>(ORDERS.length, config.configurator
+						.getOptions(EfficientNGramLanguageModelOptions.class), config);
+		EfficientNGramLanguageModel[] separate = new EfficientNGramLanguageModel[ORDERS.length];
+		for (int m = 0; m < ORDERS.length; m++) {
+			String arpa = LanguageModelTestUtils.randomArpa(random, ORDERS[m], VOCABS[m]);
+			LanguageModelTestUtils.load(fused.getModel(m), tokenFactory, arpa);
+			separate[m] = LanguageModelTestUtils.newEfficientLM(config);
+			LanguageModelTestUtils.load(separate[m], tokenFactory, arpa);
+		}
+
+		int[] ids = new int[4];
+		long[] bits = new long[2];
+		float[] backoffs = new float[ORDERS.length];
+		float[] scores = new float[ORDERS.length];
+		int[] orders = new int[ORDERS.length];
+		int[] nBackedOff = new int[ORDERS.length];
+		for (int q = 0; q < 3000; q++) {
+			int n = random.nextInt(4) + 1;
+			List<IntegerToken> tokens = randomTokens(random, n);
+			for (int i = 0; i < n; i++) {
+				ids[i] = tokens.get(i).getIntId();
+			}
+			fused.scoreNGram(ids, 0, n, bits, backoffs, scores, orders);
+
+			for (int m = 0; m < ORDERS.length; m++) {
+
+				// each model sees only as much context as its order allows
+				int k = Math.min(n, ORDERS[m]);
+				TokenSequence<IntegerToken> seq =
+						tokenFactory.makeTokenSequence(tokens.subList(n - k, n));
+				ScoredToken expected = separate[m].scoreToken(seq);
+				assertEquals(tokens + " in model " + m, expected.lmScore, scores[m], 0.0);
+				assertEquals(tokens + " in model " + m, expected.ngramUsed, orders[m]);
+
+				ScoredToken viaView =
+						((AbstractNGramLanguageModel<IntegerToken>) fused.getModel(m))
+								.scoreToken(seq);
+				assertEquals(expected.lmScore, viaView.lmScore, 0.0);
+				assertEquals(expected.ngramUsed, viaView.ngramUsed);
+
+				if (orders[m] < k) {
+					nBackedOff[m]++;
+				}
+			}
+		}
+
+		// make sure both full matches and backoff were exercised
+		for (int m = 0; m < ORDERS.length; m++) {
+			assertTrue(nBackedOff[m] > 100);
+			assertTrue(nBackedOff[m] < 2900);
+		}
+
+		// whole sequences are scored the same way
+		for (int s = 0; s < 100; s++) {
+			TokenSequence<IntegerToken> seq =
+					tokenFactory.makeTokenSequence(randomTokens(random, random.nextInt(8) + 1));
+			LanguageModelMultiScore multi = fused.scoreSequence(seq);
+			for (int m = 0; m < ORDERS.length; m++) {
+				assertEquals(separate[m].scoreSequence(seq).getSequenceScore(), multi.scores[m]
+						.getSequenceScore(), 0.0);
+			}
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package info.jonclark.treegraft.core.lm;
+
+import info.jonclark.lang.OptionParser;
+import info.jonclark.lang.Options;
+import info.jonclark.treegraft.Treegraft.TreegraftConfig;
+import info.jonclark.treegraft.core.lm.EfficientNGramLanguageModel.EfficientNGramLanguageModelOptions;
+import info.jonclark.treegraft.core.lm.QuantizedTrieLanguageModel.QuantizedTrieLanguageModelOptions;
+import info.jonclark.treegraft.core.tokens.Token;
+import info.jonclark.treegraft.core.tokens.TokenFactory;
+import info.jonclark.treegraft.core.tokens.integer.IntegerToken;
+import info.jonclark.treegraft.core.tokens.integer.IntegerTokenFactory;
+import info.jonclark.treegraft.parsing.synccfg.SyncCFGRule;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Vector;
+
+/**
+ * Builds small random ARPA language models and the configuration needed to
+ * load them so that the language model tests can compare implementations
+ * against each other rather than against a model on disk.
+ *
+ * @author Jonathan Clark
+ */
+public class LanguageModelTestUtils {
+
+	public static TreegraftConfig<SyncCFGRule<IntegerToken>, IntegerToken> newConfig(
+			IntegerTokenFactory tokenFactory, Properties props) throws Exception {
+
+		Vector<Class<? extends Options>> optionsClasses = new Vector<Class<? extends Options>>();
+		optionsClasses.add(EfficientNGramLanguageModelOptions.class);
+		optionsClasses.add(QuantizedTrieLanguageModelOptions.class);
+
+		// lm.loadFactor is required even though it has a default
+		if (props.getProperty("lm.loadFactor") == null) {
+			props.setProperty("lm.loadFactor", "0.9");
+		}
+
+		TreegraftConfig<SyncCFGRule<IntegerToken>, IntegerToken> config =
+				new TreegraftConfig<SyncCFGRule<IntegerToken>, IntegerToken>();
+		config.configurator = new OptionParser(optionsClasses, new String[0], props, false);
+		config.tokenFactory = tokenFactory;
+		config.bos = tokenFactory.makeToken("<s>", true);
+		config.eos = tokenFactory.makeToken("</s>", true);
+		return config;
+	}
+
+	public static EfficientNGramLanguageModel newEfficientLM(
+			TreegraftConfig<SyncCFGRule<IntegerToken>, IntegerToken> config) throws Exception {
+		return new EfficientNGramLanguageModel(config.configurator
+				.getOptions(EfficientNGramLanguageModelOptions.class), config);
+	}
+
+	/**
+	 * @return the words w0 ... w(n-1)
+	 */
+	public static String[] vocab(int n) {
+		String[] vocab = new String[n];
+		for (int i = 0; i < n; i++) {
+			vocab[i] = "w" + i;
+		}
+		return vocab;
+	}
+
+	/**
+	 * Generates an ARPA model over <code>vocab</code> (plus &lt;s&gt;,
+	 * &lt;/s&gt; and &lt;unk&gt;) in which each n-gram extends some
+	 * (n-1)-gram of the model, as in a real model. All weights are printed from
+	 * floats, so a model that stores floats reads back exactly these values.
+	 */
+	public static String randomArpa(Random random, int order, String[] vocab) {
+
+		List<List<String>> nGrams = new ArrayList<List<String>>();
+		List<String> unigrams = new ArrayList<String>();
+		unigrams.add("<s>");
+		unigrams.add("</s>");
+		unigrams.add("<unk>");
+		unigrams.addAll(Arrays.asList(vocab));
+		nGrams.add(unigrams);
+
+		List<String> extensions = new ArrayList<String>(Arrays.asList(vocab));
+		extensions.add("</s>");
+		for (int n = 2; n <= order; n++) {
+			List<String> extended = new ArrayList<String>();
+			for (String context : nGrams.get(n - 2)) {
+				if (context.endsWith("</s>") || context.contains("<unk>")) {
+					continue;
+				}
+				for (String word : extensions) {
+					if (random.nextInt(3) == 0) {
+						extended.add(context + " " + word);
+					}
+				}
+			}
+			nGrams.add(extended);
+		}
+
+		StringBuilder arpa = new StringBuilder("\\data\\\n");
+		for (int n = 1; n <= order; n++) {
+			arpa.append("ngram " + n + "=" + nGrams.get(n - 1).size() + "\n");
+		}
+		arpa.append("\n");
+		for (int n = 1; n <= order; n++) {
+			arpa.append("\\" + n + "-grams:\n");
+			for (String nGram : nGrams.get(n - 1)) {
+				float logProb = nGram.equals("<s>") ? -99.0f : -(random.nextInt(400) + 1) / 100.0f;
+				arpa.append(logProb + "\t" + nGram);
+
+				// the highest order has no backoff weights
+				if (n < order) {
+					arpa.append("\t" + (-(random.nextInt(100) + 1) / 100.0f));
+				}
+				arpa.append("\n");
+			}
+			arpa.append("\n");
+		}
+		arpa.append("\\end\\\n");
+		return arpa.toString();
+	}
+
+	public static <T extends Token> void load(LanguageModel<T> lm, TokenFactory<T> tokenFactory,
+			String arpa) throws Exception {
+		new ARPALanguageModelLoader<T>().loadLM(lm, tokenFactory, new ByteArrayInputStream(arpa
+				.getBytes("UTF-8")), "UTF-8", null, null);
+	}
+}
@@ -0,0 +1,128 @@
+package info.jonclark.treegraft.core.lm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import info.jonclark.treegraft.Treegraft.TreegraftConfig;
+import info.jonclark.treegraft.Treegraft.TreegraftProfiler.RatioCounter;
+import info.jonclark.treegraft.core.tokens.TokenSequence;
+import info.jonclark.treegraft.core.tokens.integer.IntegerToken;
+import info.jonclark.treegraft.core.tokens.integer.IntegerTokenFactory;
+import info.jonclark.treegraft.parsing.synccfg.SyncCFGRule;
+
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class NGramScoreCacheTest {
+
+	@Test
+	public void testHitsAndMisses() {
+		NGramScoreCache cache = new NGramScoreCache(1024);
+
+		assertEquals(NGramScoreCache.NOT_CACHED, cache.get(1, 2, 3));
+		cache.put(1, 2, 3, 42);
+		assertEquals(42, cache.get(1, 2, 3));
+
+		// the same bits with a different length are a different n-gram
+		assertEquals(NGramScoreCache.NOT_CACHED, cache.get(1, 2, 2));
+		assertEquals(NGramScoreCache.NOT_CACHED, cache.get(1, 3, 3));
+		assertEquals(NGramScoreCache.NOT_CACHED, cache.get(2, 2, 3));
+
+		assertEquals(1, cache.getHits());
+		assertEquals(5, cache.getLookups());
+		cache.resetStatistics();
+		assertEquals(0, cache.getHits());
+		assertEquals(0, cache.getLookups());
+	}
+
+	@Test
+	public void testCollisionsReplaceEntries() {
+
+		// with one slot every n-gram evicts the previous one
+		NGramScoreCache cache = new NGramScoreCache(1);
+		cache.put(1, 2, 3, 42);
+		cache.put(5, 6, 3, 43);
+		assertEquals(43, cache.get(5, 6, 3));
+		assertEquals(NGramScoreCache.NOT_CACHED, cache.get(1, 2, 3));
+
+		// a bigger cache never returns another n-gram's value
+		cache = new NGramScoreCache(16);
+		for (int i = 1; i <= 1000; i++) {
+			cache.put(i, -i, i % 6 + 1, i);
+		}
+		int nHits = 0;
+		for (int i = 1; i <= 1000; i++) {
+			long value = cache.get(i, -i, i % 6 + 1);
+			if (value != NGramScoreCache.NOT_CACHED) {
+				assertEquals(i, value);
+				nHits++;
+			}
+		}
+		assertEquals(nHits, cache.getHits());
+		assertTrue(nHits > 0 && nHits <= 16);
+	}
+
+	@Test
+	public void testClearStartsNewGeneration() {
+		NGramScoreCache cache = new NGramScoreCache(64);
+		cache.put(1, 2, 3, 42);
+		cache.clear();
+		assertEquals(NGramScoreCache.NOT_CACHED, cache.get(1, 2, 3));
+
+		cache.put(1, 2, 3, 43);
+		assertEquals(43, cache.get(1, 2, 3));
+	}
+
+	@Test
+	public void testGenerationWrapsAround() {
+		NGramScoreCache cache = new NGramScoreCache(64);
+		cache.put(1, 2, 3, 42);
+
+		// just enough sentences that the generation wraps around to the one in
+		// which the entry was written, which must not revive it
+		for (int i = 0; i < (1 << 27) - 1; i++) {
+			cache.clear();
+		}
+		assertEquals(NGramScoreCache.NOT_CACHED, cache.get(1, 2, 3));
+		cache.put(5, 6, 3, 43);
+		assertEquals(43, cache.get(5, 6, 3));
+		cache.clear();
+		assertEquals(NGramScoreCache.NOT_CACHED, cache.get(5, 6, 3));
+	}
+
+	@Test
+	public void testLanguageModelClearsCacheEachSentence() throws Exception {
+		IntegerTokenFactory tokenFactory = new IntegerTokenFactory();
+		TreegraftConfig<SyncCFGRule<IntegerToken>, IntegerToken> config =
+				LanguageModelTestUtils.newConfig(tokenFactory, new Properties());
+		EfficientNGramLanguageModel lm = LanguageModelTestUtils.newEfficientLM(config);
+		String[] vocab = LanguageModelTestUtils.vocab(5);
+		LanguageModelTestUtils.load(lm, tokenFactory, LanguageModelTestUtils.randomArpa(
+				new Random(1), 2, vocab));
+		RatioCounter hitCounter = config.profiler.newCounter("lm cache");
+		lm.setScoreCache(1024, hitCounter);
+
+		TokenSequence<IntegerToken> seq =
+				tokenFactory.makeTokenSequence(Arrays.asList(tokenFactory.makeTokens(new String[] {
+						vocab[0], vocab[1] }, true)));
+		lm.beginSentence();
+		ScoredToken first = lm.scoreToken(seq);
+		ScoredToken second = lm.scoreToken(seq);
+		assertEquals(first.lmScore, second.lmScore, 0.0);
+		assertEquals(first.ngramUsed, second.ngramUsed);
+		assertEquals(1, lm.getScoreCache().getHits());
+		lm.endSentence();
+
+		lm.beginSentence();
+		assertEquals(0, lm.getScoreCache().getLookups());
+		assertEquals(first.lmScore, lm.scoreToken(seq).lmScore, 0.0);
+		assertEquals(0, lm.getScoreCache().getHits());
+		lm.endSentence();
+
+		// each sentence's statistics were recorded once
+		assertEquals(1, hitCounter.getEvents());
+		assertEquals(3, hitCounter.getTotal());
+	}
+}
@@ -0,0 +1,110 @@
+package info.jonclark.treegraft.core.lm;
+
+import static org.junit.Assert.assertEquals;
+import info.jonclark.lang.hash.WideHashMap;
+import info.jonclark.treegraft.Treegraft.TreegraftConfig;
+import info.jonclark.treegraft.core.tokens.integer.IntegerToken;
+import info.jonclark.treegraft.core.tokens.integer.IntegerTokenFactory;
+import info.jonclark.treegraft.parsing.synccfg.SyncCFGRule;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ParallelARPALanguageModelLoaderTest {
+
+	private static final int ORDER = 3;
+
+	private EfficientNGramLanguageModel load(LanguageModelLoader<IntegerToken> loader,
+			IntegerTokenFactory tokenFactory, String arpa, String[] targetWords) throws Exception {
+
+		TreegraftConfig<SyncCFGRule<IntegerToken>, IntegerToken> config =
+				LanguageModelTestUtils.newConfig(tokenFactory, new Properties());
+		EfficientNGramLanguageModel lm = LanguageModelTestUtils.newEfficientLM(config);
+
+		HashSet<IntegerToken> targetVocab = null;
+		if (targetWords != null) {
+			targetVocab = new HashSet<IntegerToken>();
+			for (String word : targetWords) {
+				targetVocab.add(tokenFactory.makeToken(word, true));
+			}
+		}
+		loader.loadLM(lm, tokenFactory, new ByteArrayInputStream(arpa.getBytes("UTF-8")),
+				"UTF-8", targetVocab, null);
+		return lm;
+	}
+
+	/**
+	 * Loads the same model sequentially and with several threads, each into
+	 * its own token factory, and checks that the models have the same tables
+	 * and give the same score to every query.
+	 */
+	private void testSameAsSequential(int nThreads, String[] targetWords) throws Exception {
+
+		// enough n-grams that each section is split into several chunks
+		Random random = new Random(13);
+		String[] vocab = LanguageModelTestUtils.vocab(60);
+		String arpa = LanguageModelTestUtils.randomArpa(random, ORDER, vocab);
+
+		IntegerTokenFactory sequentialFactory = new IntegerTokenFactory();
+		EfficientNGramLanguageModel sequential =
+				load(new ARPALanguageModelLoader<IntegerToken>(), sequentialFactory, arpa,
+						targetWords);
+		IntegerTokenFactory parallelFactory = new IntegerTokenFactory();
+		EfficientNGramLanguageModel parallel =
+				load(new ParallelARPALanguageModelLoader<IntegerToken>(nThreads), parallelFactory,
+						arpa, targetWords);
+
+		WideHashMap[] sequentialTables = sequential.getTables();
+		WideHashMap[] parallelTables = parallel.getTables();
+		assertEquals(sequentialTables.length, parallelTables.length);
+		for (int i = 0; i < sequentialTables.length; i++) {
+			assertEquals((i + 1) + "-grams", sequentialTables[i].size(), parallelTables[i].size());
+		}
+		assertEquals(sequential.getOOVProb(), parallel.getOOVProb(), 0.0);
+
+		// the two factories may have handed out IDs in different orders, so
+		// compare by word
+		List<String> words = new ArrayList<String>(Arrays.asList(vocab));
+		words.addAll(Arrays.asList("<s>", "</s>", "unknown"));
+		for (int q = 0; q < 5000; q++) {
+			int n = random.nextInt(ORDER) + 1;
+			List<IntegerToken> sequentialTokens = new ArrayList<IntegerToken>(n);
+			List<IntegerToken> parallelTokens = new ArrayList<IntegerToken>(n);
+			for (int i = 0; i < n; i++) {
+				String word = words.get(random.nextInt(words.size()));
+				sequentialTokens.add(sequentialFactory.makeToken(word, true));
+				parallelTokens.add(parallelFactory.makeToken(word, true));
+			}
+			ScoredToken expected =
+					sequential.scoreToken(sequentialFactory.makeTokenSequence(sequentialTokens));
+			ScoredToken actual =
+					parallel.scoreToken(parallelFactory.makeTokenSequence(parallelTokens));
+			assertEquals(sequentialTokens.toString(), expected.lmScore, actual.lmScore, 0.0);
+			assertEquals(sequentialTokens.toString(), expected.ngramUsed, actual.ngramUsed);
+		}
+	}
+
+	@Test
+	public void testSingleThread() throws Exception {
+		testSameAsSequential(1, null);
+	}
+
+	@Test
+	public void testManyThreads() throws Exception {
+		testSameAsSequential(4, null);
+	}
+
+	@Test
+	public void testTargetVocabulary() throws Exception {
+		String[] targetWords = new String[30];
+		System.arraycopy(LanguageModelTestUtils.vocab(60), 15, targetWords, 0, 30);
+		testSameAsSequential(4, targetWords);
+	}
+}
@@ -0,0 +1,127 @@
+package info.jonclark.treegraft.core.lm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import info.jonclark.treegraft.Treegraft.TreegraftConfig;
+import info.jonclark.treegraft.core.lm.QuantizedTrieLanguageModel.QuantizedTrieLanguageModelOptions;
+import info.jonclark.treegraft.core.tokens.TokenSequence;
+import info.jonclark.treegraft.core.tokens.integer.IntegerToken;
+import info.jonclark.treegraft.core.tokens.integer.IntegerTokenFactory;
+import info.jonclark.treegraft.parsing.synccfg.SyncCFGRule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class QuantizedTrieLanguageModelTest {
+
+	private static final int ORDER = 3;
+
+	// the most any quantized weight may be off by; each score sums at most
+	// ORDER of them
+	private static final double MAX_WEIGHT_ERROR = 0.02;
+
+	private final IntegerTokenFactory tokenFactory = new IntegerTokenFactory();
+
+	// returns { max error, mean error } of the trie's scores
+	private double[] compareWithEfficientLM(int bits, Random random) throws Exception {
+
+		Properties props = new Properties();
+		props.setProperty("lm.trie.probBits", bits + "");
+		props.setProperty("lm.trie.backoffBits", bits + "");
+		TreegraftConfig<SyncCFGRule<IntegerToken>, IntegerToken> config =
+				LanguageModelTestUtils.newConfig(tokenFactory, props);
+
+		// enough n-grams that 8-bit quantization must merge values
+		String[] vocab = LanguageModelTestUtils.vocab(30);
+		String arpa = LanguageModelTestUtils.randomArpa(random, ORDER, vocab);
+		EfficientNGramLanguageModel expected = LanguageModelTestUtils.newEfficientLM(config);
+		LanguageModelTestUtils.load(expected, tokenFactory, arpa);
+		QuantizedTrieLanguageModel trie =
+				new QuantizedTrieLanguageModel(config.configurator
+						.getOptions(QuantizedTrieLanguageModelOptions.class), config);
+		LanguageModelTestUtils.load(trie, tokenFactory, arpa);
+
+		// include <s>, whose probability is the sentinel -99, and an unknown
+		// word as predicted words
+		List<String> words = new ArrayList<String>(Arrays.asList(vocab));
+		words.addAll(Arrays.asList("<s>", "</s>", "unknown"));
+
+		double maxError = 0.0;
+		double totalError = 0.0;
+		int nQueries = 5000;
+		for (int q = 0; q < nQueries; q++) {
+			int n = random.nextInt(ORDER) + 1;
+			List<IntegerToken> tokens = new ArrayList<IntegerToken>(n);
+			for (int i = 0; i < n; i++) {
+				tokens.add(tokenFactory.makeToken(words.get(random.nextInt(words.size())), true));
+			}
+			TokenSequence<IntegerToken> seq = tokenFactory.makeTokenSequence(tokens);
+			ScoredToken expectedScore = expected.scoreToken(seq);
+			ScoredToken actualScore = trie.scoreToken(seq);
+			assertEquals(tokens.toString(), expectedScore.ngramUsed, actualScore.ngramUsed);
+
+			double error = Math.abs(expectedScore.lmScore - actualScore.lmScore);
+			maxError = Math.max(maxError, error);
+			totalError += error;
+		}
+		return new double[] { maxError, totalError / nQueries };
+	}
+
+	@Test
+	public void testUnquantizedMatchesEfficientLM() throws Exception {
+		double[] errors = compareWithEfficientLM(32, new Random(5));
+		assertEquals(0.0, errors[0], 0.0);
+	}
+
+	@Test
+	public void testQuantizationErrorIsBounded() throws Exception {
+		double[] errors = compareWithEfficientLM(8, new Random(5));
+		assertTrue("max error " + errors[0], errors[0] <= ORDER * MAX_WEIGHT_ERROR);
+		assertTrue("mean error " + errors[1], errors[1] <= MAX_WEIGHT_ERROR);
+		assertTrue(errors[0] > 0.0);
+	}
+
+	@Test
+	public void testSentinelsKeepTheirOwnBins() {
+
+		// without a bin of its own, -99 would share the lowest bin and pull
+		// its center far away from the other values in it
+		float[] values = new float[1000];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = -(i % 400 + 1) / 100.0f;
+		}
+		values[17] = -99.0f;
+		values[42] = -99.0f;
+
+		float[] centers = QuantizedTrieLanguageModel.quantize(values, 4);
+		for (int i = 1; i < centers.length; i++) {
+			assertTrue(centers[i - 1] <= centers[i]);
+		}
+		for (float value : values) {
+			float decoded =
+					QuantizedTrieLanguageModel.decode(QuantizedTrieLanguageModel.encode(value,
+							centers), centers);
+			if (value == -99.0f) {
+				assertEquals(-99.0f, decoded, 0.0f);
+			} else {
+				// 15 bins over a range of 4
+				assertEquals(value, decoded, 4.0 / 15);
+			}
+		}
+	}
+
+	@Test
+	public void testMetaInfoBeforeLoading() throws Exception {
+		TreegraftConfig<SyncCFGRule<IntegerToken>, IntegerToken> config =
+				LanguageModelTestUtils.newConfig(tokenFactory, new Properties());
+		QuantizedTrieLanguageModel trie =
+				new QuantizedTrieLanguageModel(config.configurator
+						.getOptions(QuantizedTrieLanguageModelOptions.class), config);
+		assertTrue(trie.getMetaInfo().length() > 0);
+	}
+}
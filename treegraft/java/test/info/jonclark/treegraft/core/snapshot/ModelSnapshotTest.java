@@ -0,0 +1,156 @@
+package info.jonclark.treegraft.core.snapshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import info.jonclark.treegraft.Treegraft.TreegraftConfig;
+import info.jonclark.treegraft.core.lm.ARPALanguageModelLoader;
+import info.jonclark.treegraft.core.lm.BinaryLanguageModelLoader;
+import info.jonclark.treegraft.core.lm.EfficientNGramLanguageModel;
+import info.jonclark.treegraft.core.lm.LanguageModelTestUtils;
+import info.jonclark.treegraft.core.tokens.integer.IntegerToken;
+import info.jonclark.treegraft.core.tokens.integer.IntegerTokenFactory;
+import info.jonclark.treegraft.parsing.synccfg.SyncCFGRule;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ModelSnapshotTest {
+
+	private static final int ORDER = 3;
+
+	private File dir;
+
+	@Before
+	public void createDirectory() throws IOException {
+		dir = File.createTempFile("treegraft-snapshot", "");
+		dir.delete();
+		assertTrue(dir.mkdirs());
+	}
+
+	@After
+	public void deleteDirectory() {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private static HashSet<IntegerToken> vocab(IntegerTokenFactory tokenFactory, String... words) {
+		HashSet<IntegerToken> vocab = new HashSet<IntegerToken>();
+		for (String word : words) {
+			vocab.add(tokenFactory.makeToken(word, true));
+		}
+		return vocab;
+	}
+
+	private File writeModel(String name, String content) throws IOException {
+		File file = new File(dir, name);
+		FileWriter out = new FileWriter(file);
+		out.write(content);
+		out.close();
+		return file;
+	}
+
+	@Test
+	public void testKeyedOnVocabularyAndModel() throws IOException {
+		IntegerTokenFactory tokenFactory = new IntegerTokenFactory();
+		File model = writeModel("model.arpa", "model");
+
+		// the order in which words were seen does not matter
+		ModelSnapshot<IntegerToken> ab =
+				new ModelSnapshot<IntegerToken>(dir, vocab(tokenFactory, "a", "b"), vocab(
+						tokenFactory, "x"), false);
+		ModelSnapshot<IntegerToken> ba =
+				new ModelSnapshot<IntegerToken>(dir, vocab(new IntegerTokenFactory(), "b", "a"),
+						vocab(tokenFactory, "x"), false);
+		assertEquals(ab.getVocabularyHash(), ba.getVocabularyHash());
+		assertEquals(ab.getFile("lm", model), ba.getFile("lm", model));
+
+		// ...but which side a word is on does
+		ModelSnapshot<IntegerToken> swapped =
+				new ModelSnapshot<IntegerToken>(dir, vocab(tokenFactory, "x"), vocab(tokenFactory,
+						"a", "b"), false);
+		assertFalse(ab.getVocabularyHash().equals(swapped.getVocabularyHash()));
+		assertFalse(ab.getFile("lm", model).equals(swapped.getFile("lm", model)));
+
+		// a snapshot of a model that has since changed is never used
+		File before = ab.getFile("lm", model);
+		writeModel("model.arpa", "a changed model");
+		assertFalse(before.equals(ab.getFile("lm", model)));
+		assertFalse(ab.getFile("lm", model).equals(ab.getFile("lex", model)));
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+
+		Random random = new Random(17);
+		String[] words = LanguageModelTestUtils.vocab(40);
+		File arpaFile = writeModel("model.arpa", LanguageModelTestUtils.randomArpa(random, ORDER,
+				words));
+		String[] targetWords = new String[20];
+		System.arraycopy(words, 10, targetWords, 0, targetWords.length);
+
+		// prepare run: filter the full model and write it and the vocabulary
+		IntegerTokenFactory prepareFactory = new IntegerTokenFactory();
+		TreegraftConfig<SyncCFGRule<IntegerToken>, IntegerToken> prepareConfig =
+				LanguageModelTestUtils.newConfig(prepareFactory, new Properties());
+		HashSet<IntegerToken> targetVocab = vocab(prepareFactory, targetWords);
+		ModelSnapshot<IntegerToken> prepare =
+				new ModelSnapshot<IntegerToken>(dir, vocab(prepareFactory, "s"), targetVocab, true);
+		File snapshotFile = prepare.getFile("lm", arpaFile);
+		assertFalse(prepare.isAvailable(snapshotFile));
+
+		EfficientNGramLanguageModel filtered = LanguageModelTestUtils.newEfficientLM(prepareConfig);
+		new ARPALanguageModelLoader<IntegerToken>().loadLM(filtered, prepareFactory,
+				new FileInputStream(arpaFile), "UTF-8", targetVocab, null);
+		BinaryLanguageModelLoader.compile(filtered, prepareFactory, snapshotFile);
+
+		// not complete until the vocabulary has been written
+		IntegerTokenFactory decodeFactory = new IntegerTokenFactory();
+		ModelSnapshot<IntegerToken> decode =
+				new ModelSnapshot<IntegerToken>(dir, vocab(decodeFactory, "s"), vocab(
+						decodeFactory, targetWords), false);
+		assertEquals(snapshotFile, decode.getFile("lm", arpaFile));
+		assertFalse(decode.isAvailable(snapshotFile));
+		prepare.writeVocabulary();
+		assertTrue(decode.isAvailable(snapshotFile));
+		assertFalse(prepare.isAvailable(snapshotFile));
+
+		// decoding run: load the snapshot instead of the full model
+		TreegraftConfig<SyncCFGRule<IntegerToken>, IntegerToken> decodeConfig =
+				LanguageModelTestUtils.newConfig(decodeFactory, new Properties());
+		EfficientNGramLanguageModel reloaded = LanguageModelTestUtils.newEfficientLM(decodeConfig);
+		new BinaryLanguageModelLoader().loadLM(reloaded, decodeFactory, new FileInputStream(
+				snapshotFile), "UTF-8", null, null);
+
+		List<String> queryWords = new ArrayList<String>(Arrays.asList(targetWords));
+		queryWords.addAll(Arrays.asList("<s>", "</s>", "unknown"));
+		for (int q = 0; q < 3000; q++) {
+			int n = random.nextInt(ORDER) + 1;
+			List<IntegerToken> expectedTokens = new ArrayList<IntegerToken>(n);
+			List<IntegerToken> actualTokens = new ArrayList<IntegerToken>(n);
+			for (int i = 0; i < n; i++) {
+				String word = queryWords.get(random.nextInt(queryWords.size()));
+				expectedTokens.add(prepareFactory.makeToken(word, true));
+				actualTokens.add(decodeFactory.makeToken(word, true));
+			}
+			assertEquals(expectedTokens.toString(), filtered.scoreSequence(
+					prepareFactory.makeTokenSequence(expectedTokens)).getSequenceScore(), reloaded
+					.scoreSequence(decodeFactory.makeTokenSequence(actualTokens))
+					.getSequenceScore(), 0.0);
+		}
+	}
+}
@@ -0,0 +1,283 @@
+package info.jonclark.treegraft.parsing;
+
+import info.jonclark.lang.OptionParser;
+import info.jonclark.lang.Options;
+import info.jonclark.treegraft.Treegraft.TreegraftConfig;
+import info.jonclark.treegraft.core.featureimpl.RuleScore;
+import info.jonclark.treegraft.core.tokens.Token;
+import info.jonclark.treegraft.core.tokens.TokenFactory;
+import info.jonclark.treegraft.core.tokens.string.StringToken;
+import info.jonclark.treegraft.core.tokens.string.StringTokenFactory;
+import info.jonclark.treegraft.parsing.chartparser.Key;
+import info.jonclark.treegraft.parsing.grammar.Grammar;
+import info.jonclark.treegraft.parsing.oov.CopyOOVHandler;
+import info.jonclark.treegraft.parsing.oov.CopyOOVHandler.CopyOrDeleteOOVHandlerOptions;
+import info.jonclark.treegraft.parsing.rules.GrammarRule;
+import info.jonclark.treegraft.parsing.synccfg.SyncCFGRule;
+import info.jonclark.treegraft.parsing.synccfg.SyncCFGRuleFactory;
+import info.jonclark.treegraft.parsing.unification.Constraint;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Vector;
+
+/**
+ * Builds the rules, grammars, sentences and configuration used by the parsing
+ * tests. Rules are written as strings of symbols separated by spaces, in
+ * which a symbol is a terminal if it begins with a lower case letter or is
+ * enclosed in double quotes (e.g. <code>"NP \"Aa\" c"</code>) and a
+ * non-terminal otherwise.
+ *
+ * @author Jonathan Clark
+ */
+public class ParsingTestUtils {
+
+	/**
+	 * The tolerance used when comparing sums of scores.
+	 */
+	public static final double DELTA = 1e-9;
+
+	/**
+	 * A small ambiguous grammar over the words a, b and c as pairs of LHS and
+	 * source RHS; S never appears on a RHS.
+	 */
+	public static final String[][] RULES =
+			{ { "D", "a" }, { "N", "a" }, { "N", "b" }, { "V", "b" }, { "V", "c" }, { "N", "c" },
+					{ "A", "a b" }, { "NP", "D N" }, { "NP", "N" }, { "NP", "A N" },
+					{ "NP", "NP N" }, { "NP", "NP c NP" }, { "VP", "V" }, { "VP", "V NP" },
+					{ "VP", "b NP" }, { "VP", "VP NP" }, { "S", "NP VP" }, { "S", "VP" },
+					{ "S", "NP" } };
+
+	/**
+	 * The words of {@link #RULES}.
+	 */
+	public static final String[] WORDS = { "a", "b", "c" };
+
+	/**
+	 * The words of {@link #RULES} and one word, d, that is out of vocabulary.
+	 */
+	public static final String[] WORDS_WITH_OOV = { "a", "b", "c", "d" };
+
+	/**
+	 * The LHS of the rules created for out-of-vocabulary words.
+	 */
+	public static final String OOV_LHS = "N";
+
+	/**
+	 * @param symbols
+	 *            symbols separated by spaces
+	 * @return the tokens for the symbols
+	 */
+	public static StringToken[] symbols(StringTokenFactory tokenFactory, String symbols) {
+		String[] strs = symbols.split(" ");
+		StringToken[] tokens = new StringToken[strs.length];
+		for (int i = 0; i < strs.length; i++) {
+			String str = strs[i];
+			if (str.length() > 1 && str.startsWith("\"") && str.endsWith("\"")) {
+				tokens[i] = tokenFactory.makeToken(str.substring(1, str.length() - 1), true);
+			} else {
+				tokens[i] = tokenFactory.makeToken(str, Character.isLowerCase(str.charAt(0)));
+			}
+		}
+		return tokens;
+	}
+
+	/**
+	 * Makes a rule whose target non-terminals are aligned to its source
+	 * non-terminals in order and whose target terminals are unaligned.
+	 *
+	 * @param id
+	 *            the rule ID; may be null
+	 * @throws IllegalArgumentException
+	 *             if the source and target RHS's have different numbers of
+	 *             non-terminals
+	 */
+	public static SyncCFGRule<StringToken> rule(StringTokenFactory tokenFactory, String id,
+			String lhs, String sourceRhs, String targetLhs, String targetRhs, double sgt,
+			double tgs) throws Exception {
+
+		StringToken[] rhs = symbols(tokenFactory, sourceRhs);
+		StringToken[] target = symbols(tokenFactory, targetRhs);
+		int[] alignment = new int[target.length];
+		int source = 0;
+		for (int i = 0; i < target.length; i++) {
+			if (target[i].isTerminal()) {
+				alignment[i] = -1;
+			} else {
+				while (source < rhs.length && rhs[source].isTerminal()) {
+					source++;
+				}
+				if (source == rhs.length) {
+					throw new IllegalArgumentException("Too many target non-terminals: "
+							+ targetRhs);
+				}
+				alignment[i] = source++;
+			}
+		}
+		for (; source < rhs.length; source++) {
+			if (rhs[source].isTerminal() == false) {
+				throw new IllegalArgumentException("Too few target non-terminals: " + targetRhs);
+			}
+		}
+
+		return new SyncCFGRule<StringToken>(tokenFactory.makeToken(lhs, false), rhs,
+				tokenFactory.makeToken(targetLhs, false), target, id, alignment, new RuleScore(
+						sgt, tgs), new Constraint[0], "test", 0, tokenFactory);
+	}
+
+	/**
+	 * Makes a rule whose target side is a copy of its source side, such as
+	 * those of {@link #RULES}.
+	 */
+	public static SyncCFGRule<StringToken> rule(StringTokenFactory tokenFactory, String lhs,
+			String sourceRhs, double sgt, double tgs) throws Exception {
+		return rule(tokenFactory, null, lhs, sourceRhs, lhs, sourceRhs, sgt, tgs);
+	}
+
+	/**
+	 * @return an empty grammar with the default start symbols
+	 */
+	public static <R extends GrammarRule<T>, T extends Token> Grammar<R, T> newGrammar(
+			TokenFactory<T> tokenFactory) {
+		return new Grammar<R, T>(tokenFactory, Grammar.DEFAULT_START_SYMBOLS, null, null, null);
+	}
+
+	/**
+	 * @return a grammar of the given rules, each written as a pair of LHS
+	 *         and source RHS
+	 */
+	public static Grammar<SyncCFGRule<StringToken>, StringToken> newGrammar(
+			StringTokenFactory tokenFactory, String[][] rules, double sgt, double tgs)
+			throws Exception {
+		Grammar<SyncCFGRule<StringToken>, StringToken> grammar = newGrammar(tokenFactory);
+		for (String[] r : rules) {
+			SyncCFGRule<StringToken> rule = rule(tokenFactory, r[0], r[1], sgt, tgs);
+			grammar.addRule(rule, rule.getRhs()[0].isTerminal());
+		}
+		return grammar;
+	}
+
+	/**
+	 * Makes a grammar of {@link #RULES} whose scores are multiples of 1/4, so
+	 * that sums of scores are exact and there are ties.
+	 */
+	public static Grammar<SyncCFGRule<StringToken>, StringToken> randomGrammar(
+			StringTokenFactory tokenFactory, Random random) throws Exception {
+		Grammar<SyncCFGRule<StringToken>, StringToken> grammar = newGrammar(tokenFactory);
+		for (String[] r : RULES) {
+			SyncCFGRule<StringToken> rule =
+					rule(tokenFactory, r[0], r[1], -random.nextInt(8) / 4.0,
+							-random.nextInt(8) / 4.0);
+			grammar.addRule(rule, rule.getRhs()[0].isTerminal());
+		}
+		return grammar;
+	}
+
+	/**
+	 * @return a sentence of between 1 and maxLength of the given words
+	 */
+	public static StringToken[] randomSentence(StringTokenFactory tokenFactory, Random random,
+			String[] words, int maxLength) {
+		String[] sentence = new String[random.nextInt(maxLength) + 1];
+		for (int i = 0; i < sentence.length; i++) {
+			sentence[i] = words[random.nextInt(words.length)];
+		}
+		return tokenFactory.makeTokens(sentence, true);
+	}
+
+	/**
+	 * @return options for a {@link CopyOOVHandler} that creates rules with
+	 *         the LHS {@link #OOV_LHS}
+	 */
+	public static CopyOrDeleteOOVHandlerOptions newOOVHandlerOptions() {
+		CopyOrDeleteOOVHandlerOptions oovOpts = new CopyOrDeleteOOVHandlerOptions();
+		oovOpts.oovRuleLhsList = new String[] { OOV_LHS };
+		return oovOpts;
+	}
+
+	/**
+	 * Makes the configuration needed to parse with a grammar, which copies
+	 * out-of-vocabulary words (see {@link #newOOVHandlerOptions()}).
+	 *
+	 * @param optionsClasses
+	 *            the options that may be read from the configuration's
+	 *            configurator
+	 */
+	public static TreegraftConfig<SyncCFGRule<StringToken>, StringToken> newConfig(
+			StringTokenFactory tokenFactory, Grammar<SyncCFGRule<StringToken>, StringToken> grammar,
+			Properties props, Class<? extends Options>... optionsClasses) throws Exception {
+
+		TreegraftConfig<SyncCFGRule<StringToken>, StringToken> config =
+				new TreegraftConfig<SyncCFGRule<StringToken>, StringToken>();
+		config.configurator =
+				new OptionParser(new Vector<Class<? extends Options>>(Arrays
+						.asList(optionsClasses)), new String[0], props, false);
+		config.tokenFactory = tokenFactory;
+		config.ruleFactory = new SyncCFGRuleFactory<StringToken>(tokenFactory);
+		config.grammar = grammar;
+		config.oovHandler = new CopyOOVHandler<StringToken>(newOOVHandlerOptions(), config);
+		return config;
+	}
+
+	/**
+	 * @return the (span, LHS) item of a key written as "start end LHS"
+	 */
+	public static String item(int start, int end, Token lhs) {
+		return start + " " + end + " " + lhs;
+	}
+
+	public static String item(Key<?, ?> key) {
+		return item(key.getStartIndex(), key.getEndIndex(), key.getLhs());
+	}
+
+	/**
+	 * @return the score of an item; -Infinity if it has none
+	 */
+	public static double get(HashMap<String, Double> scores, String item) {
+		Double score = scores.get(item);
+		return (score == null ? Double.NEGATIVE_INFINITY : score);
+	}
+
+	/**
+	 * @return every property of a rule that is kept by the grammar loaders,
+	 *         as a string
+	 */
+	public static String describe(SyncCFGRule<?> rule) {
+		StringBuilder constraints = new StringBuilder();
+		for (int i = 0; i < rule.getRhs().length; i++) {
+			constraints.append(rule.getConstraintId(i) + ",");
+		}
+		return rule.getRuleId() + " " + rule.getLhs() + "::" + rule.getTargetLhs() + " "
+				+ Arrays.toString(rule.getRhs()) + " -> " + Arrays.toString(rule.getTargetRhs())
+				+ " " + Arrays.toString(rule.getTargetToSourceAlignment()) + " "
+				+ rule.getRuleScores().sgt + " " + rule.getRuleScores().tgs + " " + constraints
+				+ rule.getProvidedConstraintId();
+	}
+
+	/**
+	 * @return the descriptions of the rules in order (see
+	 *         {@link #describe(SyncCFGRule)})
+	 */
+	public static List<String> describeAll(List<? extends SyncCFGRule<?>> rules) {
+		List<String> result = new ArrayList<String>(rules.size());
+		for (SyncCFGRule<?> rule : rules) {
+			result.add(describe(rule));
+		}
+		return result;
+	}
+
+	/**
+	 * @return the descriptions of the rules in sorted order, for comparing
+	 *         grammars that do not keep their rules in the same order
+	 */
+	public static List<String> describeAllSorted(List<? extends SyncCFGRule<?>> rules) {
+		List<String> result = describeAll(rules);
+		Collections.sort(result);
+		return result;
+	}
+}
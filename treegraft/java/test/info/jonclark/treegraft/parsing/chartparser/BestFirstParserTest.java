@@ -0,0 +1,290 @@
+package info.jonclark.treegraft.parsing.chartparser;
+
+import static info.jonclark.treegraft.parsing.ParsingTestUtils.DELTA;
+import static info.jonclark.treegraft.parsing.ParsingTestUtils.get;
+import static info.jonclark.treegraft.parsing.ParsingTestUtils.item;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import info.jonclark.treegraft.Treegraft.TreegraftConfig;
+import info.jonclark.treegraft.core.tokens.string.StringToken;
+import info.jonclark.treegraft.core.tokens.string.StringTokenFactory;
+import info.jonclark.treegraft.parsing.ParsingTestUtils;
+import info.jonclark.treegraft.parsing.chartparser.ChartParser.ChartParserOptions;
+import info.jonclark.treegraft.parsing.chartparser.LexicalOutsideHeuristic.LexicalOutsideHeuristicOptions;
+import info.jonclark.treegraft.parsing.grammar.Grammar;
+import info.jonclark.treegraft.parsing.synccfg.SyncCFGRule;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BestFirstParserTest {
+
+	private final StringTokenFactory tokenFactory = new StringTokenFactory();
+
+	@SuppressWarnings("unchecked")
+	private TreegraftConfig<SyncCFGRule<StringToken>, StringToken> config(
+			Grammar<SyncCFGRule<StringToken>, StringToken> grammar, Properties props)
+			throws Exception {
+		return ParsingTestUtils.newConfig(tokenFactory, grammar, props, ChartParserOptions.class,
+				LexicalOutsideHeuristicOptions.class);
+	}
+
+	private ChartParser<SyncCFGRule<StringToken>, StringToken> parser(
+			Grammar<SyncCFGRule<StringToken>, StringToken> grammar, boolean aStar) throws Exception {
+		Properties props = new Properties();
+		if (aStar) {
+			props.setProperty("parser.bestFirst", "true");
+			props.setProperty("parser.bestFirst.outsideHeuristic", LexicalOutsideHeuristic.class
+					.getName());
+			props.setProperty("parser.maxParses", "1");
+		}
+		TreegraftConfig<SyncCFGRule<StringToken>, StringToken> config = config(grammar, props);
+		return new ChartParser<SyncCFGRule<StringToken>, StringToken>(config.configurator
+				.getOptions(ChartParserOptions.class), config);
+	}
+
+	/**
+	 * Gets the ways to split a span of the input among the symbols of a rule's
+	 * source RHS as the boundaries of each symbol.
+	 */
+	private static List<int[]> splits(StringToken[] rhs, StringToken[] input, int start, int end) {
+		List<int[]> result = new ArrayList<int[]>();
+		int[] bounds = new int[rhs.length + 1];
+		bounds[0] = start;
+		addSplits(rhs, input, 0, end, bounds, result);
+		return result;
+	}
+
+	private static void addSplits(StringToken[] rhs, StringToken[] input, int k, int end,
+			int[] bounds, List<int[]> result) {
+		int pos = bounds[k];
+		if (k == rhs.length) {
+			if (pos == end) {
+				result.add(bounds.clone());
+			}
+		} else if (rhs[k].isTerminal()) {
+			if (pos < end && input[pos].equals(rhs[k])) {
+				bounds[k + 1] = pos + 1;
+				addSplits(rhs, input, k + 1, end, bounds, result);
+			}
+		} else {
+			for (int mid = pos + 1; mid <= end; mid++) {
+				bounds[k + 1] = mid;
+				addSplits(rhs, input, k + 1, end, bounds, result);
+			}
+		}
+	}
+
+	private static double score(SyncCFGRule<StringToken> rule) {
+		return rule.getRuleScores().sgt + rule.getRuleScores().tgs;
+	}
+
+	// the sum of the inside scores of the nonterminals of a split other than
+	// the one at skip
+	private static double inside(HashMap<String, Double> inside, StringToken[] rhs, int[] bounds,
+			int skip) {
+		double sum = 0.0;
+		for (int k = 0; k < rhs.length; k++) {
+			if (k != skip && rhs[k].isTerminal() == false) {
+				sum += get(inside, item(bounds[k], bounds[k + 1], rhs[k]));
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Gets the Viterbi inside score of each (span, LHS) item by exhaustive CKY
+	 * parsing. Unary rules don't change the span, so each span is relaxed
+	 * until nothing improves.
+	 */
+	private static HashMap<String, Double> inside(
+			Grammar<SyncCFGRule<StringToken>, StringToken> grammar, StringToken[] input) {
+
+		HashMap<String, Double> inside = new HashMap<String, Double>();
+		for (int length = 1; length <= input.length; length++) {
+			for (int start = 0; start + length <= input.length; start++) {
+				int end = start + length;
+				boolean changed = true;
+				while (changed) {
+					changed = false;
+					for (SyncCFGRule<StringToken> rule : grammar.getAllRules()) {
+						String item = item(start, end, rule.getLhs());
+						for (int[] bounds : splits(rule.getRhs(), input, start, end)) {
+							double score = score(rule) + inside(inside, rule.getRhs(), bounds, -1);
+							if (score > get(inside, item) + DELTA) {
+								inside.put(item, score);
+								changed = true;
+							}
+						}
+					}
+				}
+			}
+		}
+		return inside;
+	}
+
+	/**
+	 * Gets the best score outside of each item that is part of a complete
+	 * parse, given the inside scores from exhaustive parsing.
+	 */
+	private HashMap<String, Double> outside(Grammar<SyncCFGRule<StringToken>, StringToken> grammar,
+			StringToken[] input, HashMap<String, Double> inside) {
+
+		HashMap<String, Double> outside = new HashMap<String, Double>();
+		String goal = item(0, input.length, tokenFactory.makeToken("S", false));
+		if (inside.containsKey(goal)) {
+			outside.put(goal, 0.0);
+		}
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int start = 0; start < input.length; start++) {
+				for (int end = start + 1; end <= input.length; end++) {
+					for (SyncCFGRule<StringToken> rule : grammar.getAllRules()) {
+						double parentOutside = get(outside, item(start, end, rule.getLhs()));
+						if (parentOutside == Double.NEGATIVE_INFINITY) {
+							continue;
+						}
+						StringToken[] rhs = rule.getRhs();
+						for (int[] bounds : splits(rhs, input, start, end)) {
+							for (int k = 0; k < rhs.length; k++) {
+								if (rhs[k].isTerminal()) {
+									continue;
+								}
+								String child = item(bounds[k], bounds[k + 1], rhs[k]);
+								double score =
+										parentOutside + score(rule) + inside(inside, rhs, bounds, k);
+								if (score > get(outside, child) + DELTA) {
+									outside.put(child, score);
+									changed = true;
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+		return outside;
+	}
+
+	// the score of the best complete parse; -Infinity if there is none
+	private double bestParse(HashMap<String, Double> inside, StringToken[] input) {
+		return get(inside, item(0, input.length, tokenFactory.makeToken("S", false)));
+	}
+
+	private static double heuristic(double[] wordBounds, int start, int end) {
+		double sum = 0.0;
+		for (int i = 0; i < wordBounds.length; i++) {
+			if (i < start || i >= end) {
+				sum += wordBounds[i];
+			}
+		}
+		return sum;
+	}
+
+	@Test
+	public void testSameBestParseAsExhaustive() throws Exception {
+
+		Random random = new Random(5);
+		int nGrammatical = 0;
+		for (int g = 0; g < 20; g++) {
+			Grammar<SyncCFGRule<StringToken>, StringToken> grammar =
+					ParsingTestUtils.randomGrammar(tokenFactory, random);
+			ChartParser<SyncCFGRule<StringToken>, StringToken> exhaustive =
+					parser(grammar, false);
+			ChartParser<SyncCFGRule<StringToken>, StringToken> aStar = parser(grammar, true);
+			LexicalOutsideHeuristic<SyncCFGRule<StringToken>, StringToken> heuristic =
+					new LexicalOutsideHeuristic<SyncCFGRule<StringToken>, StringToken>(
+							new LexicalOutsideHeuristicOptions(), config(grammar, new Properties()));
+
+			for (int s = 0; s < 10; s++) {
+				StringToken[] input =
+						ParsingTestUtils.randomSentence(tokenFactory, random,
+								ParsingTestUtils.WORDS, 5);
+				HashMap<String, Double> inside = inside(grammar, input);
+				double expected = bestParse(inside, input);
+
+				// exhaustive parsing builds every item
+				Chart<SyncCFGRule<StringToken>, StringToken> exhaustiveChart =
+						exhaustive.parse(input);
+				HashSet<String> items = new HashSet<String>();
+				for (Key<SyncCFGRule<StringToken>, StringToken> key : exhaustiveChart.getKeys()) {
+					items.add(item(key.getStartIndex(), key.getEndIndex(), key.getLhs()));
+				}
+				assertEquals(inside.keySet(), items);
+				assertEquals(expected > Double.NEGATIVE_INFINITY, exhaustiveChart
+						.isInputGrammatical());
+
+				// A* search stops at the first complete parse, which must be
+				// the best one; S is never on a RHS, so no key is built from it
+				Chart<SyncCFGRule<StringToken>, StringToken> aStarChart = aStar.parse(input);
+				double best = Double.NEGATIVE_INFINITY;
+				for (Key<SyncCFGRule<StringToken>, StringToken> key : aStarChart.getKeys()) {
+					if (grammar.isStartSymbol(key.getLhs()) && key.getStartIndex() == 0
+							&& key.getEndIndex() == input.length) {
+						best = Math.max(best, key.getInsideScore());
+					}
+				}
+				assertEquals(expected, best, DELTA);
+				assertEquals(Math.min(1, exhaustiveChart.getParseCount()), aStarChart
+						.getParseCount());
+				assertTrue(aStarChart.getKeyCount() <= exhaustiveChart.getKeyCount());
+				if (aStarChart.isInputGrammatical()) {
+					nGrammatical++;
+				}
+
+				// the figure of merit adds the heuristic to the inside score
+				double[] wordBounds = heuristic.getWordBounds(input, 1.0, 1.0);
+				for (Key<SyncCFGRule<StringToken>, StringToken> key : aStarChart.getKeys()) {
+					assertEquals(key.getInsideScore()
+							+ heuristic(wordBounds, key.getStartIndex(), key.getEndIndex()), key
+							.getFigureOfMerit(), DELTA);
+				}
+			}
+		}
+		assertTrue(nGrammatical > 50);
+	}
+
+	@Test
+	public void testLexicalHeuristicIsAdmissible() throws Exception {
+
+		Random random = new Random(11);
+		int nItems = 0;
+		for (int g = 0; g < 20; g++) {
+			Grammar<SyncCFGRule<StringToken>, StringToken> grammar =
+					ParsingTestUtils.randomGrammar(tokenFactory, random);
+			LexicalOutsideHeuristic<SyncCFGRule<StringToken>, StringToken> heuristic =
+					new LexicalOutsideHeuristic<SyncCFGRule<StringToken>, StringToken>(
+							new LexicalOutsideHeuristicOptions(), config(grammar, new Properties()));
+
+			for (int s = 0; s < 10; s++) {
+				StringToken[] input =
+						ParsingTestUtils.randomSentence(tokenFactory, random,
+								ParsingTestUtils.WORDS, 5);
+				double[] wordBounds = heuristic.getWordBounds(input, 1.0, 1.0);
+				HashMap<String, Double> inside = inside(grammar, input);
+				HashMap<String, Double> outside = outside(grammar, input, inside);
+
+				// the bound never falls below the best score outside an item
+				for (String item : outside.keySet()) {
+					String[] span = item.split(" ");
+					double bound =
+							heuristic(wordBounds, Integer.parseInt(span[0]), Integer
+									.parseInt(span[1]));
+					assertTrue(item + ": " + bound + " < " + outside.get(item), bound + DELTA >= outside
+							.get(item));
+					nItems++;
+				}
+				assertTrue(heuristic(wordBounds, 0, 0) + DELTA >= bestParse(inside, input));
+			}
+		}
+		assertTrue(nItems > 500);
+	}
+}
@@ -0,0 +1,184 @@
+package info.jonclark.treegraft.parsing.chartparser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import info.jonclark.treegraft.core.tokens.string.StringToken;
+import info.jonclark.treegraft.core.tokens.string.StringTokenFactory;
+import info.jonclark.treegraft.parsing.ParsingTestUtils;
+import info.jonclark.treegraft.parsing.WordLattice;
+import info.jonclark.treegraft.parsing.synccfg.SyncCFGRule;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class CellBeamTest {
+
+	private final StringTokenFactory tokenFactory = new StringTokenFactory();
+	private final StringToken[] input = tokenFactory.makeTokens("a b c".split(" "), true);
+
+	// a rule arc whose inside score is the rule's score
+	private ActiveArc<SyncCFGRule<StringToken>, StringToken> arc(String lhs, int start, int end,
+			double score) throws Exception {
+		SyncCFGRule<StringToken> rule = ParsingTestUtils.rule(tokenFactory, lhs, "X", score, 0.0);
+		return new ActiveArc<SyncCFGRule<StringToken>, StringToken>(start, end, 1, rule);
+	}
+
+	private Key<SyncCFGRule<StringToken>, StringToken> key(String lhs, int start, int end,
+			double score) throws Exception {
+		Key<SyncCFGRule<StringToken>, StringToken> key =
+				new Key<SyncCFGRule<StringToken>, StringToken>(arc(lhs, start, end, score), null);
+		key.setScores(score, score);
+		return key;
+	}
+
+	private Chart<SyncCFGRule<StringToken>, StringToken> newChart() {
+		return new Chart<SyncCFGRule<StringToken>, StringToken>(Arrays.asList(input));
+	}
+
+	// offers a new key to the beam, adding it to the chart if it is admitted
+	private static boolean offer(CellBeam<SyncCFGRule<StringToken>, StringToken> beam,
+			Chart<SyncCFGRule<StringToken>, StringToken> chart,
+			Key<SyncCFGRule<StringToken>, StringToken> key) {
+		if (beam.admitNewKey(chart, key)) {
+			chart.addKey(key);
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	@Test
+	public void testHistogramPruning() throws Exception {
+
+		CellBeam<SyncCFGRule<StringToken>, StringToken> beam =
+				new CellBeam<SyncCFGRule<StringToken>, StringToken>(2, Double.POSITIVE_INFINITY);
+		Chart<SyncCFGRule<StringToken>, StringToken> chart = newChart();
+
+		Key<SyncCFGRule<StringToken>, StringToken> np = key("NP", 0, 2, -1.0);
+		Key<SyncCFGRule<StringToken>, StringToken> vp = key("VP", 0, 2, -2.0);
+		Key<SyncCFGRule<StringToken>, StringToken> s = key("S", 0, 2, -0.5);
+		assertTrue(offer(beam, chart, np));
+		assertTrue(offer(beam, chart, vp));
+		assertFalse(offer(beam, chart, key("ADJP", 0, 2, -3.0)));
+
+		// a better key is admitted to a full cell, leaving one too many
+		assertTrue(offer(beam, chart, s));
+		assertTrue(beam.keepWaitingKey(chart, s));
+		assertTrue(beam.keepWaitingKey(chart, np));
+		assertFalse(beam.keepWaitingKey(chart, vp));
+
+		// ties go to the key that was added first
+		assertFalse(offer(beam, chart, key("PP", 0, 2, -1.0)));
+
+		// other spans have their own limits
+		assertTrue(offer(beam, chart, key("NP", 0, 1, -5.0)));
+		assertTrue(offer(beam, chart, key("NP", 1, 2, -5.0)));
+
+		assertEquals(7, beam.getKeysOffered());
+		assertEquals(3, beam.getPrunedByHistogram());
+		assertEquals(0, beam.getPrunedByThreshold());
+	}
+
+	@Test
+	public void testThresholdPruning() throws Exception {
+
+		CellBeam<SyncCFGRule<StringToken>, StringToken> beam =
+				new CellBeam<SyncCFGRule<StringToken>, StringToken>(0, 1.0);
+		Chart<SyncCFGRule<StringToken>, StringToken> chart = newChart();
+
+		Key<SyncCFGRule<StringToken>, StringToken> np = key("NP", 1, 3, -2.0);
+		Key<SyncCFGRule<StringToken>, StringToken> vp = key("VP", 1, 3, -2.75);
+		Key<SyncCFGRule<StringToken>, StringToken> s = key("S", 1, 3, -1.0);
+		assertTrue(offer(beam, chart, np));
+		assertTrue(offer(beam, chart, vp));
+		assertFalse(offer(beam, chart, key("ADJP", 1, 3, -3.5)));
+
+		// after S arrives, NP is exactly at the threshold and is kept
+		assertTrue(offer(beam, chart, s));
+		assertTrue(beam.keepWaitingKey(chart, s));
+		assertTrue(beam.keepWaitingKey(chart, np));
+		assertFalse(beam.keepWaitingKey(chart, vp));
+
+		// the cell size is unlimited
+		for (int i = 0; i < 10; i++) {
+			assertTrue(offer(beam, chart, key("X" + i, 1, 3, -1.5)));
+		}
+
+		// other spans have their own best scores
+		assertTrue(offer(beam, chart, key("NP", 0, 3, -10.0)));
+
+		assertEquals(15, beam.getKeysOffered());
+		assertEquals(0, beam.getPrunedByHistogram());
+		assertEquals(2, beam.getPrunedByThreshold());
+	}
+
+	@Test
+	public void testAgendaDiscardsPrunedKeys() throws Exception {
+
+		Chart<SyncCFGRule<StringToken>, StringToken> chart = newChart();
+		KeyScorer<SyncCFGRule<StringToken>, StringToken> scorer =
+				new KeyScorer<SyncCFGRule<StringToken>, StringToken>(1.0, 1.0, WordLattice
+						.fromSentence(input), null);
+		CellBeam<SyncCFGRule<StringToken>, StringToken> beam =
+				new CellBeam<SyncCFGRule<StringToken>, StringToken>(1, Double.POSITIVE_INFINITY);
+		Agenda<SyncCFGRule<StringToken>, StringToken> agenda =
+				new Agenda<SyncCFGRule<StringToken>, StringToken>(chart, scorer, beam);
+
+		agenda.addKeyToChartAndAgenda(arc("N", 1, 2, -5.0));
+		agenda.addKeyToChartAndAgenda(arc("NP", 0, 2, -4.0));
+		agenda.addKeyToChartAndAgenda(arc("VP", 0, 2, -1.0));
+		assertEquals(3, agenda.size());
+		assertEquals(3, chart.getKeyCount());
+		Key<SyncCFGRule<StringToken>, StringToken> np = chart.getCell(0, 2).getKeys().get(0);
+		Key<SyncCFGRule<StringToken>, StringToken> vp = chart.getCell(0, 2).getKeys().get(1);
+
+		// NP fell outside the beam when VP arrived, but is only discarded once
+		// it reaches the front of the queue
+		Key<SyncCFGRule<StringToken>, StringToken> n = agenda.get();
+		assertEquals(1, n.getStartIndex());
+		assertFalse(n.onAgenda);
+		assertEquals(2, agenda.size());
+		assertTrue(np.onAgenda);
+		assertEquals(0, beam.getPrunedByHistogram());
+
+		assertSame(vp, agenda.peek());
+		assertEquals(1, agenda.size());
+		assertFalse(np.onAgenda);
+		assertTrue(np.removed);
+		assertEquals(2, chart.getKeyCount());
+		assertEquals(Arrays.asList(vp), chart.getCell(0, 2).getKeys());
+		assertEquals(1, beam.getPrunedByHistogram());
+
+		assertSame(vp, agenda.get());
+		assertTrue(agenda.isEmpty());
+		assertEquals(Arrays.asList(n, vp), chart.getKeys());
+	}
+
+	@Test
+	public void testAgendaDiscardsConsecutivePrunedKeys() throws Exception {
+
+		// every pruned key at the front of the queue is discarded at once
+		Chart<SyncCFGRule<StringToken>, StringToken> chart = newChart();
+		KeyScorer<SyncCFGRule<StringToken>, StringToken> scorer =
+				new KeyScorer<SyncCFGRule<StringToken>, StringToken>(1.0, 1.0, WordLattice
+						.fromSentence(input), null);
+		CellBeam<SyncCFGRule<StringToken>, StringToken> beam =
+				new CellBeam<SyncCFGRule<StringToken>, StringToken>(0, 1.0);
+		Agenda<SyncCFGRule<StringToken>, StringToken> agenda =
+				new Agenda<SyncCFGRule<StringToken>, StringToken>(chart, scorer, beam);
+
+		agenda.addKeyToChartAndAgenda(arc("NP", 0, 3, -3.0));
+		agenda.addKeyToChartAndAgenda(arc("VP", 0, 3, -2.5));
+		agenda.addKeyToChartAndAgenda(arc("S", 0, 3, -1.0));
+		assertEquals(3, agenda.size());
+		assertEquals(tokenFactory.makeToken("S", false), agenda.peek().getLhs());
+		assertEquals(1, agenda.size());
+		assertEquals(1, chart.getKeyCount());
+		assertEquals(2, beam.getPrunedByThreshold());
+		agenda.get();
+		assertTrue(agenda.isEmpty());
+	}
+}
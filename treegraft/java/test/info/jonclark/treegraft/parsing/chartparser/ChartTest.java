@@ -0,0 +1,233 @@
+package info.jonclark.treegraft.parsing.chartparser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import info.jonclark.treegraft.core.tokens.string.StringToken;
+import info.jonclark.treegraft.core.tokens.string.StringTokenFactory;
+import info.jonclark.treegraft.parsing.forestunpacking.ParseForestFormatter;
+import info.jonclark.treegraft.parsing.rules.NonterminalIds;
+import info.jonclark.treegraft.parsing.synccfg.SyncCFGRule;
+import info.jonclark.treegraft.parsing.synccfg.SyncCFGRuleFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ChartTest {
+
+	private final StringTokenFactory tokenFactory = new StringTokenFactory();
+	private final SyncCFGRuleFactory<StringToken> ruleFactory =
+			new SyncCFGRuleFactory<StringToken>(tokenFactory);
+
+	private Key<SyncCFGRule<StringToken>, StringToken> key(String lhs, int start, int end) {
+		SyncCFGRule<StringToken> rule =
+				ruleFactory.makeDummyRule(tokenFactory.makeToken(lhs, false));
+		return new Key<SyncCFGRule<StringToken>, StringToken>(
+				new ActiveArc<SyncCFGRule<StringToken>, StringToken>(start, end, 1, rule), null);
+	}
+
+	private int id(String lhs) {
+		NonterminalIds ids = NonterminalIds.forTokenFactory(tokenFactory);
+		return ids.getId(tokenFactory.makeToken(lhs, false));
+	}
+
+	private Chart<SyncCFGRule<StringToken>, StringToken> newChart(String sentence) {
+		return new Chart<SyncCFGRule<StringToken>, StringToken>(Arrays.asList(tokenFactory
+				.makeTokens(sentence.split(" "), true)));
+	}
+
+	@Test
+	public void testCellIndexing() throws Exception {
+
+		int n = 5;
+		Chart<SyncCFGRule<StringToken>, StringToken> chart = newChart("a b c d e");
+
+		// every other span, in an order unlike the layout of the cells
+		for (int length = n; length >= 1; length--) {
+			for (int start = 0; start + length <= n; start += 2) {
+				chart.addKey(key("X", start, start + length));
+			}
+		}
+
+		IdentityHashMap<ChartCell<?, ?>, Boolean> seen =
+				new IdentityHashMap<ChartCell<?, ?>, Boolean>();
+		for (int start = 0; start < n; start++) {
+			for (int end = start + 1; end <= n; end++) {
+				ChartCell<SyncCFGRule<StringToken>, StringToken> cell = chart.getCell(start, end);
+				if (start % 2 == 0) {
+					assertNotNull(start + "-" + end, cell);
+					assertEquals(start, cell.getStartIndex());
+					assertEquals(end, cell.getEndIndex());
+					assertEquals(1, cell.size());
+					assertSame(cell.getKeys().get(0), cell.getKey(id("X")));
+					assertNull("cell shared by two spans", seen.put(cell, Boolean.TRUE));
+				} else {
+					assertNull(start + "-" + end, cell);
+				}
+			}
+		}
+		assertEquals(chart.getKeyCount(), seen.size());
+
+		// a single word
+		chart = newChart("a");
+		chart.addKey(key("X", 0, 1));
+		assertEquals(0, chart.getCell(0, 1).getStartIndex());
+		assertEquals(1, chart.getCell(0, 1).getEndIndex());
+	}
+
+	@Test
+	public void testKeysByLhsAfterRemove() throws Exception {
+
+		Key<SyncCFGRule<StringToken>, StringToken> np1 = key("NP", 1, 3);
+		Key<SyncCFGRule<StringToken>, StringToken> vp = key("VP", 1, 3);
+		Key<SyncCFGRule<StringToken>, StringToken> np2 = key("NP", 1, 3);
+		Key<SyncCFGRule<StringToken>, StringToken> np3 = key("NP", 1, 3);
+		ChartCell<SyncCFGRule<StringToken>, StringToken> cell =
+				new ChartCell<SyncCFGRule<StringToken>, StringToken>(1, 3);
+		cell.add(np1);
+		cell.add(vp);
+		cell.add(np2);
+		cell.add(np3);
+		assertSame(np1, cell.getKey(id("NP")));
+
+		// removing a later key leaves the first in the index
+		cell.remove(np2);
+		assertSame(np1, cell.getKey(id("NP")));
+		assertEquals(Arrays.asList(np1, vp, np3), cell.getKeys());
+
+		// removing the first key promotes the next one with the same LHS,
+		// even though it is equal to the removed key
+		cell.remove(np1);
+		assertSame(np3, cell.getKey(id("NP")));
+		assertSame(vp, cell.getKey(id("VP")));
+		assertTrue(cell.contains(key("NP", 1, 3)));
+
+		cell.remove(np3);
+		assertNull(cell.getKey(id("NP")));
+		assertFalse(cell.contains(key("NP", 1, 3)));
+		assertTrue(cell.contains(key("VP", 1, 3)));
+		assertFalse(cell.contains(key("VP", 0, 3)));
+		assertEquals(Arrays.asList(vp), cell.getKeys());
+
+		// an LHS first seen after the cell was created
+		assertNull(cell.getKey(id("LATE_LHS")));
+		Key<SyncCFGRule<StringToken>, StringToken> late = key("LATE_LHS", 1, 3);
+		cell.add(late);
+		assertSame(late, cell.getKey(id("LATE_LHS")));
+		assertNull(cell.getKey(-1));
+	}
+
+	@Test
+	public void testManyLhsInOneCell() throws Exception {
+
+		// enough LHS's that the cell's table grows several times
+		ChartCell<SyncCFGRule<StringToken>, StringToken> cell =
+				new ChartCell<SyncCFGRule<StringToken>, StringToken>(0, 2);
+		assertNull(cell.getKey(id("MANY0")));
+		List<Key<SyncCFGRule<StringToken>, StringToken>> added =
+				new ArrayList<Key<SyncCFGRule<StringToken>, StringToken>>();
+		for (int i = 0; i < 300; i++) {
+			Key<SyncCFGRule<StringToken>, StringToken> key = key("MANY" + i, 0, 2);
+			cell.add(key);
+			cell.add(key("MANY" + i, 0, 2));
+			added.add(key);
+		}
+		for (int i = 0; i < 300; i++) {
+			assertSame(added.get(i), cell.getKey(id("MANY" + i)));
+		}
+		assertNull(cell.getKey(id("NOT_IN_CELL")));
+		assertEquals(600, cell.size());
+	}
+
+	@Test
+	public void testIdsPerTokenFactory() throws Exception {
+
+		// a new factory's non-terminals are numbered from zero no matter how
+		// many other factories have seen
+		id("SEEN_BY_OTHER_FACTORY");
+		StringTokenFactory otherFactory = new StringTokenFactory();
+		NonterminalIds otherIds = NonterminalIds.forTokenFactory(otherFactory);
+		assertEquals(0, otherIds.size());
+		SyncCFGRule<StringToken> rule =
+				new SyncCFGRuleFactory<StringToken>(otherFactory).makeDummyRule(otherFactory
+						.makeToken("S", false));
+		assertEquals(0, rule.getLhsId());
+		assertEquals(0, otherIds.getId(otherFactory.makeToken("S", false)));
+		assertEquals(1, otherIds.size());
+		assertSame(otherIds, NonterminalIds.forTokenFactory(otherFactory));
+	}
+
+	@Test
+	public void testLazyRemoval() throws Exception {
+
+		Chart<SyncCFGRule<StringToken>, StringToken> chart = newChart("a b c");
+		Key<SyncCFGRule<StringToken>, StringToken> a = key("NP", 0, 1);
+		Key<SyncCFGRule<StringToken>, StringToken> b = key("NP", 0, 1);
+		Key<SyncCFGRule<StringToken>, StringToken> c = key("VP", 1, 3);
+		Key<SyncCFGRule<StringToken>, StringToken> d = key("S", 0, 3);
+		chart.addKey(a);
+		chart.addKey(b);
+		chart.addKey(c);
+		chart.addKey(d);
+
+		chart.removeKey(a);
+		chart.removeKey(c);
+		assertTrue(a.removed);
+		assertTrue(c.removed);
+		assertFalse(b.removed);
+
+		// the count and the cells are updated at once; the key list on the
+		// next read
+		assertEquals(2, chart.getKeyCount());
+		assertSame(b, chart.getCell(0, 1).getKey(id("NP")));
+		assertFalse(chart.contains(c));
+		assertTrue(chart.contains(d));
+		assertEquals(Arrays.asList(b, d), chart.getKeys());
+		assertEquals(2, chart.getKeyCount());
+
+		Key<SyncCFGRule<StringToken>, StringToken> e = key("VP", 1, 3);
+		chart.addKey(e);
+		chart.removeKey(d);
+		assertEquals(2, chart.getKeyCount());
+		assertEquals(Arrays.asList(b, e), chart.getKeys());
+		assertTrue(chart.contains(c));
+	}
+
+	@Test
+	public void testParseForestSkipsRemovedKeys() throws Exception {
+
+		Chart<SyncCFGRule<StringToken>, StringToken> chart = newChart("a b");
+		Key<SyncCFGRule<StringToken>, StringToken> np = key("NP", 0, 2);
+		Key<SyncCFGRule<StringToken>, StringToken> vp = key("VP", 0, 2);
+		Key<SyncCFGRule<StringToken>, StringToken> s = key("S", 0, 2);
+		chart.addKey(np);
+		chart.addKey(vp);
+		chart.addKey(s);
+
+		// as the agenda does for a key that fell out of the beam
+		chart.removeKey(vp);
+
+		List<Key<SyncCFGRule<StringToken>, StringToken>> forest =
+				chart.getParseForest(new ParseForestFormatter<SyncCFGRule<StringToken>, StringToken, List<Key<SyncCFGRule<StringToken>, StringToken>>>() {
+
+					private final List<Key<SyncCFGRule<StringToken>, StringToken>> keys =
+							new ArrayList<Key<SyncCFGRule<StringToken>, StringToken>>();
+
+					public void addNonterminal(Key<SyncCFGRule<StringToken>, StringToken> key) {
+						keys.add(key);
+					}
+
+					public List<Key<SyncCFGRule<StringToken>, StringToken>> getParseForest() {
+						return keys;
+					}
+				});
+		assertEquals(Arrays.asList(np, s), forest);
+	}
+}
@@ -0,0 +1,170 @@
+package info.jonclark.treegraft.parsing.chartparser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import info.jonclark.treegraft.Treegraft.TreegraftConfig;
+import info.jonclark.treegraft.core.tokens.string.StringToken;
+import info.jonclark.treegraft.core.tokens.string.StringTokenFactory;
+import info.jonclark.treegraft.parsing.ParsingTestUtils;
+import info.jonclark.treegraft.parsing.WordLattice;
+import info.jonclark.treegraft.parsing.chartparser.ChartParser.ChartParserOptions;
+import info.jonclark.treegraft.parsing.grammar.Grammar;
+import info.jonclark.treegraft.parsing.oov.CopyOOVHandler;
+import info.jonclark.treegraft.parsing.rules.RuleException;
+import info.jonclark.treegraft.parsing.synccfg.SyncCFGRule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class LatticeParsingTest {
+
+	// upper case symbols are nonterminals
+	private static final String[][] RULES =
+			{ { "N", "a" }, { "V", "b" }, { "ADJ", "c" }, { "NP", "ADJ N" }, { "S", "N V" },
+					{ "S", "NP V" } };
+
+	private final StringTokenFactory tokenFactory = new StringTokenFactory();
+
+	// the input before each OOV word, in the order in which they were seen
+	private final List<List<StringToken>> oovContexts = new ArrayList<List<StringToken>>();
+
+	private StringToken word(String word) {
+		return tokenFactory.makeToken(word, true);
+	}
+
+	private List<StringToken> words(String words) {
+		return Arrays.asList(tokenFactory.makeTokens(words.split(" "), true));
+	}
+
+	@SuppressWarnings("unchecked")
+	private ChartParser<SyncCFGRule<StringToken>, StringToken> parser() throws Exception {
+		Grammar<SyncCFGRule<StringToken>, StringToken> grammar =
+				ParsingTestUtils.newGrammar(tokenFactory, RULES, -1.0, -1.0);
+		TreegraftConfig<SyncCFGRule<StringToken>, StringToken> config =
+				ParsingTestUtils.newConfig(tokenFactory, grammar, new Properties(),
+						ChartParserOptions.class);
+		config.oovHandler =
+				new CopyOOVHandler<StringToken>(ParsingTestUtils.newOOVHandlerOptions(), config) {
+					public List<SyncCFGRule<StringToken>> generateOOVRules(
+							StringToken sourceOovTerminal,
+							List<StringToken> sourceInputBeforeOovTerminal) throws RuleException {
+						oovContexts.add(sourceInputBeforeOovTerminal);
+						return super.generateOOVRules(sourceOovTerminal,
+								sourceInputBeforeOovTerminal);
+					}
+				};
+
+		return new ChartParser<SyncCFGRule<StringToken>, StringToken>(config.configurator
+				.getOptions(ChartParserOptions.class), config);
+	}
+
+	private static HashSet<String> items(Chart<SyncCFGRule<StringToken>, StringToken> chart) {
+		HashSet<String> items = new HashSet<String>();
+		for (Key<SyncCFGRule<StringToken>, StringToken> key : chart.getKeys()) {
+			items.add(ParsingTestUtils.item(key));
+		}
+		return items;
+	}
+
+	// items written as "start end LHS"
+	private HashSet<String> items(String... items) {
+		HashSet<String> result = new HashSet<String>();
+		for (String item : items) {
+			String[] parts = item.split(" ");
+			result.add(ParsingTestUtils.item(Integer.parseInt(parts[0]), Integer
+					.parseInt(parts[1]), tokenFactory.makeToken(parts[2], false)));
+		}
+		return result;
+	}
+
+	@Test
+	public void testConfusionNetwork() throws Exception {
+
+		// x is out of vocabulary
+		StringToken[][] words =
+				{ { word("a"), word("c") }, { word("a") }, { word("x"), word("b") } };
+		double[][] weights = { { -1.0, -0.5 }, { 0.0 }, { -0.25, -2.0 } };
+		WordLattice<StringToken> lattice = WordLattice.fromConfusionNetwork(words, weights);
+
+		Chart<SyncCFGRule<StringToken>, StringToken> chart = parser().parse(lattice);
+		assertEquals(items("0 1 N", "0 1 ADJ", "1 2 N", "0 2 NP", "2 3 V", "2 3 N", "1 3 S",
+				"0 3 S"), items(chart));
+		assertTrue(chart.isInputGrammatical());
+
+		// the consensus hypothesis, including the OOV word
+		assertEquals(words("c a x"), chart.getSourceInputTokens());
+		assertEquals(Arrays.asList(words("c a")), oovContexts);
+	}
+
+	@Test
+	public void testTwoPathLattice() throws Exception {
+
+		// a b and c a b, where the first word of the worse path is better
+		WordLattice<StringToken> lattice = new WordLattice<StringToken>(5);
+		lattice.addEdge(0, 1, word("a"), -0.5);
+		lattice.addEdge(1, 4, word("b"), -3.0);
+		lattice.addEdge(0, 2, word("c"), -1.0);
+		lattice.addEdge(2, 3, word("a"), 0.0);
+		lattice.addEdge(3, 4, word("b"), 0.0);
+
+		Chart<SyncCFGRule<StringToken>, StringToken> chart = parser().parse(lattice);
+
+		// no key spans words of both paths
+		assertEquals(items("0 1 N", "1 4 V", "0 4 S", "0 2 ADJ", "2 3 N", "0 3 NP", "3 4 V",
+				"2 4 S"), items(chart));
+		assertEquals(2, chart.getParseCount());
+
+		// following the tokens from the start spells out the best path
+		assertEquals(words("c b a b"), chart.getSourceInputTokens());
+		assertEquals(words("c a"), lattice.getBestPathTo(3));
+		assertEquals(words("c a b"), lattice.getBestPathTo(4));
+	}
+
+	@Test
+	public void testOOVContextFollowsPath() throws Exception {
+
+		// a b and the better c both lead to the OOV word x
+		WordLattice<StringToken> lattice = new WordLattice<StringToken>(4);
+		lattice.addEdge(0, 1, word("a"), -1.0);
+		lattice.addEdge(1, 2, word("b"), -1.0);
+		lattice.addEdge(0, 2, word("c"), -0.5);
+		lattice.addEdge(2, 3, word("x"), 0.0);
+
+		Chart<SyncCFGRule<StringToken>, StringToken> chart = parser().parse(lattice);
+		assertTrue(items(chart).containsAll(items("2 3 N")));
+		assertEquals(Arrays.asList(words("c")), oovContexts);
+		assertEquals(words("c b x"), chart.getSourceInputTokens());
+	}
+
+	@Test
+	public void testBestPathsFollowAddedEdges() throws Exception {
+
+		WordLattice<StringToken> lattice = new WordLattice<StringToken>(4);
+		lattice.addEdge(0, 1, word("a"), -1.0);
+		lattice.addEdge(1, 2, word("b"), -1.0);
+		lattice.addEdge(2, 3, word("c"), 0.0);
+		assertEquals(words("a b"), lattice.getBestPathTo(2));
+
+		// a better path to node 2 replaces the one found before
+		lattice.addEdge(0, 2, word("c"), -0.5);
+		assertEquals(words("c"), lattice.getBestPathTo(2));
+		assertEquals(words("c c"), lattice.getBestPathTo(3));
+		assertEquals(words("c b c"), lattice.getBestTokens());
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testRejectsDeadEnd() throws Exception {
+
+		// no edge leaves node 2, which is not the end node
+		WordLattice<StringToken> lattice = new WordLattice<StringToken>(4);
+		lattice.addEdge(0, 1, word("a"), 0.0);
+		lattice.addEdge(1, 3, word("b"), 0.0);
+		lattice.addEdge(1, 2, word("b"), 0.0);
+		parser().parse(lattice);
+	}
+}
@@ -0,0 +1,180 @@
+package info.jonclark.treegraft.parsing.chartparser;
+
+import static info.jonclark.treegraft.parsing.ParsingTestUtils.DELTA;
+import static info.jonclark.treegraft.parsing.ParsingTestUtils.get;
+import static info.jonclark.treegraft.parsing.ParsingTestUtils.item;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import info.jonclark.treegraft.Treegraft.TreegraftConfig;
+import info.jonclark.treegraft.core.tokens.string.StringToken;
+import info.jonclark.treegraft.core.tokens.string.StringTokenFactory;
+import info.jonclark.treegraft.parsing.Parser;
+import info.jonclark.treegraft.parsing.ParsingTestUtils;
+import info.jonclark.treegraft.parsing.chartparser.ChartParser.ChartParserOptions;
+import info.jonclark.treegraft.parsing.chartparser.ParallelCKYParser.ParallelCKYParserOptions;
+import info.jonclark.treegraft.parsing.grammar.Grammar;
+import info.jonclark.treegraft.parsing.synccfg.SyncCFGRule;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ParallelCKYParserTest {
+
+	private final StringTokenFactory tokenFactory = new StringTokenFactory();
+
+	@SuppressWarnings("unchecked")
+	private TreegraftConfig<SyncCFGRule<StringToken>, StringToken> config(
+			Grammar<SyncCFGRule<StringToken>, StringToken> grammar, Properties props)
+			throws Exception {
+		return ParsingTestUtils.newConfig(tokenFactory, grammar, props, ChartParserOptions.class,
+				ParallelCKYParserOptions.class);
+	}
+
+	private ChartParser<SyncCFGRule<StringToken>, StringToken> chartParser(
+			Grammar<SyncCFGRule<StringToken>, StringToken> grammar, boolean filter)
+			throws Exception {
+		Properties props = new Properties();
+		props.setProperty("parser.filterGrammarPerSentence", filter + "");
+		TreegraftConfig<SyncCFGRule<StringToken>, StringToken> config = config(grammar, props);
+		return new ChartParser<SyncCFGRule<StringToken>, StringToken>(config.configurator
+				.getOptions(ChartParserOptions.class), config);
+	}
+
+	private ParallelCKYParser<SyncCFGRule<StringToken>, StringToken> ckyParser(
+			Grammar<SyncCFGRule<StringToken>, StringToken> grammar, boolean filter, int threads)
+			throws Exception {
+		Properties props = new Properties();
+		props.setProperty("parser.filterGrammarPerSentence", filter + "");
+		props.setProperty("parser.cky.threads", threads + "");
+		TreegraftConfig<SyncCFGRule<StringToken>, StringToken> config = config(grammar, props);
+		return new ParallelCKYParser<SyncCFGRule<StringToken>, StringToken>(config.configurator
+				.getOptions(ParallelCKYParserOptions.class), config);
+	}
+
+	/**
+	 * Gets the Viterbi inside score of each (span, LHS) item of a chart from
+	 * its forest. Each backpointer stands for its whole item, since which of
+	 * several keys of an item becomes the backpointer of a packed arc depends
+	 * on the order in which keys were found; scores are relaxed until nothing
+	 * improves.
+	 */
+	private static HashMap<String, Double> viterbi(Chart<SyncCFGRule<StringToken>, StringToken> chart) {
+
+		HashMap<String, Double> inside = new HashMap<String, Double>();
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Key<SyncCFGRule<StringToken>, StringToken> key : chart.getKeys()) {
+				for (ActiveArc<SyncCFGRule<StringToken>, StringToken> arc : key.getActiveArcs()) {
+					double ruleScore = Double.NEGATIVE_INFINITY;
+					for (SyncCFGRule<StringToken> rule : arc.getRules()) {
+						ruleScore =
+								Math.max(ruleScore, rule.getRuleScores().sgt
+										+ rule.getRuleScores().tgs);
+					}
+					double score = ruleScore;
+					for (int i = 0; i < arc.getRhs().length; i++) {
+						if (arc.getRhs()[i].isTerminal() == false) {
+							double best = Double.NEGATIVE_INFINITY;
+							for (Key<SyncCFGRule<StringToken>, StringToken> backpointer : arc
+									.getBackpointers(i)) {
+								best = Math.max(best, get(inside, item(backpointer)));
+							}
+							score += best;
+						}
+					}
+					if (score > get(inside, item(key)) + DELTA) {
+						inside.put(item(key), score);
+						changed = true;
+					}
+				}
+			}
+		}
+		return inside;
+	}
+
+	private static List<String> items(Chart<SyncCFGRule<StringToken>, StringToken> chart) {
+		List<String> items = new ArrayList<String>();
+		for (Key<SyncCFGRule<StringToken>, StringToken> key : chart.getKeys()) {
+			items.add(item(key));
+		}
+		return items;
+	}
+
+	private static void assertSameScores(HashMap<String, Double> expected,
+			HashMap<String, Double> actual) {
+		assertEquals(expected.keySet(), actual.keySet());
+		for (String item : expected.keySet()) {
+			assertEquals(item, expected.get(item), actual.get(item), DELTA);
+		}
+	}
+
+	private void testSameChartAsChartParser(boolean filter) throws Exception {
+
+		Random random = new Random(filter ? 17 : 3);
+		int nGrammatical = 0;
+		for (int g = 0; g < 10; g++) {
+			Grammar<SyncCFGRule<StringToken>, StringToken> grammar =
+					ParsingTestUtils.randomGrammar(tokenFactory, random);
+			Parser<SyncCFGRule<StringToken>, StringToken> chartParser = chartParser(grammar, filter);
+			Parser<SyncCFGRule<StringToken>, StringToken> oneThread = ckyParser(grammar, filter, 1);
+			Parser<SyncCFGRule<StringToken>, StringToken> fourThreads =
+					ckyParser(grammar, filter, 4);
+
+			for (int s = 0; s < 10; s++) {
+				StringToken[] input =
+						ParsingTestUtils.randomSentence(tokenFactory, random,
+								ParsingTestUtils.WORDS_WITH_OOV, 9);
+				Chart<SyncCFGRule<StringToken>, StringToken> expected = chartParser.parse(input);
+				HashMap<String, Double> expectedScores = viterbi(expected);
+				assertTrue(expectedScores.size() > 0);
+
+				for (Parser<SyncCFGRule<StringToken>, StringToken> parser : new Parser[] {
+						oneThread, fourThreads }) {
+					Chart<SyncCFGRule<StringToken>, StringToken> actual = parser.parse(input);
+					assertSameScores(expectedScores, viterbi(actual));
+					assertEquals(expected.isInputGrammatical(), actual.isInputGrammatical());
+					assertEquals(expected.getParseCount(), actual.getParseCount());
+				}
+
+				// the chart doesn't depend on how the spans were scheduled
+				assertEquals(items(oneThread.parse(input)), items(fourThreads.parse(input)));
+
+				if (expected.isInputGrammatical()) {
+					nGrammatical++;
+				}
+			}
+		}
+		assertTrue(nGrammatical > 20);
+	}
+
+	@Test
+	public void testSameChartAsChartParser() throws Exception {
+		testSameChartAsChartParser(false);
+	}
+
+	@Test
+	public void testSameChartAsChartParserWithFiltering() throws Exception {
+		testSameChartAsChartParser(true);
+	}
+
+	@Test
+	public void testParsersShareThreadPools() throws Exception {
+
+		// many parsers may be created in one JVM without leaking threads
+		Grammar<SyncCFGRule<StringToken>, StringToken> grammar =
+				ParsingTestUtils.randomGrammar(tokenFactory, new Random(1));
+		StringToken[] input = tokenFactory.makeTokens("a b c".split(" "), true);
+		ckyParser(grammar, false, 3).parse(input);
+		int threads = Thread.activeCount();
+		for (int i = 0; i < 50; i++) {
+			ckyParser(grammar, false, 3).parse(input);
+		}
+		assertTrue(Thread.activeCount() <= threads + 3);
+	}
+}
@@ -0,0 +1,145 @@
+package info.jonclark.treegraft.parsing.grammar;
+
+import static org.junit.Assert.assertEquals;
+import info.jonclark.treegraft.core.tokens.string.StringToken;
+import info.jonclark.treegraft.core.tokens.string.StringTokenFactory;
+import info.jonclark.treegraft.parsing.ParsingTestUtils;
+import info.jonclark.treegraft.parsing.synccfg.SyncCFGRule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class GrammarTest {
+
+	private final StringTokenFactory tokenFactory = new StringTokenFactory();
+
+	// the target RHS is the rule's ID
+	private SyncCFGRule<StringToken> rule(String id, String lhs, String sourceRhs, double sgt,
+			double tgs) throws Exception {
+		return ParsingTestUtils.rule(tokenFactory, id, lhs, sourceRhs, lhs, id, sgt, tgs);
+	}
+
+	private Grammar<SyncCFGRule<StringToken>, StringToken> load(
+			List<SyncCFGRule<StringToken>> rules, int kWhileLoading) {
+		Grammar<SyncCFGRule<StringToken>, StringToken> grammar =
+				new Grammar<SyncCFGRule<StringToken>, StringToken>(tokenFactory,
+						Grammar.DEFAULT_START_SYMBOLS, null, null, null);
+		grammar.keepKBestRulesWhileLoading(kWhileLoading);
+		for (SyncCFGRule<StringToken> rule : rules) {
+			grammar.addRule(rule, rule.getRhs()[0].isTerminal());
+		}
+		return grammar;
+	}
+
+	// the IDs of the kept rules for each source LHS and RHS in rank order
+	private static TreeMap<String, List<String>> groups(
+			Grammar<SyncCFGRule<StringToken>, StringToken> grammar) {
+		TreeMap<String, List<String>> groups = new TreeMap<String, List<String>>();
+		for (SyncCFGRule<StringToken> rule : grammar.getAllRules()) {
+			String category = rule.getLhs() + " " + Arrays.toString(rule.getRhs());
+			List<String> ids = groups.get(category);
+			if (ids == null) {
+				ids = new ArrayList<String>();
+				groups.put(category, ids);
+			}
+			ids.add(rule.getRuleId());
+		}
+		return groups;
+	}
+
+	private String category(String lhs, String sourceRhs) {
+		return tokenFactory.makeToken(lhs, false) + " "
+				+ Arrays.toString(tokenFactory.makeTokens(sourceRhs.split(" "), true));
+	}
+
+	private void assertSameRules(List<SyncCFGRule<StringToken>> rules, int k) {
+		TreeMap<String, List<String>> afterLoading = groups(load(rules, 0).keepKBestRules(k));
+		TreeMap<String, List<String>> whileLoading = groups(load(rules, k));
+
+		// without a limit, rules are kept in load order rather than rank order
+		if (k <= 0) {
+			for (List<String> ids : afterLoading.values()) {
+				Collections.sort(ids);
+			}
+			for (List<String> ids : whileLoading.values()) {
+				Collections.sort(ids);
+			}
+		}
+		assertEquals("k=" + k, afterLoading, whileLoading);
+	}
+
+	@Test
+	public void testTies() throws Exception {
+
+		List<SyncCFGRule<StringToken>> rules = new ArrayList<SyncCFGRule<StringToken>>();
+		rules.add(rule("a1", "N", "a", -0.5, -0.5));
+		rules.add(rule("a2", "N", "a", -0.25, -1.0)); // ties with a1
+		rules.add(rule("a3", "N", "a", -0.125, -1.0));
+		rules.add(rule("a4", "N", "a", -0.5, -0.5)); // ties with a1 and a2
+		rules.add(rule("a5", "N", "a", -1.0, -1.0));
+
+		assertSameRules(rules, 1);
+		assertSameRules(rules, 2);
+		assertSameRules(rules, 3);
+		assertSameRules(rules, 5);
+
+		// ties are broken by load order
+		String a = category("N", "a");
+		assertEquals(Arrays.asList("a3", "a1", "a2"), groups(load(rules, 3)).get(a));
+		assertEquals(Arrays.asList("a3"), groups(load(rules, 1)).get(a));
+	}
+
+	@Test
+	public void testZeroKeepsAllRules() throws Exception {
+
+		List<SyncCFGRule<StringToken>> rules = new ArrayList<SyncCFGRule<StringToken>>();
+		rules.add(rule("a1", "N", "a", -0.5, -0.5));
+		rules.add(rule("a2", "N", "a", -0.25, -0.5));
+		rules.add(rule("b1", "N", "b c", -0.5, -0.5));
+
+		assertSameRules(rules, 0);
+		assertEquals(Arrays.asList("a2", "a1"), groups(load(rules, 0).keepKBestRules(0)).get(
+				category("N", "a")));
+		assertEquals(3, load(rules, 0).getAllRules().size());
+	}
+
+	@Test
+	public void testRandomRules() throws Exception {
+
+		// few distinct scores, so that there are many ties
+		Random random = new Random(17);
+		String[] lhs = { "N", "V" };
+		String[] rhs = { "a", "b", "a b", "b a" };
+		List<SyncCFGRule<StringToken>> rules = new ArrayList<SyncCFGRule<StringToken>>();
+		for (int i = 0; i < 500; i++) {
+			rules.add(rule("r" + i, lhs[random.nextInt(lhs.length)], rhs[random
+					.nextInt(rhs.length)], -(random.nextInt(4) + 1) / 4.0,
+					-(random.nextInt(4) + 1) / 4.0));
+		}
+		for (int k : new int[] { 0, 1, 2, 10, 100, 1000 }) {
+			assertSameRules(rules, k);
+		}
+	}
+
+	@Test
+	public void testGroupsBySourceLhs() throws Exception {
+
+		// these rules were grouped together and their ranks truncated to 0 by
+		// older versions, which kept only n1 for k=1
+		List<SyncCFGRule<StringToken>> rules = new ArrayList<SyncCFGRule<StringToken>>();
+		rules.add(rule("n1", "N", "a", -0.5, -0.5));
+		rules.add(rule("v1", "V", "a", -0.5, -0.5));
+		rules.add(rule("n2", "N", "a", -0.25, -0.5));
+
+		TreeMap<String, List<String>> kept = groups(load(rules, 1));
+		assertEquals(2, kept.size());
+		assertEquals(Arrays.asList("n2"), kept.get(category("N", "a")));
+		assertEquals(Arrays.asList("v1"), kept.get(category("V", "a")));
+	}
+}
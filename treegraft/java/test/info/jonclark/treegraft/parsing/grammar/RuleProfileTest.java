@@ -0,0 +1,176 @@
+package info.jonclark.treegraft.parsing.grammar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import info.jonclark.treegraft.Treegraft.TreegraftConfig;
+import info.jonclark.treegraft.core.tokens.string.StringToken;
+import info.jonclark.treegraft.core.tokens.string.StringTokenFactory;
+import info.jonclark.treegraft.parsing.ParsingTestUtils;
+import info.jonclark.treegraft.parsing.grammar.RuleProfile.RuleStats;
+import info.jonclark.treegraft.parsing.grammar.TimeBudgetGrammarPruner.TimeBudgetGrammarPrunerOptions;
+import info.jonclark.treegraft.parsing.grammar.UnproductiveRuleGrammarPruner.UnproductiveRuleGrammarPrunerOptions;
+import info.jonclark.treegraft.parsing.rules.GrammarRule;
+import info.jonclark.treegraft.parsing.synccfg.SyncCFGRule;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RuleProfileTest {
+
+	// r1, r4 and r5 create many keys for their n-best uses; r3 is the most
+	// expensive rule, but creates few keys
+	private static final String PROFILE =
+			"# sentences\t7\n" + "# ruleId\tkeysCreated\tseconds\tnBestUses\n"
+					+ "r1\t1000\t2.0\t0\n" + "r2\t1000\t1.0\t5\n" + "r3\t50\t4.0\t0\n"
+					+ "r4\t200\t0.5\t0\n" + "r5\t3000\t2.5\t1\n";
+
+	private final StringTokenFactory tokenFactory = new StringTokenFactory();
+
+	private static File writeProfile(String text) throws Exception {
+		File file = File.createTempFile("treegraft-test", ".profile");
+		file.deleteOnExit();
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		out.write(text);
+		out.close();
+		return file;
+	}
+
+	private static RuleProfile readProfile(String text) throws Exception {
+		return RuleProfile.read(writeProfile(text), "UTF-8");
+	}
+
+	private static void assertSameStats(RuleStats expected, RuleStats actual) {
+		assertEquals(expected.keysCreated, actual.keysCreated);
+		assertEquals(expected.seconds, actual.seconds, 0.0);
+		assertEquals(expected.nBestUses, actual.nBestUses);
+	}
+
+	private SyncCFGRule<StringToken> rule(String id, String word) throws Exception {
+		return ParsingTestUtils.rule(tokenFactory, id, "N", word, "N", word, 0.0, 0.0);
+	}
+
+	private static <R extends GrammarRule<StringToken>> TreegraftConfig<R, StringToken> config(
+			RuleProfile profile) {
+		TreegraftConfig<R, StringToken> config = new TreegraftConfig<R, StringToken>();
+		config.ruleProfile = profile;
+		return config;
+	}
+
+	private static List<String> sorted(Collection<String> ruleIds) {
+		List<String> result = new ArrayList<String>(ruleIds);
+		Collections.sort(result);
+		return result;
+	}
+
+	@Test
+	public void testWriteAndRead() throws Exception {
+
+		RuleProfile profile = readProfile(PROFILE + "r\u00e1\t3\t0.125\t2\n");
+		assertEquals(7, profile.getSentenceCount());
+		assertEquals(6, profile.getRuleIds().size());
+
+		File file = File.createTempFile("treegraft-test", ".profile");
+		file.deleteOnExit();
+		profile.write(file, "UTF-8");
+		RuleProfile copy = RuleProfile.read(file, "UTF-8");
+
+		assertEquals(profile.getSentenceCount(), copy.getSentenceCount());
+		assertEquals(new HashSet<String>(profile.getRuleIds()), new HashSet<String>(copy
+				.getRuleIds()));
+		for (String ruleId : profile.getRuleIds()) {
+			assertSameStats(profile.get(ruleId), copy.get(ruleId));
+		}
+		assertEquals(3, copy.get("r\u00e1").keysCreated);
+		assertEquals(0.125, copy.get("r\u00e1").seconds, 0.0);
+		assertEquals(2, copy.get("r\u00e1").nBestUses);
+	}
+
+	@Test
+	public void testRulesWithoutIds() throws Exception {
+
+		SyncCFGRule<StringToken> withId = rule("a", "a");
+		SyncCFGRule<StringToken> withoutId1 = rule(null, "b");
+		SyncCFGRule<StringToken> withoutId2 = rule(null, "c");
+		SyncCFGRule<StringToken> unused = rule("d", "d");
+		Grammar<SyncCFGRule<StringToken>, StringToken> grammar =
+				new Grammar<SyncCFGRule<StringToken>, StringToken>(tokenFactory,
+						Grammar.DEFAULT_START_SYMBOLS, null, null, null);
+		for (SyncCFGRule<StringToken> rule : Arrays
+				.asList(withId, withoutId1, withoutId2, unused)) {
+			grammar.addRule(rule, true);
+		}
+		withId.incrementKeysCreated();
+		withoutId1.incrementKeysCreated();
+		withoutId2.incrementKeysCreated();
+
+		RuleProfile profile = new RuleProfile();
+		profile.recordGrammar(grammar);
+		assertEquals(Arrays.asList("a"), sorted(profile.getRuleIds()));
+		assertEquals(1, profile.get("a").keysCreated);
+		assertNull(profile.get(null));
+		assertEquals(1, profile.getTotalKeysCreated());
+	}
+
+	@Test
+	public void testUnproductiveRulePruner() throws Exception {
+
+		UnproductiveRuleGrammarPrunerOptions opts = new UnproductiveRuleGrammarPrunerOptions();
+		opts.minKeysCreated = 100;
+		opts.minNBestUsesPerKey = 0.001;
+		UnproductiveRuleGrammarPruner<SyncCFGRule<StringToken>, StringToken> pruner =
+				new UnproductiveRuleGrammarPruner<SyncCFGRule<StringToken>, StringToken>(opts,
+						RuleProfileTest.<SyncCFGRule<StringToken>> config(readProfile(PROFILE)));
+		assertEquals(Arrays.asList("r1", "r4", "r5"), sorted(pruner.selectRulesToPrune()));
+
+		// rules are removed from the grammar by ID
+		Grammar<SyncCFGRule<StringToken>, StringToken> grammar =
+				new Grammar<SyncCFGRule<StringToken>, StringToken>(tokenFactory,
+						Grammar.DEFAULT_START_SYMBOLS, null, null, null);
+		for (String ruleId : new String[] { "r1", "r2", "r3", "r4", "r5", "r6" }) {
+			grammar.addRule(rule(ruleId, ruleId), true);
+		}
+		pruner.pruneGrammar(grammar);
+		List<String> kept = new ArrayList<String>();
+		for (SyncCFGRule<StringToken> rule : grammar.getAllRules()) {
+			kept.add(rule.getRuleId());
+		}
+		assertEquals(Arrays.asList("r2", "r3", "r6"), sorted(kept));
+	}
+
+	private List<String> selectByTime(String profile, double fraction, int maxNBestUses)
+			throws Exception {
+		TimeBudgetGrammarPrunerOptions opts = new TimeBudgetGrammarPrunerOptions();
+		opts.fraction = fraction;
+		opts.maxNBestUses = maxNBestUses;
+		return new TimeBudgetGrammarPruner<SyncCFGRule<StringToken>, StringToken>(opts,
+				RuleProfileTest.<SyncCFGRule<StringToken>> config(readProfile(profile)))
+				.selectRulesToPrune();
+	}
+
+	@Test
+	public void testTimeBudgetPruner() throws Exception {
+
+		// of 10 seconds, most wasteful (seconds per n-best use) first
+		assertEquals(Arrays.asList(), selectByTime(PROFILE, 0.0, 0));
+		assertEquals(Arrays.asList("r3"), selectByTime(PROFILE, 0.25, 0));
+		assertEquals(Arrays.asList("r3", "r1"), selectByTime(PROFILE, 0.6, 0));
+		assertEquals(Arrays.asList("r3", "r1", "r4"), selectByTime(PROFILE, 1.0, 0));
+		assertEquals(Arrays.asList("r3", "r1", "r5"), selectByTime(PROFILE, 0.8, 1));
+
+		// keys created are the costs of a profile without timings
+		String untimed = PROFILE.replaceAll("\t[0-9.]+\t([0-9]+)\n", "\t0.0\t$1\n");
+		assertEquals(Arrays.asList("r1"), selectByTime(untimed, 0.1, 0));
+		assertEquals(Arrays.asList("r1", "r4", "r3"), selectByTime(untimed, 0.25, 0));
+		assertEquals(Arrays.asList("r5", "r1"), selectByTime(untimed, 0.7, 1));
+	}
+}
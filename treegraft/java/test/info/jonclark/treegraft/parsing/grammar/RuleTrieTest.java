@@ -0,0 +1,148 @@
+package info.jonclark.treegraft.parsing.grammar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import info.jonclark.treegraft.core.tokens.string.StringToken;
+import info.jonclark.treegraft.core.tokens.string.StringTokenFactory;
+import info.jonclark.treegraft.parsing.ParsingTestUtils;
+import info.jonclark.treegraft.parsing.rules.NonterminalIds;
+import info.jonclark.treegraft.parsing.synccfg.SyncCFGRule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RuleTrieTest {
+
+	private final StringTokenFactory tokenFactory = new StringTokenFactory();
+
+	private StringToken word(String str) {
+		return tokenFactory.makeToken(str, true);
+	}
+
+	// a lexical rule; rules with the same LHS and source RHS share an arc
+	private SyncCFGRule<StringToken> rule(String lhs, String sourceRhs, String targetRhs)
+			throws Exception {
+		return ParsingTestUtils.rule(tokenFactory, null, lhs, sourceRhs, lhs, targetRhs, 0.0, 0.0);
+	}
+
+	@Test
+	public void testHashCollisions() throws Exception {
+
+		// these all have the same hash code
+		assertEquals("Aa".hashCode(), "BB".hashCode());
+		assertEquals("Aa".hashCode(), "C#".hashCode());
+
+		List<SyncCFGRule<StringToken>> rules = new ArrayList<SyncCFGRule<StringToken>>();
+		rules.add(rule("X", "a \"Aa\" c", "x"));
+		rules.add(rule("X", "a \"BB\" c", "y"));
+		rules.add(rule("X", "a \"BB\"", "z"));
+
+		// enough other children that the binary search has to skip some
+		for (int i = 0; i < 20; i++) {
+			rules.add(rule("X", "a w" + i, "w"));
+		}
+		RuleTrie<SyncCFGRule<StringToken>, StringToken> root =
+				RuleTrie.build(word("a"), rules, NonterminalIds.forTokenFactory(tokenFactory));
+		assertEquals(22, root.getChildCount());
+
+		RuleTrie<SyncCFGRule<StringToken>, StringToken> aa = root.getChild(word("Aa"));
+		RuleTrie<SyncCFGRule<StringToken>, StringToken> bb = root.getChild(word("BB"));
+		assertSame(word("Aa"), aa.getSymbol());
+		assertSame(word("BB"), bb.getSymbol());
+		assertNull(root.getChild(word("C#")));
+
+		assertEquals(0, aa.getCompleteRuleGroups().size());
+		assertSame(rules.get(2), bb.getCompleteRuleGroups().get(0).get(0));
+		assertSame(rules.get(0), aa.getChild(word("c")).getCompleteRuleGroups().get(0).get(0));
+		assertSame(rules.get(1), bb.getChild(word("c")).getCompleteRuleGroups().get(0).get(0));
+		assertSame(root, aa.getParent());
+		assertEquals("a BB c", bb.getChild(word("c")).toString());
+	}
+
+	@Test
+	public void testManyChildren() throws Exception {
+
+		// a node as wide as the one for a common word in a large grammar,
+		// with the children first seen in no particular order of key
+		List<SyncCFGRule<StringToken>> rules = new ArrayList<SyncCFGRule<StringToken>>();
+		for (int i = 0; i < 3000; i++) {
+			rules.add(rule("X", "a w" + ((i * 7919) % 3000) + " c", "x"));
+			rules.add(rule("X", "a w" + ((i * 7919) % 3000), "x"));
+		}
+		RuleTrie<SyncCFGRule<StringToken>, StringToken> root =
+				RuleTrie.build(word("a"), rules, NonterminalIds.forTokenFactory(tokenFactory));
+		assertEquals(3000, root.getChildCount());
+
+		for (int i = 1; i < root.getChildCount(); i++) {
+			assertTrue(root.getChild(i - 1).getSymbol().hashCode() <= root.getChild(i)
+					.getSymbol().hashCode());
+		}
+		for (int i = 0; i < 3000; i++) {
+			RuleTrie<SyncCFGRule<StringToken>, StringToken> child = root.getChild(word("w" + i));
+			assertEquals("a w" + i, child.toString());
+			assertEquals(1, child.getChildCount());
+			assertEquals(1, child.getCompleteRuleGroups().size());
+			assertEquals("a w" + i + " c", child.getChild(word("c")).toString());
+		}
+		assertNull(root.getChild(word("w3000")));
+	}
+
+	@Test
+	public void testPackedRulesEqualUnpackedRules() throws Exception {
+
+		List<SyncCFGRule<StringToken>> rules = new ArrayList<SyncCFGRule<StringToken>>();
+		rules.add(rule("X", "a", "x"));
+		rules.add(rule("X", "a b", "x"));
+		rules.add(rule("X", "a b", "y")); // same arc as the last rule
+		rules.add(rule("Y", "a b", "x")); // different LHS, so a different arc
+		rules.add(rule("X", "a b c", "x"));
+		rules.add(rule("X", "a \"Aa\"", "x"));
+		rules.add(rule("Y", "a \"BB\" c", "x"));
+		rules.add(rule("Y", "a \"BB\" c", "z"));
+		RuleTrie<SyncCFGRule<StringToken>, StringToken> root =
+				RuleTrie.build(word("a"), rules, NonterminalIds.forTokenFactory(tokenFactory));
+
+		IdentityHashMap<SyncCFGRule<StringToken>, Boolean> found =
+				new IdentityHashMap<SyncCFGRule<StringToken>, Boolean>();
+		int nGroups = collect(root, new ArrayList<StringToken>(), found);
+		assertEquals(6, nGroups);
+		assertEquals(rules.size(), found.size());
+		for (SyncCFGRule<StringToken> rule : rules) {
+			assertTrue(rule.toString(), found.containsKey(rule));
+		}
+	}
+
+	// checks that every rule is at the node for its RHS, in a group with the
+	// same packing string, and returns the number of groups
+	private int collect(RuleTrie<SyncCFGRule<StringToken>, StringToken> node,
+			List<StringToken> prefix, IdentityHashMap<SyncCFGRule<StringToken>, Boolean> found) {
+
+		prefix.add(node.getSymbol());
+		assertEquals(prefix.size(), node.getDepth());
+
+		int nGroups = 0;
+		HashSet<Object> packingStrings = new HashSet<Object>();
+		for (List<SyncCFGRule<StringToken>> group : node.getCompleteRuleGroups()) {
+			assertTrue(packingStrings.add(group.get(0).getArcPackingString()));
+			for (SyncCFGRule<StringToken> rule : group) {
+				assertEquals(prefix, Arrays.asList(rule.getRhs()));
+				assertEquals(group.get(0).getArcPackingString(), rule.getArcPackingString());
+				assertNull("rule appears twice", found.put(rule, Boolean.TRUE));
+			}
+			nGroups++;
+		}
+		for (int i = 0; i < node.getChildCount(); i++) {
+			nGroups += collect(node.getChild(i), prefix, found);
+		}
+
+		prefix.remove(prefix.size() - 1);
+		return nGroups;
+	}
+}
@@ -0,0 +1,146 @@
+package info.jonclark.treegraft.parsing.grammar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import info.jonclark.treegraft.core.tokens.string.StringToken;
+import info.jonclark.treegraft.core.tokens.string.StringTokenFactory;
+import info.jonclark.treegraft.parsing.ParsingTestUtils;
+import info.jonclark.treegraft.parsing.WordLattice;
+import info.jonclark.treegraft.parsing.chartparser.ActiveArc;
+import info.jonclark.treegraft.parsing.chartparser.Key;
+import info.jonclark.treegraft.parsing.synccfg.SyncCFGRule;
+import info.jonclark.treegraft.parsing.synccfg.SyncCFGRuleFactory;
+
+import org.junit.Test;
+
+public class SentenceGrammarTest {
+
+	private final StringTokenFactory tokenFactory = new StringTokenFactory();
+
+	private StringToken word(String str) {
+		return tokenFactory.makeToken(str, true);
+	}
+
+	private StringToken[] words(String str) {
+		return tokenFactory.makeTokens(str.split(" "), true);
+	}
+
+	// upper case symbols of the source RHS are nonterminals, which are copied
+	// to the target RHS
+	private SyncCFGRule<StringToken> rule(String lhs, String sourceRhs) throws Exception {
+		StringBuilder targetRhs = new StringBuilder();
+		for (StringToken symbol : ParsingTestUtils.symbols(tokenFactory, sourceRhs)) {
+			if (symbol.isTerminal() == false) {
+				targetRhs.append(symbol.getWord() + " ");
+			}
+		}
+		targetRhs.append("x");
+		return ParsingTestUtils.rule(tokenFactory, null, lhs, sourceRhs, lhs, targetRhs
+				.toString(), 0.0, 0.0);
+	}
+
+	private Grammar<SyncCFGRule<StringToken>, StringToken> newGrammar(
+			SyncCFGRule<StringToken>... rules) {
+		Grammar<SyncCFGRule<StringToken>, StringToken> grammar =
+				ParsingTestUtils.newGrammar(tokenFactory);
+		for (SyncCFGRule<StringToken> rule : rules) {
+			grammar.addRule(rule, rule.getRhs()[0].isTerminal());
+		}
+		return grammar;
+	}
+
+	private Key<SyncCFGRule<StringToken>, StringToken> key(String lhs) {
+		StringToken token = tokenFactory.makeToken(lhs, false);
+		SyncCFGRule<StringToken> dummyRule =
+				new SyncCFGRuleFactory<StringToken>(tokenFactory).makeDummyRule(token);
+		return new Key<SyncCFGRule<StringToken>, StringToken>(
+				new ActiveArc<SyncCFGRule<StringToken>, StringToken>(0, 1, 1, dummyRule), null);
+	}
+
+	@Test
+	public void testRunAbsentThenPresent() throws Exception {
+
+		SyncCFGRule<StringToken> theBig = rule("NP", "the big N");
+		SyncCFGRule<StringToken> theN = rule("NP", "the N");
+		Grammar<SyncCFGRule<StringToken>, StringToken> grammar = newGrammar(theBig, theN);
+
+		SentenceGrammar<SyncCFGRule<StringToken>, StringToken> absent =
+				new SentenceGrammar<SyncCFGRule<StringToken>, StringToken>(grammar,
+						words("big the dog"));
+		RuleTrie<SyncCFGRule<StringToken>, StringToken> trie =
+				absent.getTerminalInitialTrie(word("the"));
+		assertNotNull(trie);
+		assertNull(trie.getChild(word("big")));
+		assertSame(theN, trie.getChild(tokenFactory.makeToken("N", false))
+				.getCompleteRuleGroups().get(0).get(0));
+		assertFalse(absent.matches(theBig));
+		assertEquals(1, absent.getRulesKept());
+		assertEquals(1, absent.getRulesRemoved());
+
+		// the same grammar (and its cached run index) for another sentence
+		SentenceGrammar<SyncCFGRule<StringToken>, StringToken> present =
+				new SentenceGrammar<SyncCFGRule<StringToken>, StringToken>(grammar,
+						words("the big dog"));
+		assertSame(grammar.getTerminalInitialTrie(word("the")),
+				present.getTerminalInitialTrie(word("the")));
+		assertTrue(present.matches(theBig));
+		assertEquals(2, present.getRulesKept());
+		assertEquals(0, present.getRulesRemoved());
+
+		// nonterminal-initial rules are filtered by their later terminal runs
+		Grammar<SyncCFGRule<StringToken>, StringToken> nonterminalInitial =
+				newGrammar(rule("S", "NP barks loudly"), rule("S", "NP barks"));
+		SentenceGrammar<SyncCFGRule<StringToken>, StringToken> sentence =
+				new SentenceGrammar<SyncCFGRule<StringToken>, StringToken>(nonterminalInitial,
+						words("the dog barks"));
+		trie = sentence.getTrieStartingWith(key("NP"));
+		assertNotNull(trie.getChild(word("barks")));
+		assertNull(trie.getChild(word("barks")).getChild(word("loudly")));
+		assertNull(sentence.getTrieStartingWith(key("VP")));
+	}
+
+	@Test
+	public void testRunSpanningLatticeEdges() throws Exception {
+
+		Grammar<SyncCFGRule<StringToken>, StringToken> grammar =
+				newGrammar(rule("NP", "the big dog"), rule("NP", "a big dog"), rule("NP",
+						"a dog"));
+
+		// "the big dog" and "a dog" are paths, but "a big dog" is not
+		WordLattice<StringToken> lattice = new WordLattice<StringToken>(4);
+		lattice.addEdge(0, 1, word("the"), -0.5);
+		lattice.addEdge(1, 2, word("big"), 0.0);
+		lattice.addEdge(0, 2, word("a"), -1.0);
+		lattice.addEdge(2, 3, word("dog"), 0.0);
+		SentenceGrammar<SyncCFGRule<StringToken>, StringToken> sentence =
+				new SentenceGrammar<SyncCFGRule<StringToken>, StringToken>(grammar, lattice);
+
+		assertSame(grammar.getTerminalInitialTrie(word("the")), sentence
+				.getTerminalInitialTrie(word("the")));
+		RuleTrie<SyncCFGRule<StringToken>, StringToken> a =
+				sentence.getTerminalInitialTrie(word("a"));
+		assertNull(a.getChild(word("big")));
+		assertNotNull(a.getChild(word("dog")));
+		assertNull(sentence.getTerminalInitialTrie(word("big")));
+	}
+
+	@Test
+	public void testOutOfVocabularyDecisionIgnoresFiltering() throws Exception {
+
+		Grammar<SyncCFGRule<StringToken>, StringToken> grammar =
+				newGrammar(rule("NP", "the cat"));
+		SentenceGrammar<SyncCFGRule<StringToken>, StringToken> sentence =
+				new SentenceGrammar<SyncCFGRule<StringToken>, StringToken>(grammar,
+						words("the dog"));
+
+		// "the" has rules, even though none of them match this sentence
+		assertNull(sentence.getTerminalInitialTrie(word("the")));
+		assertTrue(sentence.hasTerminalInitialRules(word("the")));
+		assertFalse(sentence.hasTerminalInitialRules(word("dog")));
+		assertNull(sentence.getTerminalInitialTrie(word("dog")));
+	}
+}
@@ -0,0 +1,176 @@
+package info.jonclark.treegraft.parsing.merging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import info.jonclark.treegraft.Treegraft.TreegraftConfig;
+import info.jonclark.treegraft.core.lm.LanguageModelMultiScore;
+import info.jonclark.treegraft.core.lm.LanguageModelScore;
+import info.jonclark.treegraft.core.scoring.FeatureScores;
+import info.jonclark.treegraft.core.scoring.Scorer;
+import info.jonclark.treegraft.core.search.Beam;
+import info.jonclark.treegraft.core.tokens.Token;
+import info.jonclark.treegraft.core.tokens.TokenSequence;
+import info.jonclark.treegraft.core.tokens.string.StringToken;
+import info.jonclark.treegraft.core.tokens.string.StringTokenFactory;
+import info.jonclark.treegraft.decoder.DecoderHypothesis;
+import info.jonclark.treegraft.parsing.merging.BeamSearchMerger.BeamSearchMergerOptions;
+import info.jonclark.treegraft.parsing.parses.PartialParse;
+import info.jonclark.treegraft.parsing.synccfg.SyncCFGRule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BeamSearchMergerTest {
+
+	private final StringTokenFactory tokenFactory = new StringTokenFactory();
+
+	/**
+	 * Scores hypotheses with a bigram "LM" in which each word has a fixed
+	 * score regardless of its context, so that the state of a hypothesis is
+	 * just its first and last word.
+	 */
+	private static class BigramScorer implements Scorer<SyncCFGRule<StringToken>, StringToken> {
+
+		private static double wordScore(Token token) {
+			return -(token.getWord().charAt(0) - 'a' + 1);
+		}
+
+		public FeatureScores score(List<StringToken> tokens) {
+			double score = 0.0;
+			for (StringToken token : tokens) {
+				score += wordScore(token);
+			}
+			final LanguageModelScore lmScore =
+					new LanguageModelScore(new Token[] { tokens.get(0) },
+							new double[] { wordScore(tokens.get(0)) },
+							new Token[] { tokens.get(tokens.size() - 1) }, tokens.size(), score);
+			return new FeatureScores(1) {
+				{
+					metadata[0] = new LanguageModelMultiScore(new LanguageModelScore[] { lmScore });
+					setInterpolatedLogProb(lmScore.getSequenceScore());
+				}
+			};
+		}
+
+		public FeatureScores combineHypotheses(DecoderHypothesis<StringToken> hyp1,
+				DecoderHypothesis<StringToken> hyp2,
+				TokenSequence<StringToken> combinedTokenSequence, List<StringToken> inputSentence) {
+			List<StringToken> tokens = new ArrayList<StringToken>(hyp1.getTokens());
+			tokens.addAll(hyp2.getTokens());
+			return score(tokens);
+		}
+
+		public FeatureScores scoreTerminalParse(PartialParse<StringToken> terminalParse) {
+			throw new UnsupportedOperationException();
+		}
+
+		public FeatureScores combineRuleScoreWithChildren(PartialParse<StringToken> parse,
+				SyncCFGRule<StringToken> ruleToAppend, List<StringToken> inputSentence) {
+			throw new UnsupportedOperationException();
+		}
+
+		public FeatureScores combineChildParseScores(PartialParse<StringToken> accumulatedParse,
+				PartialParse<StringToken> addedChild, List<StringToken> inputSentence) {
+			throw new UnsupportedOperationException();
+		}
+
+		public FeatureScores recombineParses(PartialParse<StringToken> a,
+				PartialParse<StringToken> b) {
+			throw new UnsupportedOperationException();
+		}
+
+		public FeatureScores recombineHypotheses(DecoderHypothesis<StringToken> hyp1,
+				DecoderHypothesis<StringToken> hyp2) {
+			throw new UnsupportedOperationException();
+		}
+
+		public FeatureScores getInitialFeatureScores() {
+			throw new UnsupportedOperationException();
+		}
+
+		public String[] getFeatureProbVectorLabels() {
+			return new String[] { "lm" };
+		}
+
+		public double[] getFeatureWeightVector() {
+			return new double[] { 1.0 };
+		}
+
+		public void setFeatureWeightVector(double[] lambdas) {
+		}
+	}
+
+	private final BigramScorer scorer = new BigramScorer();
+
+	private DecoderHypothesis<StringToken> hyp(int start, int end, String words) {
+		List<StringToken> tokens = Arrays.asList(tokenFactory.makeTokens(words.split(" "), true));
+		return new DecoderHypothesis<StringToken>(start, end,
+				new ArrayList<PartialParse<StringToken>>(), tokens, scorer.score(tokens));
+	}
+
+	private Beam<DecoderHypothesis<StringToken>> beam(DecoderHypothesis<StringToken>... hyps) {
+		Beam<DecoderHypothesis<StringToken>> beam = new Beam<DecoderHypothesis<StringToken>>(10);
+		for (DecoderHypothesis<StringToken> hyp : hyps) {
+			beam.add(hyp);
+		}
+		return beam;
+	}
+
+	private HashSet<String> combine(boolean recombine) {
+		BeamSearchMergerOptions opts = new BeamSearchMergerOptions();
+		opts.doHypothesisRecombination = recombine;
+		opts.decoderBeam = 10;
+		opts.transferBeam = 10;
+		TreegraftConfig<SyncCFGRule<StringToken>, StringToken> config =
+				new TreegraftConfig<SyncCFGRule<StringToken>, StringToken>();
+		config.tokenFactory = tokenFactory;
+		BeamSearchMerger<SyncCFGRule<StringToken>, StringToken> merger =
+				new BeamSearchMerger<SyncCFGRule<StringToken>, StringToken>(opts, config);
+
+		// "a b d" and "a c d" have different yields but the same LM state;
+		// the worse of them is in the beam first
+		Beam<DecoderHypothesis<StringToken>> output = new Beam<DecoderHypothesis<StringToken>>(10);
+		merger.combineCrossProductOfHypotheses(scorer, beam(hyp(0, 2, "a b"), hyp(0, 2, "a c"),
+				hyp(0, 2, "c b")), beam(hyp(2, 3, "d")), output, null);
+
+		HashSet<String> result = new HashSet<String>();
+		for (DecoderHypothesis<StringToken> hyp : output) {
+			assertEquals(0, hyp.getSourceStartIndex());
+			assertEquals(3, hyp.getSourceEndIndex());
+			result.add(hyp.getTokens().toString());
+		}
+		return result;
+	}
+
+	@Test
+	public void testSameStateIsRecombined() {
+		assertEquals(new HashSet<String>(Arrays.asList("[a, b, d]", "[c, b, d]")), combine(true));
+		assertEquals(new HashSet<String>(Arrays.asList("[a, b, d]", "[a, c, d]", "[c, b, d]")),
+				combine(false));
+	}
+
+	@Test
+	public void testSignature() {
+		LanguageModelMultiScore abd =
+				hyp(0, 3, "a b d").getScores().getFeatureScore(LanguageModelMultiScore.class);
+		LanguageModelMultiScore acd =
+				hyp(0, 3, "a c d").getScores().getFeatureScore(LanguageModelMultiScore.class);
+		LanguageModelMultiScore cbd =
+				hyp(0, 3, "c b d").getScores().getFeatureScore(LanguageModelMultiScore.class);
+		LanguageModelMultiScore ad =
+				hyp(0, 3, "a d").getScores().getFeatureScore(LanguageModelMultiScore.class);
+
+		assertEquals(abd.getSignature(), acd.getSignature());
+		assertTrue(abd.hasSameState(acd));
+		assertTrue(abd.getSignature() != cbd.getSignature());
+		assertFalse(abd.hasSameState(cbd));
+
+		// the state is only the boundary words, not the length
+		assertTrue(abd.hasSameState(ad));
+	}
+}
@@ -0,0 +1,146 @@
+package info.jonclark.treegraft.parsing.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import info.jonclark.treegraft.core.tokens.string.StringToken;
+import info.jonclark.treegraft.core.tokens.string.StringTokenFactory;
+import info.jonclark.treegraft.parsing.ParsingTestUtils;
+import info.jonclark.treegraft.parsing.synccfg.SyncCFGRule;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class ConstraintIdsTest {
+
+	@Test
+	public void testInternIsStable() throws Exception {
+
+		ConstraintIds ids = new ConstraintIds();
+		int np = ids.intern("NP");
+		int vp = ids.intern("VP");
+		assertTrue(np != ConstraintIds.UNCONSTRAINED);
+		assertTrue(vp != ConstraintIds.UNCONSTRAINED);
+		assertTrue(np != vp);
+
+		// equal values that are different objects
+		assertEquals(np, ids.intern(new String("NP")));
+		assertEquals(vp, ids.intern("VP"));
+		assertEquals(2, ids.size());
+
+		// other instances assign their own IDs
+		ConstraintIds other = new ConstraintIds();
+		assertEquals(np, other.intern("VP"));
+		assertEquals(np, ids.intern("NP"));
+	}
+
+	@Test
+	public void testConcurrentIntern() throws Exception {
+
+		final ConstraintIds ids = new ConstraintIds();
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		List<Future<int[]>> futures = new ArrayList<Future<int[]>>();
+		for (int t = 0; t < 4; t++) {
+			futures.add(pool.submit(new Callable<int[]>() {
+				public int[] call() {
+					int[] result = new int[1000];
+					for (int i = 0; i < result.length; i++) {
+						result[i] = ids.intern("X" + i);
+					}
+					return result;
+				}
+			}));
+		}
+		int[] first = futures.get(0).get();
+		for (Future<int[]> future : futures) {
+			int[] result = future.get();
+			for (int i = 0; i < result.length; i++) {
+				assertEquals(first[i], result[i]);
+			}
+		}
+		pool.shutdown();
+
+		// IDs are dense
+		HashSet<Integer> distinct = new HashSet<Integer>();
+		for (int id : first) {
+			assertTrue(id > ConstraintIds.UNCONSTRAINED && id <= first.length);
+			distinct.add(id);
+		}
+		assertEquals(first.length, distinct.size());
+	}
+
+	@Test
+	public void testBitsetsAcrossWords() throws Exception {
+
+		assertFalse(ConstraintIds.contains(null, 0));
+		assertFalse(ConstraintIds.intersects(null, null));
+
+		long[] a = ConstraintIds.add(null, 63);
+		assertEquals(1, a.length);
+		a = ConstraintIds.add(a, 64);
+		assertEquals(2, a.length);
+		a = ConstraintIds.add(a, 1);
+		assertTrue(ConstraintIds.contains(a, 1));
+		assertTrue(ConstraintIds.contains(a, 63));
+		assertTrue(ConstraintIds.contains(a, 64));
+
+		// the same bit in another word, and past the end of the bitset
+		assertFalse(ConstraintIds.contains(a, 0));
+		assertFalse(ConstraintIds.contains(a, 65));
+		assertFalse(ConstraintIds.contains(a, 127));
+		assertFalse(ConstraintIds.contains(a, 128));
+		assertFalse(ConstraintIds.contains(a, 129));
+
+		long[] b = ConstraintIds.add(null, 128);
+		assertEquals(3, b.length);
+		assertFalse(ConstraintIds.intersects(a, b));
+		assertFalse(ConstraintIds.intersects(b, a));
+		b = ConstraintIds.add(b, 0);
+		assertFalse(ConstraintIds.intersects(a, b));
+		b = ConstraintIds.add(b, 64);
+		assertTrue(ConstraintIds.intersects(a, b));
+		assertTrue(ConstraintIds.intersects(b, a));
+		assertFalse(ConstraintIds.intersects(a, null));
+
+		// growing keeps the existing bits
+		long[] c = ConstraintIds.add(ConstraintIds.add(null, 5), 200);
+		assertTrue(ConstraintIds.contains(c, 5));
+		assertTrue(ConstraintIds.contains(c, 200));
+		assertFalse(ConstraintIds.contains(c, 200 - 64));
+	}
+
+	@Test
+	public void testRulesShareTheirTokenFactorysIds() throws Exception {
+
+		StringTokenFactory tokenFactory = new StringTokenFactory();
+		SyncCFGRule<StringToken> parent =
+				ParsingTestUtils.rule(tokenFactory, null, "S", "NP", "S", "SN", 0.0, 0.0);
+		SyncCFGRule<StringToken> child =
+				ParsingTestUtils.rule(tokenFactory, null, "NP", "N", "SN", "N", 0.0, 0.0);
+		SyncCFGRule<StringToken> other =
+				ParsingTestUtils.rule(tokenFactory, null, "NP", "N", "NP", "N", 0.0, 0.0);
+		assertTrue(parent.areConstraintsSatisfied(0, child));
+		assertFalse(parent.areConstraintsSatisfied(0, other));
+		ConstraintIds ids = ConstraintIds.forTokenFactory(tokenFactory);
+		assertEquals(ids.intern(tokenFactory.makeToken("SN", false)), parent.getConstraintId(0));
+
+		// rules of an unrelated factory don't add to this factory's IDs
+		int nIds = ids.size();
+		StringTokenFactory otherFactory = new StringTokenFactory();
+		ParsingTestUtils.rule(otherFactory, null, "VP", "V", "PV", "V", 0.0, 0.0);
+		assertEquals(nIds, ids.size());
+		assertNotSame(ids, ConstraintIds.forTokenFactory(otherFactory));
+		assertSame(ids, ConstraintIds.forTokenFactory(tokenFactory));
+		assertSame(ConstraintIds.forTokenFactory(otherFactory), ConstraintIds
+				.forTokenFactory(otherFactory));
+	}
+}
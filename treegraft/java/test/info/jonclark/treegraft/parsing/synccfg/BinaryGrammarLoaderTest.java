@@ -0,0 +1,141 @@
+package info.jonclark.treegraft.parsing.synccfg;
+
+import static org.junit.Assert.assertEquals;
+import info.jonclark.treegraft.core.tokens.integer.IntegerToken;
+import info.jonclark.treegraft.core.tokens.integer.IntegerTokenFactory;
+import info.jonclark.treegraft.parsing.ParsingTestUtils;
+import info.jonclark.treegraft.parsing.grammar.Grammar;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BinaryGrammarLoaderTest {
+
+	// one rule without an ID, one unaligned target terminal and one
+	// non-ASCII word
+	private static final String GRAMMAR =
+			"{S,1}\n"
+					+ "S::S : [NP VP] -> [VP NP]\n"
+					+ "(\n"
+					+ "\t(*sgtrule* 0.25)\n"
+					+ "\t(*tgsrule* 0.5)\n"
+					+ "\t(X1::Y2)\n"
+					+ "\t(X2::Y1)\n"
+					+ ")\n"
+					+ "\n"
+					+ "{S,2}\n"
+					+ "S::S : [NP \"bark\"] -> [\"come\" NP]\n"
+					+ "(\n"
+					+ "\t(*score* 0.75)\n"
+					+ "\t(X1::Y2)\n"
+					+ ")\n"
+					+ "\n"
+					+ "NP::NP : [N] -> [N]\n"
+					+ "(\n"
+					+ "\t(*score* 0.5)\n"
+					+ "\t(X1::Y1)\n"
+					+ ")\n"
+					+ "\n"
+					+ "{NP,2}\n"
+					+ "NP::NP : [DET N] -> [N \"de\" \"el\" DET]\n"
+					+ "(\n"
+					+ "\t(*sgtrule* 0.125)\n"
+					+ "\t(*tgsrule* 0.375)\n"
+					+ "\t(X1::Y4)\n"
+					+ "\t(X2::Y1)\n"
+					+ ")\n"
+					+ "\n"
+					+ "{N,1}\n"
+					+ "N::N |: [\"the\" \"dogs\"] -> [\"perros\"]\n"
+					+ "(\n"
+					+ "\t(*score* 0.5)\n"
+					+ ")\n"
+					+ "\n"
+					+ "{V,1}\n"
+					+ "V::V |: [\"ladran\"] -> [\"bark\" \"\u00e1\"]\n"
+					+ "(\n"
+					+ "\t(*score* 0.5)\n"
+					+ ")\n";
+
+	private static File writeTextGrammar() throws IOException {
+		File file = File.createTempFile("treegraft-test", ".gra");
+		file.deleteOnExit();
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		out.write(GRAMMAR);
+		out.close();
+		return file;
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+
+		IntegerTokenFactory tokenFactory = new IntegerTokenFactory();
+		File textFile = writeTextGrammar();
+		Grammar<SyncCFGRule<IntegerToken>, IntegerToken> textGrammar =
+				ParsingTestUtils.newGrammar(tokenFactory);
+		new SyncCFGGrammarLoader<IntegerToken>(tokenFactory, true).loadGrammar(textGrammar,
+				new FileInputStream(textFile), textFile.getName(), "UTF-8", null);
+
+		File binaryFile = File.createTempFile("treegraft-test", ".bin");
+		binaryFile.deleteOnExit();
+		BinaryGrammarLoader.compile(textGrammar, binaryFile);
+
+		Grammar<SyncCFGRule<IntegerToken>, IntegerToken> binaryGrammar =
+				ParsingTestUtils.newGrammar(tokenFactory);
+		new BinaryGrammarLoader<IntegerToken>(tokenFactory).loadGrammar(binaryGrammar,
+				new FileInputStream(binaryFile), binaryFile.getName(), "UTF-8", null);
+
+		// the target vocabulary is read without creating any rules
+		SyncCFGRuleTransducer<IntegerToken> transducer = new SyncCFGRuleTransducer<IntegerToken>();
+		HashSet<IntegerToken> expectedVocab = textGrammar.getTargetVocabulary(transducer);
+		assertEquals(new HashSet<String>(Arrays.asList("come", "perros", "de", "el", "bark",
+				"\u00e1")), words(expectedVocab));
+		assertEquals(expectedVocab, binaryGrammar.getTargetVocabulary(transducer));
+
+		binaryGrammar.materializeRules();
+		List<String> expected = ParsingTestUtils.describeAllSorted(textGrammar.getAllRules());
+		assertEquals(6, expected.size());
+		assertEquals(expected, ParsingTestUtils.describeAllSorted(binaryGrammar.getAllRules()));
+
+		// rules are also found through the lookups used by the parser
+		IntegerToken the = tokenFactory.makeToken("the", true);
+		assertEquals(ParsingTestUtils.describeAllSorted(textGrammar.getTerminalInitialRules(the)),
+				ParsingTestUtils.describeAllSorted(binaryGrammar.getTerminalInitialRules(the)));
+	}
+
+	@Test(expected = IOException.class)
+	public void testBadHeaderPosition() throws Exception {
+
+		File binaryFile = File.createTempFile("treegraft-test", ".bin");
+		binaryFile.deleteOnExit();
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(binaryFile));
+		out.writeInt(0x54474752);
+		out.writeInt(1);
+		out.writeLong(1L << 40); // past the end of the file
+		out.close();
+
+		IntegerTokenFactory tokenFactory = new IntegerTokenFactory();
+		Grammar<SyncCFGRule<IntegerToken>, IntegerToken> grammar =
+				ParsingTestUtils.newGrammar(tokenFactory);
+		new BinaryGrammarLoader<IntegerToken>(tokenFactory).loadGrammar(grammar,
+				new FileInputStream(binaryFile), binaryFile.getName(), "UTF-8", null);
+	}
+
+	private static HashSet<String> words(HashSet<IntegerToken> tokens) {
+		HashSet<String> words = new HashSet<String>();
+		for (IntegerToken tok : tokens) {
+			words.add(tok.getWord());
+		}
+		return words;
+	}
+}
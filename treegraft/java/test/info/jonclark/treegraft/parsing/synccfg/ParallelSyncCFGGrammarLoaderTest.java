@@ -0,0 +1,147 @@
+package info.jonclark.treegraft.parsing.synccfg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import info.jonclark.treegraft.core.tokens.integer.IntegerToken;
+import info.jonclark.treegraft.core.tokens.integer.IntegerTokenFactory;
+import info.jonclark.treegraft.parsing.ParsingTestUtils;
+import info.jonclark.treegraft.parsing.grammar.Grammar;
+import info.jonclark.util.FileUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ParallelSyncCFGGrammarLoaderTest {
+
+	private static final String RULE_1 =
+			"{S,1}\n" + "S::S : [NP VP] -> [VP NP]\n" + "(\n" + "\t(*score* 0.5)\n"
+					+ "\t(X1::Y2)\n" + "\t(X2::Y1)\n" + ")\n";
+
+	// comments inside the features contain unbalanced parentheses
+	private static final String RULE_2 =
+			"; a comment before the rule (\n" + "\n" + "{NP,1}\n"
+					+ "NP::NP |: [\"the\" \"dogs\"] -> [\"los\" \"perros\"]\n" + "(\n"
+					+ "; (not a feature\n" + "\t# (nor this\n" + "\t(*sgtrule* 0.25)\n"
+					+ "\t(*tgsrule* 0.75)\n" + "\t((X0 agr) = (Y0 agr))\n" + ")\n";
+
+	// header lines with tabs, escapes, quoted spaces, empty quotes and CRLFs
+	private static final String ODD_RULES =
+			"{odd,1}\n" + "VP::VP\t:\t[V\t\"a  b\"] -> [\"c\" V]\n" + "(\n"
+					+ "\t(*score* 0.5)\n" + "\t(X1::Y2)\n" + ")\n" + "{odd,2}\r\n"
+					+ "V::V |: [\"x\\\"y\"] -> [\" \"]\r\n" + "(\r\n" + "\t(*score* 0.5)\r\n"
+					+ ")\r\n" + "N::N [\"\"] -> [\"z\" ]\n" + "(\n" + "\t(*score* 0.5)\n" + ")\n";
+
+	private static byte[] bytes(String str) throws Exception {
+		return str.getBytes("UTF-8");
+	}
+
+	@Test
+	public void testFindRuleEnd() throws Exception {
+
+		byte[] buf = bytes(RULE_1 + RULE_2);
+		int end1 = ParallelSyncCFGGrammarLoader.findRuleEnd(buf, 0, buf.length);
+		assertEquals(bytes(RULE_1).length, end1);
+		assertEquals(buf.length, ParallelSyncCFGGrammarLoader.findRuleEnd(buf, end1, buf.length));
+
+		// a rule split by the end of the buffer isn't complete, even if all of
+		// its parentheses so far are balanced
+		for (int length = end1; length < buf.length; length++) {
+			assertEquals("length " + length, -1, ParallelSyncCFGGrammarLoader.findRuleEnd(buf,
+					end1, length));
+		}
+
+		// an ID line alone is not a rule
+		byte[] id = bytes("{S,1}\n");
+		assertEquals(-1, ParallelSyncCFGGrammarLoader.findRuleEnd(id, 0, id.length));
+	}
+
+	@Test
+	public void testFindChunkEnd() throws Exception {
+
+		ParallelSyncCFGGrammarLoader<IntegerToken> loader =
+				new ParallelSyncCFGGrammarLoader<IntegerToken>(new IntegerTokenFactory(), true, 2);
+
+		byte[] buf = bytes(RULE_1 + RULE_2 + RULE_1);
+		int twoRules = bytes(RULE_1 + RULE_2).length;
+		assertEquals(twoRules, loader.findChunkEnd(buf, buf.length - 1, false));
+		assertEquals(buf.length, loader.findChunkEnd(buf, buf.length, false));
+		assertEquals(buf.length - 1, loader.findChunkEnd(buf, buf.length - 1, true));
+		assertEquals(0, loader.findChunkEnd(buf, bytes(RULE_1).length - 1, false));
+	}
+
+	private static List<String> loadSerial(String grammar, IntegerTokenFactory tokenFactory)
+			throws Exception {
+		Grammar<SyncCFGRule<IntegerToken>, IntegerToken> g =
+				ParsingTestUtils.newGrammar(tokenFactory);
+		new SyncCFGGrammarLoader<IntegerToken>(tokenFactory, true).loadGrammar(g,
+				new ByteArrayInputStream(bytes(grammar)), "test", "UTF-8", null);
+		return ParsingTestUtils.describeAll(g.getAllRules());
+	}
+
+	private static List<String> loadParallel(String grammar, IntegerTokenFactory tokenFactory,
+			int nThreads) throws Exception {
+		Grammar<SyncCFGRule<IntegerToken>, IntegerToken> g =
+				ParsingTestUtils.newGrammar(tokenFactory);
+		new ParallelSyncCFGGrammarLoader<IntegerToken>(tokenFactory, true, nThreads).loadGrammar(
+				g, new ByteArrayInputStream(bytes(grammar)), "test", "UTF-8", null);
+		return ParsingTestUtils.describeAll(g.getAllRules());
+	}
+
+	@Test
+	public void testSameRulesAsSerialLoader() throws Exception {
+
+		IntegerTokenFactory tokenFactory = new IntegerTokenFactory();
+		String grammar = RULE_1 + RULE_2 + ODD_RULES;
+		List<String> expected = loadSerial(grammar, tokenFactory);
+		assertEquals(5, expected.size());
+		assertEquals(expected, loadParallel(grammar, tokenFactory, 1));
+
+		// no trailing newline
+		grammar = grammar.substring(0, grammar.length() - 1);
+		assertEquals(expected, loadParallel(grammar, tokenFactory, 1));
+
+		for (String file : new String[] { "data/test_sync.gra", "data/nlp_lab_sync.txt" }) {
+			grammar = FileUtils.getFileAsString(new File(file));
+			assertEquals(file, loadSerial(grammar, tokenFactory), loadParallel(grammar,
+					tokenFactory, 2));
+		}
+	}
+
+	@Test
+	public void testMergeOrder() throws Exception {
+
+		// several chunks' worth of distinct rules
+		StringBuilder grammar = new StringBuilder();
+		for (int i = 0; grammar.length() < 3 << 20; i++) {
+			grammar.append("{r" + i + "}\n");
+			grammar.append("N::N |: [\"w" + i + "\" \"w" + (i + 1) + "\"] -> [\"t" + i
+					+ "\"]\n");
+			grammar.append("(\n\t(*score* 0." + (i % 9 + 1) + ")\n)\n\n");
+		}
+
+		IntegerTokenFactory tokenFactory = new IntegerTokenFactory();
+		List<String> expected = loadSerial(grammar.toString(), tokenFactory);
+		assertTrue(expected.size() > 10000);
+		assertEquals(expected, loadParallel(grammar.toString(), tokenFactory, 4));
+	}
+
+	@Test
+	public void testRuleLongerThanBuffer() throws Exception {
+
+		// a target RHS of more than the loader's 1MB buffer
+		StringBuilder longRule = new StringBuilder("{long}\nN::N |: [\"a\"] -> [");
+		for (int i = 0; longRule.length() < 3 << 20; i++) {
+			longRule.append("\"x" + (i % 100) + "\" ");
+		}
+		longRule.append("]\n(\n\t(*score* 0.5)\n)\n");
+
+		String grammar = RULE_1 + longRule + RULE_2;
+		IntegerTokenFactory tokenFactory = new IntegerTokenFactory();
+		List<String> expected = loadSerial(grammar, tokenFactory);
+		assertEquals(3, expected.size());
+		assertEquals(expected, loadParallel(grammar, tokenFactory, 2));
+	}
+}